@@ -0,0 +1,150 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.common.util;
+
+import java.beans.XMLEncoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.signserver.server.cesecore.util.CertTools;
+import org.signserver.test.utils.builders.CertBuilder;
+import org.signserver.test.utils.builders.CryptoUtils;
+
+/**
+ * Benchmark of helpers used when loading and parsing configuration:
+ * parsing of a worker properties file, decoding of a worker configuration
+ * serialized by XMLEncoder as stored in the database, and certificate
+ * parsing and subject DN handling as used for authorization and for
+ * certificate uploads.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfigurationUtilsBenchmark {
+
+    private static final String SUBJECT_DN = "CN=Benchmark Signer, OU=Testing, O=SignServer, C=SE";
+
+    @Param({"50"})
+    private int numProperties;
+
+    private Properties properties;
+    private byte[] encodedConfig;
+    private byte[] pemCertificate;
+    private Certificate certificate;
+
+    @Setup
+    public void setup() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        properties = new Properties();
+        properties.setProperty("GLOB.WORKER4711.CLASSPATH", "org.signserver.module.cmssigner.CMSSigner");
+        properties.setProperty("WORKER4711.NAME", "BenchmarkSigner");
+        final Map<String, String> config = new HashMap<>();
+        for (int i = 0; i < numProperties; i++) {
+            properties.setProperty("WORKER4711.PROPERTY" + i, "value" + i);
+            config.put("PROPERTY" + i, "value" + i);
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (XMLEncoder encoder = new XMLEncoder(out)) {
+            encoder.writeObject(config);
+        }
+        encodedConfig = out.toByteArray();
+
+        final KeyPair keyPair = CryptoUtils.generateRSA(2048);
+        certificate = new JcaX509CertificateConverter().getCertificate(new CertBuilder()
+                .setSelfSignKeyPair(keyPair)
+                .setSubject(SUBJECT_DN)
+                .build());
+        pemCertificate = CertTools.getPEMFromCerts(Collections.singletonList(certificate));
+    }
+
+    @Benchmark
+    public PropertiesParser parseProperties() {
+        final PropertiesParser parser = new PropertiesParser();
+        parser.process(properties);
+        return parser;
+    }
+
+    @Benchmark
+    public Object decodeConfiguration() throws IOException {
+        try (SecureXMLDecoder decoder = new SecureXMLDecoder(new ByteArrayInputStream(encodedConfig))) {
+            return decoder.readObject();
+        }
+    }
+
+    @Benchmark
+    public List<Certificate> parsePemCertificate() throws CertificateParsingException {
+        return CertTools.getCertsFromPEM(new ByteArrayInputStream(pemCertificate));
+    }
+
+    @Benchmark
+    public String subjectDN() {
+        return CertTools.getSubjectDN(certificate);
+    }
+
+    @Benchmark
+    public String normalizeDN() {
+        return CertTools.stringToBCDNString(SUBJECT_DN);
+    }
+
+    /**
+     * Runs the benchmarks in this class and writes the results to
+     * jmh-result.json.
+     *
+     * @param args not used
+     * @throws RunnerException in case of error running the benchmarks
+     */
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(ConfigurationUtilsBenchmark.class.getSimpleName())
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-result.json")
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,197 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.ejb.worker.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.signserver.common.NoSuchWorkerException;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerIdentifier;
+import org.signserver.common.WorkerType;
+import org.signserver.common.util.PropertiesConstants;
+import org.signserver.server.BaseWorker;
+import org.signserver.server.SignServerContext;
+import org.signserver.server.config.entities.IWorkerConfigDataService;
+
+/**
+ * Benchmark of worker lookups in the WorkerFactory, as performed for each
+ * request, with all workers already loaded.
+ *
+ * The globalLock benchmark wraps the same lookup in a single shared monitor
+ * to show the throughput of a globally synchronized lookup for comparison.
+ *
+ * Run with the thread counts 1 to 64 using the main method of this class or
+ * with a specific thread count using the JMH -t option.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WorkerFactoryBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    @Param({"100"})
+    private int numWorkers;
+
+    private WorkerFactory factory;
+    private SignServerContext context;
+    private WorkerIdentifier[] ids;
+    private WorkerIdentifier[] names;
+    private final Object globalLock = new Object();
+
+    @Setup
+    public void setup() throws NoSuchWorkerException {
+        final InMemoryWorkerConfigService configService = new InMemoryWorkerConfigService();
+        ids = new WorkerIdentifier[numWorkers];
+        names = new WorkerIdentifier[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            final int workerId = i + 1;
+            configService.addWorker(workerId, "Worker" + workerId);
+            ids[i] = new WorkerIdentifier(workerId);
+            names[i] = new WorkerIdentifier("Worker" + workerId);
+        }
+        context = new SignServerContext(null, null);
+        factory = new WorkerFactory(configService, context);
+        for (WorkerIdentifier wi : ids) {
+            factory.getWorkerWithComponents(wi, context);
+        }
+    }
+
+    @Benchmark
+    public WorkerWithComponents lookupById() throws NoSuchWorkerException {
+        return factory.getWorkerWithComponents(ids[ThreadLocalRandom.current().nextInt(numWorkers)], context);
+    }
+
+    @Benchmark
+    public WorkerWithComponents lookupByName() throws NoSuchWorkerException {
+        return factory.getWorkerWithComponents(names[ThreadLocalRandom.current().nextInt(numWorkers)], context);
+    }
+
+    @Benchmark
+    public WorkerWithComponents globalLock() throws NoSuchWorkerException {
+        synchronized (globalLock) {
+            return factory.getWorkerWithComponents(ids[ThreadLocalRandom.current().nextInt(numWorkers)], context);
+        }
+    }
+
+    /**
+     * Runs the benchmarks in this class once for each thread count.
+     *
+     * @param args not used
+     * @throws RunnerException in case of error running the benchmarks
+     */
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREADS) {
+            final Options options = new OptionsBuilder()
+                    .include(WorkerFactoryBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+    /** Worker only used for being looked up. */
+    public static class NoopWorker extends BaseWorker {
+    }
+
+    /** Worker configuration service backed by a map. */
+    private static class InMemoryWorkerConfigService implements IWorkerConfigDataService {
+
+        private final Map<Integer, WorkerConfig> configs = new ConcurrentHashMap<>();
+
+        public void addWorker(int workerId, String name) {
+            final WorkerConfig config = new WorkerConfig();
+            config.setProperty(PropertiesConstants.NAME, name);
+            config.setProperty(WorkerConfig.IMPLEMENTATION_CLASS, NoopWorker.class.getName());
+            configs.put(workerId, config);
+        }
+
+        @Override
+        public WorkerConfig getWorkerProperties(int workerId, boolean create) {
+            return configs.get(workerId);
+        }
+
+        @Override
+        public boolean removeWorkerConfig(int workerId) {
+            return configs.remove(workerId) != null;
+        }
+
+        @Override
+        public void setWorkerConfig(int workerId, WorkerConfig config) {
+            configs.put(workerId, config);
+        }
+
+        @Override
+        public void create(int workerId, String implClassName) {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public List<Integer> findAllIds() {
+            return new ArrayList<>(configs.keySet());
+        }
+
+        @Override
+        public List<String> findAllNames() {
+            final List<String> result = new ArrayList<>();
+            for (WorkerConfig config : configs.values()) {
+                result.add(config.getProperty(PropertiesConstants.NAME));
+            }
+            return result;
+        }
+
+        @Override
+        public void populateNameColumn() {
+        }
+
+        @Override
+        public int findId(String workerName) throws NoSuchWorkerException {
+            for (Map.Entry<Integer, WorkerConfig> entry : configs.entrySet()) {
+                if (workerName.equalsIgnoreCase(entry.getValue().getProperty(PropertiesConstants.NAME))) {
+                    return entry.getKey();
+                }
+            }
+            throw new NoSuchWorkerException(workerName);
+        }
+
+        @Override
+        public List<Integer> findAllIds(WorkerType workerType) {
+            return findAllIds();
+        }
+    }
+}
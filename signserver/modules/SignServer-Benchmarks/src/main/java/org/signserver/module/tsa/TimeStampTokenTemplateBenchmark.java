@@ -0,0 +1,191 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.signserver.module.cmssigner.FilteredSignedAttributeTableGenerator;
+
+/**
+ * Benchmark of creating the TimeStampTokenGenerator for each request.
+ *
+ * The perRequest benchmarks set up the generator from the worker
+ * configuration and signing certificate the way TimeStampSigner did before
+ * the TimeStampTokenTemplate was introduced, while the template benchmarks
+ * create it from a prepared TimeStampTokenTemplate. The token benchmarks
+ * also generate a token to show the share of the setup in a full request.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimeStampTokenTemplateBenchmark {
+
+    private static final ASN1ObjectIdentifier POLICY = new ASN1ObjectIdentifier("1.2.3.4");
+
+    @Param({"SHA256withECDSA", "SHA256withRSA"})
+    private String signatureAlgorithm;
+
+    private KeyPair keyPair;
+    private X509Certificate signingCert;
+    private List<Certificate> chain;
+    private TimeStampTokenTemplate template;
+    private TimeStampRequest request;
+
+    @Setup
+    public void setup() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        final KeyPairGenerator kpg;
+        if (signatureAlgorithm.endsWith("RSA")) {
+            kpg = KeyPairGenerator.getInstance("RSA");
+            kpg.initialize(2048);
+        } else {
+            kpg = KeyPairGenerator.getInstance("EC");
+            kpg.initialize(256);
+        }
+        keyPair = kpg.generateKeyPair();
+
+        final X500Name subject = new X500Name("CN=Benchmark TSA");
+        final JcaX509v3CertificateBuilder certBuilder = new JcaX509v3CertificateBuilder(subject,
+                BigInteger.ONE, new Date(System.currentTimeMillis() - 3600000L),
+                new Date(System.currentTimeMillis() + 86400000L), subject, keyPair.getPublic());
+        certBuilder.addExtension(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping));
+        signingCert = new JcaX509CertificateConverter().getCertificate(
+                certBuilder.build(new JcaContentSignerBuilder(signatureAlgorithm).build(keyPair.getPrivate())));
+        chain = Collections.<Certificate>singletonList(signingCert);
+
+        template = new TimeStampTokenTemplate(signingCert, chain, new JcaCertStore(chain),
+                NISTObjectIdentifiers.id_sha256, true, true, true, 1, null, null, false,
+                new GeneralName(subject));
+
+        final TimeStampRequestGenerator requestGenerator = new TimeStampRequestGenerator();
+        requestGenerator.setCertReq(true);
+        request = requestGenerator.generate(TSPAlgorithms.SHA256, new byte[32], BigInteger.TEN);
+    }
+
+    private ContentSigner createContentSigner() throws Exception {
+        return new JcaContentSignerBuilder(signatureAlgorithm).build(keyPair.getPrivate());
+    }
+
+    private TimeStampTokenGenerator createPerRequest() throws Exception {
+        final ContentSigner cs = createContentSigner();
+        final DigestCalculatorProvider calcProv = new BcDigestCalculatorProvider();
+        final DigestCalculator calc = calcProv.get(new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256));
+        final JcaSignerInfoGeneratorBuilder sigb = new JcaSignerInfoGeneratorBuilder(calcProv);
+        final X509CertificateHolder certHolder = new X509CertificateHolder(signingCert.getEncoded());
+
+        final Collection<ASN1ObjectIdentifier> attributesToRemove = new ArrayList<>();
+        sigb.setSignedAttributeGenerator(new FilteredSignedAttributeTableGenerator(attributesToRemove));
+        final SignerInfoGenerator sig = sigb.build(cs, certHolder);
+
+        final TimeStampTokenGenerator result = new TimeStampTokenGenerator(sig, calc, POLICY, true);
+        result.setAccuracySeconds(Integer.parseInt("1"));
+        result.setOrdering(false);
+        result.setTSA(new GeneralName(new X500Name("CN=Benchmark TSA")));
+        result.addCertificates(new JcaCertStore(chain));
+        return result;
+    }
+
+    private TimeStampTokenGenerator createFromTemplate() throws Exception {
+        return template.createGenerator(createContentSigner(), POLICY);
+    }
+
+    @Benchmark
+    public TimeStampTokenGenerator generatorPerRequest() throws Exception {
+        return createPerRequest();
+    }
+
+    @Benchmark
+    public TimeStampTokenGenerator generatorFromTemplate() throws Exception {
+        return createFromTemplate();
+    }
+
+    @Benchmark
+    public TimeStampToken tokenPerRequest() throws Exception {
+        return createPerRequest().generate(request, BigInteger.ONE, new Date());
+    }
+
+    @Benchmark
+    public TimeStampToken tokenFromTemplate() throws Exception {
+        return createFromTemplate().generate(request, BigInteger.ONE, new Date());
+    }
+
+    /**
+     * Runs the benchmarks.
+     * @param args not used
+     * @throws RunnerException in case of error running the benchmarks
+     */
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(TimeStampTokenTemplateBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,263 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.Paragraph;
+import com.lowagie.text.pdf.PdfWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerIdentifier;
+import org.signserver.common.data.Response;
+import org.signserver.common.data.SignatureRequest;
+import org.signserver.ejb.interfaces.GlobalConfigurationSessionLocal;
+import org.signserver.module.cmssigner.CMSSigner;
+import org.signserver.module.cmssigner.PlainSigner;
+import org.signserver.module.pdfsigner.PDFSigner;
+import org.signserver.module.tsa.TimeStampSigner;
+import org.signserver.module.xades.signer.XAdESSigner;
+import org.signserver.server.data.impl.ByteArrayReadableData;
+import org.signserver.server.data.impl.CloseableReadableData;
+import org.signserver.server.data.impl.CloseableWritableData;
+import org.signserver.server.data.impl.TemporarlyWritableData;
+import org.signserver.server.data.impl.UploadConfig;
+import org.signserver.server.log.AdminInfo;
+import org.signserver.test.utils.builders.CertBuilder;
+import org.signserver.test.utils.builders.CertExt;
+import org.signserver.test.utils.builders.CryptoUtils;
+import org.signserver.test.utils.mock.GlobalConfigurationSessionMock;
+import org.signserver.test.utils.mock.MockedRequestContext;
+import org.signserver.test.utils.mock.MockedServicesImpl;
+import org.signserver.test.utils.mock.WorkerSessionMock;
+
+/**
+ * Benchmark of the in-process signing pipeline for some of the signers,
+ * from request data to signed response data, using a KeystoreCryptoToken
+ * with a software keystore created at setup.
+ *
+ * The request is dispatched through the mocked worker session which, like
+ * the real process session, prepares the request context and calls
+ * processData on the worker but leaves out authorization, accounting and
+ * logging.
+ *
+ * Results can be exported for comparison between versions using the
+ * main method of this class or the JMH -rf json option.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignerPipelineBenchmark {
+
+    private static final int WORKER_ID = 4711;
+    private static final String KEY_ALIAS = "signer00001";
+    private static final String KEYSTORE_PASSWORD = "foo123";
+    private static final String CRYPTOTOKEN_CLASS = "org.signserver.server.cryptotokens.KeystoreCryptoToken";
+    private static final AdminInfo ADMIN_INFO = new AdminInfo("Benchmark", null, null);
+
+    @Param({"CMSSigner", "PlainSigner", "TimeStampSigner", "XAdESSigner", "PDFSigner"})
+    private String signer;
+
+    @Param({"1024"})
+    private int dataSize;
+
+    private File keystoreFile;
+    private WorkerSessionMock workerSession;
+    private MockedServicesImpl services;
+    private WorkerIdentifier workerId;
+    private File repository;
+    private byte[] data;
+
+    @Setup
+    public void setup() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        keystoreFile = createKeystore();
+
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("NAME", "Benchmark" + signer);
+        config.setProperty("AUTHTYPE", "NOAUTH");
+        config.setProperty("KEYSTOREPATH", keystoreFile.getAbsolutePath());
+        config.setProperty("KEYSTORETYPE", "PKCS12");
+        config.setProperty("KEYSTOREPASSWORD", KEYSTORE_PASSWORD);
+        config.setProperty("DEFAULTKEY", KEY_ALIAS);
+
+        final IProcessable worker;
+        switch (signer) {
+            case "CMSSigner":
+                worker = new CMSSigner();
+                data = randomData(dataSize);
+                break;
+            case "PlainSigner":
+                worker = new PlainSigner();
+                data = randomData(dataSize);
+                break;
+            case "TimeStampSigner":
+                worker = new TimeStampSigner();
+                config.setProperty("DEFAULTTSAPOLICYOID", "1.2.3");
+                config.setProperty("ACCEPTANYPOLICY", "true");
+                data = createTimeStampRequest(randomData(dataSize));
+                break;
+            case "XAdESSigner":
+                // The optimized JAXB accessors can not be injected on newer
+                // JDKs with the combined benchmarks jar
+                System.setProperty("com.sun.xml.bind.v2.bytecode.ClassTailor.noOptimize", "true");
+                worker = new XAdESSigner();
+                config.setProperty("XADESFORM", "BES");
+                data = createXml(dataSize);
+                break;
+            case "PDFSigner":
+                worker = new PDFSigner();
+                data = createPdf(dataSize);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported signer: " + signer);
+        }
+
+        services = new MockedServicesImpl().with(GlobalConfigurationSessionLocal.class, new GlobalConfigurationSessionMock());
+        workerSession = new WorkerSessionMock();
+        workerSession.setupWorker(WORKER_ID, CRYPTOTOKEN_CLASS, config, worker);
+        workerSession.reloadConfiguration(WORKER_ID);
+        workerId = new WorkerIdentifier(WORKER_ID);
+        repository = new UploadConfig().getRepository();
+
+        // Fail early instead of measuring error handling
+        process();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (keystoreFile != null && !keystoreFile.delete()) {
+            keystoreFile.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public Response process() throws Exception {
+        try (CloseableReadableData requestData = new ByteArrayReadableData(data, repository);
+             CloseableWritableData responseData = new TemporarlyWritableData(false, repository)) {
+            final SignatureRequest request = new SignatureRequest(1, requestData, responseData);
+            return workerSession.process(ADMIN_INFO, workerId, request, new MockedRequestContext(services));
+        }
+    }
+
+    /**
+     * Runs the benchmarks in this class and writes the results to
+     * jmh-result.json.
+     *
+     * @param args not used
+     * @throws RunnerException in case of error running the benchmarks
+     */
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(SignerPipelineBenchmark.class.getSimpleName())
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-result.json")
+                .build();
+        new Runner(options).run();
+    }
+
+    private static File createKeystore() throws Exception {
+        final KeyPair keyPair = CryptoUtils.generateRSA(2048);
+        final Certificate cert = new JcaX509CertificateConverter().getCertificate(new CertBuilder()
+                .setSelfSignKeyPair(keyPair)
+                .setSignatureAlgorithm("SHA256withRSA")
+                .setSubject("CN=Benchmark Signer")
+                .addExtension(new CertExt(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping)))
+                .build());
+        final KeyStore keystore = KeyStore.getInstance("PKCS12");
+        keystore.load(null, null);
+        keystore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), KEYSTORE_PASSWORD.toCharArray(), new Certificate[] {cert});
+
+        final File file = Files.createTempFile("benchmark", ".p12").toFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            keystore.store(out, KEYSTORE_PASSWORD.toCharArray());
+        }
+        return file;
+    }
+
+    private static byte[] randomData(final int size) {
+        final byte[] result = new byte[size];
+        new Random(4711).nextBytes(result);
+        return result;
+    }
+
+    private static byte[] createTimeStampRequest(final byte[] content) throws Exception {
+        final TimeStampRequestGenerator generator = new TimeStampRequestGenerator();
+        generator.setCertReq(true);
+        return generator.generate(TSPAlgorithms.SHA256, MessageDigest.getInstance("SHA-256").digest(content)).getEncoded();
+    }
+
+    private static byte[] createXml(final int size) {
+        final StringBuilder sb = new StringBuilder("<root>");
+        while (sb.length() < size) {
+            sb.append("<item>").append(sb.length()).append("</item>");
+        }
+        sb.append("</root>");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] createPdf(final int size) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Document document = new Document();
+        PdfWriter.getInstance(document, out);
+        document.open();
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("Benchmark document. ");
+        }
+        document.add(new Paragraph(sb.toString()));
+        document.close();
+        return out.toByteArray();
+    }
+}
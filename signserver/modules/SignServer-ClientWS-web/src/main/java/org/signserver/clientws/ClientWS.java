@@ -15,11 +15,14 @@ package org.signserver.clientws;
 import java.io.IOException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
@@ -64,11 +67,13 @@ import org.signserver.server.log.AdminInfo;
 import org.signserver.server.log.IWorkerLogger;
 import org.signserver.server.log.LogMap;
 import org.signserver.server.log.Loggable;
+import org.signserver.web.common.BatchProcessor;
 
 /**
  * Client Web Services implementation containing operations:
  * <ul>
  *     <li>requesting signing;</li>
+ *     <li>requesting signing of multiple documents in one request;</li>
  *
  * </ul>
  * for  etc.
@@ -93,6 +98,9 @@ public class ClientWS {
     @EJB
     private WorkerSessionLocal workerSession;
 
+    @Resource(lookup = "java:comp/DefaultManagedExecutorService")
+    private ExecutorService executorService;
+
     private DataFactory dataFactory;
 
     @PostConstruct
@@ -121,42 +129,136 @@ public class ClientWS {
             @WebParam(name = "metadata") List<Metadata> requestMetadata,
             @WebParam(name = "data") byte[] data
     ) throws RequestFailedException, InternalServerException {
+        final UploadConfig uploadConfig = UploadConfig.create(globalSession);
+        final RequestContext requestContext = handleRequestContext(requestMetadata);
+        final WorkerIdentifier workerIdentifier = checkPriority(WorkerIdentifier.createFromIdOrName(workerIdOrName));
 
-        final DataResponse result;
+        return processItem(workerIdentifier, requestContext, data, uploadConfig);
+    }
+
+    /**
+     * Operation for request signing of multiple byte arrays in one request.
+     *
+     * The items are processed independently, in parallel up to the
+     * configured BATCH_PARALLELISM, and the result of each item is returned
+     * at the same position in the response. A failing item does not fail the
+     * other items.
+     *
+     * @param workerIdOrName Name or ID of worker to send the requests to
+     * @param items The data and request meta data of each item
+     * @return The response for each item
+     * @throws RequestFailedException In case the request could not be processed typically because some error in the request data.
+     * @throws InternalServerException In case the request could not be processed by some error at the server side.
+     */
+    @WebMethod(operationName="processDataBatch")
+    public List<DataBatchResponse> processDataBatch(
+            @WebParam(name = "worker") final String workerIdOrName,
+            @WebParam(name = "items") final List<DataRequest> items
+    ) throws RequestFailedException, InternalServerException {
+        final BatchProcessor batchProcessor = BatchProcessor.create(globalSession, executorService);
+        if (items == null || items.isEmpty()) {
+            throw new RequestFailedException("Missing items in request");
+        }
+        if (items.size() > batchProcessor.getMaxItems()) {
+            throw new RequestFailedException("Maximum number of items is " + batchProcessor.getMaxItems());
+        }
 
         final UploadConfig uploadConfig = UploadConfig.create(globalSession);
-        try (
-                CloseableReadableData requestData = dataFactory.createReadableData(data, uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                CloseableWritableData responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository())
-            ) {
-            final RequestContext requestContext = handleRequestContext(requestMetadata);
-            final int requestId = ThreadLocalRandom.current().nextInt();
 
-            // Upload handling (Note: UploadUtil.cleanUp() in finally clause)
+        // Look up the worker once for all items
+        WorkerIdentifier workerIdentifier = checkPriority(WorkerIdentifier.createFromIdOrName(workerIdOrName));
+        if (!workerIdentifier.hasId()) {
+            try {
+                workerIdentifier = new WorkerIdentifier(workerSession.getWorkerId(workerIdentifier.getName()), workerIdentifier.getName());
+            } catch (InvalidWorkerIdException ex) {
+                LOG.debug("No such worker: " + ex.getMessage());
+                throw new RequestFailedException("Worker Not Found");
+            }
+        }
+        final WorkerIdentifier wi = workerIdentifier;
 
-            final Request req = new SignatureRequest(requestId, requestData, responseData);
-            
-            WorkerIdentifier workerIdentifier = WorkerIdentifier.createFromIdOrName(workerIdOrName);
+        final List<Callable<DataResponse>> tasks = new ArrayList<>(items.size());
+        for (DataRequest item : items) {
+            final RequestContext requestContext = handleRequestContext(item.getMetadata());
+            final byte[] data = item.getData();
+            tasks.add(() -> processItem(wi, requestContext, data, uploadConfig));
+        }
+
+        final List<BatchProcessor.Outcome<DataResponse>> outcomes;
+        try {
+            outcomes = batchProcessor.processAll(tasks);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InternalServerException("Interrupted while processing batch");
+        }
 
-            // Check if this came in as a high priority request
-            Set<Integer> highPriorityWorkers = (Set<Integer>) getServletRequest().getAttribute(RequestContext.QOS_PRIORITY_WORKER_ID_LIST);
-            if (highPriorityWorkers == null) {
-                LOG.debug("Not highest priority request");
+        final List<DataBatchResponse> result = new ArrayList<>(outcomes.size());
+        int failed = 0;
+        for (BatchProcessor.Outcome<DataResponse> outcome : outcomes) {
+            final Exception ex = outcome.getException();
+            if (ex == null) {
+                result.add(new DataBatchResponse(outcome.getResult(), null, null));
             } else {
-                if (!workerIdentifier.hasId()) {
-                    try {
-                        workerIdentifier = new WorkerIdentifier(workerSession.getWorkerId(workerIdentifier.getName()), workerIdentifier.getName());
-                    } catch (InvalidWorkerIdException ex) {
-                        LOG.debug("No such worker: " + ex.getMessage());
-                    }
+                failed++;
+                if (ex instanceof RequestFailedException) {
+                    result.add(new DataBatchResponse(null, DataBatchResponse.REQUEST_FAILED, ex.getMessage()));
+                } else if (ex instanceof InternalServerException) {
+                    result.add(new DataBatchResponse(null, DataBatchResponse.INTERNAL_SERVER_ERROR, ex.getMessage()));
+                } else {
+                    LOG.error("Processing batch item failed", ex);
+                    result.add(new DataBatchResponse(null, DataBatchResponse.INTERNAL_SERVER_ERROR, "Internal server error"));
                 }
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Processed batch of " + items.size() + " items for worker " + wi + " with " + failed + " failed");
+        }
+        return result;
+    }
 
-                if (!highPriorityWorkers.contains(workerIdentifier.getId())) {
-                    LOG.error("Worker with id " + workerIdentifier.getId() + " not one of the highest priority workers: " + highPriorityWorkers);
-                    throw new RequestFailedException("Requests to the high priority endpoint not allowed for this worker");
+    /**
+     * Checks that the request is allowed if it came in as a high priority
+     * request.
+     *
+     * @param workerIdentifier Worker to send the request to
+     * @return The worker identifier, with the ID looked up if needed for the check
+     * @throws RequestFailedException If the worker is not allowed
+     */
+    private WorkerIdentifier checkPriority(WorkerIdentifier workerIdentifier) throws RequestFailedException {
+        // Check if this came in as a high priority request
+        Set<Integer> highPriorityWorkers = (Set<Integer>) getServletRequest().getAttribute(RequestContext.QOS_PRIORITY_WORKER_ID_LIST);
+        if (highPriorityWorkers == null) {
+            LOG.debug("Not highest priority request");
+        } else {
+            if (!workerIdentifier.hasId()) {
+                try {
+                    workerIdentifier = new WorkerIdentifier(workerSession.getWorkerId(workerIdentifier.getName()), workerIdentifier.getName());
+                } catch (InvalidWorkerIdException ex) {
+                    LOG.debug("No such worker: " + ex.getMessage());
                 }
             }
-            
+
+            if (!highPriorityWorkers.contains(workerIdentifier.getId())) {
+                LOG.error("Worker with id " + workerIdentifier.getId() + " not one of the highest priority workers: " + highPriorityWorkers);
+                throw new RequestFailedException("Requests to the high priority endpoint not allowed for this worker");
+            }
+        }
+        return workerIdentifier;
+    }
+
+    private DataResponse processItem(final WorkerIdentifier workerIdentifier, final RequestContext requestContext,
+            final byte[] data, final UploadConfig uploadConfig) throws RequestFailedException, InternalServerException {
+        final DataResponse result;
+
+        try (
+                CloseableReadableData requestData = dataFactory.createReadableData(data, uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
+                CloseableWritableData responseData = dataFactory.createWritableData(requestData, uploadConfig)
+            ) {
+            final int requestId = ThreadLocalRandom.current().nextInt();
+
+            // Upload handling (Note: UploadUtil.cleanUp() in finally clause)
+
+            final Request req = new SignatureRequest(requestId, requestData, responseData);
 
             final Response resp = getProcessSession().process(new AdminInfo("CLI user", null, null), workerIdentifier, req, requestContext);
 
@@ -0,0 +1,97 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.clientws;
+
+/**
+ * Represents the result of one item of a request for multiple data to be
+ * processed. Either the response or the error is set.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class DataBatchResponse {
+
+    /** Error code for an item that failed because of the request data. */
+    public static final String REQUEST_FAILED = "REQUEST_FAILED";
+
+    /** Error code for an item that failed because of an error at the server side. */
+    public static final String INTERNAL_SERVER_ERROR = "INTERNAL_SERVER_ERROR";
+
+    private DataResponse response;
+    private String errorCode;
+    private String errorMessage;
+
+    public DataBatchResponse() {
+    }
+
+    /**
+     * Constructs a new instance of DataBatchResponse.
+     * @param response The response if the item was processed successfully.
+     * @param errorCode The error code if the item failed.
+     * @param errorMessage The error message if the item failed.
+     */
+    public DataBatchResponse(DataResponse response, String errorCode, String errorMessage) {
+        this.response = response;
+        this.errorCode = errorCode;
+        this.errorMessage = errorMessage;
+    }
+
+    /**
+     * Get the response for the item.
+     *
+     * @return The response or null if the item failed
+     */
+    public DataResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @param response The response
+     */
+    public void setResponse(DataResponse response) {
+        this.response = response;
+    }
+
+    /**
+     * Get the error code, REQUEST_FAILED or INTERNAL_SERVER_ERROR.
+     *
+     * @return The error code or null if the item was processed successfully
+     */
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @param errorCode The error code
+     */
+    public void setErrorCode(String errorCode) {
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * Get the error message.
+     *
+     * @return The error message or null if the item was processed successfully
+     */
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * @param errorMessage The error message
+     */
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+
+}
@@ -0,0 +1,73 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.clientws;
+
+import java.util.List;
+
+/**
+ * Represents one item of a request for multiple data to be processed.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class DataRequest {
+
+    private List<Metadata> metadata;
+    private byte[] data;
+
+    public DataRequest() {
+    }
+
+    /**
+     * Constructs a new instance of DataRequest.
+     * @param metadata Request metadata.
+     * @param data The data to process (for instance a document to sign).
+     */
+    public DataRequest(List<Metadata> metadata, byte[] data) {
+        this.metadata = metadata;
+        this.data = data;
+    }
+
+    /**
+     * Get the request metadata.
+     *
+     * @return The request metadata (if any)
+     */
+    public List<Metadata> getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @param metadata The request metadata
+     */
+    public void setMetadata(List<Metadata> metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * Get the data to process.
+     *
+     * @return The data
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @param data The data to process
+     */
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+
+}
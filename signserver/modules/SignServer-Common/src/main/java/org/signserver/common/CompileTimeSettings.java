@@ -73,6 +73,15 @@ public class CompileTimeSettings {
     public static final String STATUSREPOSITORY_LOG = "statusrepository.log";
 
     public static final String WEB_THEME = "web.theme";
+
+    public static final String WORKERS_PRELOAD = "workers.preload";
+    public static final String WORKERS_PRELOAD_THREADS = "workers.preload.threads";
+    public static final String WORKERS_PRELOAD_ACTIVATE = "workers.preload.activate";
+    public static final String WORKERS_PRELOAD_TESTKEY = "workers.preload.testkey";
+
+    public static final String DATAFACTORY_POOLED = "datafactory.pooled";
+    public static final String DATAFACTORY_POOLED_CHUNKSIZE = "datafactory.pooled.chunksize";
+    public static final String DATAFACTORY_POOLED_MAXCHUNKS = "datafactory.pooled.maxchunks";
     
     /** Default values for the compile-time properties. */
     private static final Properties DEFAULT_PROPERTIES = new Properties();
@@ -89,6 +89,14 @@ public class SignServerConstants {
      */
     public static final String KEYUSAGELIMIT = "KEYUSAGELIMIT";
     public static String DISABLEKEYUSAGECOUNTER = "DISABLEKEYUSAGECOUNTER";
+
+    /**
+     * Number of key usages to reserve in the key usage counter at a time,
+     * to then be counted locally until used up. Unused reservations are
+     * given back after some time of inactivity and at shutdown.
+     * A value of 1 (default) updates the counter for every signing.
+     */
+    public static final String KEYUSAGERESERVATIONSIZE = "KEYUSAGERESERVATIONSIZE";
     /**
      * Constant used to set the default value of configuration property to NULL if not setting property means property value is NULL.
      * 
@@ -58,6 +58,15 @@ public class ValidationServiceConstants {
      */
     public static final String VALIDATIONSERVICE_TIMEINCACHE = "TIMEINCACHE";
     public static final String DEFAULT_TIMEINCACHE = "10";
+
+    /**
+     * Setting defining the maximum number of validations to cache. The
+     * oldest validations are removed when more are added.
+     * 
+     * Default: 10000
+     */
+    public static final String VALIDATIONSERVICE_MAXCACHEENTRIES = "MAXCACHEENTRIES";
+    public static final String DEFAULT_MAXCACHEENTRIES = "10000";
     
     public static final int NUM_OF_SUPPORTED_ISSUERS = 255;
     
@@ -17,8 +17,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
@@ -64,36 +66,70 @@ public class ArchiveDataService {
      */
     public String create(int type, int signerId, String archiveid, X509Certificate clientCert,
             String requestIP, ArchiveData archiveData) {
-        String uniqueId = type + ";" + signerId + ";" + archiveid;
+        final ArchiveDataBean adb = newArchiveDataBean(type, signerId, archiveid, clientCert, requestIP, archiveData);
         if (LOG.isDebugEnabled()) {
-            LOG.debug("Creating archive data, uniqueId=" + uniqueId);
+            LOG.debug("Creating archive data, uniqueId=" + adb.getUniqueId());
         }
-        ArchiveDataBean adb = new ArchiveDataBean();
-        adb.setUniqueId(uniqueId);
-        adb.setType(type);
-        adb.setSignerid(signerId);
-        adb.setTime(new Date().getTime());
-        adb.setArchiveid(archiveid);
-        if (clientCert != null) {
-            adb.setRequestIssuerDN(CertTools.getIssuerDN(clientCert));
-            adb.setRequestCertSerialnumber(clientCert.getSerialNumber().toString(16));
-        }
-        adb.setRequestIP(requestIP);
-        adb.setArchiveDataObject(archiveData);
-        adb.setDataEncoding(ArchiveDataBean.DATA_ENCODING_XML);
-
         em.persist(adb);
-        return uniqueId;
+        return adb.getUniqueId();
     }
     
     public String create(int type, int signerId, String archiveid, X509Certificate clientCert,
             String requestIP, String archiveData) {
-        String uniqueId = type + ";" + signerId + ";" + archiveid;
+        final ArchiveDataBean adb = newArchiveDataBean(type, signerId, archiveid, clientCert, requestIP, archiveData);
         if (LOG.isDebugEnabled()) {
-            LOG.debug("Creating archive data, uniqueId=" + uniqueId);
+            LOG.debug("Creating archive data, uniqueId=" + adb.getUniqueId());
         }
+        em.persist(adb);
+        return adb.getUniqueId();
+    }
+
+    /**
+     * Creates an archive data entity, with the archive data XML encoded,
+     * without persisting it.
+     *
+     * @param type Archive type
+     * @param signerId Signer ID
+     * @param archiveid Archive ID
+     * @param clientCert Client certificate
+     * @param requestIP Request IP address
+     * @param archiveData Archive data
+     * @return The new entity
+     * @see #persistAll(java.util.Collection, boolean)
+     */
+    public static ArchiveDataBean newArchiveDataBean(int type, int signerId, String archiveid, X509Certificate clientCert,
+            String requestIP, ArchiveData archiveData) {
+        final ArchiveDataBean adb = newArchiveDataBean(type, signerId, archiveid, clientCert, requestIP);
+        adb.setArchiveDataObject(archiveData);
+        adb.setDataEncoding(ArchiveDataBean.DATA_ENCODING_XML);
+        return adb;
+    }
+
+    /**
+     * Creates an archive data entity, with the archive data already Base64
+     * encoded, without persisting it.
+     *
+     * @param type Archive type
+     * @param signerId Signer ID
+     * @param archiveid Archive ID
+     * @param clientCert Client certificate
+     * @param requestIP Request IP address
+     * @param archiveData Base64 encoded archive data
+     * @return The new entity
+     * @see #persistAll(java.util.Collection, boolean)
+     */
+    public static ArchiveDataBean newArchiveDataBean(int type, int signerId, String archiveid, X509Certificate clientCert,
+            String requestIP, String archiveData) {
+        final ArchiveDataBean adb = newArchiveDataBean(type, signerId, archiveid, clientCert, requestIP);
+        adb.setArchiveData(archiveData);
+        adb.setDataEncoding(ArchiveDataBean.DATA_ENCODING_BASE64);
+        return adb;
+    }
+
+    private static ArchiveDataBean newArchiveDataBean(int type, int signerId, String archiveid, X509Certificate clientCert,
+            String requestIP) {
         ArchiveDataBean adb = new ArchiveDataBean();
-        adb.setUniqueId(uniqueId);
+        adb.setUniqueId(type + ";" + signerId + ";" + archiveid);
         adb.setType(type);
         adb.setSignerid(signerId);
         adb.setTime(new Date().getTime());
@@ -103,11 +139,44 @@ public class ArchiveDataService {
             adb.setRequestCertSerialnumber(clientCert.getSerialNumber().toString(16));
         }
         adb.setRequestIP(requestIP);
-        adb.setArchiveData(archiveData);
-        adb.setDataEncoding(ArchiveDataBean.DATA_ENCODING_BASE64);
- 
-        em.persist(adb);
-        return uniqueId;
+        return adb;
+    }
+
+    /**
+     * Persists the entities and flushes them so that they are inserted
+     * together, which with JDBC batching enabled is done in batches.
+     *
+     * @param beans Entities created by one of the newArchiveDataBean methods
+     * @param skipExisting If entities with a uniqueId already in the table
+     * should be skipped instead of failing, as when an earlier attempt to
+     * insert them might have been committed. The existing entities are
+     * looked up with one query for all of the beans.
+     * @return Number of entities inserted
+     */
+    @SuppressWarnings("unchecked")
+    public int persistAll(Collection<ArchiveDataBean> beans, boolean skipExisting) {
+        final Set<String> existing = new HashSet<>();
+        if (skipExisting && !beans.isEmpty()) {
+            final List<String> uniqueIds = new ArrayList<>(beans.size());
+            for (ArchiveDataBean adb : beans) {
+                uniqueIds.add(adb.getUniqueId());
+            }
+            existing.addAll(em.createQuery("SELECT a.uniqueId from ArchiveDataBean a WHERE a.uniqueId in (:ids)")
+                    .setParameter("ids", uniqueIds).getResultList());
+        }
+        int result = 0;
+        for (ArchiveDataBean adb : beans) {
+            if (existing.contains(adb.getUniqueId())) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Archive data already exists, uniqueId=" + adb.getUniqueId());
+                }
+                continue;
+            }
+            em.persist(adb);
+            result++;
+        }
+        em.flush();
+        return result;
     }
 
     /**
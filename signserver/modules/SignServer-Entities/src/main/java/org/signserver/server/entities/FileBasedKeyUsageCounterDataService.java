@@ -116,6 +116,39 @@ public class FileBasedKeyUsageCounterDataService implements IKeyUsageCounterData
         }
     }
     
+    @Override
+    public long reserveWithinLimit(String keyHash, long limit, long count) throws FileBasedDatabaseException {
+        try {
+            synchronized (manager) {
+                final Long value = loadData(keyHash);
+                if (value == null) {
+                    return 0;
+                }
+                final long result = limit < 0 ? count : Math.max(0, Math.min(count, limit - value));
+                if (result > 0) {
+                    writeData(keyHash, value + result);
+                }
+                return result;
+            }
+        } catch (IOException ex) {
+            throw new FileBasedDatabaseException("Could not load from or write data to file based database", ex);
+        }
+    }
+
+    @Override
+    public void releaseReserved(String keyHash, long count) throws FileBasedDatabaseException {
+        try {
+            synchronized (manager) {
+                final Long value = loadData(keyHash);
+                if (value != null) {
+                    writeData(keyHash, Math.max(0, value - count));
+                }
+            }
+        } catch (IOException ex) {
+            throw new FileBasedDatabaseException("Could not load from or write data to file based database", ex);
+        }
+    }
+
     private Long loadData(String keyHash) throws IOException {
         assert Thread.holdsLock(manager);
         checkSchemaVersion();
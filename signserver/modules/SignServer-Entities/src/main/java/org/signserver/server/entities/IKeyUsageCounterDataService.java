@@ -51,5 +51,26 @@ public interface IKeyUsageCounterDataService {
      * usage limit
      */
     boolean isWithinLimit(String keyHash, long keyUsageLimit);
+
+    /**
+     * Increase the value of the key usage counter by up to the given number
+     * of usages without exceeding the limit, reserving them for later use.
+     * @param keyHash Hash of the key
+     * @param limit The maximum number of operations or a negative value for
+     * no limit
+     * @param count The number of usages to reserve
+     * @return The number of usages reserved, which is less than requested if
+     * the limit would have been exceeded and 0 if the limit is already reached
+     * or the counter not initialized
+     */
+    long reserveWithinLimit(String keyHash, long limit, long count);
+
+    /**
+     * Decrease the value of the key usage counter by the given number of
+     * previously reserved but not used usages.
+     * @param keyHash Hash of the key
+     * @param count The number of usages to give back
+     */
+    void releaseReserved(String keyHash, long count);
    
 }
@@ -12,6 +12,7 @@
  *************************************************************************/
 package org.signserver.server.entities;
 
+import java.util.List;
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
 import org.apache.log4j.Logger;
@@ -72,4 +73,54 @@ public class KeyUsageCounterDataService implements IKeyUsageCounterDataService {
         return selectQuery.getResultList().size() > 0;
     }
 
+    @Override
+    public long reserveWithinLimit(String keyHash, long limit, long count) {
+        if (limit < 0) {
+            final Query updateQuery = em.createQuery("UPDATE KeyUsageCounter w SET w.counter = w.counter + :count WHERE w.keyHash = :keyhash");
+            updateQuery.setParameter("count", count);
+            updateQuery.setParameter("keyhash", keyHash);
+            return updateQuery.executeUpdate() > 0 ? count : 0;
+        }
+
+        // Common case: the whole block fits within the limit
+        final Query updateQuery = em.createQuery("UPDATE KeyUsageCounter w SET w.counter = w.counter + :count WHERE w.keyHash = :keyhash AND w.counter <= :maxbefore");
+        updateQuery.setParameter("count", count);
+        updateQuery.setParameter("maxbefore", limit - count);
+        updateQuery.setParameter("keyhash", keyHash);
+        if (updateQuery.executeUpdate() > 0) {
+            return count;
+        }
+
+        // Otherwise reserve what is left, unless someone else got it first
+        while (true) {
+            final Query selectQuery = em.createQuery("SELECT w.counter FROM KeyUsageCounter w WHERE w.keyHash = :keyhash");
+            selectQuery.setParameter("keyhash", keyHash);
+            final List<?> values = selectQuery.getResultList();
+            if (values.isEmpty()) {
+                return 0;
+            }
+            final long current = ((Number) values.get(0)).longValue();
+            if (current >= limit) {
+                return 0;
+            }
+            final Query setQuery = em.createQuery("UPDATE KeyUsageCounter w SET w.counter = :limit WHERE w.keyHash = :keyhash AND w.counter = :current");
+            setQuery.setParameter("limit", limit);
+            setQuery.setParameter("current", current);
+            setQuery.setParameter("keyhash", keyHash);
+            if (setQuery.executeUpdate() > 0) {
+                return limit - current;
+            }
+        }
+    }
+
+    @Override
+    public void releaseReserved(String keyHash, long count) {
+        final Query updateQuery = em.createQuery("UPDATE KeyUsageCounter w SET w.counter = w.counter - :count WHERE w.keyHash = :keyhash AND w.counter >= :count");
+        updateQuery.setParameter("count", count);
+        updateQuery.setParameter("keyhash", keyHash);
+        if (updateQuery.executeUpdate() < 1) {
+            LOG.warn("Unable to give back " + count + " reserved usages for key " + keyHash);
+        }
+    }
+
 }
@@ -30,6 +30,7 @@
 // - Added support for specifying a created-by string
 // - Fixed NPE when an Name attribute does not exist (or is an URL)
 // - Changed methods to not declare they throw raw Exception type
+// - Digest the entries in parallel and copy them with larger buffers
 
 package org.signserver.module.jarchive.impl.signapk;
 import org.bouncycastle.asn1.ASN1InputStream;
@@ -56,6 +57,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.security.DigestOutputStream;
 import java.security.GeneralSecurityException;
@@ -75,12 +77,15 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import javax.crypto.Cipher;
 import javax.crypto.EncryptedPrivateKeyInfo;
 import javax.crypto.SecretKeyFactory;
@@ -115,6 +120,8 @@ class SignApk {
     // bitmasks for which hash algorithms we need the manifest to include.
     private static final int USE_SHA1 = 1;
     private static final int USE_SHA256 = 2;
+    // buffer size used when reading and copying entries.
+    private static final int BUFFER_SIZE = 65536;
     /**
      * Return one of USE_SHA1 or USE_SHA256 according to the signature
      * algorithm specified in the cert.
@@ -220,48 +227,93 @@ class SignApk {
             main.putValue("Created-By", createdBy);
         }
         
-        // Create each MessageDigest
-        final List<MessageDigest> mds = new ArrayList<>();
+        // Check that each MessageDigest is available before starting
         for (String hash : hashes) {
-            mds.add(MessageDigest.getInstance(hash, BouncyCastleProvider.PROVIDER_NAME));
+            MessageDigest.getInstance(hash, BouncyCastleProvider.PROVIDER_NAME);
         }
         
-        byte[] buffer = new byte[4096];
-        int num;
         // We sort the input entries by name, and add them to the
         // output manifest in sorted order.  We expect that the output
         // map will be deterministic.
         TreeMap<String, JarEntry> byName = new TreeMap<>();
         for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
             JarEntry entry = e.nextElement();
-            byName.put(entry.getName(), entry);
+            if (!entry.isDirectory() && !STRIP_PATTERN.matcher(entry.getName()).matches()) {
+                byName.put(entry.getName(), entry);
+            }
         }
-        for (JarEntry entry: byName.values()) {
-            String name = entry.getName();
-            if (!entry.isDirectory() && !STRIP_PATTERN.matcher(name).matches()) {
-                InputStream data = jar.getInputStream(entry);
-                while ((num = data.read(buffer)) > 0) {
-                    for (MessageDigest md : mds) {
-                        md.update(buffer, 0, num);
+        
+        // Digest the entries in parallel on the common pool, each into its
+        // own slot
+        final List<JarEntry> entries = new ArrayList<>(byName.values());
+        final String[][] digests = new String[entries.size()][];
+        try {
+            ForkJoinPool.commonPool().submit(() -> {
+                IntStream.range(0, entries.size()).parallel().forEach(i -> {
+                    try {
+                        digests[i] = digestEntry(jar, entries.get(i), hashes);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    } catch (GeneralSecurityException ex) {
+                        throw new IllegalStateException(ex);
                     }
-                }
-                Attributes attr = null;
-                if (input != null) {
-                    attr = input.getAttributes(name);
-                }
-                attr = attr != null ? new Attributes(attr) : new Attributes();
-                
-                // Add each digest
-                for (int i = 0; i < hashes.size(); i++) {
-                    attr.putValue(hashes.get(i) + "-Digest",
-                                  new String(Base64.encode(mds.get(i).digest()), "ASCII"));
-                }
-                
-                output.getEntries().put(name, attr);
+                });
+            }).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while digesting entries", ex);
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof IllegalStateException && cause.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause.getCause();
             }
+            throw new IOException("Digesting entries failed", cause);
+        }
+        
+        for (int e = 0; e < entries.size(); e++) {
+            String name = entries.get(e).getName();
+            Attributes attr = null;
+            if (input != null) {
+                attr = input.getAttributes(name);
+            }
+            attr = attr != null ? new Attributes(attr) : new Attributes();
+            
+            // Add each digest
+            for (int i = 0; i < hashes.size(); i++) {
+                attr.putValue(hashes.get(i) + "-Digest", digests[e][i]);
+            }
+            
+            output.getEntries().put(name, attr);
         }
         return output;
     }
+    /**
+     * Read the entry once and return its Base64-encoded hash for each
+     * of the algorithms.
+     */
+    private static String[] digestEntry(JarFile jar, JarEntry entry, List<String> hashes)
+        throws IOException, GeneralSecurityException {
+        final MessageDigest[] mds = new MessageDigest[hashes.size()];
+        for (int i = 0; i < mds.length; i++) {
+            mds[i] = MessageDigest.getInstance(hashes.get(i), BouncyCastleProvider.PROVIDER_NAME);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int num;
+        try (InputStream data = jar.getInputStream(entry)) {
+            while ((num = data.read(buffer)) > 0) {
+                for (MessageDigest md : mds) {
+                    md.update(buffer, 0, num);
+                }
+            }
+        }
+        final String[] result = new String[mds.length];
+        for (int i = 0; i < mds.length; i++) {
+            result[i] = new String(Base64.encode(mds[i].digest()), StandardCharsets.US_ASCII);
+        }
+        return result;
+    }
     /**
      * Add a copy of the public key to the archive; this should
      * exactly match one of the files in
@@ -418,7 +470,7 @@ class SignApk {
      */
     static void copyFiles(long offset, Manifest manifest, JarFile in, JarOutputStream out,
                                   long timestamp, int alignment, boolean keepSignatures, boolean replaceSignature, String signatureName) throws IOException, IllegalRequestException {
-        byte[] buffer = new byte[4096];
+        byte[] buffer = new byte[BUFFER_SIZE];
         int num;
         // We do the copy in two passes -- first copying all the
         // entries that are STORED, then copying all the entries that
@@ -468,12 +520,12 @@ class SignApk {
                 offset += needed;
             }
             out.putNextEntry(outEntry);
-            InputStream data = in.getInputStream(inEntry);
-            while ((num = data.read(buffer)) > 0) {
-                out.write(buffer, 0, num);
-                offset += num;
+            try (InputStream data = in.getInputStream(inEntry)) {
+                while ((num = data.read(buffer)) > 0) {
+                    out.write(buffer, 0, num);
+                    offset += num;
+                }
             }
-            out.flush();
         }
         // Copy all the non-STORED entries.  We don't attempt to
         // maintain the 'offset' variable past this point; we don't do
@@ -501,11 +553,11 @@ class SignApk {
                 outEntry.setTime(timestamp);
             }
             out.putNextEntry(outEntry);
-            InputStream data = in.getInputStream(inEntry);
-            while ((num = data.read(buffer)) > 0) {
-                out.write(buffer, 0, num);
+            try (InputStream data = in.getInputStream(inEntry)) {
+                while ((num = data.read(buffer)) > 0) {
+                    out.write(buffer, 0, num);
+                }
             }
-            out.flush();
         }
     }
     private static class WholeFileSignerOutputStream extends FilterOutputStream {
@@ -975,6 +975,51 @@ public class JArchiveSignerUnitTest {
         }
     }
 
+    /**
+     * Test signing of a ZIP file with many stored and deflated entries,
+     * which are digested in parallel, and check that every entry verifies
+     * and is listed in the manifest.
+     * @throws Exception in case of failure.
+     */
+    @Test
+    public void testSignManyEntries() throws Exception {
+        LOG.info("testSignManyEntries");
+        final int count = 500;
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bout)) {
+            for (int i = 0; i < count; i++) {
+                final byte[] content = ("Content of entry " + i + " ").repeat(i % 50 + 1).getBytes(StandardCharsets.UTF_8);
+                final ZipEntry entry = new ZipEntry("dir" + (i % 10) + "/file" + i + ".txt");
+                if (i % 2 == 0) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(content.length);
+                    final CRC32 crc = new CRC32();
+                    crc.update(content);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(content);
+                out.closeEntry();
+            }
+        }
+
+        try (
+                CloseableReadableData requestData = ModulesTestCase.createRequestData(bout.toByteArray());
+                CloseableWritableData responseData = ModulesTestCase.createResponseData(false)
+            ) {
+            SignatureResponse resp = signData(requestData, responseData, tokenRSA, new ConfigBuilder()
+                    .withDigestAlgorithm(JAVA_SHA_256)
+                    .withSignatureAlgorithm("SHA256WithRSA")
+                    .create(),
+                    null);
+            assertSignedAndTimestamped(requestData, responseData, tokenRSA, JAVA_SHA_256, CMSAlgorithm.SHA256, PKCSObjectIdentifiers.sha256WithRSAEncryption, resp);
+
+            try (JarFile jar = new JarFile(responseData.toReadableData().getAsFile(), true)) {
+                assertEquals("entries in manifest", count, jar.getManifest().getEntries().size());
+            }
+        }
+    }
+
     /**
      * Test signing of a JAR/ZIP file and check that it is not 'zipaligned'
      * by default.
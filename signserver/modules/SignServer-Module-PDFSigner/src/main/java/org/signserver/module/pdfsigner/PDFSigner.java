@@ -25,7 +25,6 @@ import com.lowagie.text.pdf.PdfWriter;
 import com.lowagie.text.pdf.AcroFields;
 import com.lowagie.text.pdf.PdfName;
 import com.lowagie.text.pdf.PdfSignatureAppearance;
-import com.lowagie.text.pdf.OcspClientBouncyCastle;
 import com.lowagie.text.pdf.PdfReader;
 import com.lowagie.text.pdf.PdfTemplate;
 import com.lowagie.text.DocumentException;
@@ -42,6 +41,7 @@ import java.security.cert.Certificate;
 import java.security.interfaces.DSAPrivateKey;
 import java.security.interfaces.DSAPublicKey;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -52,8 +52,19 @@ import org.apache.commons.lang.time.FastDateFormat;
 import org.apache.log4j.Logger;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.cert.ocsp.jcajce.JcaCertificateID;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.signserver.server.cesecore.util.CertTools;
 import org.signserver.common.*;
 import org.signserver.common.data.ReadableData;
@@ -74,7 +85,8 @@ import org.signserver.server.log.IWorkerLogger;
 import org.signserver.server.log.LogMap;
 import org.signserver.server.log.Loggable;
 import org.signserver.server.signers.BaseSigner;
-import org.signserver.validationservice.server.ValidationUtils;
+import org.signserver.validationservice.server.crlcache.CRLCache;
+import org.signserver.validationservice.server.ocspcache.OCSPResponseCache;
 import static org.signserver.common.SignServerConstants.DEFAULT_NULL;
 
 /**
@@ -147,6 +159,9 @@ public class PDFSigner extends BaseSigner {
     public static final boolean EMBED_CRL_DEFAULT = false;
     public static final String EMBED_OCSP_RESPONSE = "EMBED_OCSP_RESPONSE";
     public static final boolean EMBED_OCSP_RESPONSE_DEFAULT = false;
+    /** Maximum time in seconds to reuse an embedded OCSP response, 0 to fetch one for each signature. */
+    public static final String OCSPCACHE_MAXAGE = "OCSPCACHE_MAXAGE";
+    public static final long OCSPCACHE_MAXAGE_DEFAULT = 3600L;
 
     /** Used to mitigate a collision signature vulnerability described in http://pdfsig-collision.florz.de/ */
     public static final String REFUSE_DOUBLE_INDIRECT_OBJECTS = "REFUSE_DOUBLE_INDIRECT_OBJECTS";
@@ -224,6 +239,12 @@ public class PDFSigner extends BaseSigner {
     /** Properties that are configured to be allowed to override. */
     private Set<String> allowPropertyOverride;
 
+    /** Node-wide cache of the OCSP responses to embed. */
+    private OCSPResponseCache ocspResponseCache;
+
+    /** Size of the last time-stamp token received, 0 if none yet. */
+    private final AtomicInteger lastTimeStampTokenSize = new AtomicInteger();
+
     @Override
     public void init(int signerId, WorkerConfig config,
             WorkerContext workerContext, EntityManager workerEntityManager) {
@@ -302,6 +323,16 @@ public class PDFSigner extends BaseSigner {
             configErrors.add("Can not specify " + TSA_URL + " and " + TSA_WORKER + " at the same time.");
         }
 
+        // OCSP response cache
+        final Properties ocspCacheProperties = new Properties();
+        ocspCacheProperties.setProperty(OCSPResponseCache.PROPERTY_OCSPCACHE_MAXAGE,
+                config.getProperty(OCSPCACHE_MAXAGE, String.valueOf(OCSPCACHE_MAXAGE_DEFAULT)));
+        try {
+            ocspResponseCache = OCSPResponseCache.getInstance(ocspCacheProperties);
+        } catch (SignServerException ex) {
+            configErrors.add(ex.getMessage());
+        }
+
         try {
             // retrieve and preprocess configuration parameter values
             new PDFSignerParameters(workerId, config, configErrors, new HashMap<>(), allowPropertyOverride);
@@ -578,9 +609,10 @@ public class PDFSigner extends BaseSigner {
 		}
 
 		if (tsc != null) {
-			// add guess for timestamp response (which we can't really know)
-			// TODO: we might be able to store the size of the last TSA response and re-use next time...
-			final int tscSize = 4096;
+			// add the size of the last timestamp response or a guess if
+			// there has not been any (we can't really know)
+			final int lastSize = lastTimeStampTokenSize.get();
+			final int tscSize = lastSize > 0 ? lastSize : 4096;
 
 			estimatedSize += tscSize;
 
@@ -930,6 +962,7 @@ public class PDFSigner extends BaseSigner {
                             WorkerIdentifier.createFromIdOrName(params.getTsa_worker()), params.getTsa_username(), params.getTsa_password(),
                             tsaDigestAlgo);
                 }
+                tsc = new TokenSizeRecordingTSAClient(tsc);
             }
 
 
@@ -938,11 +971,11 @@ public class PDFSigner extends BaseSigner {
             // chain
             byte[] ocsp = null;
             if (params.isEmbed_ocsp_response() && certChain.length >= 2) {
-                String url = PdfPKCS7.getOCSPURL((X509Certificate) certChain[0]);
+                final X509Certificate cert = (X509Certificate) certChain[0];
+                final X509Certificate issuer = (X509Certificate) certChain[1];
+                final String url = PdfPKCS7.getOCSPURL(cert);
                 if (url != null && url.length() > 0) {
-                    ocsp = new OcspClientBouncyCastle(
-                            (X509Certificate) certChain[0],
-                            (X509Certificate) certChain[1], url).getEncoded();
+                    ocsp = getOCSPResponse(cert, issuer, url);
                 }
             }
 
@@ -1012,7 +1045,7 @@ public class PDFSigner extends BaseSigner {
 
     /**
      * returns crl list containing crl for each certifcate in crl chain. CRLs
-     * are fetched using address specified in CDP.
+     * are fetched using address specified in CDP and cached in the CRLCache.
      *
      * @return n
      * @throws SignServerException
@@ -1029,7 +1062,7 @@ public class PDFSigner extends BaseSigner {
                     continue;
                 }
 
-                currCrl = ValidationUtils.fetchCRLFromURL(currCertURL);
+                currCrl = CRLCache.getInstance().get(currCertURL).getCRL();
 
                 if (currCrl == null) {
                     throw new SignServerException("Empty CRL file fetched from CDP");
@@ -1344,4 +1377,69 @@ public class PDFSigner extends BaseSigner {
         info.put("Producer", infoProducer);
     }
 
+    /**
+     * Get the OCSP response for the signer certificate to embed, from the
+     * OCSP response cache or the responder.
+     *
+     * @param cert to get the response for
+     * @param issuer of the certificate
+     * @param url of the OCSP responder
+     * @return the encoded basic OCSP response
+     * @throws SignServerException if no response with status good could be
+     * obtained
+     */
+    protected byte[] getOCSPResponse(final X509Certificate cert, final X509Certificate issuer, final String url) throws SignServerException {
+        try {
+            final CertificateID certId = new JcaCertificateID(new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1), issuer, cert.getSerialNumber());
+            final OCSPReq request = new OCSPReqBuilder().addRequest(certId).build();
+            final OCSPResp response = new OCSPResp(ocspResponseCache.getResponse(new URL(url), request));
+            if (response.getStatus() != OCSPResp.SUCCESSFUL || !(response.getResponseObject() instanceof BasicOCSPResp)) {
+                throw new SignServerException("Invalid OCSP response status: " + response.getStatus());
+            }
+            final BasicOCSPResp basicResponse = (BasicOCSPResp) response.getResponseObject();
+            for (SingleResp resp : basicResponse.getResponses()) {
+                if (certId.equals(resp.getCertID())) {
+                    if (resp.getCertStatus() != CertificateStatus.GOOD) {
+                        throw new SignServerException("OCSP status of the signer certificate is not good");
+                    }
+                    return basicResponse.getEncoded();
+                }
+            }
+            throw new SignServerException("No OCSP response for the signer certificate");
+        } catch (IOException | OCSPException | OperatorCreationException | CertificateEncodingException ex) {
+            throw new SignServerException("Failed to get OCSP response from " + url + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * TSA client keeping the size of the received time-stamp tokens so that
+     * the space for the next one can be estimated.
+     */
+    private class TokenSizeRecordingTSAClient implements TSAClient {
+
+        private final TSAClient delegate;
+
+        TokenSizeRecordingTSAClient(final TSAClient delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int getTokenSizeEstimate() {
+            return delegate.getTokenSizeEstimate();
+        }
+
+        @Override
+        public MessageDigest getMessageDigest() throws GeneralSecurityException {
+            return delegate.getMessageDigest();
+        }
+
+        @Override
+        public byte[] getTimeStampToken(final PdfPKCS7 caller, final byte[] imprint) throws Exception {
+            final byte[] token = delegate.getTimeStampToken(caller, imprint);
+            if (token != null) {
+                lastTimeStampTokenSize.set(token.length);
+            }
+            return token;
+        }
+    }
 }
@@ -43,6 +43,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.lowagie.text.DocumentException;
 import com.lowagie.text.exceptions.BadPasswordException;
@@ -1611,6 +1612,59 @@ public class PDFSignerUnitTest extends ModulesTestCase {
         assertCanSign(pdfbytes, signerKeyPair, certChain, signerCertificate, 15000 * 2 + 456);
     }
 
+    /**
+     * Tests that the size of the last time-stamp token is used in the
+     * estimate so that only the first signature with a larger token than
+     * the initial guess has to be computed twice.
+     */
+    @Test
+    public void test14calculateEstimatedSignatureSize_learnTimeStampSize() throws Exception {
+        final byte[] pdfbytes = readFile(sample);
+        final KeyPair signerKeyPair = CryptoUtils.generateRSA(1024);
+        final Certificate[] certChain = new Certificate[] {converter.getCertificate(new CertBuilder().build())};
+        final MockedTSAClient tsc = new MockedTSAClient(10123);
+        final MockedCryptoToken token = new MockedCryptoToken(signerKeyPair.getPrivate(), signerKeyPair.getPublic(), certChain[0], Arrays.asList(certChain), "BC");
+        final AtomicInteger signatures = new AtomicInteger();
+
+        final PDFSigner instance = new PDFSigner() {
+
+            @Override
+            protected TSAClient getTimeStampClient(String url, String username, String password, ASN1ObjectIdentifier digestAlgo, String digestAlgoName) {
+                return tsc;
+            }
+
+            @Override
+            public ICryptoTokenV4 getCryptoToken(final IServices services) {
+                return token;
+            }
+
+            @Override
+            protected byte[] calculateSignature(PrivateKey privKey, CRL[] crlList, String hashDigestAlgorithm, String provider, int size,
+                    MessageDigest messageDigest, Calendar cal, PDFSignerParameters params, Certificate[] certChain, TSAClient tsc,
+                    byte[] ocsp, PdfSignatureAppearance sap, String tsaDigestAlgo) throws IOException, DocumentException, SignServerException {
+                signatures.incrementAndGet();
+                return super.calculateSignature(privKey, crlList, hashDigestAlgorithm, provider, size, messageDigest, cal, params, certChain, tsc, ocsp, sap, tsaDigestAlgo);
+            }
+
+        };
+        instance.setIncludeCertificateLevels(1);
+
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("TSA_URL", "http://any-tsa.example.com");
+        final PDFSignerParameters params = new PDFSignerParameters(1234, config, new LinkedList<>(), new HashMap<>(), new HashSet<>());
+        final ASN1ObjectIdentifier tsaDigestAlgorithm = new DefaultDigestAlgorithmIdentifierFinder().find("SHA-256").getAlgorithm();
+
+        final int[] expectedCalls = {2, 3, 4};
+        for (int expected : expectedCalls) {
+            try (CloseableWritableData responseData = createResponseData(false)) {
+                instance.addSignatureToPDFDocument(token.acquireCryptoInstance("any-alias", Collections.emptyMap(), null), params, pdfbytes, null, null, 0,
+                        null, responseData, null, tsaDigestAlgorithm, "SHA-256");
+                assertTrue("some data", responseData.toReadableData().getLength() > 0);
+            }
+            assertEquals("signatures computed", expected, signatures.get());
+        }
+    }
+
     /**
      * Test that setting both TSA_URL and TSA_WORKER results in a config error.
      */
@@ -0,0 +1,307 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampResponse;
+import org.bouncycastle.tsp.ers.ERSArchiveTimeStamp;
+import org.bouncycastle.tsp.ers.ERSArchiveTimeStampGenerator;
+import org.bouncycastle.tsp.ers.ERSData;
+import org.bouncycastle.tsp.ers.ERSEvidenceRecord;
+import org.bouncycastle.tsp.ers.ERSEvidenceRecordGenerator;
+import org.bouncycastle.tsp.ers.ERSException;
+import org.signserver.common.CryptoTokenOfflineException;
+import org.signserver.common.IllegalRequestException;
+import org.signserver.common.SignServerException;
+
+/**
+ * Aggregates concurrent time-stamp requests into batches signed with one
+ * time-stamp token each.
+ *
+ * The first request of a batch waits for the configured window, or until
+ * the maximum number of requests has been added, and then signs a
+ * time-stamp request for the root hash of a Merkle tree over the message
+ * imprints of all requests in the batch. Each request gets an evidence
+ * record (RFC 4998) containing the time-stamp token over the root hash and
+ * the reduced hash tree proving that its message imprint is included.
+ *
+ * Requests are only aggregated with requests using the same message imprint
+ * algorithm and requested policy. Nonces and extensions of the individual
+ * requests are not included in the token.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+class MerkleTimeStampAggregator {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(MerkleTimeStampAggregator.class);
+
+    /**
+     * Signs the time-stamp request for the root hash of a batch.
+     */
+    interface RootSigner {
+
+        /**
+         * @param rootRequest time-stamp request for the root hash
+         * @return the time-stamp response, granted or rejected
+         * @throws IllegalRequestException in case of error with the request
+         * @throws CryptoTokenOfflineException if the token is not available
+         * @throws SignServerException in case of other errors
+         */
+        TimeStampResponse sign(TimeStampRequest rootRequest)
+                throws IllegalRequestException, CryptoTokenOfflineException, SignServerException;
+    }
+
+    /**
+     * Result of an aggregated request.
+     */
+    static class Result {
+
+        private final TimeStampResponse rootResponse;
+        private final ERSEvidenceRecord evidenceRecord;
+
+        Result(final TimeStampResponse rootResponse, final ERSEvidenceRecord evidenceRecord) {
+            this.rootResponse = rootResponse;
+            this.evidenceRecord = evidenceRecord;
+        }
+
+        /**
+         * @return the time-stamp response for the root hash of the batch
+         */
+        TimeStampResponse getRootResponse() {
+            return rootResponse;
+        }
+
+        /**
+         * @return the evidence record for the request or null if the
+         * time-stamp for the root hash was not granted
+         */
+        ERSEvidenceRecord getEvidenceRecord() {
+            return evidenceRecord;
+        }
+    }
+
+    private final long windowMillis;
+    private final int maxRequests;
+    private final DigestCalculatorProvider calcProv = new BcDigestCalculatorProvider();
+
+    /** Batches still accepting requests, guarded by itself. */
+    private final Map<String, Batch> openBatches = new HashMap<>();
+
+    /**
+     * Creates the aggregator.
+     *
+     * @param windowMillis maximum time in milliseconds to wait for more requests
+     * @param maxRequests maximum number of requests in a batch
+     */
+    MerkleTimeStampAggregator(final long windowMillis, final int maxRequests) {
+        this.windowMillis = windowMillis;
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * Adds the already validated request to a batch and waits for the batch
+     * to be signed. If the request is the first in its batch, the batch is
+     * signed in this thread using the supplied signer.
+     *
+     * @param request to aggregate
+     * @param signer to sign the root hash with
+     * @return the result for this request
+     * @throws IllegalRequestException if signing the batch failed
+     * @throws CryptoTokenOfflineException if signing the batch failed
+     * @throws SignServerException if signing the batch failed or in case of
+     * other errors
+     */
+    Result aggregate(final TimeStampRequest request, final RootSigner signer)
+            throws IllegalRequestException, CryptoTokenOfflineException, SignServerException {
+        final ASN1ObjectIdentifier policy = request.getReqPolicy();
+        final String key = request.getMessageImprintAlgOID().getId() + ";" + (policy == null ? "" : policy.getId());
+        final Batch batch;
+        final int index;
+        final boolean leader;
+
+        synchronized (openBatches) {
+            Batch open = openBatches.get(key);
+            leader = open == null;
+            if (leader) {
+                open = new Batch(request.getMessageImprintAlgOID(), policy);
+                openBatches.put(key, open);
+            }
+            index = open.add(request.getMessageImprintDigest());
+            open.certReq |= request.getCertReq();
+            if (++open.requests >= maxRequests) {
+                openBatches.remove(key);
+                open.full.countDown();
+            }
+            batch = open;
+        }
+
+        if (leader) {
+            boolean interrupted = false;
+            try {
+                batch.full.await(windowMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                // The batch still needs to be signed for the other requests
+                interrupted = true;
+            }
+            synchronized (openBatches) {
+                openBatches.remove(key, batch);
+            }
+            try {
+                signBatch(batch, signer);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        try {
+            return batch.results.get().get(index);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SignServerException("Interrupted while waiting for the aggregated time-stamp", ex);
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IllegalRequestException) {
+                throw (IllegalRequestException) cause;
+            } else if (cause instanceof CryptoTokenOfflineException) {
+                throw (CryptoTokenOfflineException) cause;
+            } else if (cause instanceof SignServerException) {
+                throw (SignServerException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SignServerException("Signing the aggregated time-stamp failed", cause);
+        }
+    }
+
+    private void signBatch(final Batch batch, final RootSigner signer) {
+        try {
+            final DigestCalculator calc = calcProv.get(new AlgorithmIdentifier(batch.digestAlgorithm));
+            final ERSArchiveTimeStampGenerator generator = new ERSArchiveTimeStampGenerator(calc);
+            for (final byte[] hash : batch.hashes) {
+                generator.addData(new HashData(hash));
+            }
+
+            final TimeStampRequestGenerator requestGenerator = new TimeStampRequestGenerator();
+            requestGenerator.setCertReq(batch.certReq);
+            if (batch.policy != null) {
+                requestGenerator.setReqPolicy(batch.policy);
+            }
+            final TimeStampResponse rootResponse = signer.sign(generator.generateTimeStampRequest(requestGenerator));
+
+            final List<Result> results = new ArrayList<>(batch.hashes.size());
+            if (rootResponse.getTimeStampToken() == null) {
+                for (int i = 0; i < batch.hashes.size(); i++) {
+                    results.add(new Result(rootResponse, null));
+                }
+            } else {
+                final List<ERSArchiveTimeStamp> archiveTimeStamps = generator.generateArchiveTimeStamps(rootResponse);
+                for (final ERSEvidenceRecord evidenceRecord : new ERSEvidenceRecordGenerator(calcProv).generate(archiveTimeStamps)) {
+                    results.add(new Result(rootResponse, evidenceRecord));
+                }
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Signed batch of " + batch.requests + " time-stamp requests");
+            }
+            batch.results.complete(results);
+        } catch (IllegalRequestException | CryptoTokenOfflineException | SignServerException ex) {
+            batch.results.completeExceptionally(ex);
+        } catch (OperatorCreationException | TSPException | ERSException | IOException ex) {
+            batch.results.completeExceptionally(new SignServerException("Creating the evidence records failed: " + ex.getMessage(), ex));
+        } catch (RuntimeException | Error ex) {
+            batch.results.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Requests of one batch.
+     */
+    private static class Batch {
+
+        private final ASN1ObjectIdentifier digestAlgorithm;
+        private final ASN1ObjectIdentifier policy;
+
+        /**
+         * Distinct message imprints of the requests and their indexes,
+         * guarded by openBatches until closed.
+         */
+        private final List<byte[]> hashes = new ArrayList<>();
+        private final Map<ByteBuffer, Integer> indexes = new HashMap<>();
+        private int requests;
+        private boolean certReq;
+
+        private final CountDownLatch full = new CountDownLatch(1);
+        private final CompletableFuture<List<Result>> results = new CompletableFuture<>();
+
+        Batch(final ASN1ObjectIdentifier digestAlgorithm, final ASN1ObjectIdentifier policy) {
+            this.digestAlgorithm = digestAlgorithm;
+            this.policy = policy;
+        }
+
+        /**
+         * Adds the message imprint unless already in the batch, as the same
+         * hash can only be included once in the hash tree.
+         *
+         * @param hash message imprint to add
+         * @return index of the hash in the batch
+         */
+        int add(final byte[] hash) {
+            return indexes.computeIfAbsent(ByteBuffer.wrap(hash), h -> {
+                hashes.add(hash);
+                return hashes.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * Data object already hashed by the client.
+     */
+    private static class HashData implements ERSData {
+
+        private final byte[] hash;
+
+        HashData(final byte[] hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public byte[] getHash(final DigestCalculator digestCalculator, final byte[] previousChainHash) {
+            return hash;
+        }
+    }
+}
@@ -14,7 +14,6 @@ package org.signserver.module.tsa;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.bouncycastle.asn1.x509.Extension;
-import org.signserver.module.cmssigner.FilteredSignedAttributeTableGenerator;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
@@ -46,23 +45,15 @@ import org.bouncycastle.asn1.ASN1Encoding;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.cmp.PKIFailureInfo;
 import org.bouncycastle.asn1.cmp.PKIStatus;
-import org.bouncycastle.asn1.cms.CMSAttributes;
 import org.bouncycastle.asn1.x500.X500Name;
-import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.asn1.x509.Extensions;
 import org.bouncycastle.asn1.x509.GeneralName;
 import org.bouncycastle.asn1.x509.KeyPurposeId;
-import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
-import org.bouncycastle.cms.SignerInfoGenerator;
 import org.bouncycastle.cms.SignerInformationVerifier;
-import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
 import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.bouncycastle.operator.ContentSigner;
-import org.bouncycastle.operator.DigestCalculator;
-import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.bouncycastle.tsp.TSPAlgorithms;
 import org.bouncycastle.tsp.TSPException;
@@ -70,6 +61,8 @@ import org.bouncycastle.tsp.TSPValidationException;
 import org.bouncycastle.tsp.TimeStampRequest;
 import org.bouncycastle.tsp.TimeStampToken;
 import org.bouncycastle.tsp.TimeStampTokenGenerator;
+import org.bouncycastle.tsp.TimeStampTokenInfo;
+import org.bouncycastle.tsp.ers.ERSEvidenceRecord;
 import org.cesecore.util.Base64;
 import org.signserver.common.*;
 import org.signserver.common.data.Request;
@@ -181,6 +174,28 @@ import static org.signserver.common.SignServerConstants.DEFAULT_NULL;
  *          (OPTIONAL), default false.
  *      </td>
  * </tr>
+ * <tr>
+ *      <td>AGGREGATION_MODE</td>
+ *      <td>
+ *          NONE for one time-stamp token per request or MERKLE to sign
+ *          concurrent requests together and respond with an RFC 4998
+ *          evidence record for each request. (OPTIONAL), default NONE.
+ *      </td>
+ * </tr>
+ * <tr>
+ *      <td>AGGREGATION_WINDOW</td>
+ *      <td>
+ *          Milliseconds to wait for more requests to aggregate.
+ *          (OPTIONAL), default 2.
+ *      </td>
+ * </tr>
+ * <tr>
+ *      <td>AGGREGATION_MAXREQUESTS</td>
+ *      <td>
+ *          Maximum number of requests signed together.
+ *          (OPTIONAL), default 256.
+ *      </td>
+ * </tr>
  *
  * </table>
  *
@@ -212,6 +227,9 @@ public class TimeStampSigner extends BaseSigner {
     /** MIME type for the response data. **/
     private static final String RESPONSE_CONTENT_TYPE = "application/timestamp-reply";
 
+    /** MIME type for the response data when responding with evidence records. **/
+    private static final String EVIDENCE_RECORD_CONTENT_TYPE = "application/octet-stream";
+
     // Property constants
     public static final String TIMESOURCE = "TIMESOURCE";
     public static final String SIGNATUREALGORITHM = "SIGNATUREALGORITHM";
@@ -235,6 +253,12 @@ public class TimeStampSigner extends BaseSigner {
     public static final String INCLUDECMSALGORITHMPROTECTATTRIBUTE = "INCLUDECMSALGORITHMPROTECTATTRIBUTE";
     public static final String INCLUDE_CERTID_ISSUERSERIAL = "INCLUDE_CERTID_ISSUERSERIAL";
     public static final String CERTIFICATE_DIGEST_ALGORITHM = "CERTIFICATE_DIGEST_ALGORITHM";
+    public static final String AGGREGATION_MODE = "AGGREGATION_MODE";
+    public static final String AGGREGATION_WINDOW = "AGGREGATION_WINDOW";
+    public static final String AGGREGATION_MAXREQUESTS = "AGGREGATION_MAXREQUESTS";
+
+    public static final String AGGREGATION_MODE_NONE = "NONE";
+    public static final String AGGREGATION_MODE_MERKLE = "MERKLE";
 
     private static final String DEFAULT_WORKERLOGGER =
             DefaultTimeStampLogger.class.getName();
@@ -281,6 +305,8 @@ public class TimeStampSigner extends BaseSigner {
 
     private static final String DEFAULT_SIGNATURE_ALGORITHM = "SHA256withRSA";
     private static final String DEFAULT_CERTIFICATE_DIGEST_ALGORITHM = "SHA256";
+    private static final long DEFAULT_AGGREGATION_WINDOW = 2;
+    private static final int DEFAULT_AGGREGATION_MAXREQUESTS = 256;
 
     private ITimeSource timeSource = null;
     private String signatureAlgorithm;
@@ -315,6 +341,16 @@ public class TimeStampSigner extends BaseSigner {
 
     private ASN1ObjectIdentifier certificateDigestAlgorithm;
 
+    private Integer accuracyMicros;
+    private Integer accuracyMillis;
+    private Integer accuracySeconds;
+
+    /** Token template for the last used signing certificate, rebuilt on reload. */
+    private volatile TimeStampTokenTemplate tokenTemplate;
+
+    /** Aggregator used in MERKLE aggregation mode or null. */
+    private MerkleTimeStampAggregator aggregator;
+
     List<String> configErrors;
 
     @Override
@@ -422,6 +458,11 @@ public class TimeStampSigner extends BaseSigner {
 
         ordering = Boolean.parseBoolean(config.getProperty(ORDERING, "false"));
 
+        accuracyMicros = getAccuracy(config, ACCURACYMICROS);
+        accuracyMillis = getAccuracy(config, ACCURACYMILLIS);
+        accuracySeconds = getAccuracy(config, ACCURACYSECONDS);
+        tokenTemplate = null;
+
         if (hasSetIncludeCertificateLevels && includeCertificateLevels == 0) {
             configErrors.add("Illegal value for property " + WorkerConfig.PROPERTY_INCLUDE_CERTIFICATE_LEVELS + ". Only numbers >= 1 supported.");
         }
@@ -472,12 +513,45 @@ public class TimeStampSigner extends BaseSigner {
             configErrors.add("Illegal value for LEGACYENCODING: " + legacyEncodingValue);
         }
 
+        aggregator = null;
+        final String aggregationModeValue = config.getProperty(AGGREGATION_MODE, AGGREGATION_MODE_NONE);
+        if (AGGREGATION_MODE_MERKLE.equalsIgnoreCase(aggregationModeValue)) {
+            try {
+                final long window = Long.parseLong(config.getProperty(AGGREGATION_WINDOW, Long.toString(DEFAULT_AGGREGATION_WINDOW)));
+                final int maxRequests = Integer.parseInt(config.getProperty(AGGREGATION_MAXREQUESTS, Integer.toString(DEFAULT_AGGREGATION_MAXREQUESTS)));
+                if (window < 0) {
+                    configErrors.add("Illegal value for " + AGGREGATION_WINDOW + ": " + window);
+                } else if (maxRequests < 1) {
+                    configErrors.add("Illegal value for " + AGGREGATION_MAXREQUESTS + ": " + maxRequests);
+                } else {
+                    aggregator = new MerkleTimeStampAggregator(window, maxRequests);
+                }
+            } catch (NumberFormatException e) {
+                configErrors.add("Illegal value for " + AGGREGATION_WINDOW + " or " + AGGREGATION_MAXREQUESTS + ": " + e.getMessage());
+            }
+        } else if (!AGGREGATION_MODE_NONE.equalsIgnoreCase(aggregationModeValue)) {
+            configErrors.add("Illegal value for " + AGGREGATION_MODE + ": " + aggregationModeValue);
+        }
+
         // Print the errors for troubleshooting
         if (!configErrors.isEmpty()) {
             LOG.info("Configuration errors for worker " + workerId + ": \n" + configErrors);
         }
     }
 
+    private Integer getAccuracy(final WorkerConfig config, final String property) {
+        final String value = config.getProperty(property, DEFAULT_NULL);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            configErrors.add("Illegal value for property " + property + ": " + value);
+            return null;
+        }
+    }
+
     private ASN1ObjectIdentifier getCertificateDigestAlgorithmFromString(final String digestAlg) {
         switch (digestAlg) {
             case "SHA1":
@@ -666,6 +740,7 @@ public class TimeStampSigner extends BaseSigner {
 
             // Create the response
             TimeStampResponse timeStampResponse;
+            ERSEvidenceRecord evidenceRecord = null;
             if (timeStampRequest == null) {
                 // Generate failure response
                 final TimeStampResponseGenerator timeStampResponseGen = getTimeStampResponseGenerator(null);
@@ -679,16 +754,26 @@ public class TimeStampSigner extends BaseSigner {
                     // Validate according to policy
                     timeStampRequest.validate(getAcceptedAlgorithms(), acceptAnyPolicy ? null : this.getAcceptedPolicies(), getAcceptedExtensions());
 
-                    // Create the generators
-                    final TimeStampTokenGenerator timeStampTokenGen = getTimeStampTokenGenerator(crypto, timeStampRequest, logMap);
-                    final TimeStampResponseGenerator timeStampResponseGen = getTimeStampResponseGenerator(timeStampTokenGen);
-                    final Extensions additionalExtensions = getAdditionalExtensions(signRequest, requestContext);
-
-                    // Generate the response
-                    timeStampResponse = timeStampResponseGen.generateGrantedResponse(timeStampRequest,
-                                    serialNumber, date,
-                                    includeStatusString ? "Operation Okay" : null,
-                                    additionalExtensions);
+                    if (aggregator == null) {
+                        // Create the generators
+                        final TimeStampTokenGenerator timeStampTokenGen = getTimeStampTokenGenerator(crypto, timeStampRequest, logMap);
+                        final TimeStampResponseGenerator timeStampResponseGen = getTimeStampResponseGenerator(timeStampTokenGen);
+                        final Extensions additionalExtensions = getAdditionalExtensions(signRequest, requestContext);
+
+                        // Generate the response
+                        timeStampResponse = timeStampResponseGen.generateGrantedResponse(timeStampRequest,
+                                        serialNumber, date,
+                                        includeStatusString ? "Operation Okay" : null,
+                                        additionalExtensions);
+                    } else {
+                        // Sign together with concurrent requests
+                        final ICryptoInstance batchCrypto = crypto;
+                        final Extensions additionalExtensions = getAdditionalExtensions(signRequest, requestContext);
+                        final MerkleTimeStampAggregator.Result result = aggregator.aggregate(timeStampRequest,
+                                rootRequest -> signAggregatedRoot(batchCrypto, rootRequest, additionalExtensions, requestContext, logMap));
+                        timeStampResponse = result.getRootResponse();
+                        evidenceRecord = result.getEvidenceRecord();
+                    }
                 } catch (TSPException e) {
                     // Generate failure response
                     if (LOG.isDebugEnabled()) {
@@ -700,16 +785,51 @@ public class TimeStampSigner extends BaseSigner {
             }
 
             final TimeStampToken token = timeStampResponse.getTimeStampToken();
-            final byte[] signedBytes = legacyEncoding ? timeStampResponse.getEncoded(ASN1Encoding.DL) : timeStampResponse.getEncoded();
+            final byte[] signedBytes;
+            final String responseContentType;
+            if (evidenceRecord != null) {
+                signedBytes = evidenceRecord.getEncoded();
+                responseContentType = EVIDENCE_RECORD_CONTENT_TYPE;
+            } else {
+                signedBytes = legacyEncoding ? timeStampResponse.getEncoded(ASN1Encoding.DL) : timeStampResponse.getEncoded();
+                responseContentType = RESPONSE_CONTENT_TYPE;
+            }
             out.write(signedBytes);
             cert = getSigningCertificate(crypto);
 
             // validate the timestamp token signature before sending response
             // token should not be null if generated till now
-            if (verifyTokenSignature && token != null) {
+            // (an aggregated token is verified once when signed)
+            if (verifyTokenSignature && token != null && evidenceRecord == null) {
                 verifySignature(token, cert);
             }
 
+            if (evidenceRecord != null) {
+                // Log the values of the token shared by the batch
+                final TimeStampTokenInfo tokenInfo = token.getTimeStampInfo();
+                logMap.put(ITimeStampLogger.LOG_TSA_TIME,
+                        new Loggable() {
+                    @Override
+                    public String toString() {
+                        return String.valueOf(tokenInfo.getGenTime().getTime());
+                    }
+                });
+                logMap.put(ITimeStampLogger.LOG_TSA_SERIALNUMBER,
+                        new Loggable() {
+                    @Override
+                    public String toString() {
+                        return tokenInfo.getSerialNumber().toString(16);
+                    }
+                });
+                logMap.put(ITimeStampLogger.LOG_TSA_POLICYID,
+                        new Loggable() {
+                    @Override
+                    public String toString() {
+                        return tokenInfo.getPolicy().getId();
+                    }
+                });
+            }
+
             final TimeStampResponse tspResponse = timeStampResponse;
 
             // Log values for timestamp response
@@ -760,7 +880,7 @@ public class TimeStampSigner extends BaseSigner {
 
             final Collection<? extends Archivable> archivables = Arrays.asList(
                     new DefaultArchivable(Archivable.TYPE_REQUEST, REQUEST_CONTENT_TYPE, sReq.getRequestData(), archiveId),
-                    new DefaultArchivable(Archivable.TYPE_RESPONSE, RESPONSE_CONTENT_TYPE, responseData.toReadableData(), archiveId)
+                    new DefaultArchivable(Archivable.TYPE_RESPONSE, responseContentType, responseData.toReadableData(), archiveId)
             );
 
             // Put in log values
@@ -782,7 +902,7 @@ public class TimeStampSigner extends BaseSigner {
                     cert,
                     archiveId,
                     archivables,
-                    RESPONSE_CONTENT_TYPE);
+                    responseContentType);
 
         } catch (InvalidAlgorithmParameterException e) {
             final IllegalRequestException exception =
@@ -843,6 +963,51 @@ public class TimeStampSigner extends BaseSigner {
         }
     }
 
+    /**
+     * Signs the time-stamp request for the root hash of an aggregated batch.
+     *
+     * The time is taken when the batch is signed so that it is not before
+     * the time any of the requests in the batch were received.
+     */
+    private TimeStampResponse signAggregatedRoot(final ICryptoInstance crypto,
+            final TimeStampRequest rootRequest,
+            final Extensions additionalExtensions,
+            final RequestContext requestContext,
+            final LogMap logMap)
+            throws IllegalRequestException, CryptoTokenOfflineException, SignServerException {
+        try {
+            try {
+                final Date date = getTimeSource().getGenTime(requestContext);
+                if (date == null) {
+                    return getTimeStampResponseGenerator(null).generateRejectedResponse(new TSPValidationException("The time source is not available.", PKIFailureInfo.timeNotAvailable));
+                }
+
+                final TimeStampTokenGenerator timeStampTokenGen = getTimeStampTokenGenerator(crypto, rootRequest, logMap);
+                final TimeStampResponse result = getTimeStampResponseGenerator(timeStampTokenGen).generateGrantedResponse(rootRequest,
+                        getSerialNumber(), date,
+                        includeStatusString ? "Operation Okay" : null,
+                        additionalExtensions);
+
+                if (verifyTokenSignature && result.getTimeStampToken() != null) {
+                    verifySignature(result.getTimeStampToken(), getSigningCertificate(crypto));
+                }
+                return result;
+            } catch (TSPException e) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Got exception generating aggregated response: ", e);
+                }
+                return getTimeStampResponseGenerator(null).generateRejectedResponse(e);
+            }
+        } catch (InvalidAlgorithmParameterException | NoSuchAlgorithmException
+                | NoSuchProviderException | CertStoreException | TSPException e) {
+            LOG.error(e.getClass().getSimpleName() + ": ", e);
+            throw new IllegalRequestException(e.getClass().getSimpleName() + ": " + e.getMessage(), e);
+        } catch (OperatorCreationException e) {
+            LOG.error("OperatorCreationException: ", e);
+            throw new SignServerException(e.getMessage(), e);
+        }
+    }
+
     private void verifySignature(TimeStampToken token, Certificate signerCert) throws SignServerException {
         final SignerInformationVerifier infoVerifier;
         try {
@@ -991,55 +1156,12 @@ public class TimeStampSigner extends BaseSigner {
                         "No certificate for this signer");
             }
 
-            DigestCalculatorProvider calcProv = new BcDigestCalculatorProvider();
-            DigestCalculator calc = calcProv.get(new AlgorithmIdentifier(certificateDigestAlgorithm));
+            final TimeStampTokenTemplate template = getTokenTemplate(signingCert, getSigningCertificateChain(crypto));
 
             ContentSigner cs =
             		new JcaContentSignerBuilder(signatureAlgorithm).setProvider(crypto.getProvider()).build(crypto.getPrivateKey());
-            JcaSignerInfoGeneratorBuilder sigb = new JcaSignerInfoGeneratorBuilder(calcProv);
-            X509CertificateHolder certHolder = new X509CertificateHolder(signingCert.getEncoded());
-
-            // set signed attribute table generator based on property
-            final Collection<ASN1ObjectIdentifier> attributesToRemove = new ArrayList<>();
-            if (!includeSigningTimeAttribute) {
-                attributesToRemove.add(CMSAttributes.signingTime);
-            }
-            if (!includeCmsProtectAlgorithmAttribute) {
-                attributesToRemove.add(CMSAttributes.cmsAlgorithmProtect);
-            }
-            sigb.setSignedAttributeGenerator(
-                    new FilteredSignedAttributeTableGenerator(attributesToRemove));
-
-            SignerInfoGenerator sig = sigb.build(cs, certHolder);
-
-            timeStampTokenGen = new TimeStampTokenGenerator(sig, calc, tSAPolicyOID, includeCertIDIssuerSerial);
-
-            if (config.getProperty(ACCURACYMICROS, DEFAULT_NULL) != null) {
-                timeStampTokenGen.setAccuracyMicros(Integer.parseInt(
-                        config.getProperty(ACCURACYMICROS)));
-            }
-
-            if (config.getProperty(ACCURACYMILLIS, DEFAULT_NULL) != null) {
-                timeStampTokenGen.setAccuracyMillis(Integer.parseInt(
-                        config.getProperty(ACCURACYMILLIS)));
-            }
-
-            if (config.getProperty(ACCURACYSECONDS, DEFAULT_NULL) != null) {
-                timeStampTokenGen.setAccuracySeconds(Integer.parseInt(
-                        config.getProperty(ACCURACYSECONDS)));
-            }
-
-            timeStampTokenGen.setOrdering(ordering);
 
-            if (tsaName != null) {
-                final X500Name x500Name = new X500Name(tsaName);
-                timeStampTokenGen.setTSA(new GeneralName(x500Name));
-            } else if (tsaNameFromCert) {
-                final X500Name x500Name = new JcaX509CertificateHolder(signingCert).getSubject();
-                timeStampTokenGen.setTSA(new GeneralName(x500Name));
-            }
-
-            timeStampTokenGen.addCertificates(getCertStoreWithChain(signingCert, getSigningCertificateChain(crypto)));
+            timeStampTokenGen = template.createGenerator(cs, tSAPolicyOID);
 
         } catch (IllegalArgumentException e) {
             LOG.error("IllegalArgumentException: ", e);
@@ -1058,6 +1180,44 @@ public class TimeStampSigner extends BaseSigner {
         return timeStampTokenGen;
     }
 
+    /**
+     * Get the token template for the signing certificate, creating it if
+     * this is the first request or the certificate has changed.
+     */
+    private TimeStampTokenTemplate getTokenTemplate(
+            final X509Certificate signingCert,
+            final List<Certificate> signingCertChain)
+            throws
+            CryptoTokenOfflineException,
+            InvalidAlgorithmParameterException,
+            NoSuchAlgorithmException,
+            NoSuchProviderException,
+            CertStoreException,
+            CertificateEncodingException,
+            IOException,
+            OperatorCreationException {
+        TimeStampTokenTemplate result = tokenTemplate;
+        if (result == null || !result.matches(signingCert, signingCertChain)) {
+            final GeneralName tsa;
+            if (tsaName != null) {
+                tsa = new GeneralName(new X500Name(tsaName));
+            } else if (tsaNameFromCert) {
+                tsa = new GeneralName(new JcaX509CertificateHolder(signingCert).getSubject());
+            } else {
+                tsa = null;
+            }
+            result = new TimeStampTokenTemplate(signingCert, signingCertChain,
+                    getCertStoreWithChain(signingCert, signingCertChain),
+                    certificateDigestAlgorithm, includeCertIDIssuerSerial,
+                    includeSigningTimeAttribute,
+                    includeCmsProtectAlgorithmAttribute,
+                    accuracySeconds, accuracyMillis, accuracyMicros,
+                    ordering, tsa);
+            tokenTemplate = result;
+        }
+        return result;
+    }
+
     private TimeStampResponseGenerator getTimeStampResponseGenerator(
             TimeStampTokenGenerator timeStampTokenGen) {
 
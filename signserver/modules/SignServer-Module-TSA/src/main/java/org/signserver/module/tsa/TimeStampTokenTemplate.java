@@ -0,0 +1,209 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+import org.bouncycastle.util.Store;
+import org.signserver.module.cmssigner.FilteredSignedAttributeTableGenerator;
+
+/**
+ * Immutable per-worker template for creating TimeStampTokenGenerators.
+ *
+ * Holds everything that only depends on the worker configuration and the
+ * signing certificate: the parsed certificate, its digest for the
+ * ESSCertID/ESSCertIDv2, the certificates to include, the signed attribute
+ * generator, the accuracy and the TSA name. Creating a generator from the
+ * template then only needs the content signer for the request and the
+ * policy.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+class TimeStampTokenTemplate {
+
+    private final X509Certificate signingCert;
+    private final List<Certificate> signingCertChain;
+
+    private final X509CertificateHolder certHolder;
+    private final AlgorithmIdentifier certDigestAlgorithm;
+    private final byte[] certDigest;
+    private final boolean includeCertIDIssuerSerial;
+    private final JcaSignerInfoGeneratorBuilder signerInfoGeneratorBuilder;
+    private final Store certStore;
+
+    private final Integer accuracySeconds;
+    private final Integer accuracyMillis;
+    private final Integer accuracyMicros;
+    private final boolean ordering;
+    private final GeneralName tsa;
+
+    /**
+     * Creates the template.
+     *
+     * @param signingCert certificate of the signer
+     * @param signingCertChain certificate chain the template is for
+     * @param certStore certificates to include in the tokens
+     * @param certificateDigestAlgorithm digest algorithm for the ESSCertID
+     * @param includeCertIDIssuerSerial if issuer and serial number should be
+     * included in the ESSCertID
+     * @param includeSigningTimeAttribute if the signing time attribute should be included
+     * @param includeCmsProtectAlgorithmAttribute if the CMS algorithm protection attribute should be included
+     * @param accuracySeconds seconds of accuracy or null
+     * @param accuracyMillis milliseconds of accuracy or null
+     * @param accuracyMicros microseconds of accuracy or null
+     * @param ordering if ordering should be set
+     * @param tsa name of the TSA or null
+     * @throws CertificateEncodingException if the certificate could not be encoded
+     * @throws IOException if the certificate could not be parsed
+     * @throws OperatorCreationException if the digest algorithm is not supported
+     */
+    TimeStampTokenTemplate(final X509Certificate signingCert,
+            final List<Certificate> signingCertChain,
+            final Store certStore,
+            final ASN1ObjectIdentifier certificateDigestAlgorithm,
+            final boolean includeCertIDIssuerSerial,
+            final boolean includeSigningTimeAttribute,
+            final boolean includeCmsProtectAlgorithmAttribute,
+            final Integer accuracySeconds,
+            final Integer accuracyMillis,
+            final Integer accuracyMicros,
+            final boolean ordering,
+            final GeneralName tsa) throws CertificateEncodingException, IOException, OperatorCreationException {
+        this.signingCert = signingCert;
+        this.signingCertChain = signingCertChain;
+        this.certStore = certStore;
+        this.includeCertIDIssuerSerial = includeCertIDIssuerSerial;
+        this.accuracySeconds = accuracySeconds;
+        this.accuracyMillis = accuracyMillis;
+        this.accuracyMicros = accuracyMicros;
+        this.ordering = ordering;
+        this.tsa = tsa;
+
+        final byte[] encoded = signingCert.getEncoded();
+        certHolder = new X509CertificateHolder(encoded);
+
+        final DigestCalculatorProvider calcProv = new BcDigestCalculatorProvider();
+        final DigestCalculator calc = calcProv.get(new AlgorithmIdentifier(certificateDigestAlgorithm));
+        try (OutputStream out = calc.getOutputStream()) {
+            out.write(encoded);
+        }
+        certDigestAlgorithm = calc.getAlgorithmIdentifier();
+        certDigest = calc.getDigest();
+
+        // set signed attribute table generator based on property
+        final Collection<ASN1ObjectIdentifier> attributesToRemove = new ArrayList<>();
+        if (!includeSigningTimeAttribute) {
+            attributesToRemove.add(CMSAttributes.signingTime);
+        }
+        if (!includeCmsProtectAlgorithmAttribute) {
+            attributesToRemove.add(CMSAttributes.cmsAlgorithmProtect);
+        }
+        signerInfoGeneratorBuilder = new JcaSignerInfoGeneratorBuilder(calcProv);
+        signerInfoGeneratorBuilder.setSignedAttributeGenerator(
+                new FilteredSignedAttributeTableGenerator(attributesToRemove));
+    }
+
+    /**
+     * @param cert signing certificate for the request
+     * @param chain certificate chain for the request
+     * @return true if this template was created for the certificate and chain
+     */
+    boolean matches(final X509Certificate cert, final List<Certificate> chain) {
+        return signingCert.equals(cert) && Objects.equals(signingCertChain, chain);
+    }
+
+    /**
+     * Creates a generator signing with the content signer.
+     *
+     * @param contentSigner to sign with
+     * @param policy TSA policy of the token
+     * @return a new generator
+     * @throws OperatorCreationException in case of error with the signer
+     * @throws TSPException in case of error creating the generator
+     */
+    TimeStampTokenGenerator createGenerator(final ContentSigner contentSigner,
+            final ASN1ObjectIdentifier policy) throws OperatorCreationException, TSPException {
+        final SignerInfoGenerator sig = signerInfoGeneratorBuilder.build(contentSigner, certHolder);
+        final TimeStampTokenGenerator result = new TimeStampTokenGenerator(sig,
+                new PrecomputedDigestCalculator(certDigestAlgorithm, certDigest),
+                policy, includeCertIDIssuerSerial);
+
+        if (accuracyMicros != null) {
+            result.setAccuracyMicros(accuracyMicros);
+        }
+        if (accuracyMillis != null) {
+            result.setAccuracyMillis(accuracyMillis);
+        }
+        if (accuracySeconds != null) {
+            result.setAccuracySeconds(accuracySeconds);
+        }
+        result.setOrdering(ordering);
+        if (tsa != null) {
+            result.setTSA(tsa);
+        }
+        result.addCertificates(certStore);
+        return result;
+    }
+
+    /**
+     * DigestCalculator returning the already calculated digest of the
+     * signing certificate, which is all TimeStampTokenGenerator uses it for.
+     */
+    private static class PrecomputedDigestCalculator implements DigestCalculator {
+
+        private final AlgorithmIdentifier algorithm;
+        private final byte[] digest;
+
+        PrecomputedDigestCalculator(final AlgorithmIdentifier algorithm, final byte[] digest) {
+            this.algorithm = algorithm;
+            this.digest = digest;
+        }
+
+        @Override
+        public AlgorithmIdentifier getAlgorithmIdentifier() {
+            return algorithm;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public byte[] getDigest() {
+            return digest.clone();
+        }
+    }
+}
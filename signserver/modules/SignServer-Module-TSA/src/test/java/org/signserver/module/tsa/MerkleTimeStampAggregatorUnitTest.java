@@ -0,0 +1,220 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cmp.PKIFailureInfo;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TSPValidationException;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampResponseGenerator;
+import org.bouncycastle.tsp.ers.ERSEvidenceRecord;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signserver.common.CryptoTokenOfflineException;
+import org.signserver.common.SignServerException;
+import org.signserver.test.utils.builders.CertBuilder;
+import org.signserver.test.utils.builders.CertExt;
+import org.signserver.test.utils.builders.CryptoUtils;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the MerkleTimeStampAggregator class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class MerkleTimeStampAggregatorUnitTest {
+
+    private static final ASN1ObjectIdentifier POLICY = new ASN1ObjectIdentifier("1.2.3.4");
+
+    private static KeyPair keyPair;
+    private static X509Certificate cert;
+    private static TimeStampTokenTemplate template;
+
+    private final AtomicInteger signCount = new AtomicInteger();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        keyPair = CryptoUtils.generateRSA(1024);
+        cert = new JcaX509CertificateConverter().getCertificate(new CertBuilder()
+                .setSelfSignKeyPair(keyPair)
+                .setSubject("CN=Aggregating TSA")
+                .addExtension(new CertExt(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping)))
+                .build());
+        final List<Certificate> chain = Collections.<Certificate>singletonList(cert);
+        template = new TimeStampTokenTemplate(cert, chain, new JcaCertStore(chain),
+                NISTObjectIdentifiers.id_sha256, true, true, true, null, null, null, false, null);
+    }
+
+    private MerkleTimeStampAggregator.RootSigner createSigner() {
+        return rootRequest -> {
+            signCount.incrementAndGet();
+            try {
+                return new TimeStampResponseGenerator(template.createGenerator(
+                        new JcaContentSignerBuilder("SHA256withRSA").setProvider("BC").build(keyPair.getPrivate()), POLICY),
+                        TSPAlgorithms.ALLOWED)
+                        .generateGrantedResponse(rootRequest, BigInteger.valueOf(signCount.get()), new Date());
+            } catch (Exception ex) {
+                throw new SignServerException("Signing failed", ex);
+            }
+        };
+    }
+
+    private static TimeStampRequest createRequest(final String algorithm, final ASN1ObjectIdentifier algorithmOid, final String data) throws Exception {
+        final TimeStampRequestGenerator generator = new TimeStampRequestGenerator();
+        generator.setCertReq(true);
+        return generator.generate(algorithmOid, MessageDigest.getInstance(algorithm).digest(data.getBytes("UTF-8")));
+    }
+
+    private static List<MerkleTimeStampAggregator.Result> aggregateConcurrently(final MerkleTimeStampAggregator instance,
+            final List<TimeStampRequest> requests, final MerkleTimeStampAggregator.RootSigner signer) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(requests.size());
+        try {
+            final List<Future<MerkleTimeStampAggregator.Result>> futures = new ArrayList<>();
+            for (final TimeStampRequest request : requests) {
+                futures.add(executor.submit((Callable<MerkleTimeStampAggregator.Result>) () -> instance.aggregate(request, signer)));
+            }
+            final List<MerkleTimeStampAggregator.Result> results = new ArrayList<>();
+            for (Future<MerkleTimeStampAggregator.Result> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertContains(final ERSEvidenceRecord evidenceRecord, final TimeStampRequest request) throws Exception {
+        evidenceRecord.validate(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(cert));
+        evidenceRecord.validatePresent(false, request.getMessageImprintDigest(), new Date());
+        final ERSEvidenceRecord parsed = new ERSEvidenceRecord(evidenceRecord.getEncoded(), new BcDigestCalculatorProvider());
+        parsed.validatePresent(false, request.getMessageImprintDigest(), new Date());
+    }
+
+    /**
+     * Tests that concurrent requests are signed with one signature and that
+     * each evidence record proves the inclusion of its own request,
+     * including requests for the same data.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentRequestsShareSignature() throws Exception {
+        final MerkleTimeStampAggregator instance = new MerkleTimeStampAggregator(10000, 7);
+        final List<TimeStampRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            requests.add(createRequest("SHA-256", TSPAlgorithms.SHA256, "data " + i));
+        }
+        requests.add(createRequest("SHA-256", TSPAlgorithms.SHA256, "data 3"));
+
+        final List<MerkleTimeStampAggregator.Result> results = aggregateConcurrently(instance, requests, createSigner());
+
+        assertEquals("one signature", 1, signCount.get());
+        for (int i = 0; i < requests.size(); i++) {
+            assertNotNull("evidence record " + i, results.get(i).getEvidenceRecord());
+            assertSame("same root response", results.get(0).getRootResponse(), results.get(i).getRootResponse());
+            assertContains(results.get(i).getEvidenceRecord(), requests.get(i));
+        }
+        try {
+            results.get(0).getEvidenceRecord().validatePresent(false, requests.get(1).getMessageImprintDigest(), new Date());
+            fail("Should not contain the other request's hash");
+        } catch (Exception expected) { // NOPMD
+            // OK
+        }
+    }
+
+    /**
+     * Tests that a single request is signed after the window and that
+     * requests with different algorithms are not aggregated.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testWindowAndAlgorithms() throws Exception {
+        final MerkleTimeStampAggregator instance = new MerkleTimeStampAggregator(50, 100);
+        final TimeStampRequest request1 = createRequest("SHA-256", TSPAlgorithms.SHA256, "data");
+        final TimeStampRequest request2 = createRequest("SHA-512", TSPAlgorithms.SHA512, "data");
+
+        final List<MerkleTimeStampAggregator.Result> results = aggregateConcurrently(instance, List.of(request1, request2), createSigner());
+
+        assertEquals("one signature per algorithm", 2, signCount.get());
+        assertContains(results.get(0).getEvidenceRecord(), request1);
+        assertContains(results.get(1).getEvidenceRecord(), request2);
+        assertNotSame("different batches", results.get(0).getRootResponse(), results.get(1).getRootResponse());
+    }
+
+    /**
+     * Tests that a rejected root response and failures are given to all
+     * requests in the batch.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRejectedAndFailed() throws Exception {
+        final MerkleTimeStampAggregator instance = new MerkleTimeStampAggregator(10000, 3);
+        final List<TimeStampRequest> requests = List.of(
+                createRequest("SHA-256", TSPAlgorithms.SHA256, "data 1"),
+                createRequest("SHA-256", TSPAlgorithms.SHA256, "data 2"),
+                createRequest("SHA-256", TSPAlgorithms.SHA256, "data 3"));
+
+        final List<MerkleTimeStampAggregator.Result> results = aggregateConcurrently(instance, requests, rootRequest -> {
+            try {
+                return new TimeStampResponseGenerator(null, TSPAlgorithms.ALLOWED)
+                        .generateRejectedResponse(new TSPValidationException("The time source is not available.", PKIFailureInfo.timeNotAvailable));
+            } catch (Exception ex) {
+                throw new SignServerException("Rejecting failed", ex);
+            }
+        });
+        for (MerkleTimeStampAggregator.Result result : results) {
+            assertNull("no evidence record", result.getEvidenceRecord());
+            assertEquals("fail info", PKIFailureInfo.timeNotAvailable, result.getRootResponse().getFailInfo().intValue());
+        }
+
+        try {
+            aggregateConcurrently(instance, requests, rootRequest -> {
+                throw new CryptoTokenOfflineException("Token offline");
+            });
+            fail("Should have failed");
+        } catch (java.util.concurrent.ExecutionException ex) {
+            assertTrue("offline: " + ex.getCause(), ex.getCause() instanceof CryptoTokenOfflineException);
+        }
+    }
+}
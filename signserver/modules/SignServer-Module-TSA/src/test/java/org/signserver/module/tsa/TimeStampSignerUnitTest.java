@@ -20,6 +20,7 @@ import java.security.Security;
 import java.security.cert.Certificate;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -47,12 +48,15 @@ import org.bouncycastle.asn1.x509.Extensions;
 import org.bouncycastle.asn1.x509.IssuerSerial;
 import org.bouncycastle.asn1.x509.KeyPurposeId;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
 import org.bouncycastle.tsp.TSPAlgorithms;
 import org.bouncycastle.tsp.TimeStampRequest;
 import org.bouncycastle.tsp.TimeStampRequestGenerator;
 import org.bouncycastle.tsp.TimeStampResponse;
 import org.bouncycastle.tsp.TimeStampTokenInfo;
+import org.bouncycastle.tsp.ers.ERSEvidenceRecord;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
@@ -1033,6 +1037,55 @@ public class TimeStampSignerUnitTest extends ModulesTestCase {
         timeStampResponse.validate(timeStampRequest);
     }
 
+    /**
+     * Tests that in the MERKLE aggregation mode the response is an evidence
+     * record proving that the message imprint is time-stamped.
+     */
+    @Test
+    public void testAggregationModeMerkle() throws Exception {
+        LOG.info("testAggregationModeMerkle");
+        final byte[] imprint = new byte[32];
+        Arrays.fill(imprint, (byte) 7);
+        final TimeStampRequestGenerator timeStampRequestGenerator = new TimeStampRequestGenerator();
+        timeStampRequestGenerator.setCertReq(true);
+        final TimeStampRequest timeStampRequest = timeStampRequestGenerator.generate(
+                TSPAlgorithms.SHA256, imprint, BigInteger.valueOf(100));
+        workerSession.setWorkerProperty(WORKER1, "AGGREGATION_MODE", "MERKLE");
+        workerSession.setWorkerProperty(WORKER1, "AGGREGATION_WINDOW", "0");
+        workerSession.reloadConfiguration(WORKER1);
+
+        try (
+                CloseableReadableData requestData = createRequestData(timeStampRequest.getEncoded());
+                CloseableWritableData responseData = createResponseData(false)
+            ) {
+            processSession.process(new AdminInfo("Client user", null, null), new WorkerIdentifier(WORKER1),
+                    new SignatureRequest(100, requestData, responseData), new MockedRequestContext(services));
+
+            final ERSEvidenceRecord evidenceRecord = new ERSEvidenceRecord(
+                    responseData.toReadableData().getAsByteArray(), new BcDigestCalculatorProvider());
+            evidenceRecord.validatePresent(false, imprint, new Date());
+            evidenceRecord.validate(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC")
+                    .build(evidenceRecord.getSigningCertificate()));
+        }
+    }
+
+    /**
+     * Tests that an invalid aggregation mode gives a configuration error.
+     */
+    @Test
+    public void testAggregationModeInvalid() {
+        LOG.info("testAggregationModeInvalid");
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("AGGREGATION_MODE", "_invalid_");
+
+        final TimeStampSigner signer = new NullICryptoTokenV4TimeStampSigner();
+        signer.init(WORKER1, config, null, null);
+
+        final List<String> fatalErrors = signer.getFatalErrors(null);
+        assertTrue("should contain configuration error but was " + fatalErrors,
+                   fatalErrors.contains("Illegal value for AGGREGATION_MODE: _invalid_"));
+    }
+
     /**
      * Tests the TimeStampSigner for bad request that cannot be parsed (null).
      * @throws Exception in case of failure.
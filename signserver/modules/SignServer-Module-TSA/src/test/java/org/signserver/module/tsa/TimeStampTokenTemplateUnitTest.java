@@ -0,0 +1,136 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signserver.test.utils.builders.CertBuilder;
+import org.signserver.test.utils.builders.CertExt;
+import org.signserver.test.utils.builders.CryptoUtils;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the TimeStampTokenTemplate class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class TimeStampTokenTemplateUnitTest {
+
+    private static final ASN1ObjectIdentifier POLICY = new ASN1ObjectIdentifier("1.2.3.4");
+
+    private static KeyPair keyPair;
+    private static X509Certificate cert;
+    private static List<Certificate> chain;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        keyPair = CryptoUtils.generateRSA(1024);
+        cert = new JcaX509CertificateConverter().getCertificate(new CertBuilder()
+                .setSelfSignKeyPair(keyPair)
+                .setSubject("CN=Template TSA")
+                .addExtension(new CertExt(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping)))
+                .build());
+        chain = Collections.<Certificate>singletonList(cert);
+    }
+
+    private TimeStampToken createToken(final TimeStampTokenTemplate instance, final BigInteger serial) throws Exception {
+        final TimeStampRequestGenerator requestGenerator = new TimeStampRequestGenerator();
+        requestGenerator.setCertReq(true);
+        final TimeStampRequest request = requestGenerator.generate(TSPAlgorithms.SHA256, new byte[32], serial);
+        return instance.createGenerator(new JcaContentSignerBuilder("SHA256withRSA").setProvider("BC").build(keyPair.getPrivate()), POLICY)
+                .generate(request, serial, new Date());
+    }
+
+    /**
+     * Tests that tokens created from the same template validate, including
+     * the ESSCertIDv2 with the precomputed certificate digest.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testTokensFromTemplate() throws Exception {
+        final TimeStampTokenTemplate instance = new TimeStampTokenTemplate(cert, chain, new JcaCertStore(chain),
+                NISTObjectIdentifiers.id_sha256, true, true, true, 1, 2, 3, true, new GeneralName(new X500Name("CN=TSA Name")));
+
+        for (int i = 1; i <= 3; i++) {
+            final TimeStampToken token = createToken(instance, BigInteger.valueOf(i));
+            token.validate(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(cert));
+            assertEquals("serial", BigInteger.valueOf(i), token.getTimeStampInfo().getSerialNumber());
+            assertEquals("policy", POLICY, token.getTimeStampInfo().getPolicy());
+            assertEquals("accuracy seconds", 1, token.getTimeStampInfo().getAccuracy().getSeconds().intValueExact());
+            assertEquals("accuracy micros", 3, token.getTimeStampInfo().getAccuracy().getMicros().intValueExact());
+            assertTrue("ordering", token.getTimeStampInfo().isOrdered());
+            assertEquals("tsa", new GeneralName(new X500Name("CN=TSA Name")), token.getTimeStampInfo().getTsa());
+            assertEquals("certificates", 1, token.getCertificates().getMatches(null).size());
+        }
+    }
+
+    /**
+     * Tests a template with an ESSCertID (SHA-1) and without optional fields.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testSHA1CertIDWithoutOptionalFields() throws Exception {
+        final TimeStampTokenTemplate instance = new TimeStampTokenTemplate(cert, chain, new JcaCertStore(chain),
+                OIWObjectIdentifiers.idSHA1, false, false, false, null, null, null, false, null);
+
+        final TimeStampToken token = createToken(instance, BigInteger.TEN);
+        token.validate(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(cert));
+        assertNull("accuracy", token.getTimeStampInfo().getAccuracy());
+        assertNull("tsa", token.getTimeStampInfo().getTsa());
+    }
+
+    /**
+     * Tests matching the signing certificate and chain.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testMatches() throws Exception {
+        final TimeStampTokenTemplate instance = new TimeStampTokenTemplate(cert, chain, new JcaCertStore(chain),
+                NISTObjectIdentifiers.id_sha256, true, true, true, null, null, null, false, null);
+        final X509Certificate other = new JcaX509CertificateConverter().getCertificate(new CertBuilder().setSubject("CN=Other").build());
+
+        assertTrue("same", instance.matches(cert, Collections.<Certificate>singletonList(cert)));
+        assertFalse("other cert", instance.matches(other, chain));
+        assertFalse("other chain", instance.matches(cert, Collections.<Certificate>singletonList(other)));
+    }
+}
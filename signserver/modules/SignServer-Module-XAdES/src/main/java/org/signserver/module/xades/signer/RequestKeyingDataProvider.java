@@ -0,0 +1,71 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.xades.signer;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import xades4j.providers.KeyingDataProvider;
+import xades4j.providers.SigningCertChainException;
+import xades4j.providers.SigningKeyException;
+import xades4j.verification.UnexpectedJCAException;
+
+/**
+ * An implementation of {@code KeyingDataProvider} giving the signing key and
+ * certificate chain set for the request processed by the current thread.
+ *
+ * This allows a signer created once to be used for all requests even though
+ * the key is acquired for each request.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class RequestKeyingDataProvider implements KeyingDataProvider {
+
+    private final ThreadLocal<CertificateAndChainKeyingDataProvider> current = new ThreadLocal<>();
+
+    /**
+     * Sets the keying data for the current thread.
+     *
+     * @param certificates chain starting with the signing certificate
+     * @param key signing key
+     */
+    public void set(final List<X509Certificate> certificates, final PrivateKey key) {
+        current.set(new CertificateAndChainKeyingDataProvider(certificates, key));
+    }
+
+    /**
+     * Removes the keying data of the current thread.
+     */
+    public void clear() {
+        current.remove();
+    }
+
+    @Override
+    public List<X509Certificate> getSigningCertificateChain() throws SigningCertChainException, UnexpectedJCAException {
+        return getCurrent().getSigningCertificateChain();
+    }
+
+    @Override
+    public PrivateKey getSigningKey(final X509Certificate signingCert) throws SigningKeyException, UnexpectedJCAException {
+        return getCurrent().getSigningKey(signingCert);
+    }
+
+    private CertificateAndChainKeyingDataProvider getCurrent() {
+        final CertificateAndChainKeyingDataProvider result = current.get();
+        if (result == null) {
+            throw new IllegalStateException("No keying data set for the current request");
+        }
+        return result;
+    }
+}
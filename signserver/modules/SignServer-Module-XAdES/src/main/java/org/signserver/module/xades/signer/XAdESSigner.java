@@ -22,16 +22,12 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.persistence.EntityManager;
 import javax.xml.crypto.dsig.SignatureMethod;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import org.signserver.common.CryptoTokenOfflineException;
 import org.signserver.common.IllegalRequestException;
 import org.signserver.common.RequestContext;
@@ -45,6 +41,7 @@ import org.signserver.ejb.interfaces.InternalProcessSessionLocal;
 import org.signserver.server.IServices;
 import org.signserver.server.UsernamePasswordClientCredential;
 import org.signserver.server.WorkerContext;
+import org.signserver.server.XMLProcessors;
 import org.signserver.server.archive.Archivable;
 import org.signserver.server.archive.DefaultArchivable;
 import org.signserver.server.cryptotokens.ICryptoInstance;
@@ -67,7 +64,6 @@ import xades4j.production.XadesSigningProfile;
 import xades4j.production.XadesTSigningProfile;
 import xades4j.properties.AllDataObjsCommitmentTypeProperty;
 import xades4j.properties.SignerRoleProperty;
-import xades4j.providers.KeyingDataProvider;
 import xades4j.providers.SignaturePropertiesCollector;
 import xades4j.providers.TimeStampTokenProvider;
 import xades4j.utils.XadesProfileResolutionException;
@@ -130,6 +126,9 @@ public class XAdESSigner extends BaseSigner {
     private static final String TSA_DIGESTALGORITHM = "TSA_DIGESTALGORITHM";
     
     private static final String CONTENT_TYPE = "text/xml";
+
+    /** Maximum number of signers (one per claimed role and key algorithm) to keep. */
+    private static final int MAX_CACHED_SIGNERS = 100;
     
     private LinkedList<String> configErrors;
     private XAdESSignerParameters parameters;
@@ -151,6 +150,14 @@ public class XAdESSigner extends BaseSigner {
     private String tsaUrl;
     private String tsaUsername;
     private String tsaPassword;
+
+    private XMLProcessors xmlProcessors;
+
+    /** Keying data for the request currently processed by each thread. */
+    private final RequestKeyingDataProvider keyingDataProvider = new RequestKeyingDataProvider();
+
+    /** Signers created for this configuration, by claimed role and key algorithm. */
+    private final ConcurrentMap<String, XadesSigner> signers = new ConcurrentHashMap<>();
     
     /** 
      * Electronic signature forms defined in ETSI TS 101 903 V1.4.1 (2009-06)
@@ -195,6 +202,15 @@ public class XAdESSigner extends BaseSigner {
         
         // Configuration errors
         configErrors = new LinkedList<>();
+
+        // Signers are created from the configuration so drop any old ones
+        signers.clear();
+
+        try {
+            xmlProcessors = new XMLProcessors();
+        } catch (ParserConfigurationException ex) {
+            configErrors.add("Unable to configure XML parser: " + ex.getMessage());
+        }
         
         // PROPERTY_XADESFORM
         Profiles form = null;
@@ -333,25 +349,11 @@ public class XAdESSigner extends BaseSigner {
             crypto = acquireCryptoInstance(ICryptoTokenV4.PURPOSE_SIGN, signRequest, requestContext);
 
             // Parse
+            setKeyingData(crypto);
             final XadesSigner signer =
-                    createSigner(crypto, parameters, claimedRole, signRequest, requestContext);
+                    getSigner(crypto, parameters, claimedRole, requestContext);
             cert = getSigningCertificate(crypto);
-            final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-
-            // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-general-entities
-            // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-general-entities
-            dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
-
-            // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-parameter-entities
-            // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-parameter-entities
-            dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-
-            // Xerces 2 only - http://xerces.apache.org/xerces2-j/features.html#disallow-doctype-decl
-            dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-
-            final DocumentBuilder builder = dbf.newDocumentBuilder();
-            final Document doc = builder.parse(in);
+            final Document doc = xmlProcessors.parse(in);
 
             // Sign
             final Node node = doc.getDocumentElement();
@@ -364,9 +366,7 @@ public class XAdESSigner extends BaseSigner {
             signer.sign(dataObjs, doc);
             
             // Render result
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer trans = tf.newTransformer();
-            trans.transform(new DOMSource(doc), new StreamResult(out));
+            xmlProcessors.transform(doc, out);
         } catch (SAXException ex) {
             throw new IllegalRequestException("Document parsing error", ex);
         } catch (IOException | ParserConfigurationException ex) {
@@ -381,6 +381,7 @@ public class XAdESSigner extends BaseSigner {
         } catch (TransformerException ex) {
             throw new SignServerException("Transformation failure", ex);
         } finally {
+            keyingDataProvider.clear();
             releaseCryptoInstance(crypto, requestContext);
         }
         
@@ -397,26 +398,13 @@ public class XAdESSigner extends BaseSigner {
     }
 
     /**
-     * Creates the signer implementation given the parameters.
+     * Sets the key and certificates of the crypto instance as the keying data
+     * used by the signer for the current request.
      *
      * @param crypto instance
-     * @param params Parameters such as XAdES form and TSA properties.
-     * @param claimedRole
-     * @param request Signing request
-     * @param context Request context
-     * @return The signer implementation
-     * @throws SignServerException In case an unsupported XAdES form was specified
-     * @throws XadesProfileResolutionException if the dependencies of the signer cannot be resolved
-     * @throws CryptoTokenOfflineException If the private key is not available
+     * @throws CryptoTokenOfflineException If the certificate chain is not available
      */
-    private XadesSigner createSigner(final ICryptoInstance crypto,
-                                    final XAdESSignerParameters params,
-                                    final String claimedRole,
-                                    final Request request,
-                                    final RequestContext context)
-            throws SignServerException, XadesProfileResolutionException,
-                CryptoTokenOfflineException, IllegalRequestException {
-        // Setup key and certificiates
+    private void setKeyingData(final ICryptoInstance crypto) throws CryptoTokenOfflineException {
         final List<X509Certificate> xchain = new LinkedList<>();
         final List<Certificate> chain = this.getSigningCertificateChain(crypto);
         if (chain == null) {
@@ -427,8 +415,58 @@ public class XAdESSigner extends BaseSigner {
                 xchain.add((X509Certificate) cert);
             }
         }
-        final KeyingDataProvider kdp =
-                new CertificateAndChainKeyingDataProvider(includedX509Certificates(xchain), crypto.getPrivateKey());
+        keyingDataProvider.set(includedX509Certificates(xchain), crypto.getPrivateKey());
+    }
+
+    /**
+     * Gets the signer implementation for the claimed role and key algorithm,
+     * creating it the first time.
+     *
+     * The signer takes the key and certificates from the keying data set
+     * for the current request so it can be shared by all requests.
+     *
+     * @param crypto instance
+     * @param params Parameters such as XAdES form and TSA properties.
+     * @param claimedRole
+     * @param context Request context
+     * @return The signer implementation
+     * @throws SignServerException In case an unsupported XAdES form was specified
+     * @throws XadesProfileResolutionException if the dependencies of the signer cannot be resolved
+     */
+    private XadesSigner getSigner(final ICryptoInstance crypto,
+                                  final XAdESSignerParameters params,
+                                  final String claimedRole,
+                                  final RequestContext context)
+            throws SignServerException, XadesProfileResolutionException {
+        final String keyAlgorithm = crypto.getPublicKey().getAlgorithm();
+        final String key = claimedRole == null ? keyAlgorithm : keyAlgorithm + "/" + claimedRole;
+        XadesSigner result = signers.get(key);
+        if (result == null) {
+            result = createSigner(keyAlgorithm, params, claimedRole, context);
+            if (signers.size() < MAX_CACHED_SIGNERS) {
+                signers.putIfAbsent(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates the signer implementation given the parameters.
+     *
+     * @param keyAlgorithm algorithm of the signing key
+     * @param params Parameters such as XAdES form and TSA properties.
+     * @param claimedRole
+     * @param context Request context
+     * @return The signer implementation
+     * @throws SignServerException In case an unsupported XAdES form was specified
+     * @throws XadesProfileResolutionException if the dependencies of the signer cannot be resolved
+     */
+    private XadesSigner createSigner(final String keyAlgorithm,
+                                    final XAdESSignerParameters params,
+                                    final String claimedRole,
+                                    final RequestContext context)
+            throws SignServerException, XadesProfileResolutionException {
+        final RequestKeyingDataProvider kdp = keyingDataProvider;
         
         // Signing profile
         XadesSigningProfile xsp;                   
@@ -465,7 +503,7 @@ public class XAdESSigner extends BaseSigner {
         sigAlg = sigAlg.withSignatureAlgorithm("RSA", "nonExistingAlg");
 
         if (signatureAlgorithm == null) {
-            if ("EC".contains(crypto.getPublicKey().getAlgorithm())) {
+            if ("EC".contains(keyAlgorithm)) {
                 sigAlg = sigAlg.withSignatureAlgorithm("EC", SignatureMethod.ECDSA_SHA256);
             } else {
                 sigAlg = sigAlg.withSignatureAlgorithm("RSA", SignatureMethod.RSA_SHA256);
@@ -555,6 +593,7 @@ public class XAdESSigner extends BaseSigner {
      */
     public void setTimeStampTokenProviderImplementation(final AbstractTimeStampTokenProvider implementation) {
         timeStampTokenProviderImplementation = implementation;
+        signers.clear();
     }
     
     /**
@@ -1147,6 +1147,38 @@ public class XAdESSignerUnitTest {
         }
     }
 
+    /**
+     * Tests that a signer instance processing several requests uses the
+     * claimed role of each request.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testClaimedRoleFromUsernameForEachRequest() throws Exception {
+        LOG.info("testClaimedRoleFromUsernameForEachRequest");
+        final XAdESSigner instance = new MockedXAdESSigner(tokenRSA);
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("CLAIMED_ROLE_FROM_USERNAME", "true");
+        instance.init(4711, config, null, null);
+
+        for (final String username : Arrays.asList("user1", "user2", "user1")) {
+            final RequestContext requestContext = new RequestContext();
+            requestContext.put(RequestContext.TRANSACTION_ID, "0000-100-1");
+            requestContext.put(RequestContext.CLIENT_CREDENTIAL, new UsernamePasswordClientCredential(username, "foobar"));
+
+            try (
+                    CloseableReadableData requestData = ModulesTestCase.createRequestData("<test100/>".getBytes(StandardCharsets.UTF_8));
+                    CloseableWritableData responseData = ModulesTestCase.createResponseData(false);
+                ) {
+                instance.processData(new SignatureRequest(100, requestData, responseData), requestContext);
+
+                final String signedXml = new String(responseData.toReadableData().getAsByteArray(), StandardCharsets.UTF_8);
+                assertTrue("claimed role " + username + ": " + signedXml, signedXml.contains(">" + username + "</"));
+                assertFalse("only one claimed role: " + signedXml, signedXml.contains(">" + ("user1".equals(username) ? "user2" : "user1") + "</"));
+            }
+        }
+    }
+
     /**
      * Tests that a document with a DOCTYPE is not allowed.
      * @throws Exception
@@ -28,6 +28,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import javax.persistence.EntityManager;
 import javax.xml.crypto.MarshalException;
 import javax.xml.crypto.XMLStructure;
@@ -36,16 +38,12 @@ import javax.xml.crypto.dsig.dom.DOMSignContext;
 import javax.xml.crypto.dsig.keyinfo.KeyInfo;
 import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
 import javax.xml.crypto.dsig.keyinfo.X509Data;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import org.apache.log4j.Logger;
 import org.signserver.common.*;
 import org.signserver.server.WorkerContext;
+import org.signserver.server.XMLProcessors;
 import org.signserver.server.archive.Archivable;
 import org.signserver.server.archive.DefaultArchivable;
 import org.signserver.server.cryptotokens.ICryptoInstance;
@@ -111,6 +109,16 @@ public class XMLSigner extends BaseSigner {
     private String digestMethod;
     private LinkedList<String> configErrors;
 
+    private XMLProcessors xmlProcessors;
+
+    /**
+     * XMLSignatureFactory instances are not thread-safe so each one is used
+     * by one request at a time. Pooled per worker instance, not per thread,
+     * so that nothing is left on the container's threads on reload.
+     */
+    private final Queue<XMLSignatureFactory> xmlSignatureFactories = new ConcurrentLinkedQueue<>();
+    private Provider xmlSignatureProvider;
+
     @Override
     public void init(final int workerId, final WorkerConfig config,
             final WorkerContext workerContext, final EntityManager workerEM) {
@@ -119,6 +127,19 @@ public class XMLSigner extends BaseSigner {
         // Configuration errors
         configErrors = new LinkedList<>();
 
+        try {
+            xmlProcessors = new XMLProcessors();
+        } catch (ParserConfigurationException ex) {
+            configErrors.add("Unable to configure XML parser: " + ex.getMessage());
+        }
+
+        final String providerName = System.getProperty("jsr105Provider", "org.apache.jcp.xml.dsig.internal.dom.XMLDSigRI");
+        try {
+            xmlSignatureProvider = (Provider) Class.forName(providerName).newInstance();
+        } catch (InstantiationException | IllegalAccessException | ClassNotFoundException e) {
+            configErrors.add("Problem with JSR105 provider: " + e.getMessage());
+        }
+
         // Get the signature algorithm
         signatureAlgorithm = config.getProperty(SIGNATUREALGORITHM, DEFAULT_NULL);
         
@@ -152,12 +173,9 @@ public class XMLSigner extends BaseSigner {
         final SignatureRequest sReq = (SignatureRequest) signRequest;
         String archiveId = createArchiveId(new byte[0], (String) requestContext.get(RequestContext.TRANSACTION_ID));
 
-        String providerName = System.getProperty("jsr105Provider", "org.apache.jcp.xml.dsig.internal.dom.XMLDSigRI");
-        XMLSignatureFactory fac;
-        try {
-            fac = XMLSignatureFactory.getInstance("DOM", (Provider) Class.forName(providerName).newInstance());
-        } catch (InstantiationException | IllegalAccessException | ClassNotFoundException e) {
-            throw new SignServerException("Problem with JSR105 provider", e);
+        XMLSignatureFactory fac = xmlSignatureFactories.poll();
+        if (fac == null) {
+            fac = XMLSignatureFactory.getInstance("DOM", xmlSignatureProvider);
         }
 
         final ReadableData requestData = sReq.getRequestData();
@@ -192,13 +210,11 @@ public class XMLSigner extends BaseSigner {
             try {
                 final String sigAlg = signatureAlgorithm == null ? getDefaultSignatureAlgorithm(privKey) : signatureAlgorithm;
                 
-                // find digest method if DIGESTALGORITHM not provided                               
-                if (digestMethod == null) {
-                    digestMethod = getDefaultDigestMethodFromSignatureAlgorithm((sigAlg));
-                }
+                // find digest method if DIGESTALGORITHM not provided
+                final String refDigestMethod = digestMethod == null ? getDefaultDigestMethodFromSignatureAlgorithm(sigAlg) : digestMethod;
                 
                 Reference ref = fac.newReference("",
-                        fac.newDigestMethod(digestMethod, null),
+                        fac.newDigestMethod(refDigestMethod, null),
                         Collections.singletonList(fac.newTransform(Transform.ENVELOPED, (XMLStructure) null)),
                         null, null);
 
@@ -221,22 +237,8 @@ public class XMLSigner extends BaseSigner {
                 ki = kif.newKeyInfo(kviItems);
             }
 
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-
             try (InputStream in = requestData.getAsInputStream()) {
-                // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-general-entities
-                // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-general-entities
-                dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
-
-                // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-parameter-entities
-                // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-parameter-entities
-                dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-
-                // Xerces 2 only - http://xerces.apache.org/xerces2-j/features.html#disallow-doctype-decl
-                dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-
-                doc = dbf.newDocumentBuilder().parse(in);
+                doc = xmlProcessors.parse(in);
             } catch (SAXException ex) {
                 throw new IllegalRequestException("Document parsing error", ex);
             } catch (ParserConfigurationException | IOException ex) {
@@ -253,13 +255,11 @@ public class XMLSigner extends BaseSigner {
             }
         } finally {
             releaseCryptoInstance(crypto, requestContext);
+            xmlSignatureFactories.offer(fac);
         }
 
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer trans;
         try (OutputStream out = responseData.getAsOutputStream()) {
-            trans = tf.newTransformer();
-            trans.transform(new DOMSource(doc), new StreamResult(out));
+            xmlProcessors.transform(doc, out);
         } catch (TransformerException | IOException ex) {
             throw new SignServerException("XML transformation error", ex);
         }
@@ -0,0 +1,78 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.rest.api.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the cleanup tasks registered for a request when the request has
+ * completed.
+ *
+ * Used for resources that must stay open while a streamed response is
+ * written, as the response entity is written after the resource method has
+ * returned and might not be written at all if the request fails or the
+ * client goes away.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class RequestCleanupListener implements ServletRequestListener {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(RequestCleanupListener.class);
+
+    private static final String ATTRIBUTE = RequestCleanupListener.class.getName();
+
+    /**
+     * Registers a task to run when the request has completed.
+     *
+     * @param request to register the task for
+     * @param task to run
+     */
+    @SuppressWarnings("unchecked")
+    public static void register(final ServletRequest request, final Runnable task) {
+        List<Runnable> tasks = (List<Runnable>) request.getAttribute(ATTRIBUTE);
+        if (tasks == null) {
+            tasks = new ArrayList<>(1);
+            request.setAttribute(ATTRIBUTE, tasks);
+        }
+        tasks.add(task);
+    }
+
+    @Override
+    public void requestInitialized(final ServletRequestEvent event) {
+        // Nothing to do
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void requestDestroyed(final ServletRequestEvent event) {
+        final ServletRequest request = event.getServletRequest();
+        final List<Runnable> tasks = (List<Runnable>) request.getAttribute(ATTRIBUTE);
+        if (tasks != null) {
+            request.removeAttribute(ATTRIBUTE);
+            for (Runnable task : tasks) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    LOG.error("Request cleanup failed", ex);
+                }
+            }
+        }
+    }
+}
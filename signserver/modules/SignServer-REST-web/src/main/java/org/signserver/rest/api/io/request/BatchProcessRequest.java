@@ -0,0 +1,50 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.rest.api.io.request;
+
+import java.util.List;
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+/**
+ * Represents a batch process request for REST.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+@Schema(
+    name = "BatchProcessRequest",
+    description = "POJO that represents a batch of process requests."
+)
+public class BatchProcessRequest {
+
+    @Schema(
+        required = true,
+        description = "The requests to process. Each item is processed independently."
+    )
+    private List<ProcessRequest> items;
+
+    public BatchProcessRequest() {
+    }
+
+    public BatchProcessRequest(List<ProcessRequest> items) {
+        this.items = items;
+    }
+
+    public List<ProcessRequest> getItems() {
+        return items;
+    }
+
+    public void setItems(List<ProcessRequest> items) {
+        this.items = items;
+    }
+}
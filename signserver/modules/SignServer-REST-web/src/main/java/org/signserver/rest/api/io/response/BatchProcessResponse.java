@@ -0,0 +1,99 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.rest.api.io.response;
+
+import java.util.List;
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+/**
+ * Represents the response of a batch process request.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+@Schema(
+    name = "BatchProcessResponse",
+    description = "POJO that represents a batch process response."
+)
+public class BatchProcessResponse {
+
+    @Schema(
+        description = "Result of each item, in the same order as in the request"
+    )
+    private List<Item> items;
+
+    public BatchProcessResponse() {
+    }
+
+    public BatchProcessResponse(final List<Item> items) {
+        this.items = items;
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    public void setItems(final List<Item> items) {
+        this.items = items;
+    }
+
+    public static class Item {
+        @Schema(
+            description = "HTTP status code the item would have got as a single request"
+        )
+        private int status;
+
+        @Schema(
+            description = "The response if the item was processed successfully"
+        )
+        private ProcessResponse response;
+
+        @Schema(
+            description = "Error message if the item failed"
+        )
+        private String error;
+
+        public Item() {
+        }
+
+        public Item(final int status, final ProcessResponse response, final String error) {
+            this.status = status;
+            this.response = response;
+            this.error = error;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setStatus(final int status) {
+            this.status = status;
+        }
+
+        public ProcessResponse getResponse() {
+            return response;
+        }
+
+        public void setResponse(final ProcessResponse response) {
+            this.response = response;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public void setError(final String error) {
+            this.error = error;
+        }
+    }
+}
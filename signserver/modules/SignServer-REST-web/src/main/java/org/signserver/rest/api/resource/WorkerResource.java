@@ -12,13 +12,17 @@
  *************************************************************************/
 package org.signserver.rest.api.resource;
 
+import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.bouncycastle.util.encoders.DecoderException;
 import org.bouncycastle.util.encoders.Base64;
 import org.signserver.admin.common.auth.AdminAuthHelper;
 import org.signserver.common.*;
 import org.signserver.common.ForbiddenException;
+import org.signserver.common.data.ReadableData;
 import org.signserver.common.data.Request;
 import org.signserver.common.data.SignatureRequest;
 import org.signserver.common.data.SignatureResponse;
@@ -28,9 +32,11 @@ import org.signserver.ejb.interfaces.WorkerSessionLocal;
 import org.signserver.rest.api.entities.Metadata;
 import org.signserver.rest.api.exception.InternalServerException;
 import org.signserver.rest.api.exception.RequestFailedException;
+import org.signserver.rest.api.io.request.BatchProcessRequest;
 import org.signserver.rest.api.io.request.ProcessRequest;
 import org.signserver.rest.api.io.request.ReloadRequest;
 import org.signserver.rest.api.io.request.WorkerRequest;
+import org.signserver.rest.api.io.response.BatchProcessResponse;
 import org.signserver.rest.api.io.response.ProcessResponse;
 import org.signserver.rest.api.io.response.WorkerResponse;
 import org.signserver.server.CredentialUtils;
@@ -39,6 +45,7 @@ import org.signserver.server.log.AdminInfo;
 import org.signserver.server.log.IWorkerLogger;
 import org.signserver.server.log.LogMap;
 import org.signserver.server.log.Loggable;
+import org.signserver.web.common.BatchProcessor;
 
 import javax.annotation.PostConstruct;
 import javax.ejb.EJB;
@@ -48,10 +55,15 @@ import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
 import java.nio.charset.StandardCharsets;
 import java.util.stream.Collectors;
@@ -68,6 +80,7 @@ import org.eclipse.microprofile.openapi.annotations.responses.APIResponseSchema;
 import org.signserver.admin.common.auth.AdminNotAuthorizedException;
 import org.signserver.rest.api.entities.ErrorMessage;
 import org.signserver.rest.api.entities.DataEncoding;
+import org.signserver.rest.api.helper.RequestCleanupListener;
 import org.signserver.rest.api.helper.WorkerAuthHelper;
 import org.signserver.rest.api.io.response.ListWorkersResponse;
 import org.signserver.rest.api.io.response.WorkerConfigResponse;
@@ -75,6 +88,8 @@ import org.signserver.rest.api.io.response.WorkerConfigResponse;
 /**
  * REST API implementation containing operations:
  * POST /workers/{idOrName}/process : Gets data bytes or a file, worker, MetaData and returns signature.
+ * POST /workers/{idOrName}/process (application/octet-stream) : Gets the data as the request body and returns the signature as the response body.
+ * POST /workers/{idOrName}/process/batch : Gets a list of process requests and returns the result of each.
  * POST /workers/{id} : Creates a new worker from the request properties. ID is optional.
  * PUT /workers/{id} : Replacing all the worker properties with the new ones for the given worker ID.
  * PATCH /workers/{id} : Update/add/remove worker properties for the given worker ID.
@@ -91,6 +106,14 @@ import org.signserver.rest.api.io.response.WorkerConfigResponse;
 public class WorkerResource {
     private static final Logger LOG = Logger.getLogger(WorkerResource.class);
 
+    /** Request header with request metadata for binary requests, as name=value. */
+    private static final String METADATA_HEADER = "X-SignServer-Metadata";
+
+    /** Response headers for binary requests. */
+    private static final String REQUEST_ID_HEADER = "X-SignServer-Request-Id";
+    private static final String ARCHIVE_ID_HEADER = "X-SignServer-Archive-Id";
+    private static final String SIGNER_CERTIFICATE_HEADER = "X-SignServer-Signer-Certificate";
+
     @Resource
     private WebServiceContext wsContext;
 
@@ -103,6 +126,9 @@ public class WorkerResource {
     @EJB
     private WorkerSessionLocal workerSession;
 
+    @Resource(lookup = "java:comp/DefaultManagedExecutorService")
+    private ExecutorService executorService;
+
     private DataFactory dataFactory;
 
     private WorkerAuthHelper auth;
@@ -864,10 +890,18 @@ public class WorkerResource {
                     description = "The request",
                     required = true
             ) final ProcessRequest request) throws RequestFailedException, InternalServerException, CryptoTokenOfflineException, IllegalRequestException {
+        return process(idOrName, httpServletRequest, getRequestMetadata(request), decodeData(request));
+    }
+
+    private List<Metadata> getRequestMetadata(final ProcessRequest request) {
         final List<Metadata> requestMetadata = new ArrayList<>();
         if (request.getMetaData() != null) {
             request.getMetaData().forEach((name, value) -> requestMetadata.add(new Metadata(name, value)));
         }
+        return requestMetadata;
+    }
+
+    private byte[] decodeData(final ProcessRequest request) throws IllegalRequestException, InternalServerException {
         if (request.getData() == null) {
             throw new IllegalRequestException("Missing data in request");
         }
@@ -886,7 +920,7 @@ public class WorkerResource {
                 }
             }
         }
-        return process(idOrName, httpServletRequest, requestMetadata, dataBytes);
+        return dataBytes;
     }
 
     /**
@@ -911,7 +945,7 @@ public class WorkerResource {
 
         try {
             requestData = dataFactory.createReadableData(data, uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-            responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+            responseData = dataFactory.createWritableData(requestData, uploadConfig);
 
         } catch (FileUploadException e) {
             throw new RuntimeException(e);
@@ -922,28 +956,433 @@ public class WorkerResource {
 
         final Request req = new SignatureRequest(requestId, requestData, responseData);
 
+        try {
+            final SignatureResponse signatureResponse = processSignature(workerIdentifier, httpServletRequest, req, requestId, requestContext);
+
+            return Response.ok(toProcessResponse(signatureResponse, requestContext))
+                    .header("Content-Type", MediaType.APPLICATION_JSON).build();
+        } catch (IOException e) {
+            LOG.debug("Internal IO error", e);
+            throw new InternalServerException("Internal IO error: " + e.getMessage());
+        } catch (CertificateEncodingException e) {
+            LOG.error("Certificate encoding error", e);
+            throw new InternalServerException("Internal server error");
+        }
+    }
+
+    /**
+     * Binary REST operation for request signing of a document streamed in
+     * the request body.
+     *
+     * The signed result is streamed back in the response body without any
+     * encoding.
+     *
+     * @param idOrName           Name or ID of worker to send the request to
+     * @param httpServletRequest Http Servlet request to extract request context from it
+     * @param body               The document to process
+     * @return The response data
+     * @throws RequestFailedException  In case the request could not be processed typically because some error in the request data.
+     * @throws InternalServerException In case the request could not be processed by some error at the server side.
+     * @throws ForbiddenException In case access is forbidden for the request.
+     */
+    @POST
+    @Path("{idOrName}/process")
+    @Consumes({MediaType.APPLICATION_OCTET_STREAM})
+    @Produces({MediaType.APPLICATION_OCTET_STREAM})
+    @APIResponse(
+            responseCode = "200",
+            description = "The response data",
+            content = @Content(
+                    mediaType = MediaType.APPLICATION_OCTET_STREAM)
+    )
+    @APIResponse(
+            responseCode = "400",
+            description = "Bad request from the client",
+            content = @Content(
+                    mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ErrorMessage.class)
+            )
+    )
+    @APIResponse(
+            responseCode = "403",
+            description = "Access is forbidden!",
+            content = @Content(
+                    mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ErrorMessage.class)
+            )
+    )
+    @APIResponse(
+            responseCode = "404",
+            description = "No such worker",
+            content = @Content(
+                    mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ErrorMessage.class)
+            )
+    )
+    @APIResponse(
+            responseCode = "500",
+            description = "The server were unable to process the request. See server-side logs for more details.",
+            content = @Content(
+                    mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ErrorMessage.class)
+            )
+    )
+    @APIResponse(
+            responseCode = "503",
+            description = "Crypto Token not available",
+            content = @Content(
+                    mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ErrorMessage.class)
+            )
+    )
+    @Operation(
+            summary = "Submit binary data for processing",
+            description = "Required role: set by AUTHTYPE in worker \n\n"
+                    + "Submit data/document/file as the request body for processing such as for "
+                    + "instance signing and get back the result (i.e. signature) as the response body. "
+                    + "Request metadata can be given as " + METADATA_HEADER + " headers with values in the form name=value."
+    )
+    public Response processBinary(
+            @Parameter(
+                    description = "Worker Id or name of the worker",
+                    example = "ExampleSigner1",
+                    schema = @Schema(anyOf = {String.class, Integer.class})
+            )
+            @PathParam("idOrName") final String idOrName,
+            @Context final HttpServletRequest httpServletRequest,
+            @RequestBody(
+                    description = "The data to process",
+                    required = true
+            ) final InputStream body) throws RequestFailedException, InternalServerException, CryptoTokenOfflineException, IllegalRequestException {
+        final List<Metadata> requestMetadata = new ArrayList<>();
+        final Enumeration<String> headers = httpServletRequest.getHeaders(METADATA_HEADER);
+        while (headers != null && headers.hasMoreElements()) {
+            final String header = headers.nextElement();
+            final int index = header.indexOf('=');
+            if (index < 1) {
+                throw new IllegalRequestException("Malformed " + METADATA_HEADER + " header");
+            }
+            requestMetadata.add(new Metadata(header.substring(0, index).trim(), header.substring(index + 1).trim()));
+        }
+
+        final UploadConfig uploadConfig = UploadConfig.create(globalSession);
+        final DiskFileItemFactory factory = new DiskFileItemFactory();
+        factory.setSizeThreshold(uploadConfig.getSizeThreshold());
+        factory.setRepository(uploadConfig.getRepository());
+
+        final BinaryFileUpload upload = new BinaryFileUpload(body, httpServletRequest.getContentType(), factory);
+        upload.setSizeMax(uploadConfig.getMaxUploadSize());
 
+        final CloseableReadableData requestData;
         try {
-            // Check if this came in as a high priority request
-            Set<Integer> highPriorityWorkers = (Set<Integer>) httpServletRequest.getAttribute(RequestContext.QOS_PRIORITY_WORKER_ID_LIST);
-            if (highPriorityWorkers == null) {
-                LOG.debug("Not highest priority request");
-            } else {
-                if (!workerIdentifier.hasId()) {
-                    try {
-                        workerIdentifier = new WorkerIdentifier(workerSession.getWorkerId(workerIdentifier.getName()), workerIdentifier.getName());
-                    } catch (InvalidWorkerIdException ex) {
-                        LOG.debug("No such worker: " + ex.getMessage());
-                    }
+            requestData = dataFactory.createReadableData(upload.parseTheRequest(), uploadConfig.getRepository());
+        } catch (FileUploadBase.SizeLimitExceededException ex) {
+            LOG.error(UploadConfig.HTTP_MAX_UPLOAD_SIZE + " exceeded: " + ex.getLocalizedMessage());
+            throw new IllegalRequestException("Maximum content length is " + uploadConfig.getMaxUploadSize() + " bytes");
+        } catch (FileUploadException ex) {
+            LOG.debug("Upload failed", ex);
+            throw new InternalServerException("Upload failed: " + ex.getMessage());
+        }
+        final CloseableWritableData responseData = dataFactory.createWritableData(requestData, uploadConfig);
+
+        // The response is streamed after this method has returned so the
+        // data is closed when the request has completed, however it ended
+        RequestCleanupListener.register(httpServletRequest, () -> closeData(requestData, responseData));
+        try {
+            final int requestId = ThreadLocalRandom.current().nextInt();
+            final RequestContext requestContext = handleRequestContext(requestMetadata, httpServletRequest);
+            final Request req = new SignatureRequest(requestId, requestData, responseData);
+
+            final SignatureResponse signatureResponse = processSignature(WorkerIdentifier.createFromIdOrName(idOrName),
+                    httpServletRequest, req, requestId, requestContext);
+            final ReadableData readable = signatureResponse.getResponseData().toReadableData();
+
+            final StreamingOutput output = out -> {
+                try (InputStream in = readable.getAsInputStream()) {
+                    IOUtils.copyLarge(in, out);
                 }
+            };
+            final Response.ResponseBuilder builder = Response.ok(output, signatureResponse.getContentType())
+                    .header("Content-Length", String.valueOf(readable.getLength()))
+                    .header(REQUEST_ID_HEADER, String.valueOf(signatureResponse.getRequestID()));
+            if (signatureResponse.getArchiveId() != null) {
+                builder.header(ARCHIVE_ID_HEADER, signatureResponse.getArchiveId());
+            }
+            if (signatureResponse.getSignerCertificate() != null) {
+                builder.header(SIGNER_CERTIFICATE_HEADER, Base64.toBase64String(signatureResponse.getSignerCertificate().getEncoded()));
+            }
+            final Object responseFileName = requestContext.get(RequestContext.RESPONSE_FILENAME);
+            if (responseFileName instanceof String) {
+                // Use percentage encoding for filename* according to RFC 5987
+                builder.header("Content-Disposition", "attachment; filename=\""
+                        + responseFileName + "\"; filename*=UTF-8''"
+                        + URLEncoder.encode((String) responseFileName, StandardCharsets.UTF_8).replaceAll("\\+", "%20"));
+            }
+            return builder.build();
+        } catch (CertificateEncodingException e) {
+            LOG.error("Certificate encoding error", e);
+            throw new InternalServerException("Internal server error");
+        }
+    }
 
-                if (!highPriorityWorkers.contains(workerIdentifier.getId())) {
-                    LOG.error("Worker with id " + workerIdentifier.getId() + " not one of the highest priority workers: " + highPriorityWorkers);
-                    throw new RequestFailedException("Requests to the high priority endpoint not allowed for this worker");
+    /**
+     * REST operation for request signing of multiple documents in one
+     * request.
+     *
+     * The items are processed independently, in parallel up to the
+     * configured BATCH_PARALLELISM, and the result of each item is returned
+     * at the same position in the response. A failing item does not fail the
+     * other items but gets the status and error message it would have got as
+     * a single request.
+     *
+     * @param idOrName           Name or ID of worker to send the requests to
+     * @param httpServletRequest Http Servlet request to extract request context from it
+     * @param request            The requests to process
+     * @return The result of each item
+     * @throws RequestFailedException  In case the request could not be processed typically because some error in the request data.
+     * @throws InternalServerException In case the request could not be processed by some error at the server side.
+     * @throws ForbiddenException In case access is forbidden for the request.
+     */
+    @POST
+    @Path("{idOrName}/process/batch")
+    @Consumes({MediaType.APPLICATION_JSON})
+    @Produces({MediaType.APPLICATION_JSON})
+    @APIResponseSchema(
+            value = BatchProcessResponse.class,
+            responseCode = "200",
+            responseDescription = "The result of each item"
+    )
+    @APIResponse(
+            responseCode = "400",
+            description = "Bad request from the client",
+            content = @Content(
+                    mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ErrorMessage.class)
+            )
+    )
+    @APIResponse(
+            responseCode = "404",
+            description = "No such worker",
+            content = @Content(
+                    mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ErrorMessage.class)
+            )
+    )
+    @APIResponse(
+            responseCode = "500",
+            description = "The server were unable to process the request. See server-side logs for more details.",
+            content = @Content(
+                    mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ErrorMessage.class)
+            )
+    )
+    @Operation(
+            summary = "Submit a batch of data for processing",
+            description = "Required role: set by AUTHTYPE in worker \n\n"
+                    + "Submit multiple data/documents/files for processing by the same worker "
+                    + "and get back the result of each item. Items are processed independently "
+                    + "and the status of each item is given in the response."
+    )
+    public Response processBatch(
+            @Parameter(
+                    description = "Worker Id or name of the worker",
+                    example = "ExampleSigner1",
+                    schema = @Schema(anyOf = {String.class, Integer.class})
+            )
+            @PathParam("idOrName") final String idOrName,
+            @Context final HttpServletRequest httpServletRequest,
+            @RequestBody(
+                    description = "The requests",
+                    required = true
+            ) final BatchProcessRequest request) throws RequestFailedException, InternalServerException, IllegalRequestException {
+        final BatchProcessor batchProcessor = BatchProcessor.create(globalSession, executorService);
+        if (request.getItems() == null || request.getItems().isEmpty()) {
+            throw new IllegalRequestException("Missing items in request");
+        }
+        if (request.getItems().size() > batchProcessor.getMaxItems()) {
+            throw new IllegalRequestException("Maximum number of items is " + batchProcessor.getMaxItems());
+        }
+
+        final UploadConfig uploadConfig = UploadConfig.create(globalSession);
+
+        // Look up the worker once for all items
+        WorkerIdentifier workerIdentifier = checkPriority(WorkerIdentifier.createFromIdOrName(idOrName), httpServletRequest);
+        if (!workerIdentifier.hasId()) {
+            try {
+                workerIdentifier = new WorkerIdentifier(workerSession.getWorkerId(workerIdentifier.getName()), workerIdentifier.getName());
+            } catch (InvalidWorkerIdException ex) {
+                throw new NoSuchWorkerException(idOrName);
+            }
+        }
+        final WorkerIdentifier wi = workerIdentifier;
+
+        final List<Callable<ProcessResponse>> tasks = new ArrayList<>(request.getItems().size());
+        for (final ProcessRequest item : request.getItems()) {
+            if (item == null) {
+                tasks.add(() -> {
+                    throw new IllegalRequestException("Missing item in request");
+                });
+            } else {
+                final RequestContext requestContext = handleRequestContext(getRequestMetadata(item), httpServletRequest);
+                tasks.add(() -> processItem(wi, decodeData(item), requestContext, uploadConfig));
+            }
+        }
+
+        final List<BatchProcessor.Outcome<ProcessResponse>> outcomes;
+        try {
+            outcomes = batchProcessor.processAll(tasks);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InternalServerException("Interrupted while processing batch");
+        }
+
+        final List<BatchProcessResponse.Item> items = new ArrayList<>(outcomes.size());
+        int failed = 0;
+        for (final BatchProcessor.Outcome<ProcessResponse> outcome : outcomes) {
+            final Exception ex = outcome.getException();
+            if (ex == null) {
+                items.add(new BatchProcessResponse.Item(Response.Status.OK.getStatusCode(), outcome.getResult(), null));
+            } else {
+                failed++;
+                items.add(toErrorItem(ex));
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Processed batch of " + items.size() + " items for worker " + wi + " with " + failed + " failed");
+        }
+        return Response.ok(new BatchProcessResponse(items))
+                .header("Content-Type", MediaType.APPLICATION_JSON).build();
+    }
+
+    private ProcessResponse processItem(final WorkerIdentifier workerIdentifier, final byte[] data,
+                                        final RequestContext requestContext, final UploadConfig uploadConfig)
+            throws RequestFailedException, InternalServerException, CryptoTokenOfflineException, IllegalRequestException {
+        final int requestId = ThreadLocalRandom.current().nextInt();
+        try (
+                CloseableReadableData requestData = dataFactory.createReadableData(data, uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
+                CloseableWritableData responseData = dataFactory.createWritableData(requestData, uploadConfig)
+            ) {
+            final Request req = new SignatureRequest(requestId, requestData, responseData);
+            return toProcessResponse(processSignature(workerIdentifier, req, requestId, requestContext), requestContext);
+        } catch (FileUploadBase.SizeLimitExceededException ex) {
+            throw new IllegalRequestException("Maximum content length is " + uploadConfig.getMaxUploadSize() + " bytes");
+        } catch (FileUploadException ex) {
+            LOG.debug("Upload failed", ex);
+            throw new InternalServerException("Upload failed: " + ex.getMessage());
+        } catch (IOException e) {
+            LOG.debug("Internal IO error", e);
+            throw new InternalServerException("Internal IO error: " + e.getMessage());
+        } catch (CertificateEncodingException e) {
+            LOG.error("Certificate encoding error", e);
+            throw new InternalServerException("Internal server error");
+        }
+    }
+
+    /**
+     * @param ex failure of a batch item
+     * @return the item with the status the exception mappers would have given
+     */
+    private BatchProcessResponse.Item toErrorItem(final Exception ex) {
+        final Response.Status status;
+        final String message;
+        if (ex instanceof NoSuchWorkerException) {
+            status = Response.Status.NOT_FOUND;
+            message = ex.getMessage();
+        } else if (ex instanceof IllegalRequestException) {
+            status = Response.Status.BAD_REQUEST;
+            message = ex.getMessage();
+        } else if (ex instanceof CryptoTokenOfflineException) {
+            status = Response.Status.SERVICE_UNAVAILABLE;
+            message = ex.getMessage();
+        } else if (ex instanceof RequestFailedException) {
+            status = Response.Status.UNAUTHORIZED;
+            message = ex.getMessage();
+        } else if (ex instanceof InternalServerException) {
+            status = Response.Status.INTERNAL_SERVER_ERROR;
+            message = ex.getMessage();
+        } else {
+            LOG.error("Processing batch item failed", ex);
+            status = Response.Status.INTERNAL_SERVER_ERROR;
+            message = "Internal server error";
+        }
+        return new BatchProcessResponse.Item(status.getStatusCode(), null, message);
+    }
+
+    private ProcessResponse toProcessResponse(final SignatureResponse signatureResponse, final RequestContext requestContext)
+            throws IOException, CertificateEncodingException {
+        return new ProcessResponse(signatureResponse.getArchiveId(),
+                Base64.toBase64String(signatureResponse.getResponseData().toReadableData().getAsByteArray()),
+                String.valueOf(signatureResponse.getRequestID()),
+                signatureResponse.getSignerCertificate() == null ? null : Base64.toBase64String(signatureResponse.getSignerCertificate().getEncoded()),
+                getResponseMetadata(requestContext));
+    }
+
+    /**
+     * Processes the signature request.
+     *
+     * @param workerIdentifier   Worker to send the request to
+     * @param httpServletRequest Http Servlet request to check the priority of
+     * @param req                The request
+     * @param requestId          ID of the request
+     * @param requestContext     Context of the request
+     * @return The signature response
+     * @throws RequestFailedException  In case the request could not be processed typically because some error in the request data.
+     * @throws InternalServerException In case the request could not be processed by some error at the server side.
+     */
+    private SignatureResponse processSignature(WorkerIdentifier workerIdentifier, HttpServletRequest httpServletRequest,
+                                               Request req, int requestId, RequestContext requestContext)
+            throws RequestFailedException, InternalServerException, CryptoTokenOfflineException, IllegalRequestException {
+        return processSignature(checkPriority(workerIdentifier, httpServletRequest), req, requestId, requestContext);
+    }
+
+    /**
+     * Checks that the request is allowed if it came in as a high priority
+     * request.
+     *
+     * @param workerIdentifier   Worker to send the request to
+     * @param httpServletRequest Http Servlet request to check the priority of
+     * @return The worker identifier, with the ID looked up if needed for the check
+     * @throws RequestFailedException If the worker is not allowed
+     */
+    private WorkerIdentifier checkPriority(WorkerIdentifier workerIdentifier, HttpServletRequest httpServletRequest)
+            throws RequestFailedException {
+        // Check if this came in as a high priority request
+        Set<Integer> highPriorityWorkers = (Set<Integer>) httpServletRequest.getAttribute(RequestContext.QOS_PRIORITY_WORKER_ID_LIST);
+        if (highPriorityWorkers == null) {
+            LOG.debug("Not highest priority request");
+        } else {
+            if (!workerIdentifier.hasId()) {
+                try {
+                    workerIdentifier = new WorkerIdentifier(workerSession.getWorkerId(workerIdentifier.getName()), workerIdentifier.getName());
+                } catch (InvalidWorkerIdException ex) {
+                    LOG.debug("No such worker: " + ex.getMessage());
                 }
             }
 
+            if (!highPriorityWorkers.contains(workerIdentifier.getId())) {
+                LOG.error("Worker with id " + workerIdentifier.getId() + " not one of the highest priority workers: " + highPriorityWorkers);
+                throw new RequestFailedException("Requests to the high priority endpoint not allowed for this worker");
+            }
+        }
+        return workerIdentifier;
+    }
 
+    /**
+     * Processes the signature request for a worker already checked for
+     * priority.
+     *
+     * @param workerIdentifier   Worker to send the request to
+     * @param req                The request
+     * @param requestId          ID of the request
+     * @param requestContext     Context of the request
+     * @return The signature response
+     * @throws RequestFailedException  In case the request could not be processed typically because some error in the request data.
+     * @throws InternalServerException In case the request could not be processed by some error at the server side.
+     */
+    private SignatureResponse processSignature(WorkerIdentifier workerIdentifier, Request req, int requestId,
+                                               RequestContext requestContext)
+            throws RequestFailedException, InternalServerException, CryptoTokenOfflineException, IllegalRequestException {
+        try {
             AdminInfo adminInfo = new AdminInfo("REST user", null, null);
 
             final org.signserver.common.data.Response resp = processSession.process(adminInfo, workerIdentifier, req, requestContext);
@@ -955,12 +1394,7 @@ public class WorkerResource {
                     LOG.error("Response ID " + signatureResponse.getRequestID() + " not matching request ID " + requestId);
                     throw new InternalServerException("Error in process operation, response id didn't match request id");
                 }
-                return Response.ok(new ProcessResponse(signatureResponse.getArchiveId(),
-                                Base64.toBase64String(signatureResponse.getResponseData().toReadableData().getAsByteArray()),
-                                String.valueOf(signatureResponse.getRequestID()),
-                                signatureResponse.getSignerCertificate() == null ? null : Base64.toBase64String(signatureResponse.getSignerCertificate().getEncoded()),
-                                getResponseMetadata(requestContext)))
-                        .header("Content-Type", MediaType.APPLICATION_JSON).build();
+                return signatureResponse;
             } else {
                 LOG.error("Unexpected return type: " + resp.getClass().getName());
                 throw new InternalServerException("Unexpected return type");
@@ -971,17 +1405,24 @@ public class WorkerResource {
                 LOG.debug("Request failed: " + e.getMessage(), e);
             }
             throw new RequestFailedException(e.getMessage());
-        } catch (IOException e) {
-            LOG.debug("Internal IO error", e);
-            throw new InternalServerException("Internal IO error: " + e.getMessage());
         } catch (SignServerException e) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Internal server error", e);
             }
             throw new InternalServerException("Internal server error: " + e.getMessage());
-        } catch (CertificateEncodingException e) {
-            LOG.error("Certificate encoding error", e);
-            throw new InternalServerException("Internal server error");
+        }
+    }
+
+    private void closeData(CloseableReadableData requestData, CloseableWritableData responseData) {
+        try {
+            responseData.close();
+        } catch (IOException ex) {
+            LOG.error("Unable to remove temporary response file: " + ex.getLocalizedMessage());
+        }
+        try {
+            requestData.close();
+        } catch (IOException ex) {
+            LOG.error("Unable to remove temporary upload file: " + ex.getLocalizedMessage());
         }
     }
 
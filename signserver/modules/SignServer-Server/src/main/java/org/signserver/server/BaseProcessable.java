@@ -44,6 +44,7 @@ import org.signserver.server.cryptotokens.CryptoInstances;
 import org.signserver.server.cryptotokens.CryptoTokenHelper;
 import org.signserver.common.DuplicateAliasException;
 import org.signserver.server.cryptotokens.ICryptoInstance;
+import org.signserver.server.cryptotokens.PooledCryptoInstance;
 import org.signserver.common.NoSuchAliasException;
 import org.signserver.server.cryptotokens.TokenSearchResults;
 import org.signserver.common.UnsupportedCryptoTokenParameter;
@@ -1043,6 +1044,13 @@ public abstract class BaseProcessable extends BaseWorker implements IProcessable
      * @throws SignServerException
      */
     protected void releaseCryptoInstance(final ICryptoInstance instance, RequestContext context) throws SignServerException {
+        if (instance instanceof PooledCryptoInstance) {
+            // Might have been acquired from one of the OTHER_SIGNERS so give
+            // it back directly to the pool it was borrowed from
+            ((PooledCryptoInstance) instance).release();
+            CryptoInstances.getInstance(context).remove(instance);
+            return;
+        }
         ICryptoTokenV4 token = getCryptoToken(context.getServices());
         if (token != null) {
             token.releaseCryptoInstance(instance, context);
@@ -15,8 +15,11 @@ package org.signserver.server;
 import java.math.BigInteger;
 import java.security.cert.X509Certificate;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import javax.persistence.EntityManager;
 import org.apache.log4j.Logger;
@@ -45,10 +48,19 @@ public class ClientCertAuthorizer implements IAuthorizer {
     private static final Logger LOG = Logger.getLogger(ClientCertAuthorizer.class);
 
     private static final Pattern SERIAL_PATTERN = Pattern.compile("\\bSERIALNUMBER=", Pattern.CASE_INSENSITIVE);
+
+    /** Maximum number of client certificates to remember decisions for. */
+    private static final int MAX_CACHED_DECISIONS = 10000;
     
     private int workerId;
 
     private Set<AuthorizedClientEntry> authorizedClients;
+
+    /** The supported match types used by any of the rules. */
+    private Set<MatchSubjectWithType> matchSubjectWithTypes;
+
+    /** Decisions by client certificate, cleared when the configuration is reloaded. */
+    private final Map<X509Certificate, Boolean> decisions = new ConcurrentHashMap<>();
     
     /**
      * Initialize a ClientCertAuthorizer.
@@ -64,6 +76,18 @@ public class ClientCertAuthorizer implements IAuthorizer {
         this.workerId = workerId;
         this.authorizedClients =
                 AuthorizedClientEntry.clientEntriesFromAuthClients(workerConfig.getAuthorizedClientsGen2());
+        final Set<MatchSubjectWithType> types = EnumSet.noneOf(MatchSubjectWithType.class);
+        for (final AuthorizedClientEntry authClient : authorizedClients) {
+            final MatchSubjectWithType type = authClient.getMatchSubjectWithType();
+            if (type == MatchSubjectWithType.CERTIFICATE_SERIALNO || getDNField(type) >= 0) {
+                types.add(type);
+            } else {
+                // Do not match on supported match types
+                LOG.warn("Unsupported " + MatchSubjectWithType.class.getSimpleName() + " : " + type);
+            }
+        }
+        this.matchSubjectWithTypes = types;
+        decisions.clear();
         if (LOG.isDebugEnabled()) {
             LOG.debug("Configured clients: " + authorizedClients);
         }
@@ -131,98 +155,101 @@ public class ClientCertAuthorizer implements IAuthorizer {
     }
 
     private boolean authorizedToRequestSignature(final X509Certificate clientCert) {
-        boolean ruleMatched = false;
-        String matchSubjectwithValue;
-        AuthorizedClientEntry client;
+        Boolean result = decisions.get(clientCert);
+        if (result == null) {
+            result = matchesAnyRule(clientCert);
+            if (decisions.size() >= MAX_CACHED_DECISIONS) {
+                decisions.clear();
+            }
+            decisions.put(clientCert, result);
+        }
+        return result;
+    }
 
+    private boolean matchesAnyRule(final X509Certificate clientCert) {
         // Only one MatchIssuerType is supported now
-        MatchIssuerWithType matchIssuerWithType = MatchIssuerWithType.ISSUER_DN_BCSTYLE;
+        final MatchIssuerWithType matchIssuerWithType = MatchIssuerWithType.ISSUER_DN_BCSTYLE;
         final String clientIssuerDN = CertTools.stringToBCDNString(clientCert.getIssuerX500Principal().getName());
-        
-        for (final AuthorizedClientEntry authClient : authorizedClients) {
-            MatchSubjectWithType matchSubjectWithType = authClient.getMatchSubjectWithType();
 
+        // Extract the subject fields once and only when needed
+        DNFieldExtractor dnExtractor = null;
+        DNFieldExtractor anExtractor = null;
+
+        // Look up each value of the certificate for each type of rule
+        for (final MatchSubjectWithType matchSubjectWithType : matchSubjectWithTypes) {
             if (matchSubjectWithType == MatchSubjectWithType.CERTIFICATE_SERIALNO) {
                 final BigInteger sn = clientCert.getSerialNumber();
-                matchSubjectwithValue = sn.toString(16);
-                client = new AuthorizedClientEntry(matchSubjectwithValue, clientIssuerDN, MatchSubjectWithType.CERTIFICATE_SERIALNO, matchIssuerWithType);
-                
-                if (authorizedClients.contains(client)) {
-                    ruleMatched = true;
-                    break;
+                if (authorizedClients.contains(new AuthorizedClientEntry(sn.toString(16), clientIssuerDN, matchSubjectWithType, matchIssuerWithType))) {
+                    return true;
                 }
             } else {
-                // See X509CertificateAuthenticationToken in EJBCA/CESeCore
-                String certstring = CertTools.getSubjectDN(clientCert);
-                certstring = SERIAL_PATTERN.matcher(certstring).replaceAll("SN=");
-                final String altNameString = CertTools.getSubjectAlternativeName(clientCert);
-                final DNFieldExtractor dnExtractor = new DNFieldExtractor(certstring, DNFieldExtractor.TYPE_SUBJECTDN);
-                final DNFieldExtractor anExtractor = new DNFieldExtractor(altNameString, DNFieldExtractor.TYPE_SUBJECTALTNAME);
-                final int parameter;
-                DNFieldExtractor usedExtractor = dnExtractor;
-                
-                switch (matchSubjectWithType) {
-                    case SUBJECT_RDN_C:
-                        parameter = DNFieldExtractor.C;
-                        break;
-                    case SUBJECT_RDN_DC:
-                        parameter = DNFieldExtractor.DC;
-                        break;
-                    case SUBJECT_RDN_ST:
-                        parameter = DNFieldExtractor.ST;
-                        break;
-                    case SUBJECT_RDN_L:
-                        parameter = DNFieldExtractor.L;
-                        break;
-                    case SUBJECT_RDN_O:
-                        parameter = DNFieldExtractor.O;
-                        break;
-                    case SUBJECT_RDN_OU:
-                        parameter = DNFieldExtractor.OU;
-                        break;
-                    case SUBJECT_RDN_TITLE:
-                        parameter = DNFieldExtractor.T;
-                        break;
-                    case SUBJECT_RDN_SERIALNO:
-                        parameter = DNFieldExtractor.SN;
-                        break;
-                    case SUBJECT_RDN_CN:
-                        parameter = DNFieldExtractor.CN;
-                        break;
-                    case SUBJECT_RDN_UID:
-                        parameter = DNFieldExtractor.UID;
-                        break;
-                    case SUBJECT_RDN_E:
-                        parameter = DNFieldExtractor.E;
-                        break;
-                    case SUBJECT_ALTNAME_RFC822NAME:
-                        parameter = DNFieldExtractor.RFC822NAME;
-                        usedExtractor = anExtractor;
-                        break;
-                    case SUBJECT_ALTNAME_MSUPN:
-                        parameter = DNFieldExtractor.UPN;
-                        usedExtractor = anExtractor;
-                        break;
-                    default:
-                        // Do not match on supported match types
-                        LOG.warn("Unsupported " + MatchSubjectWithType.class.getSimpleName() + " : " + matchSubjectWithType);
-                        continue;
+                final DNFieldExtractor usedExtractor;
+                if (isAltNameField(matchSubjectWithType)) {
+                    if (anExtractor == null) {
+                        anExtractor = new DNFieldExtractor(CertTools.getSubjectAlternativeName(clientCert), DNFieldExtractor.TYPE_SUBJECTALTNAME);
+                    }
+                    usedExtractor = anExtractor;
+                } else {
+                    if (dnExtractor == null) {
+                        // See X509CertificateAuthenticationToken in EJBCA/CESeCore
+                        final String certstring = SERIAL_PATTERN.matcher(CertTools.getSubjectDN(clientCert)).replaceAll("SN=");
+                        dnExtractor = new DNFieldExtractor(certstring, DNFieldExtractor.TYPE_SUBJECTDN);
+                    }
+                    usedExtractor = dnExtractor;
                 }
-                
-                int size = usedExtractor.getNumberOfFields(parameter);
-                AuthorizedClientEntry[] clientstrings = new AuthorizedClientEntry[size];
+
+                final int parameter = getDNField(matchSubjectWithType);
+                final int size = usedExtractor.getNumberOfFields(parameter);
                 for (int i = 0; i < size; i++) {
-                    String value = usedExtractor.getField(parameter, i);
-                    clientstrings[i] = new AuthorizedClientEntry(value, clientIssuerDN, matchSubjectWithType, matchIssuerWithType);
-                    
-                    if (authorizedClients.contains(clientstrings[i])) {
-                        ruleMatched = true;
-                        break;
+                    final String value = usedExtractor.getField(parameter, i);
+                    if (authorizedClients.contains(new AuthorizedClientEntry(value, clientIssuerDN, matchSubjectWithType, matchIssuerWithType))) {
+                        return true;
                     }
                 }
             }
         }
+        return false;
+    }
 
-        return ruleMatched;
+    private static boolean isAltNameField(final MatchSubjectWithType matchSubjectWithType) {
+        return matchSubjectWithType == MatchSubjectWithType.SUBJECT_ALTNAME_RFC822NAME
+                || matchSubjectWithType == MatchSubjectWithType.SUBJECT_ALTNAME_MSUPN;
+    }
+
+    /**
+     * @param matchSubjectWithType type of rule
+     * @return the DNFieldExtractor field for the type or -1 if not supported
+     */
+    private static int getDNField(final MatchSubjectWithType matchSubjectWithType) {
+        switch (matchSubjectWithType) {
+            case SUBJECT_RDN_C:
+                return DNFieldExtractor.C;
+            case SUBJECT_RDN_DC:
+                return DNFieldExtractor.DC;
+            case SUBJECT_RDN_ST:
+                return DNFieldExtractor.ST;
+            case SUBJECT_RDN_L:
+                return DNFieldExtractor.L;
+            case SUBJECT_RDN_O:
+                return DNFieldExtractor.O;
+            case SUBJECT_RDN_OU:
+                return DNFieldExtractor.OU;
+            case SUBJECT_RDN_TITLE:
+                return DNFieldExtractor.T;
+            case SUBJECT_RDN_SERIALNO:
+                return DNFieldExtractor.SN;
+            case SUBJECT_RDN_CN:
+                return DNFieldExtractor.CN;
+            case SUBJECT_RDN_UID:
+                return DNFieldExtractor.UID;
+            case SUBJECT_RDN_E:
+                return DNFieldExtractor.E;
+            case SUBJECT_ALTNAME_RFC822NAME:
+                return DNFieldExtractor.RFC822NAME;
+            case SUBJECT_ALTNAME_MSUPN:
+                return DNFieldExtractor.UPN;
+            default:
+                return -1;
+        }
     }
 }
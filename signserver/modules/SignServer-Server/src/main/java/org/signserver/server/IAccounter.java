@@ -51,4 +51,24 @@ public interface IAccounter {
             Response response, RequestContext context)
                 throws AccounterException;
 
+    /**
+     * Called before the request is processed to check that the client could
+     * be charged for it, so that requests that would not be granted are
+     * rejected before any key is used.
+     *
+     * The default implementation grants all requests and leaves the decision
+     * to {@link #purchase(IClientCredential, Request, Response, RequestContext)}.
+     *
+     * @param credential Credentials identifying the client
+     * @param request The request the client made
+     * @param context Various information such as transaction id
+     * @return True if the request can be processed
+     * @throws AccounterException in case of error other than that the request
+     * was not granted
+     */
+    default boolean isGranted(IClientCredential credential, Request request,
+            RequestContext context) throws AccounterException {
+        return true;
+    }
+
 }
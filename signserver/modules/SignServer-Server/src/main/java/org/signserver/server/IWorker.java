@@ -68,4 +68,12 @@ public interface IWorker {
      * @return a WorkerStatus object.
      */
     WorkerStatusInfo getStatus(final List<String> additionalFatalErrors, final IServices services);
+
+    /**
+     * Called when this instance is no longer used, i.e. when the worker is
+     * reloaded or removed or when the application is undeployed, so that it
+     * can stop any background tasks it has started.
+     */
+    default void destroy() {
+    }
 }
@@ -0,0 +1,358 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+import org.signserver.common.RequestContext;
+import org.signserver.common.data.Request;
+import org.signserver.common.data.Response;
+
+/**
+ * Accounter enforcing a quota of requests per period and a rate limit for
+ * each client.
+ * <p>
+ *    The counters are held in memory by each worker instance and are updated
+ *    without locking. Requests from clients that have used up their quota or
+ *    exceed the rate limit are rejected before being processed.
+ * </p>
+ * <p>
+ *    The accounter has the following worker properties:
+ * </p>
+ * <ul>
+ *    <li>
+ *        <b>QUOTA_LIMIT</b> = Number of requests granted to each client per
+ *        period, -1 for no limit (Optional, default: -1)
+ *    </li>
+ *    <li>
+ *        <b>QUOTA_LIMITS</b> = Mapping from client to number of requests per
+ *        period, overriding QUOTA_LIMIT (Optional)<br/>
+ *        Ex: user1:1000; 1234abcd,CN=Client CA:50
+ *    </li>
+ *    <li>
+ *        <b>QUOTA_PERIOD</b> = Length of the quota period in seconds
+ *        (Optional, default: 86400)
+ *    </li>
+ *    <li>
+ *        <b>RATE_LIMIT</b> = Number of requests per second granted to each
+ *        client, -1 for no limit (Optional, default: -1)
+ *    </li>
+ *    <li>
+ *        <b>RATE_BURST</b> = Number of requests a client can make at once
+ *        before being rate limited (Optional, default: RATE_LIMIT rounded up)
+ *    </li>
+ *    <li>
+ *        <b>QUOTA_MAXCLIENTS</b> = Maximum number of clients to keep counters
+ *        for (Optional, default: 100000)
+ *    </li>
+ * </ul>
+ * <p>
+ *    Clients are identified by user name or by certificate serial number
+ *    (in hex) and issuer DN separated by a comma. Requests without a
+ *    credential are not granted when a limit is configured.
+ * </p>
+ * <p>
+ *    The counters of a client are dropped once its quota period has ended
+ *    and it is no longer rate limited, as it would then start over with new
+ *    counters anyway. When counters are kept for the maximum number of
+ *    clients, requests from further clients are not granted.
+ * </p>
+ * <p>
+ *    Note: The counters are not shared between the nodes in a cluster. Each
+ *    node enforces the limits on its own so the limits should be the
+ *    cluster-wide limits divided by the number of nodes.
+ * </p>
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class QuotaAccounter implements IAccounter {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(QuotaAccounter.class);
+
+    // Worker properties
+    public static final String QUOTA_LIMIT = "QUOTA_LIMIT";
+    public static final String QUOTA_LIMITS = "QUOTA_LIMITS";
+    public static final String QUOTA_PERIOD = "QUOTA_PERIOD";
+    public static final String RATE_LIMIT = "RATE_LIMIT";
+    public static final String RATE_BURST = "RATE_BURST";
+    public static final String QUOTA_MAXCLIENTS = "QUOTA_MAXCLIENTS";
+
+    private static final long DEFAULT_QUOTA_PERIOD = 86400;
+    private static final long DEFAULT_MAX_CLIENTS = 100000;
+
+    /** Maximum time in milliseconds between removals of idle accounts. */
+    private static final long CLEANUP_INTERVAL = 60000;
+
+    private long defaultLimit;
+    private Map<String, Long> limits;
+    private long periodMillis;
+    private long emissionIntervalNanos;
+    private long burstToleranceNanos;
+    private long maxClients;
+
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    private final AtomicLong nextCleanup = new AtomicLong();
+
+    @Override
+    public void init(final Properties props) {
+        defaultLimit = parseLong(props, QUOTA_LIMIT, -1);
+        limits = parseLimits(props.getProperty(QUOTA_LIMITS));
+        periodMillis = TimeUnit.SECONDS.toMillis(Math.max(1, parseLong(props, QUOTA_PERIOD, DEFAULT_QUOTA_PERIOD)));
+
+        double rateLimit = -1;
+        final String rateValue = props.getProperty(RATE_LIMIT);
+        if (rateValue != null && !rateValue.trim().isEmpty()) {
+            try {
+                rateLimit = Double.parseDouble(rateValue.trim());
+            } catch (NumberFormatException ex) {
+                LOG.error("Incorrect value for " + RATE_LIMIT + ": " + rateValue);
+            }
+        }
+        if (rateLimit > 0) {
+            final long burst = Math.max(1, parseLong(props, RATE_BURST, (long) Math.ceil(rateLimit)));
+            emissionIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rateLimit);
+            burstToleranceNanos = (burst - 1) * emissionIntervalNanos;
+        } else {
+            emissionIntervalNanos = 0;
+            burstToleranceNanos = 0;
+        }
+        maxClients = Math.max(1, parseLong(props, QUOTA_MAXCLIENTS, DEFAULT_MAX_CLIENTS));
+        accounts.clear();
+        nextCleanup.set(System.currentTimeMillis() + Math.min(periodMillis, CLEANUP_INTERVAL));
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Quota limit: " + defaultLimit + ", limits: " + limits
+                    + ", period: " + periodMillis + " ms, emission interval: "
+                    + emissionIntervalNanos + " ns");
+        }
+    }
+
+    @Override
+    public boolean isGranted(final IClientCredential credential,
+            final Request request, final RequestContext context)
+            throws AccounterException {
+        if (!isLimited()) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        final long cleanup = nextCleanup.get();
+        if (now >= cleanup && nextCleanup.compareAndSet(cleanup, now + Math.min(periodMillis, CLEANUP_INTERVAL))) {
+            removeIdleAccounts();
+        }
+        final Account account = getAccount(credential);
+        if (account == null) {
+            return false;
+        }
+        if (!account.withinQuota(now)) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Quota used up for " + account.client);
+            }
+            return false;
+        }
+        if (!account.tryAcquireRate(System.nanoTime())) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Rate limit exceeded for " + account.client);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean purchase(final IClientCredential credential,
+            final Request request, final Response response,
+            final RequestContext context) throws AccounterException {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("purchase called for "
+                + (String) context.get(RequestContext.TRANSACTION_ID));
+        }
+        if (!isLimited()) {
+            return true;
+        }
+        final Account account = getAccount(credential);
+
+        // Concurrent requests could have passed the check before processing
+        return account != null && account.charge(System.currentTimeMillis());
+    }
+
+    private boolean isLimited() {
+        return defaultLimit > -1 || !limits.isEmpty() || emissionIntervalNanos > 0;
+    }
+
+    private Account getAccount(final IClientCredential credential) {
+        final String client;
+        if (credential instanceof CertificateClientCredential) {
+            final CertificateClientCredential certCred =
+                    (CertificateClientCredential) credential;
+            client = certCred.getSerialNumber() + "," + certCred.getIssuerDN();
+        } else if (credential instanceof UsernamePasswordClientCredential) {
+            client = ((UsernamePasswordClientCredential) credential).getUsername();
+        } else {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("No supported credential: " + credential);
+            }
+            return null;
+        }
+        final Account account = accounts.get(client);
+        if (account != null) {
+            return account;
+        }
+        if (accounts.size() >= maxClients) {
+            removeIdleAccounts();
+            if (accounts.size() >= maxClients) {
+                LOG.warn("Counters kept for the maximum number of clients (" + maxClients + "), not granting " + client);
+                return null;
+            }
+        }
+        return accounts.computeIfAbsent(client, c -> new Account(c, limits.getOrDefault(c, defaultLimit)));
+    }
+
+    /**
+     * Removes the accounts whose counters would be the same as for a new
+     * account.
+     */
+    private void removeIdleAccounts() {
+        final long now = System.currentTimeMillis();
+        final long nowNanos = System.nanoTime();
+        final int before = accounts.size();
+        accounts.values().removeIf(account -> account.isIdle(now, nowNanos));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Removed " + (before - accounts.size()) + " idle accounts");
+        }
+    }
+
+    /**
+     * @return number of clients counters are kept for
+     */
+    int getAccountCount() {
+        return accounts.size();
+    }
+
+    private static long parseLong(final Properties props, final String property, final long defaultValue) {
+        final String value = props.getProperty(property);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            LOG.error("Incorrect value for " + property + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static Map<String, Long> parseLimits(final String mapping) {
+        if (mapping == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Long> result = new HashMap<>();
+        for (String entry : mapping.split(";")) {
+            final int index = entry.lastIndexOf(':');
+            if (index > 0) {
+                try {
+                    result.put(entry.substring(0, index).trim(),
+                            Long.parseLong(entry.substring(index + 1).trim()));
+                } catch (NumberFormatException ex) {
+                    LOG.error("Incorrect limit in " + QUOTA_LIMITS + ": " + entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Quota usage in a period. */
+    private static class Usage {
+        private final long period;
+        private final long count;
+
+        Usage(final long period, final long count) {
+            this.period = period;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Counters of one client.
+     */
+    private class Account {
+        private final String client;
+        private final long limit;
+        private final AtomicReference<Usage> usage = new AtomicReference<>(new Usage(0, 0));
+
+        /** Theoretical arrival time of the next request for the rate limit. */
+        private final AtomicLong nextArrival = new AtomicLong(Long.MIN_VALUE);
+
+        Account(final String client, final long limit) {
+            this.client = client;
+            this.limit = limit;
+        }
+
+        private long countIn(final long period) {
+            final Usage current = usage.get();
+            return current.period == period ? current.count : 0;
+        }
+
+        /**
+         * @return true if the quota period of the last request has ended and
+         * the client is no longer rate limited
+         */
+        boolean isIdle(final long now, final long nowNanos) {
+            final long arrival = nextArrival.get();
+            return usage.get().period < now / periodMillis
+                    && (arrival == Long.MIN_VALUE || arrival - nowNanos < 0);
+        }
+
+        boolean withinQuota(final long now) {
+            return limit < 0 || countIn(now / periodMillis) < limit;
+        }
+
+        boolean charge(final long now) {
+            final long period = now / periodMillis;
+            while (true) {
+                final Usage current = usage.get();
+                final long count = current.period == period ? current.count : 0;
+                if (limit > -1 && count >= limit) {
+                    return false;
+                }
+                if (usage.compareAndSet(current, new Usage(period, count + 1))) {
+                    return true;
+                }
+            }
+        }
+
+        boolean tryAcquireRate(final long now) {
+            if (emissionIntervalNanos <= 0) {
+                return true;
+            }
+            while (true) {
+                final long arrival = nextArrival.get();
+                final long start = arrival == Long.MIN_VALUE || arrival - now < 0 ? now : arrival;
+                if (start - now > burstToleranceNanos) {
+                    return false;
+                }
+                if (nextArrival.compareAndSet(arrival, start + emissionIntervalNanos)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Parser and serializer of XML documents for workers processing XML
+ * requests.
+ *
+ * The factories are looked up once. As neither document builders nor
+ * transformers are thread-safe, each one is used by one request at a time.
+ * They are kept in pools of this instance, and not per thread, so that
+ * nothing is left on the container's threads when the worker is reloaded or
+ * the application is undeployed. They are reset before reuse.
+ *
+ * The parser is namespace aware and does not allow DOCTYPE declarations or
+ * external entities.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class XMLProcessors {
+
+    private final DocumentBuilderFactory documentBuilderFactory;
+    private final TransformerFactory transformerFactory;
+
+    private final Queue<DocumentBuilder> documentBuilders = new ConcurrentLinkedQueue<>();
+    private final Queue<Transformer> transformers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates the factories.
+     *
+     * @throws ParserConfigurationException if the parser does not support
+     * disabling DOCTYPE declarations and external entities
+     */
+    public XMLProcessors() throws ParserConfigurationException {
+        documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+
+        // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-general-entities
+        // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-general-entities
+        documentBuilderFactory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+
+        // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-parameter-entities
+        // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-parameter-entities
+        documentBuilderFactory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+
+        // Xerces 2 only - http://xerces.apache.org/xerces2-j/features.html#disallow-doctype-decl
+        documentBuilderFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+
+        transformerFactory = TransformerFactory.newInstance();
+    }
+
+    /**
+     * Parses the document.
+     *
+     * @param in to read the document from
+     * @return the parsed document
+     * @throws SAXException if the document could not be parsed
+     * @throws IOException if reading failed
+     * @throws ParserConfigurationException if a parser could not be created
+     */
+    public Document parse(final InputStream in) throws SAXException, IOException, ParserConfigurationException {
+        final DocumentBuilder builder = borrowDocumentBuilder();
+        try {
+            return builder.parse(in);
+        } finally {
+            returnDocumentBuilder(builder);
+        }
+    }
+
+    /**
+     * Serializes the document.
+     *
+     * @param doc to serialize
+     * @param out to write the document to
+     * @throws TransformerException if the document could not be serialized
+     */
+    public void transform(final Document doc, final OutputStream out) throws TransformerException {
+        final Transformer transformer = borrowTransformer();
+        try {
+            transformer.transform(new DOMSource(doc), new StreamResult(out));
+        } finally {
+            returnTransformer(transformer);
+        }
+    }
+
+    /**
+     * @return a reset document builder not used by anyone else until
+     * returned to the pool
+     * @throws ParserConfigurationException if it could not be created
+     */
+    DocumentBuilder borrowDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder result = documentBuilders.poll();
+        if (result == null) {
+            synchronized (documentBuilderFactory) {
+                result = documentBuilderFactory.newDocumentBuilder();
+            }
+        } else {
+            result.reset();
+        }
+        return result;
+    }
+
+    /**
+     * @param builder no longer used, to return to the pool
+     */
+    void returnDocumentBuilder(final DocumentBuilder builder) {
+        documentBuilders.offer(builder);
+    }
+
+    /**
+     * @return a reset transformer not used by anyone else until returned to
+     * the pool
+     * @throws TransformerConfigurationException if it could not be created
+     */
+    Transformer borrowTransformer() throws TransformerConfigurationException {
+        Transformer result = transformers.poll();
+        if (result == null) {
+            synchronized (transformerFactory) {
+                result = transformerFactory.newTransformer();
+            }
+        } else {
+            result.reset();
+        }
+        return result;
+    }
+
+    /**
+     * @param transformer no longer used, to return to the pool
+     */
+    void returnTransformer(final Transformer transformer) {
+        transformers.offer(transformer);
+    }
+}
@@ -0,0 +1,324 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.cryptotokens;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.signserver.common.CryptoTokenOfflineException;
+import org.signserver.common.IllegalRequestException;
+import org.signserver.common.NoSuchAliasException;
+import org.signserver.common.UnsupportedCryptoTokenParameter;
+
+/**
+ * Pool of crypto instances for one key.
+ *
+ * Instances are handed out most recently used first so that the ones that
+ * have not been used for longer than the idle timeout can be evicted from
+ * the other end of the queue. At most the maximum number of instances exist
+ * at the same time and a caller trying to borrow an instance while all of
+ * them are in use waits for at most the borrow timeout. A maximum size of 0
+ * means no limit.
+ *
+ * Each borrowed instance is handed out as a PooledCryptoInstance that knows
+ * the pool it came from, so it can be given back without knowing which
+ * crypto token it was acquired from.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class CryptoInstancePool {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(CryptoInstancePool.class);
+
+    /** Number of instances to create up front and to keep when evicting. */
+    public static final String PROPERTY_POOL_MINSIZE = "CRYPTOINSTANCE_POOL_MINSIZE";
+
+    /** Maximum number of instances existing at the same time, 0 for no limit. */
+    public static final String PROPERTY_POOL_MAXSIZE = "CRYPTOINSTANCE_POOL_MAXSIZE";
+
+    /** Time in milliseconds after which an unused instance is evicted. */
+    public static final String PROPERTY_POOL_IDLETIMEOUT = "CRYPTOINSTANCE_POOL_IDLETIMEOUT";
+
+    /** Time in milliseconds to wait for an instance when all are in use. */
+    public static final String PROPERTY_POOL_BORROWTIMEOUT = "CRYPTOINSTANCE_POOL_BORROWTIMEOUT";
+
+    public static final int DEFAULT_POOL_MINSIZE = 0;
+    public static final int DEFAULT_POOL_MAXSIZE = 64;
+    public static final long DEFAULT_POOL_IDLETIMEOUT = 300000L;
+    public static final long DEFAULT_POOL_BORROWTIMEOUT = 30000L;
+
+    /**
+     * Creates new instances for the pool.
+     */
+    public interface InstanceFactory {
+        ICryptoInstance create() throws CryptoTokenOfflineException,
+                NoSuchAliasException, InvalidAlgorithmParameterException,
+                UnsupportedCryptoTokenParameter, IllegalRequestException;
+    }
+
+    private final String name;
+    private final InstanceFactory factory;
+    private final int minSize;
+    private final long idleTimeout;
+    private final long borrowTimeout;
+
+    /** Permits for borrowing, or null if the pool is unbounded. */
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<IdleInstance> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledCryptoInstance> borrowed = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param name of the pool, used in logs and error messages
+     * @param factory to create new instances with
+     * @param settings pool size and timeouts
+     */
+    public CryptoInstancePool(final String name, final InstanceFactory factory, final Settings settings) {
+        this.name = name;
+        this.factory = factory;
+        this.minSize = settings.getMinSize();
+        this.idleTimeout = settings.getIdleTimeout();
+        this.borrowTimeout = settings.getBorrowTimeout();
+        this.permits = settings.getMaxSize() > 0 ? new Semaphore(settings.getMaxSize(), true) : null;
+    }
+
+    /**
+     * Creates instances until the minimum number of instances is available.
+     * Failures are logged and otherwise ignored, as the instances will then
+     * instead be created on demand.
+     */
+    public void prefill() {
+        while (idle.size() < minSize && !closed) {
+            try {
+                idle.offerLast(new IdleInstance(factory.create(), System.currentTimeMillis()));
+            } catch (CryptoTokenOfflineException | NoSuchAliasException | InvalidAlgorithmParameterException | UnsupportedCryptoTokenParameter | IllegalRequestException ex) {
+                LOG.warn("Unable to prefill crypto instance pool " + name + ": " + ex.getMessage());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Borrow an instance from the pool, creating a new one if none is idle.
+     * The instance must be given back using release(ICryptoInstance) or
+     * PooledCryptoInstance.release().
+     *
+     * @return a crypto instance
+     * @throws CryptoTokenOfflineException in case of timeout waiting for an
+     * instance or if the instance could not be created
+     * @throws NoSuchAliasException if the key does not exist
+     * @throws InvalidAlgorithmParameterException in case of error creating the instance
+     * @throws UnsupportedCryptoTokenParameter in case of error creating the instance
+     * @throws IllegalRequestException in case of error creating the instance
+     */
+    public PooledCryptoInstance borrow() throws CryptoTokenOfflineException,
+            NoSuchAliasException, InvalidAlgorithmParameterException,
+            UnsupportedCryptoTokenParameter, IllegalRequestException {
+        if (closed) {
+            throw new CryptoTokenOfflineException("Crypto instance pool closed: " + name);
+        }
+        if (permits != null) {
+            try {
+                if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new CryptoTokenOfflineException("Timeout waiting for crypto instance from pool " + name + " after " + borrowTimeout + " ms");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CryptoTokenOfflineException("Interrupted while waiting for crypto instance from pool " + name);
+            }
+        }
+
+        boolean success = false;
+        try {
+            evictIdle(System.currentTimeMillis());
+            final IdleInstance next = idle.pollFirst();
+            final ICryptoInstance instance;
+            if (next == null) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Creating new crypto instance for pool " + name);
+                }
+                instance = factory.create();
+            } else {
+                instance = next.instance;
+            }
+            final PooledCryptoInstance result = new PooledCryptoInstance(this, instance);
+            borrowed.add(result);
+            success = true;
+            return result;
+        } finally {
+            if (!success && permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Gives back an instance to the pool.
+     *
+     * @param instance previously borrowed from this pool
+     * @return true if the instance was borrowed from this pool and had not
+     * already been given back
+     */
+    public boolean release(final ICryptoInstance instance) {
+        if (!(instance instanceof PooledCryptoInstance) || !borrowed.remove(instance)) {
+            return false;
+        }
+        try {
+            if (!closed) {
+                idle.offerFirst(new IdleInstance(((PooledCryptoInstance) instance).getDelegate(), System.currentTimeMillis()));
+            }
+        } finally {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes instances not used within the idle timeout, keeping at least
+     * the minimum number of instances.
+     *
+     * @param now current time in milliseconds
+     */
+    private void evictIdle(final long now) {
+        final Iterator<IdleInstance> it = idle.descendingIterator();
+        while (idle.size() > minSize && it.hasNext()) {
+            final IdleInstance oldest = it.next();
+            if (now - oldest.lastUsed <= idleTimeout) {
+                break;
+            }
+            if (idle.removeLastOccurrence(oldest) && LOG.isDebugEnabled()) {
+                LOG.debug("Evicted idle crypto instance from pool " + name);
+            }
+        }
+    }
+
+    /**
+     * Closes the pool, dropping all idle instances. Instances currently
+     * borrowed are dropped when released.
+     */
+    public void close() {
+        closed = true;
+        idle.clear();
+    }
+
+    /**
+     * @return number of idle instances
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return number of currently borrowed instances
+     */
+    public int getBorrowedCount() {
+        return borrowed.size();
+    }
+
+    private static class IdleInstance {
+        private final ICryptoInstance instance;
+        private final long lastUsed;
+
+        IdleInstance(ICryptoInstance instance, long lastUsed) {
+            this.instance = instance;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /**
+     * Pool size and timeout settings.
+     */
+    public static class Settings {
+        private final int minSize;
+        private final int maxSize;
+        private final long idleTimeout;
+        private final long borrowTimeout;
+
+        public Settings(int minSize, int maxSize, long idleTimeout, long borrowTimeout) {
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.idleTimeout = idleTimeout;
+            this.borrowTimeout = borrowTimeout;
+        }
+
+        /**
+         * Parses the pool settings from the crypto token properties.
+         *
+         * @param props crypto token properties
+         * @param errors list to add configuration errors to
+         * @return the parsed settings, with default values for missing or
+         * incorrect properties
+         */
+        public static Settings fromProperties(final Properties props, final List<String> errors) {
+            final int maxSize = (int) parse(props, PROPERTY_POOL_MAXSIZE, DEFAULT_POOL_MAXSIZE, 0, errors);
+            int minSize = (int) parse(props, PROPERTY_POOL_MINSIZE, DEFAULT_POOL_MINSIZE, 0, errors);
+            if (maxSize > 0 && minSize > maxSize) {
+                errors.add(PROPERTY_POOL_MINSIZE + " can not be larger than " + PROPERTY_POOL_MAXSIZE);
+                minSize = maxSize;
+            }
+            return new Settings(minSize, maxSize,
+                    parse(props, PROPERTY_POOL_IDLETIMEOUT, DEFAULT_POOL_IDLETIMEOUT, 0, errors),
+                    parse(props, PROPERTY_POOL_BORROWTIMEOUT, DEFAULT_POOL_BORROWTIMEOUT, 0, errors));
+        }
+
+        private static long parse(final Properties props, final String property, final long defaultValue, final long minValue, final List<String> errors) {
+            final String value = props.getProperty(property);
+            if (value == null || value.trim().isEmpty()) {
+                return defaultValue;
+            }
+            try {
+                final long result = Long.parseLong(value.trim());
+                if (result < minValue) {
+                    errors.add("Incorrect value for " + property + ": must be at least " + minValue);
+                    return defaultValue;
+                }
+                return result;
+            } catch (NumberFormatException ex) {
+                errors.add("Incorrect value for " + property + ": " + ex.getLocalizedMessage());
+                return defaultValue;
+            }
+        }
+
+        public int getMinSize() {
+            return minSize;
+        }
+
+        /**
+         * @return maximum number of instances or 0 if the pool is unbounded
+         */
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public long getBorrowTimeout() {
+            return borrowTimeout;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.spec.AlgorithmParameterSpec;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import org.apache.commons.io.IOUtils;
@@ -82,7 +83,10 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
     private Properties properties;
 
     /** Mapping from alias or key purpose to KeyEntry. */
-    private Map<Object, KeyEntry> entries;
+    private volatile Map<Object, KeyEntry> entries;
+
+    /** Provider used for Dilithium keys, shared by all requests. */
+    private static final Provider PQC_PROVIDER = new BouncyCastlePQCProvider();
 
     private char[] authenticationCode;
 
@@ -196,7 +200,8 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
         this.ks = getKeystore(keystoretype, keystorepath, authenticationCode, services);
         this.delegator = new JavaKeyStoreDelegator(this.ks);
         
-        entries = new HashMap<>();
+        final Map<Object, KeyEntry> newEntries = new ConcurrentHashMap<>();
+        final Provider keystoreProvider = ks.getProvider();
 
         Enumeration<String> e = ks.aliases();
         while (e.hasMoreElements()) {
@@ -215,9 +220,9 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
                     }
 
                     final KeyEntry entry = new KeyEntry((PrivateKey) key,
-                            chain[0], Arrays.asList(chain));
+                            Arrays.asList(chain), keystoreProvider);
 
-                    entries.put(alias, entry);
+                    newEntries.put(alias, entry);
                 } else {
                     LOG.error("Not a private key for alias " + alias);
                 }
@@ -242,10 +247,10 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
 
         final String defaultKey = properties.getProperty(DEFAULTKEY);
         if (defaultKey != null) {
-            final KeyEntry entry = entries.get(defaultKey);
+            final KeyEntry entry = newEntries.get(defaultKey);
             if (entry != null) {
-                entries.put(ICryptoTokenV4.PURPOSE_SIGN, entry);
-                entries.put(ICryptoTokenV4.PURPOSE_DECRYPT, entry);
+                newEntries.put(ICryptoTokenV4.PURPOSE_SIGN, entry);
+                newEntries.put(ICryptoTokenV4.PURPOSE_DECRYPT, entry);
             } else {
                 LOG.error("Not a private key for alias " + defaultKey);
             }
@@ -253,13 +258,15 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
 
         final String nextKey = properties.getProperty(NEXTKEY);
         if (nextKey != null) {
-            final KeyEntry entry = entries.get(nextKey);
+            final KeyEntry entry = newEntries.get(nextKey);
             if (entry != null) {
-                entries.put(ICryptoTokenV4.PURPOSE_NEXTKEY, entry);
+                newEntries.put(ICryptoTokenV4.PURPOSE_NEXTKEY, entry);
             } else {
                 LOG.error("Not a private key for alias " + defaultKey);
             }
         }
+
+        entries = newEntries;
     }
     
     @Override
@@ -319,7 +326,8 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
     }
 
     private KeyEntry getKeyEntry(final Object purposeOrAlias, IServices services) throws CryptoTokenOfflineException {
-        if (entries == null) {
+        Map<Object, KeyEntry> currentEntries = entries;
+        if (currentEntries == null) {
             if (keystorepassword != null) {
                 try {
                     activate(keystorepassword, services);
@@ -331,12 +339,16 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
             } else {
                 throw new CryptoTokenOfflineException("Signtoken isn't active.");
             }
+            currentEntries = entries;
+            if (currentEntries == null) {
+                throw new CryptoTokenOfflineException("Signtoken isn't active.");
+            }
         }
         if (purposeOrAlias == null) {
             LOG.error("Alias or Purpose is null");
             throw new CryptoTokenOfflineException("Alias or Purpose is null");
         }
-        KeyEntry entry = entries.get(purposeOrAlias);
+        KeyEntry entry = currentEntries.get(purposeOrAlias);
         if (entry == null || entry.getCertificate() == null) {
             throw new CryptoTokenOfflineException(
                     "No key available for purpose: " + purposeOrAlias);
@@ -448,7 +460,7 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
             }
 
             final KeyEntry entry = new KeyEntry((PrivateKey) keyPair.getPrivate(), 
-                                chain[0], Arrays.asList(chain));
+                                Arrays.asList(chain), keystore.getProvider());
 
             // If this is the first entry
             entries.put(alias, entry);
@@ -684,16 +696,11 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
                                                    this.workerId, data);
             }
                 
-            // update in-memory representation
-            KeyEntry entry = getKeyEntry(alias, services);
-            final Certificate signingCert = certChain.get(0);
-            
-            if (entry == null) {
-                entry = new KeyEntry();
-            }
-            
-            entry.setCertificate(signingCert);
-            entry.setCertificateChain(certChain);
+            // update in-memory representation, replacing the entry for
+            // the alias and for any purposes it is used for
+            final KeyEntry oldEntry = getKeyEntry(alias, services);
+            final KeyEntry newEntry = oldEntry.withCertificateChain(certChain);
+            entries.replaceAll((purposeOrAlias, entry) -> entry == oldEntry ? newEntry : entry);
         } catch (Exception e) {
             throw new CryptoTokenOfflineException(e);
         }   
@@ -712,16 +719,10 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
             IllegalRequestException {
         final boolean includeDummyCertificate = params.containsKey(PARAM_INCLUDE_DUMMYCERTIFICATE);
         final KeyEntry entry = getKeyEntry(alias, context.getServices());
-        final Provider provider;
-        if (entry != null && entry.getPrivateKey().getAlgorithm().toUpperCase().contains("DILITHIUM")) {
-            provider = new BouncyCastlePQCProvider();
-        } else {
-            provider = ks.getProvider();
-        }
-        if ((entry.getCertificateChain().size() == 1 && CryptoTokenHelper.isDummyCertificate(entry.getCertificateChain().get(0))) && !includeDummyCertificate) {
-            return new DefaultCryptoInstance(alias, context, provider, entry.getPrivateKey(), entry.getCertificateChain().get(0).getPublicKey());
+        if (entry.isDummyCertificateOnly() && !includeDummyCertificate) {
+            return new DefaultCryptoInstance(alias, context, entry.getProvider(), entry.getPrivateKey(), entry.getCertificate().getPublicKey());
         } else {
-            return new DefaultCryptoInstance(alias, context, provider, entry.getPrivateKey(), entry.getCertificateChain());
+            return new DefaultCryptoInstance(alias, context, entry.getProvider(), entry.getPrivateKey(), entry.getCertificateChain());
         }
     }
 
@@ -730,24 +731,45 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
         // NOP
     }
 
+    /**
+     * Key with its certificate chain and the provider to sign with.
+     *
+     * Entries are immutable and replaced when the certificate chain changes
+     * so everything needed for a request is resolved when the entry is
+     * created instead of for each request.
+     */
     private static class KeyEntry {
-        private PrivateKey privateKey;
-        private Certificate certificate;
-        private List<Certificate> certificateChain;
+        private final PrivateKey privateKey;
+        private final List<Certificate> certificateChain;
+        private final Provider provider;
+        private final boolean dummyCertificateOnly;
 
-        public KeyEntry() {
-        }
-        
         public KeyEntry(final PrivateKey privateKey,
-                final Certificate certificate,
-                final List<Certificate> certificateChain) {
+                final List<Certificate> certificateChain,
+                final Provider keystoreProvider) {
             this.privateKey = privateKey;
-            this.certificate = certificate;
-            this.certificateChain = certificateChain;
+            this.certificateChain = Collections.unmodifiableList(new ArrayList<>(certificateChain));
+            this.provider = privateKey.getAlgorithm().toUpperCase(Locale.ENGLISH).contains("DILITHIUM") ? PQC_PROVIDER : keystoreProvider;
+            this.dummyCertificateOnly = certificateChain.size() == 1 && CryptoTokenHelper.isDummyCertificate(certificateChain.get(0));
+        }
+
+        private KeyEntry(final KeyEntry entry, final List<Certificate> certificateChain) {
+            this.privateKey = entry.privateKey;
+            this.certificateChain = Collections.unmodifiableList(new ArrayList<>(certificateChain));
+            this.provider = entry.provider;
+            this.dummyCertificateOnly = certificateChain.size() == 1 && CryptoTokenHelper.isDummyCertificate(certificateChain.get(0));
+        }
+
+        /**
+         * @param certificateChain new certificate chain
+         * @return a new entry for the same key with the given chain
+         */
+        public KeyEntry withCertificateChain(final List<Certificate> certificateChain) {
+            return new KeyEntry(this, certificateChain);
         }
 
         public Certificate getCertificate() {
-            return certificate;
+            return certificateChain.isEmpty() ? null : certificateChain.get(0);
         }
 
         public List<Certificate> getCertificateChain() {
@@ -757,17 +779,16 @@ public class KeystoreCryptoToken extends BaseCryptoToken {
         public PrivateKey getPrivateKey() {
             return privateKey;
         }
-        
-        public void setCertificate(final Certificate cert) {
-            certificate = cert;
-        }
-        
-        public void setCertificateChain(final List<Certificate> certChain) {
-            certificateChain = certChain;
+
+        public Provider getProvider() {
+            return provider;
         }
-        
-        public void setPrivateKey(final PrivateKey privKey) {
-            privateKey = privKey;
+
+        /**
+         * @return true if the chain only consists of a dummy certificate
+         */
+        public boolean isDummyCertificateOnly() {
+            return dummyCertificateOnly;
         }
     }
 
@@ -38,9 +38,11 @@ import java.security.spec.RSAKeyGenParameterSpec;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
@@ -89,9 +91,6 @@ public class PKCS11CryptoToken extends BaseCryptoToken {
 
     private KeyStorePKCS11CryptoToken delegate;
 
-    /** Our worker cache entry name. */
-    private static final String WORKERCACHE_ENTRY = "PKCS11CryptoToken.CRYPTO_INSTANCE";
-    
     private static final String PROPERTY_SIGNATUREALGORITHM = "SIGNATUREALGORITHM";
 
     private AttributeProperties attributeProperties;
@@ -110,6 +109,18 @@ public class PKCS11CryptoToken extends BaseCryptoToken {
     
     private KeyStoreDelegator keystoreDelegator;
 
+    /** Settings for the crypto instance pools. */
+    private CryptoInstancePool.Settings poolSettings;
+
+    /** Our worker cache entry name. */
+    private static final String WORKERCACHE_ENTRY = "PKCS11CryptoToken.CRYPTO_INSTANCE_POOLS";
+
+    /**
+     * Incremented when the pooled crypto instances of all workers using
+     * this token must be replaced.
+     */
+    private final AtomicInteger poolGeneration = new AtomicInteger();
+
     @Override
     public void init(int workerId, Properties props, org.signserver.server.IServices services) throws CryptoTokenInitializationFailureException {
         try {
@@ -283,6 +294,13 @@ public class PKCS11CryptoToken extends BaseCryptoToken {
                 }
             }
 
+            // Read crypto instance pool properties
+            final List<String> poolErrors = new ArrayList<>();
+            poolSettings = CryptoInstancePool.Settings.fromProperties(props, poolErrors);
+            if (!poolErrors.isEmpty()) {
+                throw new CryptoTokenInitializationFailureException(String.join(", ", poolErrors));
+            }
+
             delegate = new KeyStorePKCS11CryptoToken();
             delegate.init(props, null, workerId);
             try {
@@ -336,6 +354,7 @@ public class PKCS11CryptoToken extends BaseCryptoToken {
 
     @Override
     public void activate(String authenticationcode, IServices services) throws CryptoTokenAuthenticationFailureException, CryptoTokenOfflineException {
+        invalidateInstancePools();
         try {
             delegate.activate(authenticationcode.toCharArray());
             keystoreDelegator = new JavaKeyStoreDelegator(delegate.getActivatedKeyStore());
@@ -357,6 +376,7 @@ public class PKCS11CryptoToken extends BaseCryptoToken {
 
     @Override
     public boolean deactivate(IServices services) throws CryptoTokenOfflineException {
+        invalidateInstancePools();
         delegate.deactivate();
         // unset delegator is CESeCore token is not auto-activated
         if (!delegate.isActive()) {
@@ -415,6 +435,7 @@ public class PKCS11CryptoToken extends BaseCryptoToken {
 
     @Override
     public boolean removeKey(String alias, IServices services) throws CryptoTokenOfflineException, KeyStoreException, SignServerException {
+        invalidateInstancePools();
         return CryptoTokenHelper.removeKey(keystoreDelegator, alias);
     }
 
@@ -515,6 +536,7 @@ public class PKCS11CryptoToken extends BaseCryptoToken {
             }
         }
 
+        invalidateInstancePools();
         try {
             if (CryptoTokenHelper.isKeyAlgorithmAsymmetric(keyAlgorithm)) {
                 generateKeyPair(keyAlgorithm, keySpec, alias, authCode, params, services);
@@ -555,6 +577,7 @@ public class PKCS11CryptoToken extends BaseCryptoToken {
 
             keyStore.setKeyEntry(alias, key, athenticationCode,
                                  certChain.toArray(new Certificate[0]));
+            invalidateInstancePools();
         } catch (KeyStoreException | NoSuchAlgorithmException | UnrecoverableKeyException ex) {
             LOG.error(ex, ex);
             throw new CryptoTokenOfflineException(ex);
@@ -570,39 +593,119 @@ public class PKCS11CryptoToken extends BaseCryptoToken {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public ICryptoInstance acquireCryptoInstance(String alias, Map<String, Object> params, RequestContext context) throws
             CryptoTokenOfflineException, 
             NoSuchAliasException, 
             InvalidAlgorithmParameterException,
             UnsupportedCryptoTokenParameter,
             IllegalRequestException {
-        ICryptoInstance result = null;
-        
+        final ICryptoInstance result;
+        final boolean includeDummyCertificate = params.containsKey(PARAM_INCLUDE_DUMMYCERTIFICATE);
+
         // Check if the caller requested caching of the private key
         final Boolean cache = (Boolean) params.get(PARAM_CACHEPRIVATEKEY);
-        if (cache != null && cache) {
-            // Get the supplied worker-instance-specific cache
-            final Map<String, Object> workerCache = (Map<String, Object>) params.get(PARAM_WORKERCACHE);
-            if (workerCache != null) {
-                
-                // Check if we have a cached crypto instance, otherwise create one
-                // Note: The cache is shared between all threads serving this worker so we only allow one to query and update the cache at a time.
-                synchronized (workerCache) {
-                    result = (ICryptoInstance) workerCache.get(WORKERCACHE_ENTRY);
-                    if (result == null) {
-                        result = createCryptoInstance(alias, context, params.containsKey(PARAM_INCLUDE_DUMMYCERTIFICATE));
-                        workerCache.put(WORKERCACHE_ENTRY, result);
-                    }
+        final Map<String, Object> workerCache = (Map<String, Object>) params.get(PARAM_WORKERCACHE);
+        if (cache != null && cache && workerCache != null) {
+            // Borrow an instance from the worker's pool for this key
+            result = getInstancePool(workerCache, alias, includeDummyCertificate).borrow();
+        } else {
+            // In case of no caching just load the crypt instance
+            result = createCryptoInstance(alias, context, includeDummyCertificate);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the pool of crypto instances for the given key from the
+     * worker-instance-specific cache, creating it if it does not exist yet
+     * or if the pools have been invalidated since it was created.
+     *
+     * The pools are kept in the worker cache, as the cached instance was
+     * before, so that reloading the worker also replaces its instances.
+     */
+    private CryptoInstancePool getInstancePool(final Map<String, Object> workerCache, final String alias, final boolean includeDummyCertificate) {
+        final String poolKey = includeDummyCertificate ? alias + "/dummy" : alias;
+        final int generation = poolGeneration.get();
+
+        // Note: The cache is shared between all threads serving this worker so we only allow one to query and update the cache at a time.
+        // The instances are borrowed after the lock has been released.
+        synchronized (workerCache) {
+            InstancePools pools = (InstancePools) workerCache.get(WORKERCACHE_ENTRY);
+            if (pools == null || pools.generation != generation) {
+                if (pools != null) {
+                    pools.close();
                 }
+                pools = new InstancePools(generation);
+                workerCache.put(WORKERCACHE_ENTRY, pools);
+            }
+            CryptoInstancePool pool = pools.pools.get(poolKey);
+            if (pool == null) {
+                pool = new CryptoInstancePool(poolKey,
+                        () -> createPooledCryptoInstance(alias, includeDummyCertificate),
+                        poolSettings);
+                pools.pools.put(poolKey, pool);
+                pool.prefill();
             }
+            return pool;
         }
-        
-        // In case of no caching just load the crypt instance
-        if (result == null) {
-            result = createCryptoInstance(alias, context, params.containsKey(PARAM_INCLUDE_DUMMYCERTIFICATE));
+    }
+
+    /**
+     * Invalidate the pooled crypto instances of all workers using this token,
+     * for instance after the token has been activated or the keys or
+     * certificates have changed. Each worker's pools are closed and replaced
+     * the next time it acquires an instance.
+     */
+    private void invalidateInstancePools() {
+        poolGeneration.incrementAndGet();
+    }
+
+    /**
+     * Creates a crypto instance for a pool. The private key is looked up
+     * directly in the PKCS#11 key store instead of through the key cache so
+     * that each instance has its own key object.
+     */
+    private ICryptoInstance createPooledCryptoInstance(String alias, boolean includeDummyCertificate) throws
+            CryptoTokenOfflineException,
+            NoSuchAliasException,
+            InvalidAlgorithmParameterException,
+            UnsupportedCryptoTokenParameter,
+            IllegalRequestException {
+        final KeyStore keyStore = delegate.getActivatedKeyStore();
+        final PrivateKey privateKey;
+        try {
+            final Key key = keyStore.getKey(alias, null);
+            if (!(key instanceof PrivateKey)) {
+                throw new NoSuchAliasException(alias);
+            }
+            privateKey = (PrivateKey) key;
+        } catch (KeyStoreException | NoSuchAlgorithmException | UnrecoverableKeyException ex) {
+            throw new CryptoTokenOfflineException(ex);
+        }
+        final List<Certificate> certificateChain = getCertificateChain(alias);
+        if ((certificateChain.size() == 1 && CryptoTokenHelper.isDummyCertificate(certificateChain.get(0)) && !includeDummyCertificate)) {
+            return new DefaultCryptoInstance(alias, null, keyStore.getProvider(), privateKey, certificateChain.get(0).getPublicKey());
+        } else {
+            return new DefaultCryptoInstance(alias, null, keyStore.getProvider(), privateKey, certificateChain);
+        }
+    }
+
+    /** Crypto instance pools of one worker, one per alias and dummy certificate inclusion. */
+    private static class InstancePools {
+        private final int generation;
+        private final Map<String, CryptoInstancePool> pools = new HashMap<>();
+
+        InstancePools(final int generation) {
+            this.generation = generation;
+        }
+
+        void close() {
+            for (CryptoInstancePool pool : pools.values()) {
+                pool.close();
+            }
         }
-        
-        return result;
     }
     
     /**
@@ -627,7 +730,10 @@ public class PKCS11CryptoToken extends BaseCryptoToken {
 
     @Override
     public void releaseCryptoInstance(ICryptoInstance instance, RequestContext context) {
-        // NOP
+        // Give back the instance to the pool it was borrowed from, if any
+        if (instance instanceof PooledCryptoInstance) {
+            ((PooledCryptoInstance) instance).release();
+        }
     }
 
     private static class KeyStorePKCS11CryptoToken extends org.cesecore.keys.token.PKCS11CryptoToken {
@@ -0,0 +1,99 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.cryptotokens;
+
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.List;
+import javax.crypto.SecretKey;
+
+/**
+ * Crypto instance borrowed from a CryptoInstancePool.
+ *
+ * A new object is handed out for every borrow so giving back an instance
+ * more than once has no effect on the next borrower of the same underlying
+ * instance.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class PooledCryptoInstance implements ICryptoInstance {
+
+    private final CryptoInstancePool pool;
+    private final ICryptoInstance delegate;
+
+    PooledCryptoInstance(final CryptoInstancePool pool, final ICryptoInstance delegate) {
+        this.pool = pool;
+        this.delegate = delegate;
+    }
+
+    /**
+     * Gives back this instance to the pool it was borrowed from.
+     *
+     * @return true if the instance had not already been given back
+     */
+    public boolean release() {
+        return pool.release(this);
+    }
+
+    /**
+     * @return the pool this instance was borrowed from
+     */
+    public CryptoInstancePool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return the pooled instance
+     */
+    ICryptoInstance getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public Certificate getCertificate() {
+        return delegate.getCertificate();
+    }
+
+    @Override
+    public List<Certificate> getCertificateChain() {
+        return delegate.getCertificateChain();
+    }
+
+    @Override
+    public PrivateKey getPrivateKey() {
+        return delegate.getPrivateKey();
+    }
+
+    @Override
+    public PublicKey getPublicKey() {
+        return delegate.getPublicKey();
+    }
+
+    @Override
+    public SecretKey getSecretKey() {
+        return delegate.getSecretKey();
+    }
+
+    @Override
+    public Provider getProvider() {
+        return delegate.getProvider();
+    }
+
+    @Override
+    public String toString() {
+        return "PooledCryptoInstance{ " + delegate + " }";
+    }
+}
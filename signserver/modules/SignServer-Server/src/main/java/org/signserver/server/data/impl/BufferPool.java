@@ -0,0 +1,117 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.signserver.common.CompileTimeSettings;
+
+/**
+ * Pool of fixed size direct buffers used as chunks by PooledWritableData.
+ *
+ * At most a fixed number of released chunks are kept for reuse, any further
+ * chunks are left to the garbage collector. The chunk size and the number
+ * of chunks of the shared instance are configured by the
+ * datafactory.pooled.chunksize and datafactory.pooled.maxchunks deploy-time
+ * properties.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+final class BufferPool {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(BufferPool.class);
+
+    /** Default size of each chunk. */
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /** Default maximum number of chunks kept in the pool (16 MB). */
+    static final int DEFAULT_MAX_POOLED_CHUNKS = 256;
+
+    private static final BufferPool INSTANCE = new BufferPool(
+            getSetting(CompileTimeSettings.DATAFACTORY_POOLED_CHUNKSIZE, DEFAULT_CHUNK_SIZE),
+            getSetting(CompileTimeSettings.DATAFACTORY_POOLED_MAXCHUNKS, DEFAULT_MAX_POOLED_CHUNKS));
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final int chunkSize;
+    private final int maxPooled;
+
+    BufferPool(final int chunkSize, final int maxPooled) {
+        this.chunkSize = chunkSize;
+        this.maxPooled = maxPooled;
+    }
+
+    static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    private static int getSetting(final String property, final int defaultValue) {
+        final String value = CompileTimeSettings.getInstance().getProperty(property);
+        if (value == null || value.trim().isEmpty() || value.startsWith("${")) {
+            return defaultValue;
+        }
+        try {
+            final int result = Integer.parseInt(value.trim());
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException ignored) { // NOPMD
+            // Logged below
+        }
+        LOG.warn("Incorrect value for " + property + ": " + value + ", using " + defaultValue);
+        return defaultValue;
+    }
+
+    /**
+     * @return size of each chunk in bytes
+     */
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return a cleared chunk, from the pool if available
+     */
+    ByteBuffer acquire() {
+        final ByteBuffer result = free.poll();
+        if (result == null) {
+            return ByteBuffer.allocateDirect(chunkSize);
+        }
+        freeCount.decrementAndGet();
+        result.clear();
+        return result;
+    }
+
+    /**
+     * Returns the chunk to the pool. The chunk must not be used afterwards.
+     * @param chunk to return
+     */
+    void release(final ByteBuffer chunk) {
+        if (freeCount.incrementAndGet() <= maxPooled) {
+            free.offer(chunk);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of chunks available in the pool
+     */
+    int getFreeCount() {
+        return freeCount.get();
+    }
+}
@@ -51,6 +51,18 @@ public interface DataFactory {
      * @return a new writable data instance
      */
     CloseableWritableData createWritableData(ReadableData readableData, File repository);
+
+    /**
+     * Create a writable data implementation with settings from the provided
+     * readable data and upload configuration.
+     * @param readableData with settings for how to create the writable data
+     * @param uploadConfig with the repository to store the data as file in
+     * (if requested) and the size threshold for storing it in a file
+     * @return a new writable data instance
+     */
+    default CloseableWritableData createWritableData(ReadableData readableData, UploadConfig uploadConfig) {
+        return createWritableData(readableData, uploadConfig.getRepository());
+    }
     
     /**
      * Create a writable data implementation while hinting if it should be on
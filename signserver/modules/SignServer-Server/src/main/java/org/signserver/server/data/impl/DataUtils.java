@@ -14,6 +14,7 @@ package org.signserver.server.data.impl;
 
 import java.util.Iterator;
 import java.util.ServiceLoader;
+import org.signserver.common.CompileTimeSettings;
 
 /**
  * Utility methods for request/response data handling.
@@ -25,7 +26,8 @@ public class DataUtils {
     
     /**
      * Create a new DataFactory implementation, either a service provided
-     * implementation or the default one.
+     * implementation, the pooled one if enabled by the datafactory.pooled
+     * deploy-time property or the default one.
      * @return The new DataFactory instance
      */
     public static DataFactory createDataFactory() {
@@ -33,10 +35,17 @@ public class DataUtils {
         Iterator<DataFactory> iterator = ServiceLoader.load(DataFactory.class).iterator();
         if (iterator.hasNext()) {
             result = iterator.next();
+        } else if (isPooledDataFactoryEnabled()) {
+            result = new PooledDataFactory();
         } else {
             result = new DefaultDataFactory();
         }
         return result;
     }
 
+    private static boolean isPooledDataFactoryEnabled() {
+        final String value = CompileTimeSettings.getInstance().getProperty(CompileTimeSettings.DATAFACTORY_POOLED, "false");
+        return Boolean.parseBoolean(value.trim());
+    }
+
 }
@@ -51,6 +51,10 @@ public class DefaultDataFactory implements DataFactory {
     @Override
     public CloseableReadableData createReadableData(FileItem item, File repository) {
         DiskFileItem dfi = (DiskFileItem) item;
+        if (!dfi.isInMemory()) {
+            // Keep data above the size threshold in the uploaded file
+            return new DiskFileItemReadableData(dfi);
+        }
         return new ByteArrayReadableData(dfi.get(), repository);
     }
 
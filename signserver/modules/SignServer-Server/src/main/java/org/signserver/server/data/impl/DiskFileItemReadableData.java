@@ -0,0 +1,77 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.commons.fileupload.disk.DiskFileItem;
+
+/**
+ * CloseableReadableData backed by the file of a DiskFileItem that has been
+ * stored on disk, i.e. was larger than the size threshold of the factory.
+ *
+ * Create the instance in try-with-resource or manually call close().
+ * The file of the item is removed when the instance is closed.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class DiskFileItemReadableData extends CloseableReadableData {
+
+    private final DiskFileItem item;
+
+    /**
+     * Creates a ReadableData backed by the provided item.
+     * @param item stored on disk
+     */
+    public DiskFileItemReadableData(DiskFileItem item) {
+        this.item = item;
+    }
+
+    @Override
+    public long getLength() {
+        return item.getSize();
+    }
+
+    @Override
+    public byte[] getAsByteArray() {
+        return item.get();
+    }
+
+    @Override
+    public boolean isFile() {
+        return true;
+    }
+
+    @Override
+    public File getAsFile() throws IOException {
+        return item.getStoreLocation();
+    }
+
+    @Override
+    public InputStream getAsInputStream() throws IOException {
+        return register(new BufferedInputStream(item.getInputStream()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Close resources
+        super.close();
+
+        // Remove the file
+        item.delete();
+    }
+
+}
@@ -0,0 +1,80 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.File;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.disk.DiskFileItem;
+import org.apache.log4j.Logger;
+import org.signserver.common.data.ReadableData;
+
+/**
+ * DataFactory creating response data backed by pooled direct buffers.
+ * Used by DataUtils.createDataFactory() when the datafactory.pooled
+ * deploy-time property is true.
+ * @author Nima Saboonchi
+ * @version $Id$
+ * @see PooledWritableData
+ */
+public class PooledDataFactory implements DataFactory {
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(PooledDataFactory.class);
+
+    private static final int DEFAULT_SIZE_THRESHOLD = new UploadConfig().getSizeThreshold();
+
+    public PooledDataFactory() {
+        LOG.info("Loading pooled data factory");
+    }
+
+    @Override
+    public CloseableReadableData createReadableData(byte[] data, long maxSize, File repository) throws FileUploadException {
+        final long length = data.length;
+
+        if (length > maxSize) {
+            throw new FileUploadBase.SizeLimitExceededException(
+                        String.format("the request was rejected because its size (%s) exceeds the configured maximum (%s)",
+                                length, maxSize),
+                               length, maxSize);
+        }
+
+        return new ByteArrayReadableData(data, repository);
+    }
+
+    @Override
+    public CloseableReadableData createReadableData(FileItem item, File repository) {
+        DiskFileItem dfi = (DiskFileItem) item;
+        if (!dfi.isInMemory()) {
+            // Keep data above the size threshold in the uploaded file
+            return new DiskFileItemReadableData(dfi);
+        }
+        return new ByteArrayReadableData(dfi.get(), repository);
+    }
+
+    @Override
+    public CloseableWritableData createWritableData(ReadableData readableData, File repository) {
+        return new PooledWritableData(readableData.isFile(), repository, DEFAULT_SIZE_THRESHOLD);
+    }
+
+    @Override
+    public CloseableWritableData createWritableData(ReadableData readableData, UploadConfig uploadConfig) {
+        return new PooledWritableData(readableData.isFile(), uploadConfig.getRepository(), uploadConfig.getSizeThreshold());
+    }
+
+    @Override
+    public CloseableWritableData createWritableData(boolean defaultToDisk, File repository) {
+        return new PooledWritableData(defaultToDisk, repository, DEFAULT_SIZE_THRESHOLD);
+    }
+
+}
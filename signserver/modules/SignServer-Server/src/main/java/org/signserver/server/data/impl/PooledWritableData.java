@@ -0,0 +1,528 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.signserver.common.data.ReadableData;
+
+/**
+ * WritableData implementation keeping in-memory data in chunks of pooled
+ * direct buffers instead of a growing byte array.
+ *
+ * When the in-memory data grows larger than the size threshold it is moved
+ * to a temporary file and the rest is written there. File data is read
+ * through a memory mapping. Reading the data as stream or channel does not
+ * copy it, only getAsByteArray() does, once.
+ *
+ * Create the instance in try-with-resource or manually call close(). The
+ * backing temporary file (if one) is removed when the instance is closed.
+ * The chunks are returned to the pool when both the instance and all
+ * streams and channels reading them have been closed. Chunks of streams
+ * that are never closed are left to the garbage collector. The readable
+ * data can not be read from after the instance has been closed.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class PooledWritableData extends CloseableWritableData {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(PooledWritableData.class);
+
+    private static final String FILE_PREFIX = "signserver-response_";
+    private static final String FILE_SUFFIX = ".tmp";
+
+    private final boolean defaultToDisk;
+    private final File repository;
+    private final long sizeThreshold;
+    private final BufferPool pool;
+
+    // Write
+    private OutputStream outputStream;
+
+    // Storage
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long inMemoryLength;
+    private File responseFile;
+    private FileChannel mappedChannel;
+    private MappedByteBuffer mapped;
+    private byte[] data;
+
+    // State
+    private boolean noMoreWrite;
+
+    // Guarded by this
+    private boolean closed;
+    private int openReaders;
+
+    /**
+     * Create an new instance of this WritableData.
+     * @param defaultToDisk if the getAsOutputStream method should be backed
+     * by a file or otherwise be in memory
+     * @param repository to create the file in (if requested)
+     * @param sizeThreshold number of bytes after which in-memory data is
+     * moved to a file
+     */
+    public PooledWritableData(boolean defaultToDisk, File repository, long sizeThreshold) {
+        this(defaultToDisk, repository, sizeThreshold, BufferPool.getInstance());
+    }
+
+    PooledWritableData(boolean defaultToDisk, File repository, long sizeThreshold, BufferPool pool) {
+        this.defaultToDisk = defaultToDisk;
+        this.repository = repository;
+        this.sizeThreshold = sizeThreshold;
+        this.pool = pool;
+    }
+
+    @Override
+    public OutputStream getAsOutputStream() throws IOException {
+        if (defaultToDisk) {
+            return getAsFileOutputStream();
+        } else {
+            return getAsInMemoryOutputStream();
+        }
+    }
+
+    @Override
+    public OutputStream getAsFileOutputStream() throws IOException {
+        ensureValid();
+        if (outputStream == null) {
+            if (responseFile == null) {
+                responseFile = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, repository);
+            }
+            outputStream = register(new FileOutputStream(responseFile));
+        }
+        return outputStream;
+    }
+
+    @Override
+    public OutputStream getAsInMemoryOutputStream() {
+        ensureValid();
+        if (outputStream == null) {
+            outputStream = new ChunkedOutputStream();
+        }
+        return outputStream;
+    }
+
+    @Override
+    public File getAsFile() throws IOException {
+        ensureValid();
+        if (responseFile == null) {
+            responseFile = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, repository);
+        }
+        return responseFile;
+    }
+
+    private void ensureValid() {
+        if (noMoreWrite) {
+            throw new IllegalStateException("Can not write response data after starting reading it");
+        }
+    }
+
+    /**
+     * @return number of bytes currently held in pooled chunks
+     */
+    long getInMemoryLength() {
+        return inMemoryLength;
+    }
+
+    @Override
+    public PooledReadableData toReadableData() {
+        return new PooledReadableData();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Close resources
+        super.close();
+        synchronized (this) {
+            closed = true;
+            if (openReaders == 0) {
+                releaseChunks();
+            } else if (LOG.isDebugEnabled()) {
+                LOG.debug("Returning chunks to the pool when the last of " + openReaders + " readers is closed");
+            }
+        }
+        data = null;
+        mapped = null;
+        if (mappedChannel != null) {
+            mappedChannel.close();
+            mappedChannel = null;
+        }
+
+        // Remove the file
+        removeFile();
+    }
+
+    private void releaseChunks() {
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        inMemoryLength = 0;
+    }
+
+    private void removeFile() {
+        if (responseFile != null) {
+            try {
+                final boolean existed = Files.deleteIfExists(responseFile.toPath());
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Temporary file was " + responseFile.getAbsolutePath() + (existed ? " removed" : " not removed as it did not exist"));
+                }
+            } catch (IOException ex) {
+                // The mapping can prevent removal on some platforms until it is garbage collected
+                LOG.warn("Temporary file " + responseFile.getAbsolutePath() + " could not be removed now: " + ex.getMessage());
+                responseFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Moves the in-memory data to a new temporary file.
+     * @return stream to continue writing to
+     */
+    private OutputStream spill() throws IOException {
+        if (responseFile == null) {
+            responseFile = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, repository);
+        }
+        final FileOutputStream out = register(new FileOutputStream(responseFile));
+        final FileChannel channel = out.getChannel();
+        for (ByteBuffer chunk : chunks) {
+            final ByteBuffer view = chunk.duplicate().flip();
+            while (view.hasRemaining()) {
+                channel.write(view);
+            }
+        }
+        releaseChunks();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Response data moved to " + responseFile.getAbsolutePath());
+        }
+        return out;
+    }
+
+    /**
+     * Opens a stream over the in-memory data. The chunks are not returned to
+     * the pool before the stream has been closed.
+     * @return the stream
+     * @throws IOException if this instance has been closed
+     */
+    private synchronized ByteBuffersInputStream openChunkReader() throws IOException {
+        ensureReadable();
+        openReaders++;
+        return new ByteBuffersInputStream(getChunkViews(), this::closeChunkReader);
+    }
+
+    private synchronized void closeChunkReader() {
+        openReaders--;
+        if (closed && openReaders == 0) {
+            releaseChunks();
+        }
+    }
+
+    private synchronized void ensureReadable() throws IOException {
+        if (closed) {
+            throw new IOException("Response data has been closed");
+        }
+    }
+
+    /**
+     * @return read-only views of the in-memory data
+     */
+    private List<ByteBuffer> getChunkViews() {
+        final List<ByteBuffer> result = new ArrayList<>(chunks.size());
+        for (ByteBuffer chunk : chunks) {
+            result.add(chunk.asReadOnlyBuffer().flip());
+        }
+        return result;
+    }
+
+    private ByteBuffer getMapped() throws IOException {
+        if (mapped == null) {
+            mappedChannel = FileChannel.open(responseFile.toPath(), StandardOpenOption.READ);
+            mapped = mappedChannel.map(FileChannel.MapMode.READ_ONLY, 0, mappedChannel.size());
+        }
+        return mapped.asReadOnlyBuffer();
+    }
+
+    private boolean isMappable() {
+        return responseFile.length() > 0 && responseFile.length() <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * OutputStream writing to pooled chunks until the size threshold is
+     * reached and to a file after that.
+     */
+    private class ChunkedOutputStream extends OutputStream {
+
+        private OutputStream fileOut;
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureValid();
+            if (fileOut == null && inMemoryLength + 1 > sizeThreshold) {
+                fileOut = spill();
+            }
+            if (fileOut != null) {
+                fileOut.write(b);
+            } else {
+                currentChunk().put((byte) b);
+                inMemoryLength++;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureValid();
+            if (fileOut == null && inMemoryLength + len > sizeThreshold) {
+                fileOut = spill();
+            }
+            if (fileOut != null) {
+                fileOut.write(b, off, len);
+            } else {
+                while (len > 0) {
+                    final ByteBuffer chunk = currentChunk();
+                    final int n = Math.min(len, chunk.remaining());
+                    chunk.put(b, off, n);
+                    off += n;
+                    len -= n;
+                    inMemoryLength += n;
+                }
+            }
+        }
+
+        private ByteBuffer currentChunk() {
+            ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = pool.acquire();
+                chunks.add(chunk);
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * ReadableData view of the written data.
+     */
+    public class PooledReadableData implements ReadableData {
+
+        @Override
+        public byte[] getAsByteArray() throws IOException {
+            ensureReadable();
+            noMoreWrite = true;
+            if (data == null) {
+                if (responseFile != null) {
+                    data = Files.readAllBytes(responseFile.toPath());
+                } else {
+                    data = new byte[(int) inMemoryLength];
+                    int offset = 0;
+                    for (ByteBuffer view : getChunkViews()) {
+                        final int n = view.remaining();
+                        view.get(data, offset, n);
+                        offset += n;
+                    }
+                }
+            }
+            return data;
+        }
+
+        @Override
+        public InputStream getAsInputStream() throws IOException {
+            ensureReadable();
+            noMoreWrite = true;
+            if (responseFile != null) {
+                final List<ByteBuffer> result = new ArrayList<>(1);
+                if (isMappable()) {
+                    result.add(getMapped());
+                } else if (responseFile.length() > 0) {
+                    // Too large to map in one buffer, read it instead
+                    result.add(ByteBuffer.wrap(getAsByteArray()));
+                }
+                return new ByteBuffersInputStream(result, null);
+            }
+            return openChunkReader();
+        }
+
+        /**
+         * Get the data as a channel. For file data the channel is the file
+         * channel, which allows for transfers without copying to the heap.
+         * @return the channel
+         * @throws IOException in case of error reading the data
+         */
+        public ReadableByteChannel getAsChannel() throws IOException {
+            ensureReadable();
+            noMoreWrite = true;
+            if (responseFile != null) {
+                return register(FileChannel.open(responseFile.toPath(), StandardOpenOption.READ));
+            }
+            return openChunkReader();
+        }
+
+        @Override
+        public File getAsFile() throws IOException {
+            ensureReadable();
+            if (responseFile == null) {
+                responseFile = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, repository);
+                try (FileChannel channel = FileChannel.open(responseFile.toPath(), StandardOpenOption.WRITE)) {
+                    for (ByteBuffer view : getChunkViews()) {
+                        while (view.hasRemaining()) {
+                            channel.write(view);
+                        }
+                    }
+                }
+            }
+            return responseFile;
+        }
+
+        @Override
+        public long getLength() {
+            noMoreWrite = true;
+            if (responseFile != null) {
+                return responseFile.length();
+            } else {
+                return inMemoryLength;
+            }
+        }
+
+        @Override
+        public boolean isFile() {
+            return responseFile != null;
+        }
+    }
+
+    /**
+     * InputStream and channel over a list of buffers.
+     */
+    static class ByteBuffersInputStream extends InputStream implements ReadableByteChannel {
+
+        private final List<ByteBuffer> buffers;
+        private final Runnable onClose;
+        private int current;
+        private boolean open = true;
+
+        /**
+         * @param buffers to read
+         * @param onClose to run when the stream is closed the first time, or
+         * null
+         */
+        ByteBuffersInputStream(final List<ByteBuffer> buffers, final Runnable onClose) {
+            this.buffers = buffers;
+            this.onClose = onClose;
+        }
+
+        private ByteBuffer next() throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            while (current < buffers.size()) {
+                final ByteBuffer buffer = buffers.get(current);
+                if (buffer.hasRemaining()) {
+                    return buffer;
+                }
+                current++;
+            }
+            return null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final ByteBuffer buffer = next();
+            return buffer == null ? -1 : buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final ByteBuffer buffer = next();
+            if (buffer == null) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            ByteBuffer buffer = next();
+            if (buffer == null) {
+                return -1;
+            }
+            int total = 0;
+            while (buffer != null && dst.hasRemaining()) {
+                final int n = Math.min(dst.remaining(), buffer.remaining());
+                final ByteBuffer slice = buffer.duplicate();
+                slice.limit(slice.position() + n);
+                dst.put(slice);
+                buffer.position(buffer.position() + n);
+                total += n;
+                buffer = next();
+            }
+            return total;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            ByteBuffer buffer;
+            while (skipped < n && (buffer = next()) != null) {
+                final int step = (int) Math.min(n - skipped, buffer.remaining());
+                buffer.position(buffer.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            long result = 0;
+            for (int i = current; i < buffers.size(); i++) {
+                result += buffers.get(i).remaining();
+            }
+            return (int) Math.min(result, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                if (onClose != null) {
+                    onClose.run();
+                }
+            }
+        }
+    }
+}
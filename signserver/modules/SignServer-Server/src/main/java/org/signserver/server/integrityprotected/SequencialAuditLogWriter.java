@@ -0,0 +1,331 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.integrityprotected;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+import org.cesecore.audit.log.AuditRecordStorageException;
+
+/**
+ * Group commit of audit log rows.
+ *
+ * Rows are put in a bounded queue. The calling thread then waits for the
+ * row to be committed: the first waiting thread takes the commit lock and
+ * stores up to the batch size of queued rows in one transaction, while the
+ * threads waiting behind it find their rows already committed when they get
+ * the lock. A call does not return until its row is committed so no row is
+ * lost, but each commit is shared by all rows queued meanwhile.
+ *
+ * The commits are done by the logging threads instead of by a writer thread
+ * of its own as each caller has to wait for its row to be stored anyway, and
+ * as audit rows are also logged while the application is starting and
+ * stopping, when tasks can not be run on the container's executors.
+ *
+ * Sequence numbers are given to the rows when they are committed, in queue
+ * order, and only used up by rows actually stored. If a commit fails, the
+ * rows in it are committed one at a time so that only the failing rows fail
+ * and the sequence numbers stay contiguous.
+ *
+ * When the queue is full new rows either wait for space or are rejected,
+ * depending on the overflow policy.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class SequencialAuditLogWriter {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(SequencialAuditLogWriter.class);
+
+    /** Device property with the maximum number of rows to commit at a time. A value of 1 (default) disables batching. */
+    public static final String PROPERTY_BATCH_SIZE = "batch.size";
+
+    /** Device property with the maximum number of rows waiting to be committed. */
+    public static final String PROPERTY_QUEUE_SIZE = "batch.queuesize";
+
+    /** Device property with the policy when the queue is full: BLOCK (default) or REJECT. */
+    public static final String PROPERTY_OVERFLOW = "batch.overflow";
+
+    /** Device property with the maximum time in milliseconds to wait for space in the queue with overflow policy BLOCK. */
+    public static final String PROPERTY_OVERFLOW_TIMEOUT = "batch.overflowtimeout";
+
+    public static final int DEFAULT_BATCH_SIZE = 1;
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    public static final long DEFAULT_OVERFLOW_TIMEOUT = 30000L;
+
+    /** What to do when the queue is full. */
+    public enum OverflowPolicy {
+        /** Wait for space in the queue. */
+        BLOCK,
+        /** Fail to log the row. */
+        REJECT
+    }
+
+    /**
+     * Stores rows in one transaction.
+     */
+    public interface BatchWriter {
+        void write(List<SequencialAuditRecord> records) throws AuditRecordStorageException;
+    }
+
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final long overflowTimeout;
+    private final BatchWriter writer;
+    private final BlockingQueue<Pending> queue;
+    private final ReentrantLock commitLock = new ReentrantLock(true);
+
+    /** Sequence number of the last committed row, only updated holding the commit lock. */
+    private volatile long sequenceNumber;
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong committedRecords = new AtomicLong();
+    private final AtomicLong totalCommitTime = new AtomicLong();
+    private volatile long lastCommitTime;
+    private volatile long maxCommitTime;
+
+    public SequencialAuditLogWriter(final int batchSize, final int queueSize, final OverflowPolicy overflowPolicy, final long overflowTimeout, final BatchWriter writer) {
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.overflowTimeout = overflowTimeout;
+        this.writer = writer;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    /**
+     * Creates a writer configured by the device properties.
+     *
+     * @param properties of the audit log device
+     * @param writer to store the rows with
+     * @return the new writer or null if batching is not enabled
+     * @throws AuditRecordStorageException in case of incorrect properties
+     */
+    public static SequencialAuditLogWriter fromProperties(final Properties properties, final BatchWriter writer) throws AuditRecordStorageException {
+        final Properties props = properties == null ? new Properties() : properties;
+        final int batchSize = (int) getLong(props, PROPERTY_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        if (batchSize <= 1) {
+            return null;
+        }
+        final int queueSize = (int) getLong(props, PROPERTY_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+        final long overflowTimeout = getLong(props, PROPERTY_OVERFLOW_TIMEOUT, DEFAULT_OVERFLOW_TIMEOUT);
+        final OverflowPolicy overflowPolicy;
+        try {
+            overflowPolicy = OverflowPolicy.valueOf(props.getProperty(PROPERTY_OVERFLOW, OverflowPolicy.BLOCK.name()).trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new AuditRecordStorageException("Incorrect value for audit log device property " + PROPERTY_OVERFLOW + ": " + props.getProperty(PROPERTY_OVERFLOW));
+        }
+        if (queueSize < 1) {
+            throw new AuditRecordStorageException("Incorrect value for audit log device property " + PROPERTY_QUEUE_SIZE + ": must be at least 1");
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Batching audit log rows: batch size " + batchSize + ", queue size " + queueSize + ", overflow " + overflowPolicy);
+        }
+        return new SequencialAuditLogWriter(batchSize, queueSize, overflowPolicy, overflowTimeout, writer);
+    }
+
+    private static long getLong(final Properties props, final String property, final long defaultValue) throws AuditRecordStorageException {
+        final String value = props.getProperty(property);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new AuditRecordStorageException("Incorrect value for audit log device property " + property + ": " + value);
+        }
+    }
+
+    /**
+     * Queues a row. Its sequence number is assigned when it is committed.
+     *
+     * @param record to queue
+     * @return handle to wait for the commit with
+     * @throws AuditRecordStorageException if the queue is full
+     */
+    public Pending enqueue(final SequencialAuditRecord record) throws AuditRecordStorageException {
+        final Pending result = new Pending(record);
+        final boolean queued;
+        if (overflowPolicy == OverflowPolicy.REJECT) {
+            queued = queue.offer(result);
+        } else {
+            try {
+                queued = queue.offer(result, overflowTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new AuditRecordStorageException("Interrupted while waiting for space in the audit log queue", ex);
+            }
+        }
+        if (!queued) {
+            throw new AuditRecordStorageException("Audit log queue full (" + queue.size() + " rows waiting to be committed)");
+        }
+        return result;
+    }
+
+    /**
+     * Waits until the queued row is committed, committing it and the other
+     * queued rows unless some other thread already does.
+     *
+     * @param pending handle from enqueue
+     * @throws AuditRecordStorageException if the row could not be stored
+     */
+    public void awaitCommit(final Pending pending) throws AuditRecordStorageException {
+        commitLock.lock();
+        try {
+            while (!pending.done && commitBatch() > 0) {
+                // Until our row is committed
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        if (!pending.done) {
+            throw new AuditRecordStorageException("Audit log row not queued");
+        }
+        if (pending.failure != null) {
+            throw new AuditRecordStorageException(pending.failure.getMessage(), pending.failure);
+        }
+    }
+
+    private int commitBatch() {
+        final List<Pending> batch = new ArrayList<>(batchSize);
+        queue.drainTo(batch, batchSize);
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        final List<SequencialAuditRecord> records = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            records.add(pending.record.withSequenceNumber(sequenceNumber + records.size() + 1));
+        }
+
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            writer.write(records);
+            success = true;
+        } catch (RuntimeException ex) {
+            LOG.error("Failed to store " + records.size() + " audit log rows, storing them one at a time: " + ex.getMessage());
+        }
+        final long time = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+        if (success) {
+            sequenceNumber += records.size();
+            commits.incrementAndGet();
+            committedRecords.addAndGet(records.size());
+            totalCommitTime.addAndGet(time);
+            lastCommitTime = time;
+            if (time > maxCommitTime) {
+                maxCommitTime = time;
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Committed " + records.size() + " audit log rows in " + time + " us, queue depth: " + queue.size());
+            }
+        } else {
+            for (Pending pending : batch) {
+                pending.failure = commitOne(pending.record);
+            }
+        }
+        for (Pending pending : batch) {
+            pending.done = true;
+        }
+        return batch.size();
+    }
+
+    /**
+     * Stores a single row with the next sequence number.
+     *
+     * @param record to store
+     * @return null if the row was stored or the failure otherwise
+     */
+    private Exception commitOne(final SequencialAuditRecord record) {
+        try {
+            writer.write(Collections.singletonList(record.withSequenceNumber(sequenceNumber + 1)));
+            sequenceNumber++;
+            commits.incrementAndGet();
+            committedRecords.incrementAndGet();
+            return null;
+        } catch (RuntimeException ex) {
+            LOG.error("Failed to store audit log row: " + ex.getMessage());
+            return ex;
+        }
+    }
+
+    /**
+     * @return sequence number of the last committed row
+     */
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * @return number of rows waiting to be committed
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of successful commits
+     */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * @return number of rows committed
+     */
+    public long getCommittedRecordCount() {
+        return committedRecords.get();
+    }
+
+    /**
+     * @return average time of a commit in microseconds
+     */
+    public long getAverageCommitLatency() {
+        final long count = commits.get();
+        return count == 0 ? 0 : totalCommitTime.get() / count;
+    }
+
+    /**
+     * @return time of the last commit in microseconds
+     */
+    public long getLastCommitLatency() {
+        return lastCommitTime;
+    }
+
+    /**
+     * @return longest time of a commit in microseconds
+     */
+    public long getMaxCommitLatency() {
+        return maxCommitTime;
+    }
+
+    /**
+     * Row waiting to be committed.
+     */
+    public static class Pending {
+        private final SequencialAuditRecord record;
+        private volatile boolean done;
+        private volatile Exception failure;
+
+        Pending(SequencialAuditRecord record) {
+            this.record = record;
+        }
+    }
+}
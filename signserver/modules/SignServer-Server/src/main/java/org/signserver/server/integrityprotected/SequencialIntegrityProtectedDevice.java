@@ -74,6 +74,10 @@ import org.signserver.common.ServiceLocator;
  * This implementation makes this information available via AuditRecordData.getRowProtection() and this is also
  * included in exported log files.
  * 
+ * With the device property batch.size set to more than 1, rows are stored
+ * in batches using group commit instead of one transaction per row.
+ * See SequencialAuditLogWriter for the batching properties.
+ * 
  * Based on SVN Id IntegrityProtectedDevice.java 18194 2013-11-21 18:09:12Z jeklund
  * Modify to log sequentially.
  * @see IntegrityProtectedDevice
@@ -90,6 +94,10 @@ public class SequencialIntegrityProtectedDevice implements AuditLogDevice {
         
         private long sequenceNumber;
 
+        /** Group commit of rows if batching is configured. */
+        private SequencialAuditLogWriter writer;
+        private boolean writerConfigured;
+
 	@Override
 	public void setEjbs(Map<Class<?>, ?> ejbs) {
 		this.ejbs = ejbs;
@@ -120,39 +128,73 @@ public class SequencialIntegrityProtectedDevice implements AuditLogDevice {
 	public void log(TrustedTime trustedTime, EventType eventType, EventStatus eventStatus, ModuleType module, ServiceType service, String authToken, String customId,
 			String searchDetail1, String searchDetail2, Map<String, Object> additionalDetails, Properties properties) throws AuditRecordStorageException {
 
+            final SequencialAuditLogWriter.Pending pending;
             LOCK.lock();  // block until condition holds
             try {
-                sequenceNumber++;
-                
-                if (log.isTraceEnabled()) {
-                    log.trace("Before sequencial logging");
+                if (!writerConfigured) {
+                    writer = SequencialAuditLogWriter.fromProperties(properties, this::logBatch);
+                    writerConfigured = true;
                 }
-                
-                try {
-                    ServiceLocator.getInstance().lookupLocal(SequencialIntegrityProtectedLoggerSessionLocal.class).logWithSequenceNumber(trustedTime, eventType, eventStatus, module, service, authToken, customId, searchDetail1, searchDetail2, additionalDetails, properties, sequenceNumber);
-                    if (log.isTraceEnabled()) {
-                        log.trace("Success sequencial logging");
-                    }
-                } catch (NamingException ex) {
+
+                if (writer != null) {
+                    // The writer assigns the sequence number when committing
+                    pending = writer.enqueue(new SequencialAuditRecord(trustedTime.getTime().getTime(), eventType, eventStatus, module, service, authToken, customId, searchDetail1, searchDetail2, additionalDetails, 0));
+                } else {
+                    pending = null;
+                    sequenceNumber++;
+
                     if (log.isTraceEnabled()) {
-                        log.trace("Failed sequencial logging");
+                        log.trace("Before sequencial logging");
                     }
-                    // Rollback sequence number
-                    sequenceNumber--;
-                    throw new AuditRecordStorageException("Failed to lookup SequencialIntegrityProtectedLoggerSessionLocal EJB implementation: " + ex.getExplanation(), ex);
-                } catch (Throwable ex) {
-                    if (log.isTraceEnabled()) {
-                        log.trace("Failed sequencial logging");
+
+                    try {
+                        ServiceLocator.getInstance().lookupLocal(SequencialIntegrityProtectedLoggerSessionLocal.class).logWithSequenceNumber(trustedTime, eventType, eventStatus, module, service, authToken, customId, searchDetail1, searchDetail2, additionalDetails, properties, sequenceNumber);
+                        if (log.isTraceEnabled()) {
+                            log.trace("Success sequencial logging");
+                        }
+                    } catch (NamingException ex) {
+                        if (log.isTraceEnabled()) {
+                            log.trace("Failed sequencial logging");
+                        }
+                        // Rollback sequence number
+                        sequenceNumber--;
+                        throw new AuditRecordStorageException("Failed to lookup SequencialIntegrityProtectedLoggerSessionLocal EJB implementation: " + ex.getExplanation(), ex);
+                    } catch (Throwable ex) {
+                        if (log.isTraceEnabled()) {
+                            log.trace("Failed sequencial logging");
+                        }
+                        // Rollback sequence number
+                        sequenceNumber--;
+                        throw new AuditRecordStorageException(ex);
                     }
-                    // Rollback sequence number
-                    sequenceNumber--;
-                    throw new AuditRecordStorageException(ex);
                 }
             } finally {
                 LOCK.unlock();
             }
+
+            // Wait for the queued row to be committed together with the
+            // other rows queued meanwhile
+            if (pending != null) {
+                writer.awaitCommit(pending);
+            }
 	}
 
+        private void logBatch(final List<SequencialAuditRecord> records) throws AuditRecordStorageException {
+            try {
+                ServiceLocator.getInstance().lookupLocal(SequencialIntegrityProtectedLoggerSessionLocal.class).logWithSequenceNumbers(records);
+            } catch (NamingException ex) {
+                throw new AuditRecordStorageException("Failed to lookup SequencialIntegrityProtectedLoggerSessionLocal EJB implementation: " + ex.getExplanation(), ex);
+            }
+        }
+
+        /**
+         * @return the group commit writer with its queue depth and commit
+         * latency metrics or null if batching is not configured
+         */
+        public SequencialAuditLogWriter getWriter() {
+            return writer;
+        }
+
 	@Override
 	public boolean isSupportingQueries() {
 		return true;
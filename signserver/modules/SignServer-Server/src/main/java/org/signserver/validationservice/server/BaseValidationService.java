@@ -71,7 +71,14 @@ public abstract class BaseValidationService implements IValidationService {
             log.error("Error in Validation Service " + workerId + " setting " + ValidationServiceConstants.VALIDATIONSERVICE_TIMEINCACHE + " should only contain numbers, using default value");
         }
 
-        validationCache = new ValidationCache(getCachedIssuers(config.getProperties()), cacheTime * 1000);
+        int maxCacheEntries = Integer.parseInt(ValidationServiceConstants.DEFAULT_MAXCACHEENTRIES);
+        try {
+            maxCacheEntries = Integer.parseInt(config.getProperties().getProperty(ValidationServiceConstants.VALIDATIONSERVICE_MAXCACHEENTRIES, ValidationServiceConstants.DEFAULT_MAXCACHEENTRIES).trim());
+        } catch (NumberFormatException e) {
+            log.error("Error in Validation Service " + workerId + " setting " + ValidationServiceConstants.VALIDATIONSERVICE_MAXCACHEENTRIES + " should only contain numbers, using default value");
+        }
+
+        validationCache = new ValidationCache(getCachedIssuers(config.getProperties()), cacheTime * 1000, maxCacheEntries);
     }
 
     private List<String> getCachedIssuers(Properties props) {
@@ -101,6 +108,15 @@ public abstract class BaseValidationService implements IValidationService {
             briefEntries.add(new WorkerStatusInfo.Entry("Number of validators", String.valueOf(validators.size())));
         }
 
+        // Validation cache
+        if (validationCache != null) {
+            briefEntries.add(new WorkerStatusInfo.Entry("Validation cache",
+                    "entries: " + validationCache.getSize() + " of " + validationCache.getMaxEntries()
+                    + ", hits: " + validationCache.getHits()
+                    + ", misses: " + validationCache.getMisses()
+                    + ", evictions: " + validationCache.getEvictions()));
+        }
+
         // Properties
         final StringBuilder configValue = new StringBuilder();
         Properties properties = config.getProperties();
@@ -0,0 +1,145 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.Certificate;
+import java.security.cert.PKIXCertPathChecker;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.signserver.server.cesecore.util.CertTools;
+import org.signserver.validationservice.server.crlcache.CachedCRL;
+
+/**
+ * Checks the revocation status of the certificates in a path using CRLs
+ * from the CRL cache.
+ *
+ * Used instead of the revocation checking of the PKIX validator so that
+ * the serial number index of the cached CRLs is used and the signature of
+ * each CRL is only verified once per issuer key.
+ *
+ * For each certificate one of the CRLs must be issued by the issuer of the
+ * certificate, be signed by its key and be current. The certificate is
+ * revoked if it is on that CRL with another reason than removeFromCRL.
+ *
+ * Only reverse checking is supported, as in the OCSPPathChecker.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class CRLPathChecker extends PKIXCertPathChecker {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(CRLPathChecker.class);
+
+    private final X509Certificate rootCACert;
+    private final List<CachedCRL> crls;
+
+    /** Issuer of the next certificate to check. */
+    private X509Certificate cACert;
+
+    /**
+     * @param rootCACert trust anchor of the path
+     * @param crls to check the certificates against
+     */
+    public CRLPathChecker(final X509Certificate rootCACert, final List<CachedCRL> crls) {
+        this.rootCACert = rootCACert;
+        this.crls = crls;
+    }
+
+    @Override
+    public void init(final boolean forward) throws CertPathValidatorException {
+        if (forward) {
+            throw new CertPathValidatorException("Forward checking not supported");
+        }
+        if (rootCACert == null) {
+            throw new CertPathValidatorException("Root CA Certificate passed in constructor can not be null");
+        }
+        cACert = rootCACert;
+    }
+
+    @Override
+    public boolean isForwardCheckingSupported() {
+        return false;
+    }
+
+    @Override
+    public Set<String> getSupportedExtensions() {
+        return null;
+    }
+
+    @Override
+    public void check(final Certificate cert, final Collection<String> unresolvedCritExts) throws CertPathValidatorException {
+        if (!(cert instanceof X509Certificate)) {
+            throw new CertPathValidatorException("Certificate passed to check method of CRLPathChecker is not of type X509Certificate");
+        }
+        final X509Certificate x509Cert = (X509Certificate) cert;
+        final CachedCRL crl = findCRL(x509Cert);
+        if (crl == null) {
+            throw new CertPathValidatorException("No valid CRL found for certificate " + CertTools.getSubjectDN(x509Cert));
+        }
+
+        final X509CRLEntry entry = crl.getRevokedCertificate(x509Cert);
+        if (entry != null) {
+            int reasonCode = CRLReason.unspecified;
+            if (entry.hasExtensions()) {
+                try {
+                    reasonCode = ValidationUtils.getReasonCodeFromCRLEntry(entry);
+                } catch (IOException e) {
+                    throw new CertPathValidatorException("Can not retrieve reason code", e);
+                }
+            }
+            if (reasonCode != CRLReason.removeFromCRL) {
+                throw new CertPathValidatorException("Certificate revocation after " + entry.getRevocationDate() + ", reason: " + reasonCode);
+            }
+        }
+        cACert = x509Cert;
+    }
+
+    private CachedCRL findCRL(final X509Certificate cert) {
+        final Date now = new Date();
+        for (CachedCRL cachedCRL : crls) {
+            final X509CRL crl = cachedCRL.getCRL();
+            if (!crl.getIssuerX500Principal().equals(cert.getIssuerX500Principal())) {
+                continue;
+            }
+            if (crl.getThisUpdate() != null && now.before(crl.getThisUpdate())) {
+                LOG.debug("CRL not yet valid");
+                continue;
+            }
+            if (crl.getNextUpdate() != null && !now.before(crl.getNextUpdate())) {
+                LOG.debug("CRL has expired");
+                continue;
+            }
+            try {
+                cachedCRL.verify(cACert.getPublicKey(), "BC");
+            } catch (GeneralSecurityException e) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("CRL not signed by " + CertTools.getSubjectDN(cACert) + ": " + e.getMessage());
+                }
+                continue;
+            }
+            return cachedCRL;
+        }
+        return null;
+    }
+}
@@ -32,6 +32,8 @@ import org.signserver.common.CryptoTokenOfflineException;
 import org.signserver.common.IllegalRequestException;
 import org.signserver.common.SignServerException;
 import org.signserver.validationservice.common.Validation;
+import org.signserver.validationservice.server.crlcache.CRLCache;
+import org.signserver.validationservice.server.crlcache.CachedCRL;
 
 /**
  * CRL validator used for validating certificates using CRL only for revocation 
@@ -50,6 +52,8 @@ public class CRLValidator extends BaseValidator {
     /** Logger for this class. */
     private static final Logger LOG = Logger.getLogger(CRLValidator.class);
 
+    private CRLCache crlCache;
+
     /**
      * @param workerId
      * @param validatorId
@@ -61,7 +65,7 @@ public class CRLValidator extends BaseValidator {
     @Override
     public void init(int workerId, int validatorId, Properties props, EntityManager em) throws SignServerException {
         super.init(workerId, validatorId, props, em);
-
+        crlCache = CRLCache.getInstance(props);
     }
 
     @Override
@@ -208,6 +212,7 @@ public class CRLValidator extends BaseValidator {
         CertPath certPath = null;
         CertStore certStore;
         List<Object> certsAndCRLS = new ArrayList<>(); // object ?, specified to suppress warnings but is it good way ? 
+        List<CachedCRL> crls = new ArrayList<>(); // checked by the CRLPathChecker instead of the PKIX revocation checking
         CertificateFactory certFactory;
         CertPathValidator validator = null;
         PKIXParameters params = null;
@@ -220,14 +225,14 @@ public class CRLValidator extends BaseValidator {
 
             //fetch CRLs obtained form the CDP extension of certificates
             for (URL url : cDPURLs) {
-                certsAndCRLS.add(ValidationUtils.fetchCRLFromURL(url, certFactory));
+                crls.add(crlCache.get(url));
             }
 
-            // retrieve and add the crls from CRLPath property of issuer to certStore
+            // retrieve the crls from CRLPath property of issuer
             // in case all certificates have CDP extension, CRLPath is ignored
             if (atLeastOneCDPNotFound && CRLPaths != null) {
                 for (URL url : CRLPaths) {
-                    certsAndCRLS.add(ValidationUtils.fetchCRLFromURL(url, certFactory));
+                    crls.add(crlCache.get(url));
                 }
             }
 
@@ -265,6 +270,10 @@ public class CRLValidator extends BaseValidator {
             params.addCertStore(certStore);
             params.setDate(new Date());
 
+            // revocation is checked using the serial number index of the cached CRLs
+            params.setRevocationEnabled(false);
+            params.addCertPathChecker(new CRLPathChecker((X509Certificate) rootCert, crls));
+
             if (LOG.isDebugEnabled()) {
                 LOG.debug("***********************");
                 LOG.debug("printing trust anchor " + trustAnc.getTrustedCert().getSubjectDN().getName());
@@ -25,6 +25,9 @@ import org.bouncycastle.asn1.x509.CRLReason;
 import org.bouncycastle.cert.ocsp.OCSPReq;
 import org.cesecore.util.CertTools;
 import org.signserver.common.SignServerException;
+import org.signserver.validationservice.server.crlcache.CRLCache;
+import org.signserver.validationservice.server.crlcache.CachedCRL;
+import org.signserver.validationservice.server.ocspcache.OCSPResponseCache;
 
 /**
  * Stateful OCSP fail over to CRL PKIX certificate path checker. It does not
@@ -58,8 +61,8 @@ public class OCSPCRLPathChecker extends OCSPPathChecker {
 
     public OCSPCRLPathChecker(X509Certificate rootCACert, Properties props,
             List<X509Certificate> authorizedOCSPResponderCerts,
-            List<URL> cRLPaths) {
-        super(rootCACert, props, authorizedOCSPResponderCerts);
+            List<URL> cRLPaths, OCSPResponseCache ocspResponseCache) {
+        super(rootCACert, props, authorizedOCSPResponderCerts, ocspResponseCache);
         this.cRLPaths = cRLPaths;
     }
 
@@ -110,7 +113,15 @@ public class OCSPCRLPathChecker extends OCSPPathChecker {
                 // ocsp responder
                 OCSPReq req = generateOCSPRequest(cACert, x509Cert);
                 byte[] derocspresponse = sendOCSPRequest(req, oCSPURLString);
-                parseAndVerifyOCSPResponse(x509Cert, derocspresponse);
+                try {
+                    parseAndVerifyOCSPResponse(x509Cert, derocspresponse);
+                } catch (OCSPStatusNotGoodException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // do not use the response again
+                    invalidateOCSPResponse(req, oCSPURLString);
+                    throw e;
+                }
 
             } catch (OCSPStatusNotGoodException e) {
                 // if the OCSPStatusNotGood exception is received it means that
@@ -204,10 +215,11 @@ public class OCSPCRLPathChecker extends OCSPPathChecker {
         X509CRL certCRL = null;
         String msg;
 
-        certCRL = ValidationUtils.fetchCRLFromURL(crlURL);
+        final CachedCRL cachedCRL = CRLCache.getInstance(props).get(crlURL);
+        certCRL = cachedCRL.getCRL();
 
         try {
-            certCRL.verify(cACert.getPublicKey(), "BC");
+            cachedCRL.verify(cACert.getPublicKey(), "BC");
         } catch (Exception e) {
             msg = "Exception on verifying CRL fetched from url: "
                     + crlURL.toString() + " using CA certificate : "
@@ -241,7 +253,7 @@ public class OCSPCRLPathChecker extends OCSPPathChecker {
         }
 
         // check if certificate is revoked
-        X509CRLEntry crlEntry = certCRL.getRevokedCertificate(x509Cert);
+        X509CRLEntry crlEntry = cachedCRL.getRevokedCertificate(x509Cert);
         if (crlEntry != null) {
 //            msg = "The certificate " + CertTools.getSubjectDN(x509Cert)
 //                    + " has been revoked on " + crlEntry.getRevocationDate();
@@ -286,7 +298,7 @@ public class OCSPCRLPathChecker extends OCSPPathChecker {
             // do not need to clone other properties since they do not change
             clonedOCSPCRLPathChecker = new OCSPCRLPathChecker(rootCACert,
                     this.props, this.authorizedOCSPResponderCerts,
-                    this.cRLPaths);
+                    this.cRLPaths, this.ocspResponseCache);
             clonedOCSPCRLPathChecker.cACert = clonedPrevCert;
             return clonedOCSPCRLPathChecker;
 
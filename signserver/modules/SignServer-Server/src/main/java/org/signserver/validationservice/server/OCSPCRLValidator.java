@@ -17,7 +17,10 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.PKIXParameters;
 import java.security.cert.X509Certificate;
+import java.util.Properties;
+import javax.persistence.EntityManager;
 import org.signserver.common.SignServerException;
+import org.signserver.validationservice.server.crlcache.CRLCache;
 
 /**
  * OCSP fail over to CRL validator.
@@ -30,6 +33,13 @@ import org.signserver.common.SignServerException;
  */
 public class OCSPCRLValidator extends OCSPValidator {
 
+    @Override
+    public void init(int workerId, int validatorId, Properties props, EntityManager em) throws SignServerException {
+        super.init(workerId, validatorId, props, em);
+        // Fail early on incorrect cache properties
+        CRLCache.getInstance(props);
+    }
+
     /**
      * override the ocsp validators path checker with ocspcrl pathchecker
      * 
@@ -41,6 +51,6 @@ public class OCSPCRLValidator extends OCSPValidator {
     protected void addCertPathCheckers(Certificate cert,
             PKIXParameters params, Certificate rootCert)
             throws SignServerException, CertificateException, IOException {
-        params.addCertPathChecker(new OCSPCRLPathChecker((X509Certificate) rootCert, this.props, getIssuerAuthorizedOCSPResponderCertificates(cert), getIssuerCRLPaths(cert)));
+        params.addCertPathChecker(new OCSPCRLPathChecker((X509Certificate) rootCert, this.props, getIssuerAuthorizedOCSPResponderCertificates(cert), getIssuerCRLPaths(cert), ocspResponseCache));
     }
 }
@@ -13,7 +13,7 @@
 package org.signserver.validationservice.server;
 
 import java.io.*;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -36,6 +36,7 @@ import org.signserver.common.CryptoTokenOfflineException;
 import org.signserver.common.IllegalRequestException;
 import org.signserver.common.SignServerException;
 import org.signserver.validationservice.common.Validation;
+import org.signserver.validationservice.server.ocspcache.OCSPResponseCache;
 
 /**
  * Stateful OCSP PKIX certificate path checker.
@@ -57,12 +58,14 @@ public class OCSPPathChecker extends PKIXCertPathChecker {
     X509Certificate rootCACert;
     Properties props;
     List<X509Certificate> authorizedOCSPResponderCerts;
+    OCSPResponseCache ocspResponseCache;
     protected transient Logger log = Logger.getLogger(this.getClass());
 
-    public OCSPPathChecker(X509Certificate rootCACert, Properties props, List<X509Certificate> authorizedOCSPResponderCerts) {
+    public OCSPPathChecker(X509Certificate rootCACert, Properties props, List<X509Certificate> authorizedOCSPResponderCerts, OCSPResponseCache ocspResponseCache) {
         this.rootCACert = rootCACert;
         this.props = props;
         this.authorizedOCSPResponderCerts = authorizedOCSPResponderCerts;
+        this.ocspResponseCache = ocspResponseCache;
     }
 
     @Override
@@ -104,7 +107,15 @@ public class OCSPPathChecker extends PKIXCertPathChecker {
             //generate ocsp request for current certificate and send to ocsp responder
             OCSPReq req = generateOCSPRequest(cACert, x509Cert);
             byte[] derocspresponse = sendOCSPRequest(req, oCSPURLString);
-            parseAndVerifyOCSPResponse(x509Cert, derocspresponse);
+            try {
+                parseAndVerifyOCSPResponse(x509Cert, derocspresponse);
+            } catch (OCSPStatusNotGoodException e) {
+                throw e;
+            } catch (Exception e) {
+                // do not use the response again
+                invalidateOCSPResponse(req, oCSPURLString);
+                throw e;
+            }
 
         } catch (Exception e) {
             //re-throw all exceptions received
@@ -143,82 +154,24 @@ public class OCSPPathChecker extends PKIXCertPathChecker {
     }
 
     /**
-     * Sends passed in ocsp request to ocsp responder at url identified by oCSPURLString
+     * Sends passed in ocsp request to ocsp responder at url identified by oCSPURLString.
+     * The response is taken from the OCSP response cache of the validator
+     * when available.
      * 
      * @return der encoded ocsp response
      */
     protected byte[] sendOCSPRequest(OCSPReq ocspRequest, String oCSPURLString) throws IOException, SignServerException {
-        // get der encoded ocsp request 
-        byte[] reqarray = ocspRequest.getEncoded();
-
-        //send request 
-        URL url = new URL(oCSPURLString);
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-
-        con.setAllowUserInteraction(false);
-        con.setDoInput(true);
-        con.setDoOutput(true);
-        con.setUseCaches(false);
-        con.setInstanceFollowRedirects(false);
-        con.setRequestMethod("POST");
-        con.setRequestProperty("Content-Length", Integer.toString(reqarray.length));
-        con.setRequestProperty("Content-Type", "application/ocsp-request");
-
-        con.connect();
-        try (OutputStream os = con.getOutputStream()) {
-            os.write(reqarray);
-        }
-
-        //see if we received proper response
-        if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
-            throw new SignServerException("Response code unexpected. Expecting : HTTP_OK(200). Received :  " + con.getResponseCode());
-        }
-
-        //see if the response is of proper MIME type
-        if ((con.getContentType() == null) || !con.getContentType().equals("application/ocsp-response")) {
-            throw new SignServerException("Response type unexpected. Expecting : application/ocsp-response, Received : " + con.getContentType());
-        }
-
-
-        // Read der encoded ocsp response
-        byte[] responsearr;
-
-        try (InputStream reader = con.getInputStream()) {
-            int responselen = con.getContentLength();
-            
-            if (responselen != -1) {
-                
-                //header indicating content-length is present, so go ahead and use it
-                responsearr = new byte[responselen];
-                
-                int offset = 0;
-                int bread;
-                while ((responselen > 0) && (bread = reader.read(responsearr, offset, responselen)) != -1) {
-                    offset += bread;
-                    responselen -= bread;
-                }
-                
-                //read.read returned -1 but we expect inputstream to contain more data
-                //is it a dreadful unexpected EOF we were afraid of ??
-                if (responselen > 0) {
-                    throw new SignServerException("Unexpected EOF encountered while reading ocsp response from : " + oCSPURLString);
-                }
-            } else {
-                //getContentLength() returns -1. no panic , perfect normal value if header indicating length is missing (javadoc)
-                //try to read response manually byte by byte (small response expected , no need to buffer)
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                int b;
-                while ((b = reader.read()) != -1) {
-                    baos.write(b);
-                }
-                
-                responsearr = baos.toByteArray();
-            }
-        }
-        con.disconnect();
-
+        return ocspResponseCache.getResponse(new URL(oCSPURLString), ocspRequest);
+    }
 
-        return responsearr;
+    /**
+     * Removes the response to the request from the OCSP response cache, for
+     * instance as it could not be verified.
+     */
+    protected void invalidateOCSPResponse(OCSPReq ocspRequest, String oCSPURLString) {
+        try {
+            ocspResponseCache.invalidate(new URL(oCSPURLString), ocspRequest);
+        } catch (MalformedURLException ignored) {} // NOPMD
     }
 
     /**
@@ -442,7 +395,7 @@ public class OCSPPathChecker extends PKIXCertPathChecker {
             }
 
             //do not need to clone other properties since they do not change
-            clonedOCSPPathChecker = new OCSPPathChecker(rootCACert, this.props, this.authorizedOCSPResponderCerts);
+            clonedOCSPPathChecker = new OCSPPathChecker(rootCACert, this.props, this.authorizedOCSPResponderCerts, this.ocspResponseCache);
             clonedOCSPPathChecker.cACert = clonedPrevCert;
             return clonedOCSPPathChecker;
 
@@ -37,6 +37,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.security.cert.X509Certificate;
+import javax.persistence.EntityManager;
 
 import org.apache.log4j.Logger;
 import org.cesecore.util.CertTools;
@@ -45,6 +46,7 @@ import org.signserver.common.IllegalRequestException;
 import org.signserver.common.SignServerException;
 import org.signserver.validationservice.common.Validation;
 import org.signserver.validationservice.common.ValidationServiceConstants;
+import org.signserver.validationservice.server.ocspcache.OCSPResponseCache;
 
 /**
  * OCSP validator used for validating certificates using OCSP only for revocation checking.
@@ -60,6 +62,15 @@ public class OCSPValidator extends BaseValidator {
     /** Logger for this class. */
     private static final Logger LOG = Logger.getLogger(OCSPValidator.class);
 
+    /** OCSP response cache for the settings of this validator. */
+    protected OCSPResponseCache ocspResponseCache;
+
+    @Override
+    public void init(int workerId, int validatorId, Properties props, EntityManager em) throws SignServerException {
+        super.init(workerId, validatorId, props, em);
+        ocspResponseCache = OCSPResponseCache.getInstance(props);
+    }
+
     @Override
     public void testConnection() throws ConnectException, SignServerException {
         // TODO Test Internet connectivity, which is needed to access ocsp servers.
@@ -210,7 +221,7 @@ public class OCSPValidator extends BaseValidator {
     protected void addCertPathCheckers(Certificate cert,
             PKIXParameters params, Certificate rootCert)
             throws SignServerException, CertificateException, IOException {
-        params.addCertPathChecker(new OCSPPathChecker((X509Certificate) rootCert, this.props, getIssuerAuthorizedOCSPResponderCertificates(cert)));
+        params.addCertPathChecker(new OCSPPathChecker((X509Certificate) rootCert, this.props, getIssuerAuthorizedOCSPResponderCertificates(cert), ocspResponseCache));
     }
 
     /**
@@ -16,8 +16,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.security.NoSuchProviderException;
@@ -41,6 +39,7 @@ import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.x509.extension.X509ExtensionUtil;
 import org.signserver.common.SignServerException;
+import org.signserver.validationservice.server.ocspcache.OCSPHttpClient;
 
 /**
  * Utility functions used by validators.
@@ -227,24 +226,14 @@ public class ValidationUtils {
      */
     public static OCSPResponse queryOCSPResponder(URL url, OCSPReq request) throws IOException, OCSPException {
         final OCSPResponse result = new OCSPResponse();
-        final HttpURLConnection con;
-        final URLConnection urlCon = url.openConnection();
-        if (!(urlCon instanceof HttpURLConnection)) {
+        if (!"http".equalsIgnoreCase(url.getProtocol()) && !"https".equalsIgnoreCase(url.getProtocol())) {
             throw new IOException("Unsupported protocol in URL: " + url);
         }
-        con = (HttpURLConnection) urlCon;
 
-        // POST the OCSP request
-        con.setDoOutput(true);
-        con.setRequestMethod("POST");
+        // POST the OCSP request over a persistent connection
+        final OCSPHttpClient.Response httpResponse = OCSPHttpClient.getInstance().post(url, request.getEncoded());
 
-        // POST it
-        con.setRequestProperty("Content-Type", "application/ocsp-request");
-        try (OutputStream os = con.getOutputStream()) {
-            os.write(request.getEncoded());
-        }
-
-        result.setHttpReturnCode(con.getResponseCode());
+        result.setHttpReturnCode(httpResponse.getStatusCode());
         if (result.getHttpReturnCode() != 200) {
             if (result.getHttpReturnCode() == 401) {
                 result.setError(OCSPResponse.Error.httpUnauthorized);
@@ -255,23 +244,8 @@ public class ValidationUtils {
         }
 
         OCSPResp response = null;
-        InputStream in = null;
-        try {
-            in = con.getInputStream();
-            if (in != null) {
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                int b;
-                while ( (b = in.read()) != -1) {
-                    bout.write(b);
-                }
-                response = new OCSPResp(bout.toByteArray());
-            }
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException ignored) {} // NOPMD
-            }
+        if (httpResponse.getBody() != null) {
+            response = new OCSPResp(httpResponse.getBody());
         }
 
         return populateOcspResponse(result, response);
@@ -0,0 +1,376 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server.crlcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.bouncycastle.util.encoders.Hex;
+import org.signserver.common.SignServerException;
+import org.signserver.validationservice.server.ValidationUtils;
+
+/**
+ * Node-wide cache of CRLs by distribution point URL.
+ *
+ * A CRL is used until its nextUpdate, but at most for the maximum age. After
+ * four fifths of that time the next lookup starts fetching a new CRL in the
+ * background while the cached one is still returned. Concurrent lookups of
+ * a CRL not cached share the same fetch.
+ *
+ * Optionally the fetched CRLs are also stored in a directory so that they
+ * do not have to be fetched again after a restart while still valid. The
+ * oldest files are removed when the directory exceeds its maximum size.
+ *
+ * The cache is configured by the validator properties. Validators with
+ * the same settings share one instance while validators with different
+ * settings each get their own. The background refresher is shut down by
+ * {@link #shutdown()} when the application is undeployed.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class CRLCache {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(CRLCache.class);
+
+    /** Property with the directory to store fetched CRLs in. Optional. */
+    public static final String PROPERTY_CRLCACHE_DIRECTORY = "CRLCACHE_DIRECTORY";
+
+    /** Property with the maximum size in bytes of the stored CRLs. */
+    public static final String PROPERTY_CRLCACHE_MAXDISKSIZE = "CRLCACHE_MAXDISKSIZE";
+
+    /** Property with the maximum time in seconds to use a CRL, also used for CRLs without nextUpdate. */
+    public static final String PROPERTY_CRLCACHE_MAXAGE = "CRLCACHE_MAXAGE";
+
+    public static final long DEFAULT_CRLCACHE_MAXDISKSIZE = 100L * 1024L * 1024L;
+    public static final long DEFAULT_CRLCACHE_MAXAGE = 3600L;
+
+    private static final String FILE_SUFFIX = ".crl";
+
+    /** Instances by directory, maximum disk size and maximum age. */
+    private static final ConcurrentMap<List<Object>, CRLCache> INSTANCES = new ConcurrentHashMap<>();
+
+    private static volatile ExecutorService refresher;
+
+    private final ConcurrentMap<String, CachedCRL> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<CachedCRL>> fetches = new ConcurrentHashMap<>();
+
+    private final File directory;
+    private final long maxDiskSize;
+    private final long maxAge;
+
+    CRLCache() {
+        this(null, DEFAULT_CRLCACHE_MAXDISKSIZE, DEFAULT_CRLCACHE_MAXAGE * 1000L);
+    }
+
+    CRLCache(final File directory, final long maxDiskSize, final long maxAge) {
+        this.directory = directory;
+        this.maxDiskSize = maxDiskSize;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return the instance with the default settings
+     */
+    public static CRLCache getInstance() {
+        return getInstance(null, DEFAULT_CRLCACHE_MAXDISKSIZE, DEFAULT_CRLCACHE_MAXAGE * 1000L);
+    }
+
+    /**
+     * Get the instance for the settings in the validator properties.
+     *
+     * @param props of the validator
+     * @return the instance shared by validators with the same settings
+     * @throws SignServerException in case of incorrect values
+     */
+    public static CRLCache getInstance(final Properties props) throws SignServerException {
+        final long maxAge = getLong(props, PROPERTY_CRLCACHE_MAXAGE, DEFAULT_CRLCACHE_MAXAGE);
+        final long maxDiskSize = getLong(props, PROPERTY_CRLCACHE_MAXDISKSIZE, DEFAULT_CRLCACHE_MAXDISKSIZE);
+        final String dir = props.getProperty(PROPERTY_CRLCACHE_DIRECTORY);
+        File directory = null;
+        if (dir != null && !dir.trim().isEmpty()) {
+            directory = new File(dir.trim()).getAbsoluteFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new SignServerException("Could not create CRL cache directory: " + directory);
+            }
+        }
+        return getInstance(directory, maxDiskSize, maxAge * 1000L);
+    }
+
+    private static CRLCache getInstance(final File directory, final long maxDiskSize, final long maxAge) {
+        return INSTANCES.computeIfAbsent(Arrays.asList(directory, maxDiskSize, maxAge),
+                key -> new CRLCache(directory, maxDiskSize, maxAge));
+    }
+
+    /**
+     * Stops the background refresher and drops all instances. Called when
+     * the application is undeployed.
+     */
+    public static void shutdown() {
+        final ExecutorService executor;
+        synchronized (CRLCache.class) {
+            executor = refresher;
+            refresher = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        INSTANCES.clear();
+    }
+
+    private static long getLong(final Properties props, final String property, final long defaultValue) throws SignServerException {
+        final String value = props.getProperty(property);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            final long result = Long.parseLong(value.trim());
+            if (result < 0) {
+                throw new SignServerException("Incorrect value for property " + property + ": must not be negative");
+            }
+            return result;
+        } catch (NumberFormatException ex) {
+            throw new SignServerException("Incorrect value for property " + property + ": " + value);
+        }
+    }
+
+    /**
+     * Get the CRL from the distribution point, fetching it if it is not
+     * cached or no longer should be used.
+     *
+     * @param url of the CRL distribution point
+     * @return the CRL
+     * @throws SignServerException if the CRL could not be fetched or was empty
+     */
+    public CachedCRL get(final URL url) throws SignServerException {
+        final String key = url.toExternalForm();
+        final CachedCRL cached = entries.get(key);
+        final long now = System.currentTimeMillis();
+        if (cached != null && now < cached.getExpireTime()) {
+            if (now >= cached.getRefreshTime() && !fetches.containsKey(key)) {
+                refreshInBackground(url);
+            }
+            return cached;
+        }
+        return fetch(url, cached == null);
+    }
+
+    /**
+     * Removes all cached CRLs from memory.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private CachedCRL fetch(final URL url, final boolean tryDisk) throws SignServerException {
+        final String key = url.toExternalForm();
+        final CompletableFuture<CachedCRL> future = new CompletableFuture<>();
+        final CompletableFuture<CachedCRL> ongoing = fetches.putIfAbsent(key, future);
+        if (ongoing != null) {
+            return await(ongoing, url);
+        }
+        try {
+            CachedCRL result = tryDisk ? load(url) : null;
+            if (result == null) {
+                final X509CRL crl = ValidationUtils.fetchCRLFromURL(url);
+                if (crl == null) {
+                    LOG.warn("Empty CRL file fetched from " + url);
+                    throw new SignServerException("Empty CRL file fetched from CDP");
+                }
+                result = create(crl, System.currentTimeMillis());
+                store(url, crl);
+            }
+            entries.put(key, result);
+            future.complete(result);
+            return result;
+        } catch (SignServerException | RuntimeException ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            fetches.remove(key, future);
+        }
+    }
+
+    private static CachedCRL await(final CompletableFuture<CachedCRL> future, final URL url) throws SignServerException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SignServerException("Interrupted while waiting for CRL from " + url, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SignServerException) {
+                throw (SignServerException) ex.getCause();
+            }
+            throw new SignServerException("Failed to fetch CRL from " + url, ex.getCause());
+        }
+    }
+
+    private void refreshInBackground(final URL url) {
+        try {
+            getRefresher().execute(() -> {
+                try {
+                    fetch(url, false);
+                } catch (SignServerException | RuntimeException ex) {
+                    LOG.warn("Could not refresh CRL from " + url + ": " + ex.getMessage());
+                }
+            });
+        } catch (RuntimeException ex) {
+            // Queue full, try again at the next lookup
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Not refreshing CRL from " + url + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private static ExecutorService getRefresher() {
+        ExecutorService result = refresher;
+        if (result == null) {
+            synchronized (CRLCache.class) {
+                result = refresher;
+                if (result == null) {
+                    final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(100), r -> {
+                        final Thread thread = new Thread(r, "CRLCache-refresher");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    refresher = result = executor;
+                }
+            }
+        }
+        return result;
+    }
+
+    private CachedCRL create(final X509CRL crl, final long fetchTime) {
+        long expireTime = fetchTime + maxAge;
+        if (crl.getNextUpdate() != null) {
+            expireTime = Math.min(expireTime, crl.getNextUpdate().getTime());
+        }
+        // Already expired CRLs are returned but fetched again at next lookup
+        expireTime = Math.max(expireTime, fetchTime);
+        final long refreshTime = fetchTime + (expireTime - fetchTime) * 4 / 5;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Caching CRL from " + crl.getIssuerX500Principal() + " for " + (expireTime - fetchTime) + " ms");
+        }
+        return new CachedCRL(crl, fetchTime, refreshTime, expireTime);
+    }
+
+    private File getFile(final File dir, final URL url) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256").digest(url.toExternalForm().getBytes(StandardCharsets.UTF_8));
+            return new File(dir, Hex.toHexString(hash) + FILE_SUFFIX);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Reads the CRL stored for the URL if it is still valid.
+     */
+    private CachedCRL load(final URL url) {
+        final File dir = directory;
+        if (dir == null) {
+            return null;
+        }
+        final File file = getFile(dir, url);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            final X509CRL crl = (X509CRL) CertificateFactory.getInstance("X509", "BC").generateCRL(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+            final CachedCRL result = create(crl, file.lastModified());
+            if (System.currentTimeMillis() >= result.getExpireTime()) {
+                return null;
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Using stored CRL for " + url);
+            }
+            return result;
+        } catch (IOException | CertificateException | CRLException | NoSuchProviderException ex) {
+            LOG.warn("Ignoring stored CRL for " + url + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the CRL and removes the oldest stored CRLs if the maximum size
+     * is exceeded.
+     */
+    private void store(final URL url, final X509CRL crl) {
+        final File dir = directory;
+        if (dir == null) {
+            return;
+        }
+        final File file = getFile(dir, url);
+        try {
+            final byte[] encoded = crl.getEncoded();
+            if (encoded.length > maxDiskSize) {
+                return;
+            }
+            final File temp = File.createTempFile("crl", ".tmp", dir);
+            try {
+                Files.write(temp.toPath(), encoded);
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+        } catch (IOException | CRLException ex) {
+            LOG.warn("Could not store CRL for " + url + ": " + ex.getMessage());
+            return;
+        }
+
+        final File[] files = dir.listFiles((d, name) -> name.endsWith(FILE_SUFFIX));
+        if (files != null) {
+            long total = 0;
+            for (File f : files) {
+                total += f.length();
+            }
+            if (total > maxDiskSize) {
+                Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+                for (int i = 0; i < files.length && total > maxDiskSize; i++) {
+                    if (!files[i].equals(file)) {
+                        final long length = files[i].length();
+                        if (files[i].delete()) {
+                            total -= length;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server.crlcache;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parsed CRL held by the CRL cache together with the times it should be
+ * refreshed and no longer be used.
+ *
+ * The serial numbers of the revoked certificates are kept in a sorted array
+ * so that checking a certificate that is not revoked, which is the common
+ * case, does not go through all entries of the CRL. Only when the serial
+ * number is found is the entry looked up in the CRL.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class CachedCRL {
+
+    private final X509CRL crl;
+    private final long fetchTime;
+    private final long refreshTime;
+    private final long expireTime;
+
+    /** Non-negative serial numbers, minimal encoding, sorted by length and then bytes, stored one after the other. */
+    private final byte[] serials;
+    /** Start of each serial number in serials, with the end as last element. */
+    private final int[] offsets;
+    /** Negative serial numbers, not allowed but possibly present in CRLs. */
+    private final Set<BigInteger> negativeSerials;
+
+    private final Set<PublicKey> verifiedKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    CachedCRL(final X509CRL crl, final long fetchTime, final long refreshTime, final long expireTime) {
+        this.crl = crl;
+        this.fetchTime = fetchTime;
+        this.refreshTime = refreshTime;
+        this.expireTime = expireTime;
+
+        final List<byte[]> encoded = new ArrayList<>();
+        final Set<BigInteger> negatives = new HashSet<>();
+        final Set<? extends X509CRLEntry> entries = crl.getRevokedCertificates();
+        int size = 0;
+        if (entries != null) {
+            for (X509CRLEntry entry : entries) {
+                final BigInteger serial = entry.getSerialNumber();
+                if (serial.signum() < 0) {
+                    negatives.add(serial);
+                } else {
+                    final byte[] bytes = serial.toByteArray();
+                    encoded.add(bytes);
+                    size += bytes.length;
+                }
+            }
+        }
+        encoded.sort(CachedCRL::compare);
+        serials = new byte[size];
+        offsets = new int[encoded.size() + 1];
+        int offset = 0;
+        for (int i = 0; i < encoded.size(); i++) {
+            final byte[] bytes = encoded.get(i);
+            offsets[i] = offset;
+            System.arraycopy(bytes, 0, serials, offset, bytes.length);
+            offset += bytes.length;
+        }
+        offsets[encoded.size()] = offset;
+        negativeSerials = negatives.isEmpty() ? Collections.<BigInteger>emptySet() : negatives;
+    }
+
+    /**
+     * @return the CRL
+     */
+    public X509CRL getCRL() {
+        return crl;
+    }
+
+    /**
+     * @return time in milliseconds the CRL was fetched
+     */
+    public long getFetchTime() {
+        return fetchTime;
+    }
+
+    /**
+     * @return time in milliseconds after which a new CRL should be fetched
+     */
+    public long getRefreshTime() {
+        return refreshTime;
+    }
+
+    /**
+     * @return time in milliseconds after which the CRL should not be used
+     */
+    public long getExpireTime() {
+        return expireTime;
+    }
+
+    /**
+     * @return number of revoked certificates in the CRL
+     */
+    public int getRevokedCount() {
+        return offsets.length - 1 + negativeSerials.size();
+    }
+
+    /**
+     * Verifies the signature of the CRL. The signature is only verified once
+     * for each key.
+     *
+     * @param key of the CRL issuer
+     * @param provider to verify with
+     * @throws GeneralSecurityException if the signature could not be verified
+     */
+    public void verify(final PublicKey key, final String provider) throws GeneralSecurityException {
+        if (!verifiedKeys.contains(key)) {
+            crl.verify(key, provider);
+            verifiedKeys.add(key);
+        }
+    }
+
+    /**
+     * @param serialNumber to look for
+     * @return true if the CRL has an entry with the serial number
+     */
+    public boolean containsSerialNumber(final BigInteger serialNumber) {
+        if (serialNumber.signum() < 0) {
+            return negativeSerials.contains(serialNumber);
+        }
+        final byte[] key = serialNumber.toByteArray();
+        int low = 0;
+        int high = offsets.length - 2;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compare(serials, offsets[mid], offsets[mid + 1], key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the CRL entry for the certificate.
+     *
+     * @param cert to look for
+     * @return the entry or null if the certificate is not in the CRL
+     * @see X509CRL#getRevokedCertificate(java.security.cert.X509Certificate)
+     */
+    public X509CRLEntry getRevokedCertificate(final X509Certificate cert) {
+        if (!containsSerialNumber(cert.getSerialNumber())) {
+            return null;
+        }
+        return crl.getRevokedCertificate(cert);
+    }
+
+    private static int compare(final byte[] a, final byte[] b) {
+        return compare(a, 0, a.length, b);
+    }
+
+    private static int compare(final byte[] data, final int start, final int end, final byte[] key) {
+        final int length = end - start;
+        if (length != key.length) {
+            return length < key.length ? -1 : 1;
+        }
+        for (int i = 0; i < length; i++) {
+            final int x = data[start + i] & 0xff;
+            final int y = key[i] & 0xff;
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+}
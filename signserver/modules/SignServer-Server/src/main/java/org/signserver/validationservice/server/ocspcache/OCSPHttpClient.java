@@ -0,0 +1,158 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server.ocspcache;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Sends OCSP requests over persistent HTTP connections.
+ *
+ * The connections are pooled per responder and kept open between the
+ * requests, so that a validation does not have to connect to the
+ * responder for each certificate.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class OCSPHttpClient {
+
+    /** Default maximum number of open connections to each responder. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_RESPONDER = 10;
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(OCSPHttpClient.class);
+
+    private static final String OCSP_REQUEST_CONTENT_TYPE = "application/ocsp-request";
+
+    private static OCSPHttpClient instance;
+
+    private final CloseableHttpClient client;
+
+    OCSPHttpClient() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_RESPONDER);
+    }
+
+    /**
+     * @param maxConnectionsPerResponder maximum number of open connections to each responder
+     */
+    OCSPHttpClient(final int maxConnectionsPerResponder) {
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerResponder);
+        connectionManager.setMaxTotal(Math.max(maxConnectionsPerResponder, DEFAULT_MAX_CONNECTIONS_PER_RESPONDER * 10));
+        client = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .useSystemProperties()
+                .disableRedirectHandling()
+                .disableCookieManagement()
+                .build();
+    }
+
+    /**
+     * @return the node-wide instance with the default settings
+     */
+    public static synchronized OCSPHttpClient getInstance() {
+        if (instance == null) {
+            instance = new OCSPHttpClient();
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the connections of the node-wide instance. Called when the
+     * application is undeployed.
+     */
+    static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Closes the open connections.
+     */
+    void close() {
+        try {
+            client.close();
+        } catch (IOException ex) {
+            LOG.warn("Could not close OCSP connections: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * POSTs the OCSP request to the responder. The response body is read
+     * completely so that the connection can be reused.
+     *
+     * @param url of the responder
+     * @param request DER encoded OCSP request
+     * @return the response
+     * @throws IOException in case of failure communicating with the responder
+     */
+    public Response post(final URL url, final byte[] request) throws IOException {
+        final HttpPost post;
+        try {
+            post = new HttpPost(url.toURI());
+        } catch (URISyntaxException ex) {
+            throw new IOException("Malformed OCSP responder URL: " + url, ex);
+        }
+        post.setEntity(new ByteArrayEntity(request, ContentType.create(OCSP_REQUEST_CONTENT_TYPE)));
+
+        try (CloseableHttpResponse response = client.execute(post)) {
+            final HttpEntity entity = response.getEntity();
+            final Header contentType = entity == null ? null : entity.getContentType();
+            return new Response(response.getStatusLine().getStatusCode(),
+                    contentType == null ? null : contentType.getValue(),
+                    entity == null ? null : EntityUtils.toByteArray(entity));
+        }
+    }
+
+    /**
+     * Response from the responder.
+     */
+    public static class Response {
+        private final int statusCode;
+        private final String contentType;
+        private final byte[] body;
+
+        Response(int statusCode, String contentType, byte[] body) {
+            this.statusCode = statusCode;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server.ocspcache;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.util.encoders.Hex;
+import org.signserver.common.SignServerException;
+
+/**
+ * Node-wide cache of OCSP responses by responder URL and CertID.
+ *
+ * A response is cached until the nextUpdate of the response for the
+ * certificate, but at most for the maximum age, which is also used for
+ * responses without nextUpdate. Concurrent requests for the same
+ * certificate share the same request to the responder, which is sent over
+ * a persistent connection by {@link OCSPHttpClient}.
+ *
+ * The cached responses are still parsed and verified by the callers. A
+ * response that fails verification should be removed with
+ * {@link #invalidate(java.net.URL, org.bouncycastle.cert.ocsp.OCSPReq)}.
+ *
+ * Optionally responses used at least a given number of times are fetched
+ * again in the background after four fifths of their time in the cache so
+ * that the validations of frequently seen certificates do not wait for the
+ * responder.
+ *
+ * The cache is configured by the validator properties. Validators with
+ * the same settings share one instance and its connections while
+ * validators with different settings each get their own. The prefetcher and
+ * the connections are closed by {@link #shutdown()} when the application is
+ * undeployed.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class OCSPResponseCache {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(OCSPResponseCache.class);
+
+    /** Property with the maximum time in seconds to cache a response, 0 to not cache. */
+    public static final String PROPERTY_OCSPCACHE_MAXAGE = "OCSPCACHE_MAXAGE";
+
+    /** Property with the maximum number of cached responses. */
+    public static final String PROPERTY_OCSPCACHE_MAXENTRIES = "OCSPCACHE_MAXENTRIES";
+
+    /** Property with the number of uses after which a response is fetched again before it expires, 0 to disable. */
+    public static final String PROPERTY_OCSPCACHE_PREFETCH_HITS = "OCSPCACHE_PREFETCH_HITS";
+
+    /** Property with the maximum number of open connections to each responder. */
+    public static final String PROPERTY_OCSP_MAXCONNECTIONS = "OCSP_MAXCONNECTIONS";
+
+    public static final long DEFAULT_OCSPCACHE_MAXAGE = 300L;
+    public static final int DEFAULT_OCSPCACHE_MAXENTRIES = 10000;
+    public static final int DEFAULT_OCSPCACHE_PREFETCH_HITS = 0;
+
+    private static final String OCSP_RESPONSE_CONTENT_TYPE = "application/ocsp-response";
+
+    /** Instances by maximum age, maximum entries, prefetch hits and maximum connections. */
+    private static final ConcurrentMap<List<Long>, OCSPResponseCache> INSTANCES = new ConcurrentHashMap<>();
+
+    private static volatile ExecutorService prefetcher;
+
+    private final OCSPHttpClient client;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<byte[]>> fetches = new ConcurrentHashMap<>();
+
+    private final long maxAge;
+    private final int maxEntries;
+    private final int prefetchHits;
+
+    OCSPResponseCache(final OCSPHttpClient client) {
+        this(client, DEFAULT_OCSPCACHE_MAXAGE * 1000L, DEFAULT_OCSPCACHE_MAXENTRIES, DEFAULT_OCSPCACHE_PREFETCH_HITS);
+    }
+
+    OCSPResponseCache(final OCSPHttpClient client, final long maxAge, final int maxEntries, final int prefetchHits) {
+        this.client = client;
+        this.maxAge = maxAge;
+        this.maxEntries = maxEntries;
+        this.prefetchHits = prefetchHits;
+    }
+
+    /**
+     * Get the instance for the settings in the validator properties.
+     *
+     * @param props of the validator
+     * @return the instance shared by validators with the same settings
+     * @throws SignServerException in case of incorrect values
+     */
+    public static OCSPResponseCache getInstance(final Properties props) throws SignServerException {
+        final long maxAge = getLong(props, PROPERTY_OCSPCACHE_MAXAGE, DEFAULT_OCSPCACHE_MAXAGE);
+        final long maxEntries = Math.min(getLong(props, PROPERTY_OCSPCACHE_MAXENTRIES, DEFAULT_OCSPCACHE_MAXENTRIES), Integer.MAX_VALUE);
+        final long prefetchHits = Math.min(getLong(props, PROPERTY_OCSPCACHE_PREFETCH_HITS, DEFAULT_OCSPCACHE_PREFETCH_HITS), Integer.MAX_VALUE);
+        final long maxConnections = Math.min(getLong(props, PROPERTY_OCSP_MAXCONNECTIONS, OCSPHttpClient.DEFAULT_MAX_CONNECTIONS_PER_RESPONDER), Integer.MAX_VALUE);
+        if (maxConnections < 1) {
+            throw new SignServerException("Incorrect value for property " + PROPERTY_OCSP_MAXCONNECTIONS + ": must be at least 1");
+        }
+        return INSTANCES.computeIfAbsent(Arrays.asList(maxAge, maxEntries, prefetchHits, maxConnections),
+                key -> new OCSPResponseCache(new OCSPHttpClient((int) maxConnections), maxAge * 1000L, (int) maxEntries, (int) prefetchHits));
+    }
+
+    /**
+     * Stops the prefetcher, closes the connections, also those of the
+     * node-wide OCSPHttpClient, and drops all instances.
+     * Called when the application is undeployed.
+     */
+    public static void shutdown() {
+        final ExecutorService executor;
+        synchronized (OCSPResponseCache.class) {
+            executor = prefetcher;
+            prefetcher = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (OCSPResponseCache instance : INSTANCES.values()) {
+            instance.client.close();
+        }
+        INSTANCES.clear();
+        OCSPHttpClient.shutdown();
+    }
+
+    private static long getLong(final Properties props, final String property, final long defaultValue) throws SignServerException {
+        final String value = props.getProperty(property);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            final long result = Long.parseLong(value.trim());
+            if (result < 0) {
+                throw new SignServerException("Incorrect value for property " + property + ": must not be negative");
+            }
+            return result;
+        } catch (NumberFormatException ex) {
+            throw new SignServerException("Incorrect value for property " + property + ": " + value);
+        }
+    }
+
+    /**
+     * Get the response for the request, sending it to the responder if no
+     * response is cached.
+     *
+     * @param url of the responder
+     * @param request for a single certificate
+     * @return DER encoded OCSP response
+     * @throws IOException in case of failure communicating with the responder
+     * @throws SignServerException in case of an unexpected response
+     */
+    public byte[] getResponse(final URL url, final OCSPReq request) throws IOException, SignServerException {
+        final String key = getKey(url, request);
+        if (key == null) {
+            return fetch(url, request.getEncoded());
+        }
+
+        final Entry cached = entries.get(key);
+        final long now = System.currentTimeMillis();
+        if (cached != null && now < cached.expireTime) {
+            final int hits = cached.hits.incrementAndGet();
+            final int prefetch = prefetchHits;
+            if (prefetch > 0 && hits >= prefetch && now >= cached.refreshTime && !fetches.containsKey(key)) {
+                prefetch(key, url, cached);
+            }
+            return cached.response;
+        }
+        return fetchAndCache(key, url, request.getEncoded());
+    }
+
+    /**
+     * Removes the cached response for the request.
+     *
+     * @param url of the responder
+     * @param request for a single certificate
+     */
+    public void invalidate(final URL url, final OCSPReq request) {
+        final String key = getKey(url, request);
+        if (key != null) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return number of cached responses
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    private static String getKey(final URL url, final OCSPReq request) {
+        final Req[] requests = request.getRequestList();
+        if (requests.length != 1 || request.hasExtensions()) {
+            // Only requests for one certificate and without nonce are cached
+            return null;
+        }
+        return url.toExternalForm() + " " + Hex.toHexString(getEncoded(requests[0].getCertID()));
+    }
+
+    private static byte[] getEncoded(final CertificateID certId) {
+        try {
+            return certId.toASN1Primitive().getEncoded();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private byte[] fetchAndCache(final String key, final URL url, final byte[] request) throws IOException, SignServerException {
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        final CompletableFuture<byte[]> ongoing = fetches.putIfAbsent(key, future);
+        if (ongoing != null) {
+            return await(ongoing, url);
+        }
+        try {
+            final byte[] result = fetch(url, request);
+            cache(key, request, result);
+            future.complete(result);
+            return result;
+        } catch (IOException | SignServerException | RuntimeException ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            fetches.remove(key, future);
+        }
+    }
+
+    private static byte[] await(final CompletableFuture<byte[]> future, final URL url) throws IOException, SignServerException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SignServerException("Interrupted while waiting for OCSP response from " + url, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof SignServerException) {
+                throw (SignServerException) ex.getCause();
+            }
+            throw new SignServerException("Failed to get OCSP response from " + url, ex.getCause());
+        }
+    }
+
+    private byte[] fetch(final URL url, final byte[] request) throws IOException, SignServerException {
+        final OCSPHttpClient.Response response = client.post(url, request);
+
+        // See if we received proper response
+        if (response.getStatusCode() != 200) {
+            throw new SignServerException("Response code unexpected. Expecting : HTTP_OK(200). Received :  " + response.getStatusCode());
+        }
+
+        // See if the response is of proper MIME type
+        if (response.getContentType() == null || !response.getContentType().equals(OCSP_RESPONSE_CONTENT_TYPE)) {
+            throw new SignServerException("Response type unexpected. Expecting : application/ocsp-response, Received : " + response.getContentType());
+        }
+        if (response.getBody() == null) {
+            throw new SignServerException("No OCSP response received from : " + url);
+        }
+        return response.getBody();
+    }
+
+    private void cache(final String key, final byte[] request, final byte[] response) {
+        final long fetchTime = System.currentTimeMillis();
+        long expireTime = fetchTime + maxAge;
+        try {
+            final CertificateID certId = new OCSPReq(request).getRequestList()[0].getCertID();
+            final OCSPResp resp = new OCSPResp(response);
+            if (resp.getStatus() != OCSPResponseStatus.SUCCESSFUL || !(resp.getResponseObject() instanceof BasicOCSPResp)) {
+                return;
+            }
+            boolean found = false;
+            for (SingleResp single : ((BasicOCSPResp) resp.getResponseObject()).getResponses()) {
+                if (certId.equals(single.getCertID())) {
+                    found = true;
+                    if (single.getNextUpdate() != null) {
+                        expireTime = Math.min(expireTime, single.getNextUpdate().getTime());
+                    }
+                }
+            }
+            if (!found) {
+                return;
+            }
+        } catch (IOException | OCSPException | RuntimeException ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Not caching unparsable OCSP response: " + ex.getMessage());
+            }
+            return;
+        }
+        if (expireTime <= fetchTime) {
+            return;
+        }
+
+        if (entries.size() >= maxEntries) {
+            entries.values().removeIf(entry -> entry.expireTime <= fetchTime);
+            if (entries.size() >= maxEntries) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("OCSP response cache full");
+                }
+                return;
+            }
+        }
+        entries.put(key, new Entry(request, response, fetchTime + (expireTime - fetchTime) * 4 / 5, expireTime));
+    }
+
+    private void prefetch(final String key, final URL url, final Entry entry) {
+        try {
+            getPrefetcher().execute(() -> {
+                try {
+                    fetchAndCache(key, url, entry.request);
+                } catch (IOException | SignServerException | RuntimeException ex) {
+                    LOG.warn("Could not prefetch OCSP response from " + url + ": " + ex.getMessage());
+                }
+            });
+        } catch (RuntimeException ex) {
+            // Queue full, try again at the next lookup
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Not prefetching OCSP response from " + url + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private static ExecutorService getPrefetcher() {
+        ExecutorService result = prefetcher;
+        if (result == null) {
+            synchronized (OCSPResponseCache.class) {
+                result = prefetcher;
+                if (result == null) {
+                    final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(1000), r -> {
+                        final Thread thread = new Thread(r, "OCSPResponseCache-prefetcher");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    prefetcher = result = executor;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cached response.
+     */
+    private static class Entry {
+        private final byte[] request;
+        private final byte[] response;
+        private final long refreshTime;
+        private final long expireTime;
+        private final AtomicInteger hits = new AtomicInteger();
+
+        Entry(byte[] request, byte[] response, long refreshTime, long expireTime) {
+            this.request = request;
+            this.response = response;
+            this.refreshTime = refreshTime;
+            this.expireTime = expireTime;
+        }
+    }
+}
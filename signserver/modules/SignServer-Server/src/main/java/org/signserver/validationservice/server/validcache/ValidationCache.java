@@ -12,10 +12,22 @@
  *************************************************************************/
 package org.signserver.validationservice.server.validcache;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
 import org.cesecore.util.CertTools;
 
 import org.signserver.validationservice.common.Validation;
@@ -25,14 +37,37 @@ import org.signserver.validationservice.common.Validation;
  * configured amount of time. It only caches certificate
  * of a given issuers.
  *
+ * Validations are looked up by the SHA-256 fingerprint of the certificate
+ * without locking. As all validations are cached for the same time they
+ * expire in the order they were added, so they are kept in a queue in that
+ * order and when adding a validation the expired ones, and the oldest ones
+ * if there are more than the maximum number of entries, are removed from
+ * the head of the queue. A validation found to have expired when looked up
+ * is treated as not cached.
+ *
  * @author Philip Vendil 26 nov 2007
  * @version $Id$
  */
 public class ValidationCache {
 
-    private Set<String> cachedIssuersDNSet = new HashSet<>();
-    private ValidationMap validationMap = new ValidationMap();
-    private TimeQueue timeQueue;
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(ValidationCache.class);
+
+    /** Default maximum number of cached validations. */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final Set<String> cachedIssuersDNSet = new HashSet<>();
+    private final long cacheTimeNanos;
+    private final int maxEntries;
+
+    private final ConcurrentMap<Fingerprint, Entry> validationMap = new ConcurrentHashMap<>();
+    private final Queue<Entry> timeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger timeQueueSize = new AtomicInteger();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
 
     /**
      * Constructor creating a ValidationCache
@@ -41,8 +76,20 @@ public class ValidationCache {
      * @param cacheTimeMS time in milliseconds of how long it should be cached.
      */
     public ValidationCache(List<String> cachedIssuersDN, long cacheTimeMS) {
+        this(cachedIssuersDN, cacheTimeMS, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Constructor creating a ValidationCache
+     * 
+     * @param cachedIssuersDN a list of issuer DNs that should be cached.
+     * @param cacheTimeMS time in milliseconds of how long it should be cached.
+     * @param maxEntries maximum number of validations to cache.
+     */
+    public ValidationCache(List<String> cachedIssuersDN, long cacheTimeMS, int maxEntries) {
         cachedIssuersDNSet.addAll(cachedIssuersDN);
-        timeQueue = new TimeQueue(validationMap, cacheTimeMS);
+        this.cacheTimeNanos = cacheTimeMS * 1000000L;
+        this.maxEntries = maxEntries;
     }
 
     /**
@@ -53,9 +100,15 @@ public class ValidationCache {
      * @param validation the validation to add.
      */
     public void put(Certificate cert, Validation validation) {
-        if (cachedIssuersDNSet.contains(CertTools.getIssuerDN(cert))) {
-            timeQueue.pushNew(cert);
-            validationMap.put(cert, validation);
+        if (maxEntries > 0 && cachedIssuersDNSet.contains(CertTools.getIssuerDN(cert))) {
+            final Fingerprint key = Fingerprint.of(cert);
+            if (key != null) {
+                final Entry entry = new Entry(key, validation, System.nanoTime() + cacheTimeNanos);
+                validationMap.put(key, entry);
+                timeQueue.add(entry);
+                timeQueueSize.incrementAndGet();
+                evict();
+            }
         }
     }
 
@@ -65,7 +118,136 @@ public class ValidationCache {
      * @return the validation if it exists otherwise null.
      */
     public Validation get(Certificate cert) {
-        timeQueue.popOld();
-        return validationMap.get(cert);
+        final Fingerprint key = validationMap.isEmpty() ? null : Fingerprint.of(cert);
+        final Entry entry = key == null ? null : validationMap.get(key);
+        if (entry == null || entry.expireTime - System.nanoTime() <= 0) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.validation;
+    }
+
+    /**
+     * Removes the expired entries and, if there are too many, the oldest
+     * entries. The queue can hold entries replaced in the map, which are
+     * removed the same way.
+     */
+    private void evict() {
+        final boolean full = timeQueueSize.get() > maxEntries;
+        if (full) {
+            evictionLock.lock();
+        } else if (!evictionLock.tryLock()) {
+            // Some other thread is already removing the expired entries
+            return;
+        }
+        try {
+            final long now = System.nanoTime();
+            Entry oldest;
+            while ((oldest = timeQueue.peek()) != null) {
+                final boolean expired = oldest.expireTime - now <= 0;
+                if (!expired && timeQueueSize.get() <= maxEntries) {
+                    break;
+                }
+                timeQueue.remove();
+                timeQueueSize.decrementAndGet();
+                if (validationMap.remove(oldest.key, oldest) && !expired) {
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return number of cached validations, including expired ones not yet
+     * removed
+     */
+    public int getSize() {
+        return validationMap.size();
+    }
+
+    /**
+     * @return maximum number of cached validations
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return number of lookups finding a cached validation
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups not finding a cached validation
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of validations removed before they expired because the
+     * cache was full
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Cached validation with the time it expires.
+     */
+    private static class Entry {
+        private final Fingerprint key;
+        private final Validation validation;
+        private final long expireTime;
+
+        Entry(Fingerprint key, Validation validation, long expireTime) {
+            this.key = key;
+            this.validation = validation;
+            this.expireTime = expireTime;
+        }
+    }
+
+    /**
+     * SHA-256 fingerprint of the encoded certificate.
+     */
+    private static class Fingerprint {
+        private final byte[] digest;
+        private final int hashCode;
+
+        private Fingerprint(byte[] digest) {
+            this.digest = digest;
+            this.hashCode = Arrays.hashCode(digest);
+        }
+
+        /**
+         * @param cert to get the fingerprint of
+         * @return the fingerprint or null if the certificate could not be
+         * encoded
+         */
+        static Fingerprint of(Certificate cert) {
+            try {
+                return new Fingerprint(MessageDigest.getInstance("SHA-256").digest(cert.getEncoded()));
+            } catch (CertificateEncodingException | NoSuchAlgorithmException ex) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Not caching validation of certificate: " + ex.getMessage());
+                }
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Fingerprint && Arrays.equals(digest, ((Fingerprint) o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
     }
 }
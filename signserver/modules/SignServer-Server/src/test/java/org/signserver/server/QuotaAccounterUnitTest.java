@@ -0,0 +1,155 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+import java.util.Properties;
+import org.junit.Test;
+import org.signserver.common.RequestContext;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the QuotaAccounter class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class QuotaAccounterUnitTest {
+
+    private static final IClientCredential USER1 = new UsernamePasswordClientCredential("user1", "foo123");
+    private static final IClientCredential USER2 = new UsernamePasswordClientCredential("user2", "foo123");
+    private static final IClientCredential CERT1 = new CertificateClientCredential("1234abcd", "CN=Client CA");
+
+    private static QuotaAccounter createAccounter(final Properties props) {
+        final QuotaAccounter instance = new QuotaAccounter();
+        instance.init(props);
+        return instance;
+    }
+
+    private static boolean process(final QuotaAccounter instance, final IClientCredential credential) throws Exception {
+        final RequestContext context = new RequestContext();
+        return instance.isGranted(credential, null, context)
+                && instance.purchase(credential, null, null, context);
+    }
+
+    /**
+     * Tests that all requests are granted without configured limits, also
+     * without credential.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testNoLimits() throws Exception {
+        final QuotaAccounter instance = createAccounter(new Properties());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(process(instance, USER1));
+            assertTrue(process(instance, null));
+        }
+    }
+
+    /**
+     * Tests that the quota is counted per client and that clients can have
+     * their own limits.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testQuotaPerClient() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty(QuotaAccounter.QUOTA_LIMIT, "3");
+        props.setProperty(QuotaAccounter.QUOTA_LIMITS, "user2:1; 1234abcd,CN=Client CA:2");
+        final QuotaAccounter instance = createAccounter(props);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue("user1 " + i, process(instance, USER1));
+        }
+        assertFalse("user1 used up", process(instance, USER1));
+        assertTrue("user2", process(instance, USER2));
+        assertFalse("user2 used up", process(instance, USER2));
+        assertTrue("cert1", process(instance, CERT1));
+        assertTrue("cert1", process(instance, CERT1));
+        assertFalse("cert1 used up", process(instance, CERT1));
+        assertFalse("no credential", process(instance, null));
+
+        // Reload resets the counters
+        instance.init(props);
+        assertTrue("user1 after reload", process(instance, USER1));
+    }
+
+    /**
+     * Tests that purchase does not grant more than the quota when
+     * concurrent requests all passed the check before processing.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testQuotaChargedAfterCheck() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty(QuotaAccounter.QUOTA_LIMIT, "2");
+        final QuotaAccounter instance = createAccounter(props);
+        final RequestContext context = new RequestContext();
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(instance.isGranted(USER1, null, context));
+        }
+        assertTrue(instance.purchase(USER1, null, null, context));
+        assertTrue(instance.purchase(USER1, null, null, context));
+        assertFalse(instance.purchase(USER1, null, null, context));
+    }
+
+    /**
+     * Tests that the rate limit allows the burst and then rejects requests.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRateLimit() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty(QuotaAccounter.RATE_LIMIT, "0.1");
+        props.setProperty(QuotaAccounter.RATE_BURST, "3");
+        final QuotaAccounter instance = createAccounter(props);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue("burst " + i, process(instance, USER1));
+        }
+        assertFalse("rate limited", process(instance, USER1));
+        assertTrue("other client", process(instance, USER2));
+    }
+
+    /**
+     * Tests that no more than the maximum number of clients are counted and
+     * that the counters are dropped after the quota period.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testMaxClients() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty(QuotaAccounter.QUOTA_LIMIT, "1");
+        props.setProperty(QuotaAccounter.QUOTA_PERIOD, "1");
+        props.setProperty(QuotaAccounter.QUOTA_MAXCLIENTS, "2");
+        final QuotaAccounter instance = createAccounter(props);
+
+        // Wait for the start of a period
+        final long start = System.currentTimeMillis();
+        Thread.sleep(1000 - start % 1000 + 10);
+        assertTrue("user1", process(instance, USER1));
+        assertTrue("user2", process(instance, USER2));
+        assertFalse("maximum clients", process(instance, CERT1));
+        assertEquals("counted clients", 2, instance.getAccountCount());
+
+        // After the period the counters are not needed any more
+        Thread.sleep(1000);
+        assertTrue("cert1 after period", process(instance, CERT1));
+        assertEquals("counted clients after period", 1, instance.getAccountCount());
+    }
+}
@@ -0,0 +1,95 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.Transformer;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the XMLProcessors class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class XMLProcessorsUnitTest {
+
+    private static Document parse(final XMLProcessors instance, final String xml) throws Exception {
+        return instance.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Tests parsing and serializing documents several times.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testParseAndTransform() throws Exception {
+        final XMLProcessors instance = new XMLProcessors();
+        for (int i = 0; i < 3; i++) {
+            final Document doc = parse(instance, "<root xmlns=\"urn:test\"><data>" + i + "</data></root>");
+            assertEquals("namespace", "urn:test", doc.getDocumentElement().getNamespaceURI());
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            instance.transform(doc, out);
+            final String result = out.toString(StandardCharsets.UTF_8.name());
+            assertTrue("result: " + result, result.contains("<data>" + i + "</data>"));
+        }
+    }
+
+    /**
+     * Tests that documents with a DOCTYPE declaration are rejected, also
+     * after a failed parse.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDoctypeNotAllowed() throws Exception {
+        final XMLProcessors instance = new XMLProcessors();
+        for (int i = 0; i < 2; i++) {
+            try {
+                parse(instance, "<?xml version=\"1.0\"?><!DOCTYPE root [<!ENTITY e SYSTEM \"file:///etc/passwd\">]><root>&e;</root>");
+                fail("Should have failed");
+            } catch (SAXException expected) { // NOPMD
+                // OK
+            }
+            assertNotNull("parser usable after failure", parse(instance, "<root/>"));
+        }
+    }
+
+    /**
+     * Tests that a document builder is reused after it has been returned
+     * and that it is not handed out to anyone else while borrowed.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDocumentBuilderPool() throws Exception {
+        final XMLProcessors instance = new XMLProcessors();
+        final DocumentBuilder builder = instance.borrowDocumentBuilder();
+        assertNotSame("borrowed", builder, instance.borrowDocumentBuilder());
+        instance.returnDocumentBuilder(builder);
+        assertSame("returned", builder, instance.borrowDocumentBuilder());
+
+        final Transformer transformer = instance.borrowTransformer();
+        assertNotSame("transformer borrowed", transformer, instance.borrowTransformer());
+        instance.returnTransformer(transformer);
+        assertSame("transformer returned", transformer, instance.borrowTransformer());
+    }
+}
@@ -0,0 +1,217 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.cryptotokens;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.signserver.common.CryptoTokenOfflineException;
+
+/**
+ * Unit tests for the CryptoInstancePool class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class CryptoInstancePoolUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(CryptoInstancePoolUnitTest.class);
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private CryptoInstancePool createPool(int minSize, int maxSize, long idleTimeout, long borrowTimeout) {
+        return new CryptoInstancePool("test", () -> {
+            created.incrementAndGet();
+            return new DefaultCryptoInstance("key1", null, null, null, (java.security.PublicKey) null);
+        }, new CryptoInstancePool.Settings(minSize, maxSize, idleTimeout, borrowTimeout));
+    }
+
+    /**
+     * Tests that released instances are reused.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testReuse() throws Exception {
+        LOG.info(">testReuse");
+        final CryptoInstancePool instance = createPool(0, 2, 60000, 1000);
+        final PooledCryptoInstance first = instance.borrow();
+        assertTrue("released", instance.release(first));
+        final PooledCryptoInstance second = instance.borrow();
+        assertSame("reused instance", first.getDelegate(), second.getDelegate());
+        assertEquals("created", 1, created.get());
+        assertEquals("borrowed", 1, instance.getBorrowedCount());
+    }
+
+    /**
+     * Tests that an instance knows its pool and that giving it back a
+     * second time does not give back the next borrower's instance.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testReleaseTwice() throws Exception {
+        LOG.info(">testReleaseTwice");
+        final CryptoInstancePool instance = createPool(0, 1, 60000, 50);
+        final PooledCryptoInstance first = instance.borrow();
+        assertSame("pool", instance, first.getPool());
+        assertTrue("released", first.release());
+        final PooledCryptoInstance second = instance.borrow();
+        assertFalse("already released", first.release());
+        assertEquals("borrowed", 1, instance.getBorrowedCount());
+        try {
+            instance.borrow();
+            fail("Should have timed out");
+        } catch (CryptoTokenOfflineException expected) { // NOPMD
+            // OK
+        }
+        assertTrue("released", second.release());
+    }
+
+    /**
+     * Tests that the pool is not bounded with a maximum size of 0.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testUnbounded() throws Exception {
+        LOG.info(">testUnbounded");
+        final CryptoInstancePool instance = createPool(0, 0, 60000, 50);
+        final List<ICryptoInstance> instances = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            instances.add(instance.borrow());
+        }
+        assertEquals("borrowed", 100, instance.getBorrowedCount());
+        for (ICryptoInstance borrowed : instances) {
+            assertTrue("released", instance.release(borrowed));
+        }
+        assertEquals("idle", 100, instance.getIdleCount());
+    }
+
+    /**
+     * Tests that the pool does not create more than the maximum number of
+     * instances and that borrowing times out when all are in use.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testMaxSizeAndBorrowTimeout() throws Exception {
+        LOG.info(">testMaxSizeAndBorrowTimeout");
+        final CryptoInstancePool instance = createPool(0, 2, 60000, 50);
+        final PooledCryptoInstance first = instance.borrow();
+        final PooledCryptoInstance second = instance.borrow();
+        assertNotSame("different instances", first.getDelegate(), second.getDelegate());
+        try {
+            instance.borrow();
+            fail("Should have timed out");
+        } catch (CryptoTokenOfflineException expected) { // NOPMD
+            // OK
+        }
+        instance.release(first);
+        assertSame("released instance", first.getDelegate(), instance.borrow().getDelegate());
+        assertEquals("created", 2, created.get());
+    }
+
+    /**
+     * Tests that instances not borrowed from the pool are not accepted.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testReleaseForeignInstance() throws Exception {
+        LOG.info(">testReleaseForeignInstance");
+        final CryptoInstancePool instance = createPool(0, 2, 60000, 1000);
+        assertFalse("not from pool", instance.release(new DefaultCryptoInstance("key1", null, null, null, (java.security.PublicKey) null)));
+        assertEquals("idle", 0, instance.getIdleCount());
+    }
+
+    /**
+     * Tests that idle instances are evicted but not below the minimum size.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testPrefillAndIdleEviction() throws Exception {
+        LOG.info(">testPrefillAndIdleEviction");
+        final CryptoInstancePool instance = createPool(1, 4, 0, 1000);
+        instance.prefill();
+        assertEquals("prefilled", 1, instance.getIdleCount());
+
+        final List<ICryptoInstance> instances = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            instances.add(instance.borrow());
+        }
+        for (ICryptoInstance borrowed : instances) {
+            instance.release(borrowed);
+        }
+        assertEquals("all idle", 3, instance.getIdleCount());
+        Thread.sleep(5);
+
+        // Borrowing evicts the expired ones but keeps the minimum
+        instance.release(instance.borrow());
+        assertEquals("idle after eviction", 1, instance.getIdleCount());
+    }
+
+    /**
+     * Tests that a closed pool drops instances released to it.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testClose() throws Exception {
+        LOG.info(">testClose");
+        final CryptoInstancePool instance = createPool(0, 2, 60000, 1000);
+        final ICryptoInstance borrowed = instance.borrow();
+        instance.close();
+        assertTrue("released", instance.release(borrowed));
+        assertEquals("idle", 0, instance.getIdleCount());
+        try {
+            instance.borrow();
+            fail("Should not be able to borrow from closed pool");
+        } catch (CryptoTokenOfflineException expected) { // NOPMD
+            // OK
+        }
+    }
+
+    /**
+     * Tests parsing of the pool properties.
+     */
+    @Test
+    public void testSettingsFromProperties() {
+        LOG.info(">testSettingsFromProperties");
+        final Properties props = new Properties();
+        final List<String> errors = new ArrayList<>();
+        CryptoInstancePool.Settings settings = CryptoInstancePool.Settings.fromProperties(props, errors);
+        assertTrue("errors: " + errors, errors.isEmpty());
+        assertEquals("default max", 64, settings.getMaxSize());
+
+        props.setProperty(CryptoInstancePool.PROPERTY_POOL_MINSIZE, "2");
+        props.setProperty(CryptoInstancePool.PROPERTY_POOL_MAXSIZE, " 8 ");
+        props.setProperty(CryptoInstancePool.PROPERTY_POOL_BORROWTIMEOUT, "100");
+        settings = CryptoInstancePool.Settings.fromProperties(props, errors);
+        assertTrue("errors: " + errors, errors.isEmpty());
+        assertEquals("min", 2, settings.getMinSize());
+        assertEquals("max", 8, settings.getMaxSize());
+        assertEquals("borrow timeout", 100, settings.getBorrowTimeout());
+
+        props.setProperty(CryptoInstancePool.PROPERTY_POOL_MAXSIZE, "-1");
+        props.setProperty(CryptoInstancePool.PROPERTY_POOL_IDLETIMEOUT, "abc");
+        CryptoInstancePool.Settings.fromProperties(props, errors);
+        assertEquals("errors: " + errors, 2, errors.size());
+    }
+}
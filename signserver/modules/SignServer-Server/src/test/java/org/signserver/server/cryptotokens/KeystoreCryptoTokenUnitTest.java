@@ -0,0 +1,138 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.cryptotokens;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Properties;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signserver.common.RequestContext;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the KeystoreCryptoToken class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class KeystoreCryptoTokenUnitTest {
+
+    private static final String ALIAS = "key1";
+    private static final String PASSWORD = "foo123";
+
+    private static KeyPair keyPair;
+
+    private File keystoreFile;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        final KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        keyPair = kpg.generateKeyPair();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        keystoreFile = File.createTempFile("keystore", ".p12");
+        final KeyStore ks = KeyStore.getInstance("PKCS12", "BC");
+        ks.load(null, null);
+        ks.setKeyEntry(ALIAS, keyPair.getPrivate(), PASSWORD.toCharArray(),
+                new Certificate[] { createCertificate("CN=Dummy,L=_SignServer_DUMMY_CERT_") });
+        try (OutputStream out = new FileOutputStream(keystoreFile)) {
+            ks.store(out, PASSWORD.toCharArray());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        keystoreFile.delete();
+    }
+
+    private static X509Certificate createCertificate(final String subject) throws Exception {
+        final X500Name name = new X500Name(subject);
+        return new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(name,
+                BigInteger.valueOf(System.nanoTime()), new Date(System.currentTimeMillis() - 60000),
+                new Date(System.currentTimeMillis() + 3600000), name, keyPair.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+    }
+
+    private KeystoreCryptoToken createToken() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty(KeystoreCryptoToken.KEYSTORETYPE, KeystoreCryptoToken.TYPE_PKCS12);
+        props.setProperty(KeystoreCryptoToken.KEYSTOREPATH, keystoreFile.getAbsolutePath());
+        props.setProperty(KeystoreCryptoToken.KEYSTOREPASSWORD, PASSWORD);
+        props.setProperty(KeystoreCryptoToken.DEFAULTKEY, ALIAS);
+        final KeystoreCryptoToken instance = new KeystoreCryptoToken();
+        instance.init(1, props, null);
+        return instance;
+    }
+
+    /**
+     * Tests that the dummy certificate is only included when requested.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testAcquireWithDummyCertificate() throws Exception {
+        final KeystoreCryptoToken instance = createToken();
+
+        final ICryptoInstance withoutCert = instance.acquireCryptoInstance(ALIAS, Collections.emptyMap(), new RequestContext());
+        assertNull("no chain", withoutCert.getCertificateChain());
+        assertEquals("public key", keyPair.getPublic(), withoutCert.getPublicKey());
+        assertEquals("private key", keyPair.getPrivate(), withoutCert.getPrivateKey());
+
+        final ICryptoInstance withCert = instance.acquireCryptoInstance(ALIAS,
+                Collections.singletonMap(ICryptoTokenV4.PARAM_INCLUDE_DUMMYCERTIFICATE, true), new RequestContext());
+        assertEquals("dummy chain", 1, withCert.getCertificateChain().size());
+        assertSame("same provider", withoutCert.getProvider(), withCert.getProvider());
+    }
+
+    /**
+     * Tests that an imported certificate chain is used for new requests
+     * while earlier instances keep theirs.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testImportCertificateChain() throws Exception {
+        final KeystoreCryptoToken instance = createToken();
+        final ICryptoInstance before = instance.acquireCryptoInstance(ALIAS,
+                Collections.singletonMap(ICryptoTokenV4.PARAM_INCLUDE_DUMMYCERTIFICATE, true), new RequestContext());
+
+        final X509Certificate cert = createCertificate("CN=Signer");
+        instance.importCertificateChain(Collections.singletonList(cert), ALIAS, null, Collections.emptyMap(), null);
+
+        final ICryptoInstance after = instance.acquireCryptoInstance(ALIAS, Collections.emptyMap(), new RequestContext());
+        assertEquals("new chain", Collections.singletonList(cert), after.getCertificateChain());
+        assertNotEquals("earlier instance unchanged", cert, before.getCertificate());
+    }
+}
@@ -303,6 +303,47 @@ public class DataFactoryUnitTest {
         assertFalse("file removed", file.exists());
     }
 
+    /**
+     * Tests the method DataFactory.createReadabeData(FileItem,...) with data
+     * larger than the size threshold, which is kept in the uploaded file.
+     * @throws Exception 
+     */
+    @Test
+    public void testDataFactoryCreateReadableData_fileItemOnDisk() throws Exception {
+        DataFactory dataFactory = createDataFactory();
+        
+        byte[] bytes = "ABCDEFGHIJKLM".getBytes(StandardCharsets.US_ASCII);
+        int length = bytes.length;
+        
+        final DiskFileItemFactory factory = new DiskFileItemFactory();
+        factory.setSizeThreshold(5);
+        factory.setRepository(fileRepository);
+
+        final BinaryFileUpload upload = new BinaryFileUpload(new ByteArrayInputStream(bytes), "application/octet-stream", factory);
+        upload.setSizeMax(10000);
+
+        File file;
+        try (CloseableReadableData readableData = dataFactory.createReadableData(upload.parseTheRequest(), fileRepository)) {
+            // Check length
+            assertEquals("length", length, readableData.getLength());
+            
+            // From file
+            assertTrue("is file", readableData.isFile());
+            
+            // Can be read as byte array
+            assertEquals("byte array", Hex.toHexString(bytes), Hex.toHexString(readableData.getAsByteArray()));
+            
+            // Can be read as stream
+            assertEquals("stream", Hex.toHexString(bytes), Hex.toHexString(IOUtils.toByteArray(readableData.getAsInputStream())));
+            
+            // Can be read as file
+            file = readableData.getAsFile();
+            assertEquals("file", Hex.toHexString(bytes), Hex.toHexString(FileUtils.readFileToByteArray(file)));
+        }
+        // File removed (auto-closeable)
+        assertFalse("file removed", file.exists());
+    }
+
     /**
      * Tests that the method DataFactory.createReadabeData(FileItem,...) throws
      * an Exception on too large data (+1).
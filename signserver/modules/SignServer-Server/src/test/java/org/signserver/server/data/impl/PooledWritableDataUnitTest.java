@@ -0,0 +1,203 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the PooledWritableData and PooledDataFactory classes.
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class PooledWritableDataUnitTest {
+
+    private final File fileRepository = new UploadConfig().getRepository();
+
+    private static byte[] createData(int length) {
+        final byte[] result = new byte[length];
+        new Random(length).nextBytes(result);
+        return result;
+    }
+
+    private static byte[] readChannel(ReadableByteChannel channel) throws Exception {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final ByteBuffer buffer = ByteBuffer.allocate(1000);
+        try (ReadableByteChannel in = channel) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                result.write(buffer.array(), 0, buffer.limit());
+                buffer.clear();
+            }
+        }
+        return result.toByteArray();
+    }
+
+    private static byte[] readStream(InputStream stream) throws Exception {
+        try (InputStream in = stream) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    /**
+     * Tests that the pooled DataFactory is not used unless enabled.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testNotPooledByDefault() throws Exception {
+        assertTrue("default factory", DataUtils.createDataFactory() instanceof DefaultDataFactory);
+    }
+
+    /**
+     * Tests writing and reading data spanning several chunks in memory and
+     * that the chunks are returned to the pool.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testInMemory() throws Exception {
+        final BufferPool pool = new BufferPool(1024, 10);
+        final byte[] bytes = createData(pool.getChunkSize() * 2 + 17);
+
+        File file;
+        try (PooledWritableData instance = new PooledWritableData(false, fileRepository, 1024 * 1024, pool)) {
+            try (OutputStream out = instance.getAsOutputStream()) {
+                out.write(bytes, 0, 100);
+                out.write(bytes[100]);
+                out.write(bytes, 101, bytes.length - 101);
+            }
+            assertEquals("in memory", bytes.length, instance.getInMemoryLength());
+
+            final PooledWritableData.PooledReadableData readable = instance.toReadableData();
+            assertFalse("not file", readable.isFile());
+            assertEquals("length", bytes.length, readable.getLength());
+            assertArrayEquals("stream", bytes, readStream(readable.getAsInputStream()));
+            assertArrayEquals("channel", bytes, readChannel(readable.getAsChannel()));
+            assertArrayEquals("byte array", bytes, readable.getAsByteArray());
+
+            file = readable.getAsFile();
+            assertArrayEquals("file", bytes, FileUtils.readFileToByteArray(file));
+
+            try {
+                instance.getAsInMemoryOutputStream();
+                fail("Should not allow writing after reading");
+            } catch (IllegalStateException expected) { // NOPMD
+                // OK
+            }
+        }
+        assertFalse("file removed", file.exists());
+        assertEquals("chunks returned", 3, pool.getFreeCount());
+    }
+
+    /**
+     * Tests that the data is moved to a file when the threshold is exceeded.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testSpillToFile() throws Exception {
+        final BufferPool pool = new BufferPool(BufferPool.DEFAULT_CHUNK_SIZE, 10);
+        final byte[] bytes = createData(200000);
+
+        File file;
+        try (PooledWritableData instance = new PooledWritableData(false, fileRepository, 100000, pool)) {
+            final OutputStream out = instance.getAsOutputStream();
+            out.write(bytes, 0, 90000);
+            assertEquals("in memory", 90000, instance.getInMemoryLength());
+            out.write(bytes, 90000, bytes.length - 90000);
+            out.close();
+            assertEquals("not in memory", 0, instance.getInMemoryLength());
+
+            final PooledWritableData.PooledReadableData readable = instance.toReadableData();
+            assertTrue("is file", readable.isFile());
+            assertEquals("length", bytes.length, readable.getLength());
+            assertArrayEquals("stream", bytes, readStream(readable.getAsInputStream()));
+            assertArrayEquals("channel", bytes, readChannel(readable.getAsChannel()));
+            assertArrayEquals("byte array", bytes, readable.getAsByteArray());
+            file = readable.getAsFile();
+        }
+        assertFalse("file removed", file.exists());
+        assertEquals("chunks returned", 2, pool.getFreeCount());
+    }
+
+    /**
+     * Tests writing to a file directly and reading empty data.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testFileAndEmpty() throws Exception {
+        final byte[] bytes = createData(1000);
+        try (CloseableWritableData instance = new PooledDataFactory().createWritableData(true, fileRepository)) {
+            try (OutputStream out = instance.getAsOutputStream()) {
+                out.write(bytes);
+            }
+            assertTrue("is file", instance.toReadableData().isFile());
+            assertArrayEquals("stream", bytes, readStream(instance.toReadableData().getAsInputStream()));
+        }
+
+        try (CloseableWritableData instance = new PooledDataFactory().createWritableData(false, fileRepository)) {
+            assertEquals("length", 0, instance.toReadableData().getLength());
+            assertEquals("byte array", 0, instance.toReadableData().getAsByteArray().length);
+            assertEquals("stream", -1, instance.toReadableData().getAsInputStream().read());
+        }
+    }
+
+    /**
+     * Tests that the chunks are only returned to the pool when the last
+     * stream reading them has been closed and that the data can not be read
+     * after the instance has been closed.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testChunksReleasedAfterLastReader() throws Exception {
+        final BufferPool pool = new BufferPool(BufferPool.DEFAULT_CHUNK_SIZE, 10);
+        final byte[] bytes = createData(pool.getChunkSize() + 1);
+
+        final PooledWritableData instance = new PooledWritableData(false, fileRepository, 1024 * 1024, pool);
+        try (OutputStream out = instance.getAsOutputStream()) {
+            out.write(bytes);
+        }
+        final PooledWritableData.PooledReadableData readable = instance.toReadableData();
+        final InputStream stream = readable.getAsInputStream();
+        final ReadableByteChannel channel = readable.getAsChannel();
+        instance.close();
+        assertEquals("chunks still in use", 0, pool.getFreeCount());
+
+        try {
+            readable.getAsInputStream();
+            fail("Should not allow reading after close");
+        } catch (IOException expected) { // NOPMD
+            // OK
+        }
+
+        assertArrayEquals("stream", bytes, readStream(stream));
+        assertEquals("chunks still in use", 0, pool.getFreeCount());
+        try {
+            stream.read();
+            fail("Should not allow reading closed stream");
+        } catch (IOException expected) { // NOPMD
+            // OK
+        }
+
+        assertArrayEquals("channel", bytes, readChannel(channel));
+        assertEquals("chunks returned", 2, pool.getFreeCount());
+    }
+}
@@ -0,0 +1,196 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.integrityprotected;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.cesecore.audit.log.AuditRecordStorageException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SequencialAuditLogWriter class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class SequencialAuditLogWriterUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(SequencialAuditLogWriterUnitTest.class);
+
+    private static SequencialAuditRecord record(String customId) {
+        return new SequencialAuditRecord(System.currentTimeMillis(), null, null, null, null, "user", customId, null, null, null, 0);
+    }
+
+    /**
+     * Tests that concurrently logged rows are all committed, with
+     * contiguous sequence numbers and in fewer commits than rows.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testGroupCommit() throws Exception {
+        LOG.info(">testGroupCommit");
+        final List<Long> stored = Collections.synchronizedList(new ArrayList<>());
+        final SequencialAuditLogWriter instance = new SequencialAuditLogWriter(50, 1000, SequencialAuditLogWriter.OverflowPolicy.BLOCK, 10000, records -> {
+            for (SequencialAuditRecord r : records) {
+                stored.add(r.getSequenceNumber());
+            }
+            try {
+                Thread.sleep(2); // Simulate commit time
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            final List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < 800; i++) {
+                tasks.add(() -> {
+                    instance.awaitCommit(instance.enqueue(record(null)));
+                    return null;
+                });
+            }
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals("all stored", 800, stored.size());
+        for (int i = 0; i < stored.size(); i++) {
+            assertEquals("order", i + 1, stored.get(i).longValue());
+        }
+        assertEquals("committed", 800, instance.getCommittedRecordCount());
+        assertEquals("last sequence number", 800, instance.getSequenceNumber());
+        assertTrue("fewer commits than rows: " + instance.getCommitCount(), instance.getCommitCount() < 800);
+        assertEquals("queue depth", 0, instance.getQueueDepth());
+        assertTrue("max latency", instance.getMaxCommitLatency() >= instance.getAverageCommitLatency());
+    }
+
+    /**
+     * Tests that rows are rejected when the queue is full with the REJECT
+     * policy.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        LOG.info(">testRejectWhenFull");
+        final SequencialAuditLogWriter instance = new SequencialAuditLogWriter(10, 2, SequencialAuditLogWriter.OverflowPolicy.REJECT, 0, records -> { });
+        final SequencialAuditLogWriter.Pending first = instance.enqueue(record(null));
+        instance.enqueue(record(null));
+        try {
+            instance.enqueue(record(null));
+            fail("Should have been rejected");
+        } catch (AuditRecordStorageException expected) { // NOPMD
+            // OK
+        }
+        assertEquals("queue depth", 2, instance.getQueueDepth());
+        instance.awaitCommit(first);
+        assertEquals("queue depth after commit", 0, instance.getQueueDepth());
+    }
+
+    /**
+     * Tests that rows fail if they can not be stored and that they do not
+     * use up any sequence numbers.
+     */
+    @Test
+    public void testCommitFailure() {
+        LOG.info(">testCommitFailure");
+        final SequencialAuditLogWriter instance = new SequencialAuditLogWriter(10, 10, SequencialAuditLogWriter.OverflowPolicy.BLOCK, 1000, records -> {
+            throw new AuditRecordStorageException("Database unavailable");
+        });
+        final SequencialAuditLogWriter.Pending first = instance.enqueue(record(null));
+        final SequencialAuditLogWriter.Pending second = instance.enqueue(record(null));
+        for (SequencialAuditLogWriter.Pending pending : new SequencialAuditLogWriter.Pending[] {first, second}) {
+            try {
+                instance.awaitCommit(pending);
+                fail("Should have failed");
+            } catch (AuditRecordStorageException expected) {
+                assertEquals("message", "Database unavailable", expected.getMessage());
+            }
+        }
+        assertEquals("commits", 0, instance.getCommitCount());
+        assertEquals("sequence number", 0, instance.getSequenceNumber());
+    }
+
+    /**
+     * Tests that when a batch fails only the failing row fails and that the
+     * stored rows still get contiguous sequence numbers.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCommitFailureOneRow() throws Exception {
+        LOG.info(">testCommitFailureOneRow");
+        final List<SequencialAuditRecord> stored = new ArrayList<>();
+        final SequencialAuditLogWriter instance = new SequencialAuditLogWriter(10, 10, SequencialAuditLogWriter.OverflowPolicy.BLOCK, 1000, records -> {
+            for (SequencialAuditRecord r : records) {
+                if ("bad".equals(r.getCustomId())) {
+                    throw new AuditRecordStorageException("Bad row");
+                }
+            }
+            stored.addAll(records);
+        });
+        final SequencialAuditLogWriter.Pending first = instance.enqueue(record("1"));
+        final SequencialAuditLogWriter.Pending bad = instance.enqueue(record("bad"));
+        final SequencialAuditLogWriter.Pending third = instance.enqueue(record("3"));
+
+        instance.awaitCommit(first);
+        try {
+            instance.awaitCommit(bad);
+            fail("Should have failed");
+        } catch (AuditRecordStorageException expected) {
+            assertEquals("message", "Bad row", expected.getMessage());
+        }
+        instance.awaitCommit(third);
+
+        assertEquals("stored", 2, stored.size());
+        assertEquals("first row", "1", stored.get(0).getCustomId());
+        assertEquals("first sequence number", 1, stored.get(0).getSequenceNumber());
+        assertEquals("third row", "3", stored.get(1).getCustomId());
+        assertEquals("next sequence number", 2, stored.get(1).getSequenceNumber());
+        assertEquals("last sequence number", 2, instance.getSequenceNumber());
+    }
+
+    /**
+     * Tests that batching is only enabled with a batch size larger than 1.
+     */
+    @Test
+    public void testFromProperties() {
+        LOG.info(">testFromProperties");
+        final Properties props = new Properties();
+        assertNull("not enabled by default", SequencialAuditLogWriter.fromProperties(props, records -> { }));
+        props.setProperty(SequencialAuditLogWriter.PROPERTY_BATCH_SIZE, "100");
+        props.setProperty(SequencialAuditLogWriter.PROPERTY_OVERFLOW, "reject");
+        assertNotNull("enabled", SequencialAuditLogWriter.fromProperties(props, records -> { }));
+        props.setProperty(SequencialAuditLogWriter.PROPERTY_OVERFLOW, "drop");
+        try {
+            SequencialAuditLogWriter.fromProperties(props, records -> { });
+            fail("Should not accept unknown policy");
+        } catch (AuditRecordStorageException expected) { // NOPMD
+            // OK
+        }
+    }
+}
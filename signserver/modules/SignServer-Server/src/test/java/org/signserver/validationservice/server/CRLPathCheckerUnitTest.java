@@ -0,0 +1,155 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.cesecore.keys.util.KeyTools;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.signserver.common.SignServerUtil;
+import org.signserver.validationservice.server.crlcache.CRLCache;
+import org.signserver.validationservice.server.crlcache.CachedCRL;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the CRLPathChecker class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class CRLPathCheckerUnitTest {
+
+    private static final long HOUR = 3600L * 1000L;
+
+    private static KeyPair caKeyPair;
+    private static KeyPair otherKeyPair;
+    private static X509Certificate caCert;
+    private static X509Certificate cert;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        SignServerUtil.installBCProvider();
+        caKeyPair = KeyTools.genKeys("1024", "RSA");
+        otherKeyPair = KeyTools.genKeys("1024", "RSA");
+        caCert = createCert("CN=Test CA", BigInteger.ONE, caKeyPair.getPublic());
+        cert = createCert("CN=Test Signer", BigInteger.valueOf(4711), otherKeyPair.getPublic());
+    }
+
+    @After
+    public void tearDown() {
+        CRLCache.shutdown();
+    }
+
+    private static X509Certificate createCert(final String subject, final BigInteger serial, final PublicKey key) throws Exception {
+        final Date now = new Date();
+        final JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name("CN=Test CA"), serial,
+                new Date(now.getTime() - HOUR), new Date(now.getTime() + HOUR), new X500Name(subject), key);
+        return new JcaX509CertificateConverter().setProvider("BC").getCertificate(builder.build(new JcaContentSignerBuilder("SHA256WithRSA").setProvider("BC").build(caKeyPair.getPrivate())));
+    }
+
+    private CachedCRL createCRL(final PrivateKey key, final Date nextUpdate, final BigInteger... revoked) throws Exception {
+        final Date now = new Date();
+        final X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), new Date(now.getTime() - HOUR));
+        builder.setNextUpdate(nextUpdate);
+        for (BigInteger serial : revoked) {
+            builder.addCRLEntry(serial, now, CRLReason.keyCompromise);
+        }
+        final X509CRL crl = new JcaX509CRLConverter().setProvider("BC").getCRL(builder.build(new JcaContentSignerBuilder("SHA256WithRSA").setProvider("BC").build(key)));
+        final File file = folder.newFile();
+        Files.write(file.toPath(), crl.getEncoded());
+        final URL url = file.toURI().toURL();
+        return CRLCache.getInstance().get(url);
+    }
+
+    private static void validate(final CachedCRL crl) throws Exception {
+        final PKIXParameters params = new PKIXParameters(Collections.singleton(new TrustAnchor(caCert, null)));
+        params.setRevocationEnabled(false);
+        params.addCertPathChecker(new CRLPathChecker(caCert, Collections.singletonList(crl)));
+        CertPathValidator.getInstance("PKIX", "BC").validate(CertificateFactory.getInstance("X509", "BC").generateCertPath(Collections.singletonList(cert)), params);
+    }
+
+    /**
+     * Tests that a certificate not on the CRL is valid.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testNotRevoked() throws Exception {
+        validate(createCRL(caKeyPair.getPrivate(), new Date(System.currentTimeMillis() + HOUR), BigInteger.TEN));
+    }
+
+    /**
+     * Tests that a certificate on the CRL is not valid.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRevoked() throws Exception {
+        try {
+            validate(createCRL(caKeyPair.getPrivate(), new Date(System.currentTimeMillis() + HOUR), BigInteger.TEN, cert.getSerialNumber()));
+            fail("Should have failed");
+        } catch (CertPathValidatorException expected) {
+            assertTrue("message: " + expected.getMessage(), expected.getMessage().contains("revocation"));
+        }
+    }
+
+    /**
+     * Tests that a CRL not signed by the issuer or past its nextUpdate is
+     * not used.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testInvalidCRL() throws Exception {
+        try {
+            validate(createCRL(otherKeyPair.getPrivate(), new Date(System.currentTimeMillis() + HOUR)));
+            fail("Should have failed for wrong signer");
+        } catch (CertPathValidatorException expected) {
+            assertTrue("message: " + expected.getMessage(), expected.getMessage().contains("No valid CRL"));
+        }
+        try {
+            validate(createCRL(caKeyPair.getPrivate(), new Date(System.currentTimeMillis() - 1000)));
+            fail("Should have failed for expired CRL");
+        } catch (CertPathValidatorException expected) {
+            assertTrue("message: " + expected.getMessage(), expected.getMessage().contains("No valid CRL"));
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server.crlcache;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.cert.X509CRL;
+import java.util.Date;
+import java.util.Properties;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.cesecore.keys.util.KeyTools;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.signserver.common.SignServerException;
+import org.signserver.common.SignServerUtil;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the CRLCache and CachedCRL classes.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class CRLCacheUnitTest {
+
+    private static final long HOUR = 3600L * 1000L;
+
+    private static KeyPair caKeyPair;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        SignServerUtil.installBCProvider();
+        caKeyPair = KeyTools.genKeys("1024", "RSA");
+    }
+
+    private static X509CRL createCRL(final Date nextUpdate, final BigInteger... revoked) throws Exception {
+        final Date now = new Date();
+        final X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), new Date(now.getTime() - HOUR));
+        builder.setNextUpdate(nextUpdate);
+        for (BigInteger serial : revoked) {
+            builder.addCRLEntry(serial, now, CRLReason.keyCompromise);
+        }
+        return new JcaX509CRLConverter().setProvider("BC").getCRL(builder.build(new JcaContentSignerBuilder("SHA256WithRSA").setProvider("BC").build(caKeyPair.getPrivate())));
+    }
+
+    private URL publish(final String name, final X509CRL crl) throws Exception {
+        final File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), crl.getEncoded());
+        return file.toURI().toURL();
+    }
+
+    /**
+     * Tests that the CRL is not fetched again before its nextUpdate.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCachedUntilNextUpdate() throws Exception {
+        final CRLCache instance = new CRLCache();
+        final URL url = publish("valid.crl", createCRL(new Date(System.currentTimeMillis() + HOUR), BigInteger.ONE));
+        final CachedCRL first = instance.get(url);
+        publish("valid.crl", createCRL(new Date(System.currentTimeMillis() + HOUR)));
+
+        final CachedCRL second = instance.get(url);
+        assertSame("cached", first, second);
+        assertEquals("revoked", 1, second.getCRL().getRevokedCertificates().size());
+        assertTrue("expires at nextUpdate", second.getExpireTime() <= second.getCRL().getNextUpdate().getTime());
+        assertTrue("refreshed before expiry", second.getRefreshTime() < second.getExpireTime());
+    }
+
+    /**
+     * Tests that a CRL past its nextUpdate is fetched again.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testExpired() throws Exception {
+        final CRLCache instance = new CRLCache();
+        final URL url = publish("expired.crl", createCRL(new Date(System.currentTimeMillis() - 1000)));
+        final CachedCRL first = instance.get(url);
+        assertNotSame("fetched again", first, instance.get(url));
+    }
+
+    /**
+     * Tests the maximum age for CRLs with a later nextUpdate.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testMaxAge() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty(CRLCache.PROPERTY_CRLCACHE_MAXAGE, "0");
+        final CRLCache instance = CRLCache.getInstance(props);
+        final URL url = publish("maxage.crl", createCRL(new Date(System.currentTimeMillis() + HOUR)));
+        final CachedCRL first = instance.get(url);
+        assertNotSame("fetched again", first, instance.get(url));
+
+        props.setProperty(CRLCache.PROPERTY_CRLCACHE_MAXAGE, "-1");
+        try {
+            CRLCache.getInstance(props);
+            fail("Should not accept negative value");
+        } catch (SignServerException expected) { // NOPMD
+            // OK
+        }
+    }
+
+    /**
+     * Tests that validators with the same settings share the instance while
+     * different settings do not affect each other.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testInstancePerSettings() throws Exception {
+        final Properties props1 = new Properties();
+        props1.setProperty(CRLCache.PROPERTY_CRLCACHE_MAXAGE, "60");
+        final Properties props2 = new Properties();
+        props2.setProperty(CRLCache.PROPERTY_CRLCACHE_MAXAGE, "60");
+        final Properties props3 = new Properties();
+        props3.setProperty(CRLCache.PROPERTY_CRLCACHE_MAXAGE, "0");
+
+        assertSame("same settings", CRLCache.getInstance(props1), CRLCache.getInstance(props2));
+        assertNotSame("other settings", CRLCache.getInstance(props1), CRLCache.getInstance(props3));
+        assertSame("defaults", CRLCache.getInstance(), CRLCache.getInstance(new Properties()));
+
+        final URL url = publish("settings.crl", createCRL(new Date(System.currentTimeMillis() + HOUR)));
+        final CachedCRL first = CRLCache.getInstance(props1).get(url);
+        CRLCache.getInstance(props3).get(url);
+        assertSame("not affected by other settings", first, CRLCache.getInstance(props1).get(url));
+
+        CRLCache.shutdown();
+        assertNotSame("new instance after shutdown", first, CRLCache.getInstance(props1).get(url));
+    }
+
+    /**
+     * Tests looking up revoked serial numbers.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRevokedSerialNumbers() throws Exception {
+        final BigInteger large = BigInteger.ONE.shiftLeft(159).add(BigInteger.valueOf(17));
+        final CachedCRL instance = new CRLCache().get(publish("revoked.crl", createCRL(new Date(System.currentTimeMillis() + HOUR),
+                BigInteger.valueOf(1000), BigInteger.valueOf(5), large, BigInteger.valueOf(255), BigInteger.valueOf(128))));
+
+        assertEquals("count", 5, instance.getRevokedCount());
+        for (BigInteger serial : new BigInteger[] {BigInteger.valueOf(5), BigInteger.valueOf(128), BigInteger.valueOf(255), BigInteger.valueOf(1000), large}) {
+            assertTrue("revoked " + serial, instance.containsSerialNumber(serial));
+        }
+        for (BigInteger serial : new BigInteger[] {BigInteger.ZERO, BigInteger.valueOf(6), BigInteger.valueOf(127), BigInteger.valueOf(256), large.add(BigInteger.ONE)}) {
+            assertFalse("not revoked " + serial, instance.containsSerialNumber(serial));
+        }
+        instance.verify(caKeyPair.getPublic(), "BC");
+    }
+
+    /**
+     * Tests that stored CRLs are used by a new cache instance.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testStoredCRL() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty(CRLCache.PROPERTY_CRLCACHE_DIRECTORY, new File(folder.getRoot(), "store").getAbsolutePath());
+        final URL url = publish("stored.crl", createCRL(new Date(System.currentTimeMillis() + HOUR), BigInteger.TEN));
+
+        final CRLCache first = CRLCache.getInstance(props);
+        first.get(url);
+        assertTrue("removed", new File(url.toURI()).delete());
+
+        CRLCache.shutdown();
+        final CRLCache second = CRLCache.getInstance(props);
+        assertNotSame("new instance", first, second);
+        assertTrue("from store", second.get(url).containsSerialNumber(BigInteger.TEN));
+    }
+}
@@ -0,0 +1,263 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server.ocspcache;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.jcajce.JcaCertificateID;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.cesecore.certificates.util.AlgorithmConstants;
+import org.cesecore.keys.util.KeyTools;
+import org.cesecore.util.CertTools;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signserver.common.SignServerException;
+import org.signserver.common.SignServerUtil;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the OCSPResponseCache class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class OCSPResponseCacheUnitTest {
+
+    private static final long HOUR = 3600L * 1000L;
+
+    private static KeyPair caKeyPair;
+    private static X509Certificate caCert;
+
+    private HttpServer server;
+    private URL url;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile Date nextUpdate;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        SignServerUtil.installBCProvider();
+        caKeyPair = KeyTools.genKeys("1024", "RSA");
+        caCert = CertTools.genSelfCert("CN=Test CA", 365, null, caKeyPair.getPrivate(), caKeyPair.getPublic(), AlgorithmConstants.SIGALG_SHA256_WITH_RSA, true);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        nextUpdate = new Date(System.currentTimeMillis() + HOUR);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ocsp", exchange -> {
+            requests.incrementAndGet();
+            try {
+                final OCSPReq req = new OCSPReq(exchange.getRequestBody().readAllBytes());
+                final byte[] response = createResponse(req.getRequestList()[0].getCertID(), nextUpdate);
+                exchange.getResponseHeaders().add("Content-Type", "application/ocsp-response");
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            } catch (Exception ex) {
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/ocsp");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static byte[] createResponse(final CertificateID certId, final Date nextUpdate) throws Exception {
+        final X509CertificateHolder issuer = new JcaX509CertificateHolder(caCert);
+        final BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(issuer.getSubject()));
+        builder.addResponse(certId, CertificateStatus.GOOD, new Date(), nextUpdate);
+        final BasicOCSPResp basic = builder.build(new JcaContentSignerBuilder("SHA256WithRSA").setProvider("BC").build(caKeyPair.getPrivate()),
+                new X509CertificateHolder[] {issuer}, new Date());
+        return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, basic).getEncoded();
+    }
+
+    private static OCSPReq createRequest(final long serialNumber) throws Exception {
+        final OCSPReqBuilder builder = new OCSPReqBuilder();
+        builder.addRequest(new JcaCertificateID(new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1), caCert, BigInteger.valueOf(serialNumber)));
+        return builder.build();
+    }
+
+    /**
+     * Tests that the response is cached per certificate.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCachedPerCertificate() throws Exception {
+        final OCSPResponseCache instance = new OCSPResponseCache(new OCSPHttpClient());
+        final byte[] first = instance.getResponse(url, createRequest(1));
+        assertNotNull("response", new OCSPResp(first).getResponseObject());
+        assertArrayEquals("cached", first, instance.getResponse(url, createRequest(1)));
+        assertEquals("requests", 1, requests.get());
+
+        instance.getResponse(url, createRequest(2));
+        assertEquals("requests", 2, requests.get());
+        assertEquals("size", 2, instance.getSize());
+
+        instance.invalidate(url, createRequest(1));
+        instance.getResponse(url, createRequest(1));
+        assertEquals("requests after invalidate", 3, requests.get());
+    }
+
+    /**
+     * Tests that responses past nextUpdate are not cached.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testExpired() throws Exception {
+        final OCSPResponseCache instance = new OCSPResponseCache(new OCSPHttpClient());
+        nextUpdate = new Date(System.currentTimeMillis() - 1000);
+        instance.getResponse(url, createRequest(1));
+        instance.getResponse(url, createRequest(1));
+        assertEquals("requests", 2, requests.get());
+        assertEquals("size", 0, instance.getSize());
+    }
+
+    /**
+     * Tests the configuration of maximum age and entries.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConfiguration() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty(OCSPResponseCache.PROPERTY_OCSPCACHE_MAXAGE, "0");
+        OCSPResponseCache instance = OCSPResponseCache.getInstance(props);
+        instance.getResponse(url, createRequest(1));
+        instance.getResponse(url, createRequest(1));
+        assertEquals("requests with max age 0", 2, requests.get());
+
+        props.setProperty(OCSPResponseCache.PROPERTY_OCSPCACHE_MAXAGE, "300");
+        props.setProperty(OCSPResponseCache.PROPERTY_OCSPCACHE_MAXENTRIES, "1");
+        instance = OCSPResponseCache.getInstance(props);
+        instance.getResponse(url, createRequest(1));
+        instance.getResponse(url, createRequest(2));
+        assertEquals("size", 1, instance.getSize());
+
+        props.setProperty(OCSPResponseCache.PROPERTY_OCSP_MAXCONNECTIONS, "0");
+        try {
+            OCSPResponseCache.getInstance(props);
+            fail("Should not accept 0 connections");
+        } catch (SignServerException expected) { // NOPMD
+            // OK
+        }
+        OCSPResponseCache.shutdown();
+    }
+
+    /**
+     * Tests that validators with the same settings share the instance while
+     * different settings do not affect each other.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testInstancePerSettings() throws Exception {
+        final Properties props1 = new Properties();
+        props1.setProperty(OCSPResponseCache.PROPERTY_OCSPCACHE_MAXAGE, "300");
+        final Properties props2 = new Properties();
+        props2.setProperty(OCSPResponseCache.PROPERTY_OCSPCACHE_MAXAGE, "300");
+        final Properties props3 = new Properties();
+        props3.setProperty(OCSPResponseCache.PROPERTY_OCSPCACHE_MAXAGE, "0");
+
+        final OCSPResponseCache instance = OCSPResponseCache.getInstance(props1);
+        assertSame("same settings", instance, OCSPResponseCache.getInstance(props2));
+        assertNotSame("other settings", instance, OCSPResponseCache.getInstance(props3));
+
+        instance.getResponse(url, createRequest(1));
+        OCSPResponseCache.getInstance(props3).getResponse(url, createRequest(1));
+        instance.getResponse(url, createRequest(1));
+        assertEquals("not affected by other settings", 2, requests.get());
+
+        OCSPResponseCache.shutdown();
+        assertNotSame("new instance after shutdown", instance, OCSPResponseCache.getInstance(props1));
+        OCSPResponseCache.shutdown();
+    }
+
+    /**
+     * Tests that the node-wide client is closed on shutdown and that a new
+     * one is created when needed again.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testShutdownClosesDefaultClient() throws Exception {
+        final OCSPHttpClient client = OCSPHttpClient.getInstance();
+        assertSame("same client", client, OCSPHttpClient.getInstance());
+        OCSPResponseCache.shutdown();
+
+        final OCSPHttpClient newClient = OCSPHttpClient.getInstance();
+        assertNotSame("new client after shutdown", client, newClient);
+        assertEquals("usable after shutdown", 200, newClient.post(url, createRequest(1).getEncoded()).getStatusCode());
+        OCSPResponseCache.shutdown();
+    }
+
+    /**
+     * Tests that concurrent requests for the same certificate share the
+     * request to the responder.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCoalesced() throws Exception {
+        final OCSPResponseCache instance = new OCSPResponseCache(new OCSPHttpClient());
+        final Thread[] threads = new Thread[8];
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    instance.getResponse(url, createRequest(1));
+                } catch (Exception ex) {
+                    failures.incrementAndGet();
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("failures", 0, failures.get());
+        assertEquals("requests", 1, requests.get());
+    }
+}
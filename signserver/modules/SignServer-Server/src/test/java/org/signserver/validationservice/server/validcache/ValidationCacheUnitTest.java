@@ -0,0 +1,102 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server.validcache;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import org.cesecore.keys.util.KeyTools;
+import org.cesecore.util.CertTools;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signserver.common.SignServerUtil;
+import org.signserver.validationservice.common.Validation;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the size limit and counters of the ValidationCache class.
+ * Expiry is tested by ValidationCacheTest.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class ValidationCacheUnitTest {
+
+    private static final String ISSUER = "CN=Test Issuer";
+
+    private static X509Certificate[] certs;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        SignServerUtil.installBCProvider();
+        final KeyPair keys = KeyTools.genKeys("1024", "RSA");
+        certs = new X509Certificate[4];
+        for (int i = 0; i < certs.length; i++) {
+            // Self-signed with the same DN so that all have the cached issuer
+            certs[i] = (X509Certificate) CertTools.genSelfCertForPurpose(ISSUER, 1, null, keys.getPrivate(), keys.getPublic(), "SHA256WithRSA", false, 0, true);
+        }
+    }
+
+    private static Validation validation(X509Certificate cert) {
+        return new Validation(cert, null, Validation.Status.VALID, "TESTMESSAGE");
+    }
+
+    /**
+     * Tests that the oldest validations are removed when the cache is full
+     * and that lookups are counted.
+     */
+    @Test
+    public void testMaxEntries() {
+        final ValidationCache cache = new ValidationCache(Collections.singletonList(CertTools.stringToBCDNString(ISSUER)), 60000, 2);
+        for (X509Certificate cert : certs) {
+            cache.put(cert, validation(cert));
+        }
+
+        assertEquals("size", 2, cache.getSize());
+        assertEquals("evictions", 2, cache.getEvictions());
+        assertNull("oldest removed", cache.get(certs[0]));
+        assertNull("oldest removed", cache.get(certs[1]));
+        assertSame("newest kept", certs[2], cache.get(certs[2]).getCertificate());
+        assertSame("newest kept", certs[3], cache.get(certs[3]).getCertificate());
+        assertEquals("hits", 2, cache.getHits());
+        assertEquals("misses", 2, cache.getMisses());
+    }
+
+    /**
+     * Tests that adding a validation again for the same certificate replaces
+     * it without using an extra entry.
+     */
+    @Test
+    public void testReplace() {
+        final ValidationCache cache = new ValidationCache(Collections.singletonList(CertTools.stringToBCDNString(ISSUER)), 60000, 2);
+        final Validation revoked = new Validation(certs[0], null, Validation.Status.REVOKED, "TESTMESSAGE");
+        cache.put(certs[0], validation(certs[0]));
+        cache.put(certs[0], revoked);
+        cache.put(certs[1], validation(certs[1]));
+
+        assertSame("replaced", revoked, cache.get(certs[0]));
+        assertNotNull("kept", cache.get(certs[1]));
+        assertEquals("size", 2, cache.getSize());
+    }
+
+    /**
+     * Tests that an expired validation is not returned.
+     */
+    @Test
+    public void testExpired() {
+        final ValidationCache cache = new ValidationCache(Collections.singletonList(CertTools.stringToBCDNString(ISSUER)), 0, 10);
+        cache.put(certs[0], validation(certs[0]));
+        assertNull("expired", cache.get(certs[0]));
+        assertEquals("misses", 1, cache.getMisses());
+    }
+}
@@ -306,7 +306,7 @@ public class SignServerWS {
                             uploadConfig.getMaxUploadSize(),
                             uploadConfig.getRepository()
                     );
-                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+                    responseData = dataFactory.createWritableData(requestData, uploadConfig);
                     req2 = new SignatureRequest(requestID, requestData, responseData);
                 } else if (req instanceof GenericValidationRequest) {
                     byte[] data = ((GenericValidationRequest) req).getRequestData();
@@ -596,6 +596,16 @@ public class InternalKeystoreCryptoTokenTest extends CryptoTokenTestBase {
             public boolean isWithinLimit(String keyHash, long keyUsageLimit) {
                 throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
             }
+
+            @Override
+            public long reserveWithinLimit(String keyHash, long limit, long count) {
+                throw new UnsupportedOperationException("Not supported yet.");
+            }
+
+            @Override
+            public void releaseReserved(String keyHash, long count) {
+                throw new UnsupportedOperationException("Not supported yet.");
+            }
         };
         return KeyUsageCounterDataService;
     }
@@ -0,0 +1,277 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.test.performance;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Latency percentiles of a test suite run, per interval and in total, with
+ * output in machine-readable JSON or CSV format for comparing runs.
+ *
+ * Latencies are recorded in microseconds and reported in milliseconds.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class LatencyReport {
+
+    private static final String CSV_HEADER = "interval;start;end;operations;failed;tps;min;p50;p90;p99;p99.9;max;mean";
+
+    private final String testSuite;
+    private final Map<String, String> configuration = new LinkedHashMap<>();
+    private final List<Entry> intervals = new ArrayList<>();
+    private Entry total;
+
+    /**
+     * Creates a report.
+     *
+     * @param testSuite Name of the test suite
+     */
+    public LatencyReport(final String testSuite) {
+        this.testSuite = testSuite;
+    }
+
+    /**
+     * Adds a configuration value to include in the output.
+     *
+     * @param name of the value
+     * @param value to output
+     */
+    public synchronized void addConfiguration(final String name, final Object value) {
+        configuration.put(name, String.valueOf(value));
+    }
+
+    /**
+     * Adds the latencies of an interval.
+     *
+     * @param startTime Start of the interval (ms since epoch)
+     * @param endTime End of the interval (ms since epoch)
+     * @param histogram Latencies in microseconds
+     * @param failed Number of failed operations in the interval
+     * @return The added interval
+     */
+    public synchronized Entry addInterval(final long startTime, final long endTime, final Histogram histogram, final long failed) {
+        final Entry entry = new Entry(startTime, endTime, histogram, failed);
+        intervals.add(entry);
+        return entry;
+    }
+
+    /**
+     * Sets the latencies of the whole run.
+     *
+     * @param startTime Start of the run (ms since epoch)
+     * @param endTime End of the run (ms since epoch)
+     * @param histogram Latencies in microseconds
+     * @param failed Number of failed operations
+     * @return The total
+     */
+    public synchronized Entry setTotal(final long startTime, final long endTime, final Histogram histogram, final long failed) {
+        total = new Entry(startTime, endTime, histogram, failed);
+        return total;
+    }
+
+    /**
+     * @return The intervals added so far
+     */
+    public synchronized List<Entry> getIntervals() {
+        return new ArrayList<>(intervals);
+    }
+
+    /**
+     * @return The total or null if not set
+     */
+    public synchronized Entry getTotal() {
+        return total;
+    }
+
+    /**
+     * Writes the report as a JSON object.
+     *
+     * @param file to write to
+     * @throws IOException in case of write failure
+     */
+    public synchronized void writeJson(final File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            out.println("{");
+            out.println("  \"testSuite\": " + quote(testSuite) + ",");
+            out.println("  \"unit\": \"ms\",");
+            out.println("  \"configuration\": {");
+            int i = 0;
+            for (Map.Entry<String, String> entry : configuration.entrySet()) {
+                out.println("    " + quote(entry.getKey()) + ": " + quote(entry.getValue())
+                        + (++i < configuration.size() ? "," : ""));
+            }
+            out.println("  },");
+            out.println("  \"total\": " + (total == null ? "null" : total.toJson()) + ",");
+            out.println("  \"intervals\": [");
+            for (i = 0; i < intervals.size(); i++) {
+                out.println("    " + intervals.get(i).toJson() + (i + 1 < intervals.size() ? "," : ""));
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    /**
+     * Writes the report as CSV with one row per interval and a last row for
+     * the total.
+     *
+     * @param file to write to
+     * @throws IOException in case of write failure
+     */
+    public synchronized void writeCsv(final File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            out.println(CSV_HEADER);
+            for (int i = 0; i < intervals.size(); i++) {
+                out.println(i + ";" + intervals.get(i).toCsv());
+            }
+            if (total != null) {
+                out.println("total;" + total.toCsv());
+            }
+        }
+    }
+
+    private static String quote(final String value) {
+        final StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String millis(final double micros) {
+        return String.format(Locale.ROOT, "%.3f", micros / 1000d);
+    }
+
+    /**
+     * Latency statistics of an interval or of the whole run.
+     */
+    public static class Entry {
+
+        private final long startTime;
+        private final long endTime;
+        private final long operations;
+        private final long failed;
+        private final long min;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+        private final double mean;
+
+        Entry(final long startTime, final long endTime, final Histogram histogram, final long failed) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.failed = failed;
+            this.operations = histogram.getTotalCount();
+            this.min = operations == 0 ? 0 : histogram.getMinValue();
+            this.p50 = histogram.getValueAtPercentile(50);
+            this.p90 = histogram.getValueAtPercentile(90);
+            this.p99 = histogram.getValueAtPercentile(99);
+            this.p999 = histogram.getValueAtPercentile(99.9);
+            this.max = histogram.getMaxValue();
+            this.mean = operations == 0 ? 0 : histogram.getMean();
+        }
+
+        /**
+         * @return Number of successful operations
+         */
+        public long getOperations() {
+            return operations;
+        }
+
+        /**
+         * @return Number of failed operations
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return Successful operations per second
+         */
+        public double getTps() {
+            final long time = endTime - startTime;
+            return time > 0 ? operations / (time / 1000d) : Double.NaN;
+        }
+
+        /**
+         * @param percentile 50, 90, 99 or 99.9
+         * @return The latency in microseconds at the percentile
+         */
+        public long getPercentile(final double percentile) {
+            if (percentile == 50) {
+                return p50;
+            } else if (percentile == 90) {
+                return p90;
+            } else if (percentile == 99) {
+                return p99;
+            } else if (percentile == 99.9) {
+                return p999;
+            }
+            throw new IllegalArgumentException("Unsupported percentile: " + percentile);
+        }
+
+        /**
+         * @return Maximum latency in microseconds
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return The percentiles in a human readable format
+         */
+        public String formatPercentiles() {
+            return "p50=" + millis(p50) + " p90=" + millis(p90) + " p99=" + millis(p99)
+                    + " p99.9=" + millis(p999) + " max=" + millis(max) + " ms";
+        }
+
+        private String toJson() {
+            return String.format(Locale.ROOT,
+                    "{\"start\": %d, \"end\": %d, \"operations\": %d, \"failed\": %d, \"tps\": %.1f, "
+                    + "\"min\": %s, \"p50\": %s, \"p90\": %s, \"p99\": %s, \"p99.9\": %s, \"max\": %s, \"mean\": %s}",
+                    startTime, endTime, operations, failed, Double.isNaN(getTps()) ? 0d : getTps(),
+                    millis(min), millis(p50), millis(p90), millis(p99), millis(p999), millis(max), millis(mean));
+        }
+
+        private String toCsv() {
+            return String.format(Locale.ROOT, "%d;%d;%d;%d;%.1f;%s;%s;%s;%s;%s;%s;%s",
+                    startTime, endTime, operations, failed, Double.isNaN(getTps()) ? 0d : getTps(),
+                    millis(min), millis(p50), millis(p90), millis(p99), millis(p999), millis(max), millis(mean));
+        }
+    }
+}
@@ -18,11 +18,25 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Date;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
 import org.apache.log4j.Logger;
 
 /**
  * Thread running tests.
+ *
+ * By default the thread runs closed-loop, waiting a random time up to the
+ * maximum wait time between requests. In open-loop mode (see
+ * {@link #setOpenLoop(long, long)}) requests are instead scheduled at a fixed
+ * rate and the latency is measured from the intended send time, so that a
+ * slow response also counts against the requests that should have been sent
+ * while waiting for it.
+ *
+ * Latencies are recorded in microseconds in a histogram for the whole run and
+ * in a recorder that can be sampled for intervals while running.
  * 
  * @author Marcus Lundblad
  * @version $Id$
@@ -41,6 +55,16 @@ public class WorkerThread extends Thread {
     protected long maxRespTime;
     protected long minRespTime = Long.MAX_VALUE;
 
+    /** Latencies in microseconds, read after the thread has finished. */
+    private final Histogram histogram = new Histogram(3);
+
+    /** Latencies in microseconds, sampled per interval while running. */
+    private final Recorder intervalRecorder = new Recorder(3);
+
+    /** Time between requests in open-loop mode, 0 for closed-loop. */
+    private long periodNanos;
+    private long offsetNanos;
+
     private long startTime;
     private long warmupTime;
     private final long limitedTime;
@@ -49,7 +73,7 @@ public class WorkerThread extends Thread {
     protected Random random;
     protected Task task;
     private boolean continueOnFailure;
-    private long operationsFailed;
+    private volatile long operationsFailed;
     private long operationsAttempted;
     
     public WorkerThread(final String name, final FailureCallback failureCallback,
@@ -76,7 +100,19 @@ public class WorkerThread extends Thread {
             if (statFile != null) {
                 out = new BufferedWriter(new FileWriter(statFile));
             }
+            long intendedTime = System.nanoTime() + offsetNanos;
             while (!isStop()) {
+                if (periodNanos > 0) {
+                    // Wait for the next scheduled request, unless behind schedule
+                    long delay;
+                    while ((delay = intendedTime - System.nanoTime()) > 0 && !isStop()) {
+                        LockSupport.parkNanos(delay);
+                    }
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException("Interrupted while waiting for next request");
+                    }
+                }
+
                 long currentTime = (new Date().getTime());
                 long estimatedTime = 0;
                 boolean successfull;
@@ -85,6 +121,7 @@ public class WorkerThread extends Thread {
                     break;
                 }
                 
+                final long sendTime = periodNanos > 0 ? intendedTime : System.nanoTime();
                 try {
                     estimatedTime = task.run();
                     successfull = true;
@@ -99,17 +136,22 @@ public class WorkerThread extends Thread {
                     successfull = false;
                     operationsFailed++;
                 }
+                final long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sendTime);
               
                 if (currentTime > startTime + warmupTime && successfull) {
-                    addResponseTime(estimatedTime);
+                    addResponseTime(estimatedTime, latencyMicros);
                     if (out != null) {
                         out.write((System.currentTimeMillis() /*- startTime*/) + ";" + estimatedTime);
                         out.newLine();
                     }
                 }
                 
-                // Sleep
-                Thread.sleep((int) (random.nextDouble() * maxWaitTime));
+                if (periodNanos > 0) {
+                    intendedTime += periodNanos;
+                } else {
+                    // Sleep
+                    Thread.sleep((int) (random.nextDouble() * maxWaitTime));
+                }
 
                 operationsAttempted++;
             }
@@ -134,6 +176,20 @@ public class WorkerThread extends Thread {
         }
     }
     
+    /**
+     * Run in open-loop mode with requests scheduled at a fixed rate instead
+     * of waiting a random time between them. Must be called before the
+     * thread is started.
+     *
+     * @param periodNanos Time between the intended send times in nanoseconds
+     * @param offsetNanos Delay of the first request in nanoseconds, for
+     * spreading the requests of multiple threads
+     */
+    public void setOpenLoop(final long periodNanos, final long offsetNanos) {
+        this.periodNanos = periodNanos;
+        this.offsetNanos = offsetNanos;
+    }
+
     /**
      * Indicate that this thread has discovered a failure.
      * @param message A description of the problem
@@ -176,6 +232,18 @@ public class WorkerThread extends Thread {
      * @param time the response time
      */
     public void addResponseTime(long time) {
+        addResponseTime(time, TimeUnit.MILLISECONDS.toMicros(time));
+    }
+
+    /**
+     * Add response time to statistics and increase number of operations.
+     * @param time the response time in milliseconds as estimated by the task
+     * @param latencyMicros the latency in microseconds for the histogram,
+     * from the intended send time in open-loop mode
+     */
+    public void addResponseTime(long time, long latencyMicros) {
+        histogram.recordValue(latencyMicros);
+        intervalRecorder.recordValue(latencyMicros);
         operationsPerformed++;
         respTimesSum += time;
         if (time > maxRespTime) {
@@ -216,5 +284,22 @@ public class WorkerThread extends Thread {
     public long getMinResponseTime() {
         return minRespTime;
     }
+
+    /**
+     * @return Histogram of all latencies in microseconds, only to be read
+     * after the thread has finished
+     */
+    public Histogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Get the latencies recorded since the last call, safe to call while
+     * the thread is running.
+     * @return Histogram of the latencies in microseconds for the interval
+     */
+    public Histogram getIntervalHistogram() {
+        return intervalRecorder.getIntervalHistogram();
+    }
     
 }
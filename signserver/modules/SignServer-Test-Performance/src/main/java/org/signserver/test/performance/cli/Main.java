@@ -15,6 +15,10 @@ package org.signserver.test.performance.cli;
 import java.io.*;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -26,6 +30,7 @@ import org.bouncycastle.tsp.TSPAlgorithms;
 import org.signserver.cli.Log4jHelper;
 import org.signserver.common.InvalidWorkerIdException;
 import org.signserver.test.performance.FailureCallback;
+import org.signserver.test.performance.LatencyReport;
 import org.signserver.test.performance.WorkerThread;
 import org.signserver.test.performance.impl.DocumentSignerThread;
 import org.signserver.test.performance.impl.TimeStampThread;
@@ -59,6 +64,10 @@ public class Main {
     private static final String USERSUFFIXMIN = "usersuffixmin";
     private static final String USERSUFFIXMAX = "usersuffixmax";
     private static final String CONTINUE_ON_FAILURE = "continueonfailure";
+    private static final String RATE = "rate";
+    private static final String REPORT_INTERVAL = "reportinterval";
+    private static final String RESULT_JSON = "resultjson";
+    private static final String RESULT_CSV = "resultcsv";
 
     private static final String REQUEST_CERTIFICATE = "requestcertificate";
     private static final String NL = System.getProperty("line.separator");
@@ -70,6 +79,13 @@ public class Main {
     private static long startTime;
     private static long warmupTime;
 
+    private static LatencyReport latencyReport;
+    private static ScheduledExecutorService reporter;
+    private static long intervalStartTime;
+    private static long intervalFailed;
+    private static File resultJson;
+    private static File resultCsv;
+
     private static File infile;
     private static byte[] bytes;
 
@@ -106,6 +122,10 @@ public class Main {
         OPTIONS.addOption(USERSUFFIXMIN, true, "Lowest suffix for usernames in form of an integer value (inclusive).");
         OPTIONS.addOption(USERSUFFIXMAX, true, "Highest suffix for usernames in form of an integer value (inclusive).");
         OPTIONS.addOption(CONTINUE_ON_FAILURE, false, "When this option is specified the test will continue running if a request fails. Failed requests will not be considered for the calculation of the total number of requests and response times. The total number of failed requests will presented in the statistics.");
+        OPTIONS.addOption(RATE, true, "Optional. Run open-loop with this total number of requests per second scheduled evenly over the threads, instead of waiting up to " + MAX_WAIT_TIME + " between requests. Latencies are measured from the intended send time so that requests delayed by slow responses are included. Use enough threads to sustain the rate.");
+        OPTIONS.addOption(REPORT_INTERVAL, true, "Optional. Output latency percentiles for each interval of this number of milliseconds.");
+        OPTIONS.addOption(RESULT_JSON, true, "Optional. File to write the results, including latency percentiles per interval, to in JSON format.");
+        OPTIONS.addOption(RESULT_CSV, true, "Optional. File to write the results, including latency percentiles per interval, to in CSV format.");
     }
 
     /**
@@ -126,7 +146,9 @@ public class Main {
                 .append("e) ").append(COMMAND)
                 .append(" -testsuite DocumentSigner1 -threads 4 -processurl http://localhost:8080/signserver/process -worker XMLSigner -data \"<root/>\" -userprefix user -usersuffixmin 1 -usersuffixmax 50").append(NL)
                 .append("f) ").append(COMMAND)
-                .append(" -testsuite DocumentValidator1 -threads 4 -processurl http://localhost:8080/signserver/process -worker DemoXMLValidator -infile signed.xml").append(NL);
+                .append(" -testsuite DocumentValidator1 -threads 4 -processurl http://localhost:8080/signserver/process -worker DemoXMLValidator -infile signed.xml").append(NL)
+                .append("g) ").append(COMMAND)
+                .append(" -testsuite TimeStamp2 -threads 16 -rate 200 -timelimit 60000 -reportinterval 5000 -resultjson result.json -tsaurl http://localhost:8080/signserver/tsa?workerId=1").append(NL);
 
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         final HelpFormatter formatter = new HelpFormatter();
@@ -286,6 +308,33 @@ public class Main {
             final boolean continueOnFailure =
                     commandLine.hasOption(CONTINUE_ON_FAILURE);
 
+            final double rate;
+            if (commandLine.hasOption(RATE)) {
+                rate = Double.parseDouble(commandLine.getOptionValue(RATE));
+                if (rate <= 0) {
+                    throw new ParseException("Option -" + RATE + " must be a positive number");
+                }
+            } else {
+                rate = 0;
+            }
+
+            final long reportInterval;
+            if (commandLine.hasOption(REPORT_INTERVAL)) {
+                reportInterval = Long.parseLong(commandLine.getOptionValue(REPORT_INTERVAL));
+                if (reportInterval <= 0) {
+                    throw new ParseException("Option -" + REPORT_INTERVAL + " must be a positive number");
+                }
+            } else {
+                reportInterval = 0;
+            }
+
+            if (commandLine.hasOption(RESULT_JSON)) {
+                resultJson = new File(commandLine.getOptionValue(RESULT_JSON));
+            }
+            if (commandLine.hasOption(RESULT_CSV)) {
+                resultCsv = new File(commandLine.getOptionValue(RESULT_CSV));
+            }
+
             // Print info
             LOG.info(String.format(
                   "-- Configuration -----------------------------------------------------------%n"
@@ -294,11 +343,21 @@ public class Main {
                 + "   Threads:                 %10d%n"
                 + "   Warm up time:            %10d ms%n"
                 + "   Max wait time:           %10d ms%n"
+                + "   Mode:                    %s%n"
                 + "   Time limit:              %10d ms%n"
                 + "   URL:                     %s%n"
                 + "   Username(s):             %s%n"
                 + "   Output statistics:       %s%n"
-                + "-------------------------------------------------------------------------------%n", new Date(), ts.name(), numThreads, warmupTime, maxWaitTime, limitedTime, url, userNameDescription, statFolder == null ? "no" : statFolder.getAbsolutePath()));
+                + "-------------------------------------------------------------------------------%n", new Date(), ts.name(), numThreads, warmupTime, maxWaitTime, rate > 0 ? String.format("open-loop, %.1f requests/s", rate) : "closed-loop", limitedTime, url, userNameDescription, statFolder == null ? "no" : statFolder.getAbsolutePath()));
+
+            latencyReport = new LatencyReport(ts.name());
+            latencyReport.addConfiguration("startTime", new Date());
+            latencyReport.addConfiguration("threads", numThreads);
+            latencyReport.addConfiguration("warmupTime", warmupTime);
+            latencyReport.addConfiguration("maxWaitTime", maxWaitTime);
+            latencyReport.addConfiguration("rate", rate);
+            latencyReport.addConfiguration("timeLimit", limitedTime);
+            latencyReport.addConfiguration("url", url);
 
             final LinkedList<WorkerThread> threads = new LinkedList<>();
             final FailureCallback callback = new FailureCallback() {
@@ -353,16 +412,35 @@ public class Main {
                     throw new Exception("Unsupported test suite");
                 }
 
+                if (rate > 0) {
+                    // Spread the scheduled requests evenly over the threads
+                    final long periodNanos = Math.round(TimeUnit.SECONDS.toNanos(1) * numThreads / rate);
+                    for (int i = 0; i < numThreads; i++) {
+                        threads.get(i).setOpenLoop(periodNanos, periodNanos * i / numThreads);
+                    }
+                }
+
                 // Wait 1 second to start
                 Thread.sleep(1000);
 
                 // Start all threads
                 startTime = System.currentTimeMillis();
+                intervalStartTime = startTime;
                 for (WorkerThread w : threads) {
                     w.setUncaughtExceptionHandler(handler);
                     w.start();
                 }
 
+                if (reportInterval > 0) {
+                    reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                        final Thread t = new Thread(r, "LatencyReporter");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    reporter.scheduleAtFixedRate(() -> reportInterval(threads),
+                            reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+                }
+
                 // Wait for the threads to finish
                 try {
                     for (WorkerThread w : threads) {
@@ -395,6 +473,30 @@ public class Main {
         }
     }
 
+    /**
+     * Collect and output the latencies of the threads since the last
+     * interval.
+     *
+     * @param threads to collect from
+     * @return The interval
+     */
+    private static synchronized LatencyReport.Entry reportInterval(final List<WorkerThread> threads) {
+        final long now = System.currentTimeMillis();
+        final Histogram histogram = new Histogram(3);
+        long failed = 0;
+        for (WorkerThread w : threads) {
+            histogram.add(w.getIntervalHistogram());
+            failed += w.getOperationsFailed();
+        }
+        final LatencyReport.Entry entry = latencyReport.addInterval(intervalStartTime, now, histogram, failed - intervalFailed);
+        intervalStartTime = now;
+        intervalFailed = failed;
+
+        LOG.info(String.format("   Interval: %8d ops %6d failed %10.1f tps   %s",
+                entry.getOperations(), entry.getFailed(), entry.getTps(), entry.formatPercentiles()));
+        return entry;
+    }
+
     /**
      * Shutdown worker threads.
      *
@@ -404,6 +506,9 @@ public class Main {
         for (WorkerThread w : threads) {
             w.stopIt();
         }
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
 
         // Total statistics
         long totalRunTime = System.currentTimeMillis() - startTime - warmupTime;
@@ -413,6 +518,7 @@ public class Main {
         double totalAverageResponseTime;
         long totalMaxResponseTime = 0;
         long totalMinResponseTime = Long.MAX_VALUE;
+        final Histogram totalHistogram = new Histogram(3);
 
         // Wait until all stopped
         try {
@@ -429,6 +535,7 @@ public class Main {
                 totalOperationsPerformed += operationsPerformed;
                 totalOperationsFailed += operationsFailed;
                 totalResponseTime += w.getResponseTimeSum();
+                totalHistogram.add(w.getHistogram());
 
                 totalMaxResponseTime = Math.max(totalMaxResponseTime, maxResponseTime);
                 totalMinResponseTime = Math.min(totalMinResponseTime, minResponseTime);
@@ -458,6 +565,25 @@ public class Main {
         logOutput(totalOperationsPerformed, totalOperationsFailed,
                   totalMinResponseTime, totalAverageResponseTime,
                   totalMaxResponseTime, totalRunTime, tps);
+
+        if (latencyReport != null) {
+            if (reporter != null) {
+                reportInterval(threads);
+            }
+            final LatencyReport.Entry total = latencyReport.setTotal(startTime + warmupTime,
+                    System.currentTimeMillis(), totalHistogram, totalOperationsFailed);
+            LOG.info(String.format("   Latency percentiles:     %s%n", total.formatPercentiles()));
+            try {
+                if (resultJson != null) {
+                    latencyReport.writeJson(resultJson);
+                }
+                if (resultCsv != null) {
+                    latencyReport.writeCsv(resultCsv);
+                }
+            } catch (IOException ex) {
+                LOG.error("Results could not be written: " + ex.getMessage());
+            }
+        }
     }
 
     private static void logOutput(final long totalOperationsPerformed,
@@ -0,0 +1,85 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.test.performance;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import junit.framework.TestCase;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Tests for the latency report of the performance tool.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class LatencyReportTest extends TestCase {
+
+    private static Histogram createHistogram(final int count) {
+        final Histogram histogram = new Histogram(3);
+        for (int i = 1; i <= count; i++) {
+            histogram.recordValue(i * 1000);
+        }
+        return histogram;
+    }
+
+    /**
+     * Tests the percentiles and tps of an entry.
+     */
+    public void test01Entry() throws Exception {
+        final LatencyReport report = new LatencyReport("TimeStamp1");
+        final LatencyReport.Entry entry = report.addInterval(0, 2000, createHistogram(1000), 3);
+
+        assertEquals("operations", 1000, entry.getOperations());
+        assertEquals("failed", 3, entry.getFailed());
+        assertEquals("tps", 500.0, entry.getTps(), 0.01);
+        assertEquals("p50", 500000, entry.getPercentile(50), 500);
+        assertEquals("p99", 990000, entry.getPercentile(99), 1000);
+        assertEquals("p99.9", 999000, entry.getPercentile(99.9), 1000);
+        assertEquals("max", 1000000, entry.getMax(), 1000);
+    }
+
+    /**
+     * Tests writing the report as JSON and CSV.
+     */
+    public void test02Write() throws Exception {
+        final LatencyReport report = new LatencyReport("Document\"Signer1");
+        report.addConfiguration("threads", 4);
+        report.addInterval(0, 1000, createHistogram(10), 0);
+        report.addInterval(1000, 2000, new Histogram(3), 1);
+        report.setTotal(0, 2000, createHistogram(10), 1);
+
+        final File json = File.createTempFile("result", ".json");
+        final File csv = File.createTempFile("result", ".csv");
+        try {
+            report.writeJson(json);
+            final String jsonContent = new String(Files.readAllBytes(json.toPath()), StandardCharsets.UTF_8);
+            assertTrue(jsonContent, jsonContent.contains("\"testSuite\": \"Document\\\"Signer1\""));
+            assertTrue(jsonContent, jsonContent.contains("\"threads\": \"4\""));
+            assertTrue(jsonContent, jsonContent.contains("\"total\": {\"start\": 0, \"end\": 2000, \"operations\": 10, \"failed\": 1, \"tps\": 5.0, \"min\": 1.000, \"p50\": 5.0"));
+
+            report.writeCsv(csv);
+            final List<String> lines = Files.readAllLines(csv.toPath(), StandardCharsets.UTF_8);
+            assertEquals("lines", 4, lines.size());
+            assertTrue(lines.get(0), lines.get(0).startsWith("interval;start;end;operations;failed;tps;min;p50"));
+            assertTrue(lines.get(1), lines.get(1).startsWith("0;0;1000;10;0;10.0;1.000;5.0"));
+            assertTrue(lines.get(2), lines.get(2).startsWith("1;1000;2000;0;1;0.0;0.000;0.000;"));
+            assertTrue(lines.get(3), lines.get(3).startsWith("total;0;2000;10;1;5.0;"));
+        } finally {
+            json.delete();
+            csv.delete();
+        }
+    }
+}
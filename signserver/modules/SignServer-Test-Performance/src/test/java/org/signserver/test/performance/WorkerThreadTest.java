@@ -11,6 +11,7 @@ package org.signserver.test.performance;
  *  See terms of license at gnu.org.                                     *
  *                                                                       *
  *************************************************************************/
+import java.util.concurrent.TimeUnit;
 import junit.framework.TestCase;
 import org.apache.log4j.Logger;
 
@@ -82,4 +83,51 @@ public class WorkerThreadTest extends TestCase {
         assertEquals("Max", 59, thread.getMaxResponseTime());
 	}
 	
+    /**
+     * Tests that the response times are recorded in the histogram.
+     */
+    public void test04Histogram() throws Exception {
+        LOG.info("test04Histogram");
+        WorkerThread thread = new WorkerThread("test", null, 0, 0, 0, 0, null, false);
+
+        for (int i = 1; i <= 100; i++) {
+            thread.addResponseTime(i);
+        }
+        thread.addResponseTime(1, 5000000);
+
+        assertEquals("Count", 101, thread.getHistogram().getTotalCount());
+        assertEquals("p50", 51000, thread.getHistogram().getValueAtPercentile(50), 100);
+        assertEquals("max", 5000000, thread.getHistogram().getMaxValue(), 5000);
+        assertEquals("Interval", 101, thread.getIntervalHistogram().getTotalCount());
+        assertEquals("Next interval", 0, thread.getIntervalHistogram().getTotalCount());
+    }
+
+    /**
+     * Tests that in open-loop mode a stalled request also delays the
+     * latencies of the requests scheduled while waiting for it.
+     */
+    public void test05OpenLoop() throws Exception {
+        LOG.info("test05OpenLoop");
+        WorkerThread thread = new WorkerThread("test", null, 0, 0, 0, 400, null, false);
+        final int[] calls = new int[1];
+        thread.task = () -> {
+            if (calls[0]++ == 0) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ex) {
+                    throw new FailedException(ex.getMessage());
+                }
+                return 200;
+            }
+            return 0;
+        };
+        thread.setOpenLoop(TimeUnit.MILLISECONDS.toNanos(10), 0);
+        thread.start();
+        thread.join();
+
+        // Requests 2..20 should have been sent during the stall
+        final long delayed = thread.getHistogram().getCountBetweenValues(50000, Long.MAX_VALUE);
+        assertTrue("Delayed requests: " + delayed, delayed >= 10);
+    }
+
 }
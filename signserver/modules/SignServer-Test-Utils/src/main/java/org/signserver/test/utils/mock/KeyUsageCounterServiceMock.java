@@ -42,5 +42,15 @@ public class KeyUsageCounterServiceMock implements IKeyUsageCounterDataService {
     public boolean isWithinLimit(String keyHash, long keyUsageLimit) {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
-    
+
+    @Override
+    public long reserveWithinLimit(String keyHash, long limit, long count) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public void releaseReserved(String keyHash, long count) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
 }
@@ -0,0 +1,189 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.web.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.signserver.common.GlobalConfiguration;
+import org.signserver.ejb.interfaces.GlobalConfigurationSessionLocal;
+
+/**
+ * Processes the items of a batch request on a bounded number of threads.
+ *
+ * Each item is processed independently and its result or exception is
+ * returned in the outcome for the item, so that one failing item does not
+ * fail the other items of the batch.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class BatchProcessor {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(BatchProcessor.class);
+
+    /** Global configuration property for the maximum number of items in a batch. */
+    public static final String BATCH_MAX_ITEMS = "BATCH_MAX_ITEMS";
+    private static final int DEFAULT_MAX_ITEMS = 1000;
+
+    /** Global configuration property for the number of items processed in parallel. */
+    public static final String BATCH_PARALLELISM = "BATCH_PARALLELISM";
+    private static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private final ExecutorService executor;
+    private final int maxItems;
+    private final int parallelism;
+
+    /**
+     * Outcome of processing one item.
+     *
+     * @param <T> type of result
+     */
+    public static class Outcome<T> {
+        private final T result;
+        private final Exception exception;
+
+        private Outcome(T result, Exception exception) {
+            this.result = result;
+            this.exception = exception;
+        }
+
+        /**
+         * @return the result or null if processing failed
+         */
+        public T getResult() {
+            return result;
+        }
+
+        /**
+         * @return the exception if processing failed otherwise null
+         */
+        public Exception getException() {
+            return exception;
+        }
+    }
+
+    /**
+     * Creates an instance of BatchProcessor with the provided configuration.
+     * @param executor to process items on in addition to the calling thread,
+     * or null to only use the calling thread
+     * @param maxItems maximum number of items in a batch
+     * @param parallelism maximum number of items processed at the same time
+     */
+    public BatchProcessor(ExecutorService executor, int maxItems, int parallelism) {
+        this.executor = executor;
+        this.maxItems = maxItems;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Creates a BatchProcessor instance by querying the global configuration.
+     * @param globalSession to query for configuration
+     * @param executor to process items on in addition to the calling thread,
+     * or null to only use the calling thread
+     * @return the instance
+     */
+    public static BatchProcessor create(GlobalConfigurationSessionLocal globalSession, ExecutorService executor) {
+        final GlobalConfiguration globalConfiguration = globalSession.getGlobalConfiguration();
+        return new BatchProcessor(executor,
+                getIntProperty(globalConfiguration, BATCH_MAX_ITEMS, DEFAULT_MAX_ITEMS),
+                getIntProperty(globalConfiguration, BATCH_PARALLELISM, DEFAULT_PARALLELISM));
+    }
+
+    private static int getIntProperty(GlobalConfiguration globalConfiguration, String property, int defaultValue) {
+        final String confValue = globalConfiguration.getProperty(GlobalConfiguration.SCOPE_GLOBAL, property);
+        int result = defaultValue;
+        if (confValue != null) {
+            try {
+                result = Integer.parseInt(confValue.trim());
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Using " + property + ": " + result);
+                }
+            } catch (NumberFormatException ex) {
+                LOG.error("Incorrect value for global configuration property " + property + ": " + ex.getLocalizedMessage());
+            }
+        }
+        return result;
+    }
+
+    public int getMaxItems() {
+        return maxItems;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Processes all items and waits for them to finish.
+     *
+     * @param <T> type of result
+     * @param items to process
+     * @return the outcome for each item, in the same order as the items
+     * @throws InterruptedException if interrupted while waiting for the items
+     */
+    public <T> List<Outcome<T>> processAll(final List<? extends Callable<T>> items) throws InterruptedException {
+        final int size = items.size();
+        final List<Outcome<T>> outcomes = new ArrayList<>(Collections.nCopies(size, (Outcome<T>) null));
+        final AtomicInteger next = new AtomicInteger();
+
+        final Runnable worker = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < size) {
+                Outcome<T> outcome;
+                try {
+                    outcome = new Outcome<>(items.get(index).call(), null);
+                } catch (Exception ex) {
+                    outcome = new Outcome<>(null, ex);
+                }
+                synchronized (outcomes) {
+                    outcomes.set(index, outcome);
+                }
+            }
+        };
+
+        // Let the calling thread take part and start the other ones
+        final List<Future<?>> futures = new ArrayList<>();
+        if (executor != null) {
+            try {
+                for (int i = 1; i < Math.min(parallelism, size); i++) {
+                    futures.add(executor.submit(worker));
+                }
+            } catch (RejectedExecutionException ex) {
+                LOG.warn("Processing batch with " + (futures.size() + 1) + " threads: " + ex.getMessage());
+            }
+        }
+        worker.run();
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                // Not expected as exceptions are caught per item
+                LOG.error("Processing batch items failed", ex.getCause());
+            }
+        }
+
+        synchronized (outcomes) {
+            return outcomes;
+        }
+    }
+}
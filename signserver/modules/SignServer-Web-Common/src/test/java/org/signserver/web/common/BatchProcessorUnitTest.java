@@ -0,0 +1,112 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.web.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for the BatchProcessor class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class BatchProcessorUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(BatchProcessorUnitTest.class);
+
+    /**
+     * Tests that all items are processed in order, that failures are given
+     * per item and that no more than the configured number of items are
+     * processed at the same time.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testProcessAll() throws Exception {
+        LOG.info("testProcessAll");
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final BatchProcessor instance = new BatchProcessor(executor, 100, 3);
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+            final List<Callable<Integer>> items = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                final int value = i;
+                items.add(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    threads.add(Thread.currentThread().getName());
+                    try {
+                        Thread.sleep(2);
+                        if (value % 10 == 3) {
+                            throw new IllegalArgumentException("Item " + value);
+                        }
+                        return value * 2;
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                });
+            }
+
+            final List<BatchProcessor.Outcome<Integer>> outcomes = instance.processAll(items);
+
+            assertEquals("outcomes", 50, outcomes.size());
+            for (int i = 0; i < 50; i++) {
+                if (i % 10 == 3) {
+                    assertNull("result " + i, outcomes.get(i).getResult());
+                    assertEquals("exception " + i, "Item " + i, outcomes.get(i).getException().getMessage());
+                } else {
+                    assertEquals("result " + i, Integer.valueOf(i * 2), outcomes.get(i).getResult());
+                    assertNull("exception " + i, outcomes.get(i).getException());
+                }
+            }
+            assertTrue("max running: " + maxRunning, maxRunning.get() <= 3);
+            assertTrue("threads: " + threads, threads.size() > 1 && threads.size() <= 3);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests processing without an executor.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testProcessAllWithoutExecutor() throws Exception {
+        LOG.info("testProcessAllWithoutExecutor");
+        final BatchProcessor instance = new BatchProcessor(null, 100, 4);
+        final String caller = Thread.currentThread().getName();
+
+        final List<Callable<String>> items = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            items.add(() -> Thread.currentThread().getName());
+        }
+        for (BatchProcessor.Outcome<String> outcome : instance.processAll(items)) {
+            assertEquals("calling thread", caller, outcome.getResult());
+        }
+        assertTrue("empty", instance.processAll(new ArrayList<Callable<String>>()).isEmpty());
+    }
+}
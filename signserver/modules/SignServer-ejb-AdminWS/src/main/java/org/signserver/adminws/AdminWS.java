@@ -1063,7 +1063,7 @@ public class AdminWS {
                     // Upload handling (Note: close in finally clause)
                     UploadConfig uploadConfig = UploadConfig.create(global);
                     requestData = dataFactory.createReadableData(data, uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+                    responseData = dataFactory.createWritableData(requestData, uploadConfig);
                     req2 = new SignatureRequest(requestID, requestData, responseData);
                 } else if (req instanceof GenericValidationRequest) {
                     byte[] data = ((GenericValidationRequest) req).getRequestData();
@@ -1088,7 +1088,7 @@ public class AdminWS {
                     ByteArrayOutputStream bout = new ByteArrayOutputStream();
                     propReq.getProperties().store(bout, null);
                     requestData = dataFactory.createReadableData(bout.toByteArray(), uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+                    responseData = dataFactory.createWritableData(requestData, uploadConfig);
                     req2 = new SignatureRequest(propReq.hashCode(), requestData, responseData);
                 } else {
                     // Passthrough for all legacy requests
@@ -0,0 +1,110 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.integrityprotected;
+
+import java.util.Map;
+import org.cesecore.audit.enums.EventStatus;
+import org.cesecore.audit.enums.EventType;
+import org.cesecore.audit.enums.ModuleType;
+import org.cesecore.audit.enums.ServiceType;
+
+/**
+ * Audit log row waiting to be stored with its sequence number.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class SequencialAuditRecord {
+
+    private final long timeStamp;
+    private final EventType eventType;
+    private final EventStatus eventStatus;
+    private final ModuleType module;
+    private final ServiceType service;
+    private final String authToken;
+    private final String customId;
+    private final String searchDetail1;
+    private final String searchDetail2;
+    private final Map<String, Object> additionalDetails;
+    private final long sequenceNumber;
+
+    public SequencialAuditRecord(long timeStamp, EventType eventType, EventStatus eventStatus, ModuleType module, ServiceType service,
+            String authToken, String customId, String searchDetail1, String searchDetail2, Map<String, Object> additionalDetails,
+            long sequenceNumber) {
+        this.timeStamp = timeStamp;
+        this.eventType = eventType;
+        this.eventStatus = eventStatus;
+        this.module = module;
+        this.service = service;
+        this.authToken = authToken;
+        this.customId = customId;
+        this.searchDetail1 = searchDetail1;
+        this.searchDetail2 = searchDetail2;
+        this.additionalDetails = additionalDetails;
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    public EventType getEventType() {
+        return eventType;
+    }
+
+    public EventStatus getEventStatus() {
+        return eventStatus;
+    }
+
+    public ModuleType getModule() {
+        return module;
+    }
+
+    public ServiceType getService() {
+        return service;
+    }
+
+    public String getAuthToken() {
+        return authToken;
+    }
+
+    public String getCustomId() {
+        return customId;
+    }
+
+    public String getSearchDetail1() {
+        return searchDetail1;
+    }
+
+    public String getSearchDetail2() {
+        return searchDetail2;
+    }
+
+    public Map<String, Object> getAdditionalDetails() {
+        return additionalDetails;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * @param sequenceNumber to store the row with
+     * @return a copy of this row with the given sequence number
+     */
+    public SequencialAuditRecord withSequenceNumber(final long sequenceNumber) {
+        return new SequencialAuditRecord(timeStamp, eventType, eventStatus, module, service, authToken, customId,
+                searchDetail1, searchDetail2, additionalDetails, sequenceNumber);
+    }
+
+}
@@ -12,6 +12,7 @@
  *************************************************************************/
 package org.signserver.server.integrityprotected;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import org.cesecore.audit.enums.EventStatus;
@@ -50,4 +51,14 @@ public interface SequencialIntegrityProtectedLoggerSessionLocal extends Integrit
      */
     void logWithSequenceNumber(TrustedTime trustedTime, EventType eventType, EventStatus eventStatus, ModuleType module, ServiceType service, String authToken,
             String customId, String searchDetail1, String searchDetail2, Map<String, Object> additionalDetails, Properties properties, Long sequenceNumber) throws AuditRecordStorageException;
+
+    /**
+     * Creates signed logs and stores them in database in one transaction
+     * with their provided sequence numbers.
+     *
+     * @param records to store
+     *
+     * @throws AuditRecordStorageException if unable to store the log records
+     */
+    void logWithSequenceNumbers(List<SequencialAuditRecord> records) throws AuditRecordStorageException;
 }
@@ -0,0 +1,123 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.ejb;
+
+import java.util.List;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import org.apache.log4j.Logger;
+import org.signserver.ejb.interfaces.WorkerSessionLocal;
+import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataBean;
+import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataService;
+import org.signserver.server.archive.spool.ArchiveSpool;
+
+/**
+ * Singleton bean inserting the archive data spooled by the database
+ * archivers.
+ *
+ * The spools are drained by a timer so that the requests do not wait for the
+ * database. Each batch of records is inserted in its own transaction.
+ *
+ * At the first run the spool directories configured for all workers are
+ * opened so that records left from before a restart are inserted without
+ * waiting for the workers to be loaded.
+ *
+ * @see ArchiveSpool
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN) // The spools handle concurrency
+@Singleton
+public class ArchiveSpoolSingletonBean {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(ArchiveSpoolSingletonBean.class);
+
+    /** Maximum number of records to insert per transaction. */
+    private static final int BATCH_SIZE = 100;
+
+    @Resource
+    private SessionContext sessionContext;
+
+    @EJB
+    private WorkerSessionLocal workerSession;
+
+    private EntityManager em;
+
+    private volatile boolean configuredSpoolsOpened;
+
+    /**
+     * Inserts the spooled records of all spools.
+     */
+    @Schedule(second = "*/5", minute = "*", hour = "*", persistent = false)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void drainSpools() {
+        if (em == null) {
+            return;
+        }
+        if (!configuredSpoolsOpened) {
+            openConfiguredSpools();
+            configuredSpoolsOpened = true;
+        }
+        for (ArchiveSpool spool : ArchiveSpool.getAll()) {
+            try {
+                final int drained = spool.drain(BATCH_SIZE, (records, skipExisting) ->
+                        // Call through the container to get a new transaction
+                        sessionContext.getBusinessObject(ArchiveSpoolSingletonBean.class).insert(records, skipExisting));
+                if (drained > 0 && LOG.isDebugEnabled()) {
+                    LOG.debug("Inserted " + drained + " spooled archive records from " + spool.getDirectory()
+                            + ", still waiting: " + spool.getDepth() + " records, " + spool.getSize() + " bytes");
+                }
+            } catch (Exception ex) {
+                LOG.error("Failed to insert spooled archive records from " + spool.getDirectory()
+                        + " (" + spool.getDepth() + " records waiting): " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Opens the spools configured for all workers.
+     */
+    private void openConfiguredSpools() {
+        for (int workerId : workerSession.getAllWorkers()) {
+            try {
+                for (ArchiveSpool spool : ArchiveSpool.fromWorkerConfig(workerSession.getCurrentWorkerConfig(workerId))) {
+                    if (spool.getDepth() > 0) {
+                        LOG.info("Archive spool " + spool.getDirectory() + " has " + spool.getDepth() + " records waiting to be inserted");
+                    }
+                }
+            } catch (RuntimeException ex) {
+                LOG.error("Could not open archive spools of worker " + workerId + ": " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Inserts the records.
+     *
+     * @param records to insert
+     * @param skipExisting if records already inserted should be skipped
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void insert(final List<ArchiveDataBean> records, final boolean skipExisting) {
+        new ArchiveDataService(em).persistAll(records, skipExisting);
+    }
+}
@@ -193,7 +193,7 @@ public class ProcessSessionBean implements ProcessSessionRemote, ProcessSessionL
                 // Upload handling
                 UploadConfig uploadConfig = UploadConfig.create(globalConfigurationSession);
                 requestData = dataFactory.createReadableData(data, uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+                responseData = dataFactory.createWritableData(requestData, uploadConfig);
                 req2 = new SignatureRequest(requestID, requestData, responseData);
             } else if (request instanceof GenericValidationRequest) {
                 byte[] data = ((GenericValidationRequest) request).getRequestData();
@@ -221,7 +221,7 @@ public class ProcessSessionBean implements ProcessSessionRemote, ProcessSessionL
                     // Upload handling
                     UploadConfig uploadConfig = UploadConfig.create(globalConfigurationSession);
                     requestData = dataFactory.createReadableData(bout.toByteArray(), uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+                    responseData = dataFactory.createWritableData(requestData, uploadConfig);
                     req2 = new SignatureRequest(prop.hashCode(), requestData, responseData);
 
                 } catch (IOException ex) {
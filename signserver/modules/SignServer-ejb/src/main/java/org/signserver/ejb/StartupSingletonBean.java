@@ -46,7 +46,9 @@ import static org.signserver.common.util.PropertiesConstants.OLDWORKER_PREFIX;
 import static org.signserver.common.util.PropertiesConstants.WORKER_PREFIX;
 import org.signserver.ejb.worker.impl.WorkerManagerSingletonBean;
 import org.signserver.server.cesecore.AlwaysAllowLocalAuthenticationToken;
+import org.signserver.server.dispatchers.LoadBalancingDispatcher;
 import org.signserver.server.log.AdminInfo;
+import org.signserver.server.log.FileLogWriter;
 import org.signserver.server.log.SignServerEventTypes;
 import org.signserver.server.log.SignServerModuleTypes;
 import org.signserver.server.log.SignServerServiceTypes;
@@ -60,6 +62,8 @@ import org.signserver.ejb.interfaces.ServiceTimerSessionLocal;
 import org.signserver.server.IWorker;
 import org.signserver.server.config.entities.FileBasedWorkerConfigDataService;
 import org.signserver.statusrepo.StatusRepositorySessionLocal;
+import org.signserver.validationservice.server.crlcache.CRLCache;
+import org.signserver.validationservice.server.ocspcache.OCSPResponseCache;
 
 /**
  * EJB Singleton used to start services and perform upgrades etc.
@@ -73,6 +77,8 @@ public class StartupSingletonBean {
     private static final long serialVersionUID = 1L;
     
     private static final String LOG_VERSION = "VERSION";
+
+    private static final int DEFAULT_PRELOAD_THREADS = 4;
     
     /** Logger for this class. */
     private static final Logger LOG
@@ -96,6 +102,9 @@ public class StartupSingletonBean {
     @EJB
     private WorkerManagerSingletonBean workerManager;
 
+    @EJB
+    private WorkerPreloadBean workerPreload;
+
     private ServiceTimerSessionLocal getTimedServiceSession(){
     	return timedServiceSession;
     }
@@ -119,6 +128,16 @@ public class StartupSingletonBean {
         } catch (Exception ex) {
             LOG.info("Exception caught trying to cancel timers. This happens with some application servers: " + ex.getMessage());
         }
+
+        // Write queued worker log lines and close the log files
+        FileLogWriter.shutdown();
+
+        // Stop the background fetching of revocation information
+        CRLCache.shutdown();
+        OCSPResponseCache.shutdown();
+
+        // Stop the status checks of dispatchers not using a managed executor
+        LoadBalancingDispatcher.shutdown();
     }
 
     @PostConstruct
@@ -250,7 +269,27 @@ public class StartupSingletonBean {
         } catch (NoSuchPropertyException ex) {
             throw new EJBException(ex);
         }
-        
+
+        // Load the workers now instead of on their first requests
+        if (Boolean.parseBoolean(settings.getProperty(CompileTimeSettings.WORKERS_PRELOAD, "false").trim())) {
+            preloadWorkers(settings);
+        }
+    }
+
+    private void preloadWorkers(final CompileTimeSettings settings) {
+        final int threads = parseThreads(settings.getProperty(CompileTimeSettings.WORKERS_PRELOAD_THREADS));
+        final boolean activate = Boolean.parseBoolean(settings.getProperty(CompileTimeSettings.WORKERS_PRELOAD_ACTIVATE, "false").trim());
+        final boolean testKey = Boolean.parseBoolean(settings.getProperty(CompileTimeSettings.WORKERS_PRELOAD_TESTKEY, "false").trim());
+
+        // Called through the container to run outside of the startup transaction
+        workerPreload.preloadWorkers(threads, activate, testKey);
+    }
+
+    private static int parseThreads(final String value) {
+        if (StringUtils.isNumeric(value)) {
+            return Integer.parseInt(value);
+        }
+        return DEFAULT_PRELOAD_THREADS;
     }
 
     private static final String CRYPTOTOKENPROPERTY_BASE = ".CRYPTOTOKEN";
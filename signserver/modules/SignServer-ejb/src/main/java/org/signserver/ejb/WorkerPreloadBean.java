@@ -0,0 +1,118 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.ejb;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import org.apache.log4j.Logger;
+import org.signserver.common.KeyTestResult;
+import org.signserver.common.SignServerException;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerIdentifier;
+import org.signserver.common.WorkerStatus;
+import org.signserver.common.WorkerType;
+import org.signserver.ejb.interfaces.WorkerSessionLocal;
+import org.signserver.ejb.worker.impl.WorkerManagerSingletonBean;
+import org.signserver.ejb.worker.impl.WorkerPreloader;
+import org.signserver.server.log.AdminInfo;
+
+/**
+ * Loads and warms up the workers at startup instead of on their first
+ * requests.
+ *
+ * Called by the StartupSingletonBean. Runs without a transaction so that the
+ * startup transaction is suspended while waiting for the workers, which are
+ * loaded on the container's managed executor.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+@Stateless
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class WorkerPreloadBean {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(WorkerPreloadBean.class);
+
+    @EJB
+    private WorkerSessionLocal workerSession;
+
+    @EJB
+    private WorkerManagerSingletonBean workerManager;
+
+    @Resource(lookup = "java:comp/DefaultManagedExecutorService")
+    private ExecutorService executorService;
+
+    /**
+     * Loads all workers and their components and optionally activates and
+     * tests the keys of the processable workers. Failures are logged per
+     * worker.
+     *
+     * @param threads maximum number of workers to load in parallel
+     * @param activate if the status of the workers should be checked, which
+     * creates and activates their crypto tokens
+     * @param testKey if the TESTKEY or DEFAULTKEY of the workers should be
+     * tested
+     */
+    public void preloadWorkers(final int threads, final boolean activate, final boolean testKey) {
+        final long startTime = System.currentTimeMillis();
+
+        try {
+            final List<Integer> workerIds = workerManager.getAllWorkerIDs();
+            LOG.info("Preloading " + workerIds.size() + " workers using " + threads + " threads");
+            logPreloadErrors(workerManager.preloadWorkers(workerIds, executorService, threads));
+
+            if (activate || testKey) {
+                final AdminInfo admin = new AdminInfo("CLI user", null, null);
+                logPreloadErrors(new WorkerPreloader(executorService, threads).forEach(workerManager.getAllWorkerIDs(WorkerType.PROCESSABLE), workerId -> {
+                    final WorkerIdentifier wi = new WorkerIdentifier(workerId);
+
+                    // Getting the status creates and activates the crypto token
+                    final WorkerStatus status = workerSession.getStatus(wi);
+                    if (status.isDisabled()) {
+                        return;
+                    }
+                    if (!status.getFatalErrors().isEmpty()) {
+                        throw new SignServerException("Worker has errors: " + status.getFatalErrors());
+                    }
+                    if (testKey) {
+                        final WorkerConfig config = workerSession.getCurrentWorkerConfig(workerId);
+                        if (config.getProperty("TESTKEY") != null || config.getProperty("DEFAULTKEY") != null) {
+                            for (KeyTestResult result : workerSession.testKey(admin, wi, null, null)) {
+                                if (!result.isSuccess()) {
+                                    throw new SignServerException("Key test failed for " + result.getAlias() + ": " + result.getStatus());
+                                }
+                            }
+                        }
+                    }
+                }));
+            }
+            LOG.info("Preloading of workers completed in " + (System.currentTimeMillis() - startTime) + " ms");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while preloading workers");
+        }
+    }
+
+    private static void logPreloadErrors(final Map<Integer, String> errors) {
+        for (Map.Entry<Integer, String> entry : errors.entrySet()) {
+            LOG.warn("Preloading worker " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+}
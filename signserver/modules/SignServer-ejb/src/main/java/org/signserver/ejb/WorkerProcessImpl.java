@@ -15,6 +15,7 @@ package org.signserver.ejb;
 import org.signserver.common.WorkerIdentifier;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -44,13 +45,13 @@ import org.signserver.server.AccounterException;
 import org.signserver.server.IAuthorizer;
 import org.signserver.server.IClientCredential;
 import org.signserver.server.IProcessable;
-import org.signserver.server.KeyUsageCounterHash;
 import org.signserver.server.ValidityTimeUtils;
 import org.signserver.server.archive.Archivable;
 import org.signserver.server.archive.ArchiveException;
 import org.signserver.server.archive.Archiver;
 import org.signserver.server.cryptotokens.CryptoInstances;
 import org.signserver.server.cryptotokens.ICryptoInstance;
+import org.signserver.server.cryptotokens.PooledCryptoInstance;
 import org.signserver.server.entities.IKeyUsageCounterDataService;
 import org.signserver.server.log.AdminInfo;
 import org.signserver.server.log.IWorkerLogger;
@@ -223,6 +224,9 @@ class WorkerProcessImpl {
                 throw exception;
             }
 
+            // Check that the client could be charged before processing
+            handlePreAccounting(worker, requestContext, logMap, request, workerLogger, adminInfo);
+
             // Process the request
             final Response res = handleProcessing(processable, workerId, request, requestContext, logMap, workerLogger, adminInfo);
 
@@ -231,7 +235,7 @@ class WorkerProcessImpl {
             if (res instanceof SignatureResponse) {
                 signerCertificate = ((SignatureResponse) res).getSignerCertificate();
             }
-            handleSignerCertificate(signerCertificate, workerId, logMap, pwc, requestContext, workerLogger, adminInfo);
+            handleSignerCertificate(signerCertificate, workerId, logMap, worker, requestContext, workerLogger, adminInfo);
 
             // Charge the client if the request was successfull
             handleAccounting(worker, requestContext, logMap, request, res, workerLogger, adminInfo);
@@ -241,7 +245,7 @@ class WorkerProcessImpl {
 
             // Check key usage limit
             if (!pwc.isDisableKeyUsageCounter() || pwc.isKeyUsageLimitSpecified()) {
-                checkSignerKeyUsageCounter(signerCertificate, workerId, pwc.getKeyUsageLimit(), em, true, requestContext.getServices());
+                checkSignerKeyUsageCounter(signerCertificate, workerId, worker, em, true, requestContext.getServices());
             }
 
             // Output successfully
@@ -293,6 +297,15 @@ class WorkerProcessImpl {
                 LOG.warn("Worker " + wi + " did not release "
                         + cryptoInstances.size() + " crypto instances: "
                         + cryptoInstances);
+
+                // Give back pooled instances so they do not hold on to the
+                // pool's permits forever
+                for (ICryptoInstance instance : new ArrayList<>(cryptoInstances)) {
+                    if (instance instanceof PooledCryptoInstance) {
+                        ((PooledCryptoInstance) instance).release();
+                    }
+                    CryptoInstances.getInstance(requestContext).remove(instance);
+                }
             }
         }
     }
@@ -316,18 +329,19 @@ class WorkerProcessImpl {
      * the counter of the usages of the key has not reached the configured
      * limit.
      * @param workerId
-     * @param awc
+     * @param worker
      * @param em
      * @throws CryptoTokenOfflineException
      */
     private void checkSignerKeyUsageCounter(final Certificate cert,
-            final int workerId, final long keyUsageLimit, EntityManager em,
+            final int workerId, final WorkerWithComponents worker, EntityManager em,
             final boolean increment, final IServices services)
         throws CryptoTokenOfflineException {
 
         if (cert != null) {
-            final String keyHash
-                    = KeyUsageCounterHash.create(cert.getPublicKey());
+            final long keyUsageLimit = worker.getPreloadedConfig().getKeyUsageLimit();
+            final int reservationSize = worker.getPreloadedConfig().getKeyUsageReservationSize();
+            final String keyHash = worker.getKeyUsageCounterHash(cert.getPublicKey());
 
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Worker[" + workerId +"]: "
@@ -337,7 +351,13 @@ class WorkerProcessImpl {
             }
 
             if (increment) {
-                if (!keyUsageCounterDataService.incrementIfWithinLimit(keyHash, keyUsageLimit)) {
+                final boolean withinLimit;
+                if (reservationSize > 1) {
+                    withinLimit = workerManagerSession.incrementKeyUsageCounter(keyHash, keyUsageLimit, reservationSize);
+                } else {
+                    withinLimit = keyUsageCounterDataService.incrementIfWithinLimit(keyHash, keyUsageLimit);
+                }
+                if (!withinLimit) {
                     final String message
                             = "Key usage limit exceeded or not initialized for worker "
                             + workerId;
@@ -436,7 +456,35 @@ class WorkerProcessImpl {
         }
     }
 
-    private void handleSignerCertificate(Certificate signerCertificate, int workerId, LogMap logMap, PreloadedWorkerConfig pwc, RequestContext requestContext, IWorkerLogger workerLogger, AdminInfo adminInfo) throws WorkerLoggerException, CryptoTokenOfflineException {
+    private void handlePreAccounting(final WorkerWithComponents worker, final RequestContext requestContext, final LogMap logMap, final Request request, IWorkerLogger workerLogger, AdminInfo adminInfo) throws NotGrantedException, WorkerLoggerException, SignServerException {
+        final boolean granted;
+        try {
+            IClientCredential credential =
+                    (IClientCredential) requestContext.get(
+                                RequestContext.CLIENT_CREDENTIAL);
+
+            granted = worker.getAccounter().isGranted(credential, request, requestContext);
+        } catch (AccounterException ex) {
+            logMap.put(IWorkerLogger.LOG_PURCHASED, false);
+            final SignServerException exception =
+                    new SignServerException("Accounter failed: "
+                    + ex.getMessage(), ex);
+            logException(adminInfo, ex, logMap, workerLogger, requestContext);
+            throw exception;
+        }
+        if (!granted) {
+            final String error = "Purchase not granted";
+            logMap.put(IWorkerLogger.LOG_PURCHASED, false);
+            logMap.put(IWorkerLogger.LOG_EXCEPTION, error);
+            logMap.put(IWorkerLogger.LOG_PROCESS_SUCCESS, false);
+
+            workerLogger.log(adminInfo, logMap, requestContext);
+            throw new NotGrantedException(error);
+        }
+    }
+
+    private void handleSignerCertificate(Certificate signerCertificate, int workerId, LogMap logMap, WorkerWithComponents worker, RequestContext requestContext, IWorkerLogger workerLogger, AdminInfo adminInfo) throws WorkerLoggerException, CryptoTokenOfflineException {
+        final PreloadedWorkerConfig pwc = worker.getPreloadedConfig();
         if (signerCertificate instanceof X509Certificate) {
             final X509Certificate cert = (X509Certificate) signerCertificate;
 
@@ -472,8 +520,11 @@ class WorkerProcessImpl {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("Key usage counter disabled: " + pwc.isDisableKeyUsageCounter());
                 }
-                if (!pwc.isDisableKeyUsageCounter() || pwc.isKeyUsageLimitSpecified()) {
-                    checkSignerKeyUsageCounter(signerCertificate, workerId, pwc.getKeyUsageLimit(), em,
+                // (the counter includes usages reserved but not yet used so
+                // when reserving the limit is only checked when incrementing)
+                if ((!pwc.isDisableKeyUsageCounter() || pwc.isKeyUsageLimitSpecified())
+                        && pwc.getKeyUsageReservationSize() == 1) {
+                    checkSignerKeyUsageCounter(signerCertificate, workerId, worker, em,
                             false, requestContext.getServices());
                 }
             } catch (CryptoTokenOfflineException ex) {
@@ -0,0 +1,174 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.ejb.worker.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Key usages reserved in the key usage counter by this node.
+ *
+ * Instead of updating the shared counter for every signing, a block of
+ * usages is reserved at a time and then counted down locally. As the usages
+ * are counted in the database already when reserved, the key usage limit
+ * can never be exceeded. The counter in the database is ahead of the actual
+ * number of signings by at most the unused part of the reservations, which
+ * is given back after a period of inactivity and at shutdown. Reservations
+ * held by a node that is not shut down properly are lost and counted as
+ * used.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class KeyUsageReservations {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(KeyUsageReservations.class);
+
+    /**
+     * Persistent key usage counter to reserve usages from.
+     */
+    public interface Counter {
+
+        /**
+         * Reserves up to count usages without exceeding the limit.
+         *
+         * @param keyHash Hash of the key
+         * @param limit The maximum number of operations or a negative value
+         * for no limit
+         * @param count The number of usages to reserve
+         * @return The number of usages reserved
+         */
+        long reserve(String keyHash, long limit, long count);
+
+        /**
+         * Gives back unused usages.
+         *
+         * @param keyHash Hash of the key
+         * @param count The number of usages to give back
+         */
+        void release(String keyHash, long count);
+    }
+
+    private final Counter counter;
+    private final ConcurrentMap<String, Reservation> reservations = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an instance reserving usages from the given counter.
+     *
+     * @param counter to reserve usages from
+     */
+    public KeyUsageReservations(final Counter counter) {
+        this.counter = counter;
+    }
+
+    /**
+     * Uses one usage of the key, reserving a new block of usages if there
+     * are no reserved usages left.
+     *
+     * @param keyHash Hash of the key
+     * @param limit The maximum number of operations or a negative value for
+     * no limit
+     * @param blockSize number of usages to reserve at a time
+     * @return True if the usage was within the limit or false if the limit
+     * was reached or the counter not initialized
+     */
+    public boolean incrementIfWithinLimit(final String keyHash, final long limit, final int blockSize) {
+        // Reservations are made with the limit of the worker so keep them
+        // apart if workers sharing the same key have different limits
+        final Reservation reservation = reservations.computeIfAbsent(keyHash + ";" + limit, k -> new Reservation(keyHash));
+
+        if (reservation.tryUse()) {
+            return true;
+        }
+        synchronized (reservation) {
+            // Someone else might just have made a new reservation
+            if (reservation.tryUse()) {
+                return true;
+            }
+            final long reserved = counter.reserve(keyHash, limit, blockSize);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Reserved " + reserved + " usages for key " + keyHash);
+            }
+            if (reserved < 1) {
+                return false;
+            }
+            reservation.remaining.addAndGet(reserved - 1);
+            reservation.lastUsed = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    /**
+     * Gives back the unused usages of reservations not used for the given
+     * time.
+     *
+     * @param maxIdle time in milliseconds
+     */
+    public void releaseIdle(final long maxIdle) {
+        final long now = System.currentTimeMillis();
+        for (Reservation reservation : reservations.values()) {
+            if (now - reservation.lastUsed > maxIdle) {
+                release(reservation);
+            }
+        }
+    }
+
+    /**
+     * Gives back the unused usages of all reservations.
+     */
+    public void releaseAll() {
+        for (Reservation reservation : reservations.values()) {
+            release(reservation);
+        }
+    }
+
+    private void release(final Reservation reservation) {
+        synchronized (reservation) {
+            final long unused = reservation.remaining.getAndSet(0);
+            if (unused > 0) {
+                try {
+                    counter.release(reservation.keyHash, unused);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Gave back " + unused + " reserved usages for key " + reservation.keyHash);
+                    }
+                } catch (RuntimeException ex) {
+                    LOG.warn("Unable to give back " + unused + " reserved usages for key " + reservation.keyHash + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private static class Reservation {
+        private final String keyHash;
+        private final AtomicLong remaining = new AtomicLong();
+        private volatile long lastUsed;
+
+        Reservation(String keyHash) {
+            this.keyHash = keyHash;
+        }
+
+        boolean tryUse() {
+            long current;
+            while ((current = remaining.get()) > 0) {
+                if (remaining.compareAndSet(current, current - 1)) {
+                    lastUsed = System.currentTimeMillis();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -34,6 +34,7 @@ public class PreloadedWorkerConfig {
     private final boolean disableKeyUsageCounter;
     private final long keyUsageLimit;
     private final boolean keyUsageLimitSpecified;
+    private final int keyUsageReservationSize;
     
     private final boolean checkCertValidity;
     private final boolean checkPrivateKeyValidity;
@@ -64,6 +65,22 @@ public class PreloadedWorkerConfig {
             fatalErrors.add("Configuration error: " + SignServerConstants.DISABLEKEYUSAGECOUNTER + "=TRUE but " + SignServerConstants.KEYUSAGELIMIT + " is also configured.");
         }
 
+        final String keyUsageReservationSizeProperty = config.getProperty(SignServerConstants.KEYUSAGERESERVATIONSIZE);
+        int keyUsageReservationSizeValue = 1;
+        try {
+            if (keyUsageReservationSizeProperty != null && !keyUsageReservationSizeProperty.trim().isEmpty()) {
+                keyUsageReservationSizeValue = Integer.parseInt(keyUsageReservationSizeProperty.trim());
+            }
+            if (keyUsageReservationSizeValue < 1) {
+                fatalErrors.add("Incorrect value for " + SignServerConstants.KEYUSAGERESERVATIONSIZE + ": must be at least 1");
+                keyUsageReservationSizeValue = 1;
+            }
+        } catch (NumberFormatException ex) {
+            fatalErrors.add("Incorrect value for " + SignServerConstants.KEYUSAGERESERVATIONSIZE + ": " + ex.getLocalizedMessage());
+            keyUsageReservationSizeValue = 1;
+        }
+        this.keyUsageReservationSize = keyUsageReservationSizeValue;
+
         this.checkCertValidity = config.getProperty(SignServerConstants.CHECKCERTVALIDITY, Boolean.TRUE.toString()).equalsIgnoreCase(Boolean.TRUE.toString());
         this.checkPrivateKeyValidity = config.getProperty(SignServerConstants.CHECKCERTPRIVATEKEYVALIDITY, Boolean.TRUE.toString()).equalsIgnoreCase(Boolean.TRUE.toString());
 
@@ -98,6 +115,13 @@ public class PreloadedWorkerConfig {
         return keyUsageLimitSpecified;
     }
 
+    /**
+     * @return number of key usages to reserve at a time, 1 if not reserving
+     */
+    public int getKeyUsageReservationSize() {
+        return keyUsageReservationSize;
+    }
+
     public boolean isCheckCertValidity() {
         return checkCertValidity;
     }
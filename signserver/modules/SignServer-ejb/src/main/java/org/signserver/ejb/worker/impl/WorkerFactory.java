@@ -13,6 +13,11 @@
 package org.signserver.ejb.worker.impl;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.persistence.EntityManager;
 import org.apache.log4j.Logger;
 import org.signserver.common.*;
@@ -32,6 +37,13 @@ import org.signserver.server.UnloadableWorker;
  * Loads worker configurations and instantiates the implementations and caches
  * those.
  *
+ * Lookups of already loaded workers are served directly from the concurrent
+ * WorkerStore without any locking. Loading and reloading of a worker is
+ * serialized per worker ID only, so initializing (or reloading) one worker
+ * does not block requests to other workers. A flush is guarded by a
+ * read-write lock so that a worker loaded from a configuration read before
+ * the flush is never published after it.
+ *
  * @author Philip Vendil
  * @version $Id$
  */
@@ -48,6 +60,15 @@ public class WorkerFactory {
 
     private final WorkerStore cache = new WorkerStore();
 
+    /** Per worker ID locks serializing the loading of each worker. */
+    private final ConcurrentMap<Integer, Object> loadLocks = new ConcurrentHashMap<>();
+
+    /** Read lock held while publishing loaded workers, write lock while flushing. */
+    private final ReadWriteLock flushLock = new ReentrantReadWriteLock();
+
+    /** Incremented for each flush. */
+    private volatile long generation;
+
     protected WorkerFactory(IWorkerConfigDataService workerConfigHome, SignServerContext workerContext) {
         this.workerConfigHome = workerConfigHome;
         this.workerContext = workerContext;
@@ -65,13 +86,19 @@ public class WorkerFactory {
      * for the specified signerId could be found.
      * @throws NoSuchWorkerException In case the worker ID does not exist
      */
-    public synchronized IWorker getWorker(WorkerIdentifier wi) throws NoSuchWorkerException {
+    public IWorker getWorker(WorkerIdentifier wi) throws NoSuchWorkerException {
         if (LOG.isTraceEnabled()) {
             LOG.trace(">getWorker(" + wi + ")");
         }
         IWorker result = cache.getWorkerOnly(wi);
         if (result == null) {
-            result = loadWorker(wi);
+            final int workerId = resolveId(wi);
+            synchronized (getLoadLock(workerId)) {
+                result = cache.getWorkerOnly(wi);
+                if (result == null) {
+                    result = loadWorker(wi);
+                }
+            }
         }
         if (LOG.isTraceEnabled()) {
             LOG.trace("<getWorker(" + wi + "): " + result);
@@ -79,10 +106,16 @@ public class WorkerFactory {
         return result;
     }
 
-    public synchronized WorkerWithComponents getWorkerWithComponents(final WorkerIdentifier wi, final SignServerContext context) throws NoSuchWorkerException {
+    public WorkerWithComponents getWorkerWithComponents(final WorkerIdentifier wi, final SignServerContext context) throws NoSuchWorkerException {
         WorkerWithComponents result = cache.getWorkerWithComponents(wi);
         if (result == null) {
-            result = loadWorkerWithComponents(wi, context);
+            final int workerId = resolveId(wi);
+            synchronized (getLoadLock(workerId)) {
+                result = cache.getWorkerWithComponents(wi);
+                if (result == null) {
+                    result = loadWorkerWithComponents(wi, context);
+                }
+            }
         }
         if (LOG.isTraceEnabled()) {
             LOG.trace("getWorkerWithComponents(" + wi + ") returning instance: " + result + " containing " + result.getWorker());
@@ -90,16 +123,57 @@ public class WorkerFactory {
         return result;
     }
 
-    private IWorker loadWorker(final WorkerIdentifier wi) throws NoSuchWorkerException {
-        if (LOG.isTraceEnabled()) {
-            LOG.trace(">loadWorker(" + wi + ")");
-        }
+    /**
+     * Loads the given workers and their components in parallel so that it
+     * does not have to be done on their first requests.
+     *
+     * @param workerIds IDs of the workers to load
+     * @param executor to load the workers on
+     * @param threads maximum number of workers to load in parallel
+     * @param context to load the components with
+     * @return An error message for each worker that could not be loaded or
+     * has create errors
+     * @throws InterruptedException in case the thread was interrupted while
+     * waiting
+     */
+    public Map<Integer, String> preload(final Collection<Integer> workerIds, final ExecutorService executor, final int threads, final SignServerContext context) throws InterruptedException {
+        return new WorkerPreloader(executor, threads).forEach(workerIds, workerId -> {
+            final WorkerWithComponents worker = getWorkerWithComponents(new WorkerIdentifier(workerId), context);
+            if (worker.hasCreateErrors()) {
+                throw new SignServerException("Worker has create errors: " + worker.getCreateErrors());
+            }
+        });
+    }
+
+    /**
+     * @param wi identifier of worker
+     * @return the ID of the worker, looked up from the configuration if only
+     * the name is given
+     */
+    private int resolveId(final WorkerIdentifier wi) throws NoSuchWorkerException {
         final int workerId;
         if (wi.hasId()) {
             workerId = wi.getId();
         } else {
-            workerId = workerConfigHome.findId(wi.getName());
+            final Integer cachedId = cache.getWorkerId(wi.getName());
+            workerId = cachedId != null ? cachedId : workerConfigHome.findId(wi.getName());
         }
+        return workerId;
+    }
+
+    private Object getLoadLock(final int workerId) {
+        return loadLocks.computeIfAbsent(workerId, id -> new Object());
+    }
+
+    /**
+     * Load a worker. Must be called while holding the load lock for the worker.
+     */
+    private IWorker loadWorker(final WorkerIdentifier wi) throws NoSuchWorkerException {
+        if (LOG.isTraceEnabled()) {
+            LOG.trace(">loadWorker(" + wi + ")");
+        }
+        final int workerId = resolveId(wi);
+        final long loadGeneration = generation;
 
         // Load worker from database
         IWorker result;
@@ -135,7 +209,14 @@ public class WorkerFactory {
                 LOG.trace("loadWorker(" + workerId + "): instance " + result);
             }
 
-            cache.putWorkerOnly(workerId, result);
+            flushLock.readLock().lock();
+            try {
+                if (loadGeneration == generation) {
+                    cache.putWorkerOnly(workerId, result);
+                }
+            } finally {
+                flushLock.readLock().unlock();
+            }
         }
         if (LOG.isTraceEnabled()) {
             LOG.trace("<loadWorker(" + wi + "): " + result);
@@ -143,14 +224,14 @@ public class WorkerFactory {
         return result;
     }
     
+    /**
+     * Load a worker and its components. Must be called while holding the load
+     * lock for the worker.
+     */
     private WorkerWithComponents loadWorkerWithComponents(final WorkerIdentifier wi, final SignServerContext context) throws NoSuchWorkerException {
-        final int workerId;
-        if (wi.hasId()) {
-            workerId = wi.getId();
-        } else {
-            workerId = workerConfigHome.findId(wi.getName());
-        }
-        
+        final int workerId = resolveId(wi);
+        final long loadGeneration = generation;
+
         WorkerWithComponents result;
         if (LOG.isTraceEnabled()) {
             LOG.trace(">loadWorkerWithComponents(" + workerId + ")");
@@ -206,7 +287,14 @@ public class WorkerFactory {
 
         // Worker with components
         result = new WorkerWithComponents(workerId, worker, createErrors, loadedConfig, workerLogger, authorizer, accounter, archivers);
-        cache.putWorkerWithComponents(workerId, result);
+        flushLock.readLock().lock();
+        try {
+            if (loadGeneration == generation) {
+                cache.putWorkerWithComponents(workerId, result);
+            }
+        } finally {
+            flushLock.readLock().unlock();
+        }
         if (LOG.isTraceEnabled()) {
             LOG.trace("<loadWorkerWithComponents(" + workerId + "): " + worker + " in " + result);
         }
@@ -224,21 +312,19 @@ public class WorkerFactory {
 
                 @Override
                 public ICryptoTokenV4 getCurrentCryptoToken(final IServices services) throws SignServerException {
-                    synchronized (WorkerFactory.this) {
-                        try {
-                            IWorker cryptoWorker = getWorker(new WorkerIdentifier(cryptoTokenName));
-                            if (cryptoWorker instanceof BaseProcessable) {
-                                return ((BaseProcessable) cryptoWorker).getCryptoToken(services);
-                            } else {
-                                if (LOG.isDebugEnabled()) {
-                                    LOG.debug("Not a processable worker: " + cryptoWorker);
-                                }
-                                return null;
+                    try {
+                        IWorker cryptoWorker = getWorker(new WorkerIdentifier(cryptoTokenName));
+                        if (cryptoWorker instanceof BaseProcessable) {
+                            return ((BaseProcessable) cryptoWorker).getCryptoToken(services);
+                        } else {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Not a processable worker: " + cryptoWorker);
                             }
-                        } catch (NoSuchWorkerException ex) {
-                            LOG.info("Unable to get crypto worker: " + cryptoTokenName);
                             return null;
                         }
+                    } catch (NoSuchWorkerException ex) {
+                        LOG.info("Unable to get crypto worker: " + cryptoTokenName);
+                        return null;
                     }
                 }
 
@@ -259,20 +345,17 @@ public class WorkerFactory {
             }
 
             context.setOtherSignersSupplier((IServices services) -> {
-                synchronized (WorkerFactory.this) {
-                    final List<IWorker> results = new ArrayList<>();
-                    try {
-                        for (String other : otherSigners) {
-                            IWorker otherWorker = getWorker(new WorkerIdentifier(other));
-                            results.add(otherWorker);
-                            
-                        }
-                    } catch (NoSuchWorkerException ex) {
-                        LOG.info("Unable to get OTHER_SIGNERS: " + otherSigners);
-                        return null;
+                final List<IWorker> results = new ArrayList<>();
+                try {
+                    for (String other : otherSigners) {
+                        IWorker otherWorker = getWorker(new WorkerIdentifier(other));
+                        results.add(otherWorker);
                     }
-                    return results;
+                } catch (NoSuchWorkerException ex) {
+                    LOG.info("Unable to get OTHER_SIGNERS: " + otherSigners);
+                    return null;
                 }
+                return results;
             });
         }
         worker.init(workerId, config, context, null);
@@ -286,30 +369,44 @@ public class WorkerFactory {
      * Should be called from the GlobalConfigurationFileParser.reloadConfiguration() method
      *
      */
-    public synchronized void flush() {
+    public void flush() {
         if (LOG.isTraceEnabled()) {
             LOG.trace(">flush()");
         }
-        cache.clearAll();
+        final Collection<IWorker> removed;
+        flushLock.writeLock().lock();
+        try {
+            generation++;
+            removed = cache.clearAll();
+        } finally {
+            flushLock.writeLock().unlock();
+        }
+        for (IWorker worker : removed) {
+            destroy(worker);
+        }
     }
 
     /**
      * Method used to force a reload of worker.
      * @param wi of worker
      */
-    public synchronized void reloadWorker(WorkerIdentifier wi) {
+    public void reloadWorker(WorkerIdentifier wi) {
         if (LOG.isTraceEnabled()) {
             LOG.trace(">reloadWorker(" + wi + ")");
         }
-        if (wi.hasName() || (wi.hasId() && wi.getId() != null)) {
-            cache.clear(wi);
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("reloadWorker(" + wi + "): removed instance");
-            }
-        }
-
         try {
-            loadWorker(wi);
+            synchronized (getLoadLock(resolveId(wi))) {
+                if (wi.hasName() || (wi.hasId() && wi.getId() != null)) {
+                    final IWorker removed = cache.clear(wi);
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("reloadWorker(" + wi + "): removed instance");
+                    }
+                    if (removed != null) {
+                        destroy(removed);
+                    }
+                }
+                loadWorker(wi);
+            }
         } catch (NoSuchWorkerException ex) {
             LOG.error("Error reloading worker : " + ex.getMessage());
         }
@@ -318,7 +415,15 @@ public class WorkerFactory {
         }
     }
     
-    public synchronized Collection<Integer> getCachedWorkerIds() {
+    private static void destroy(final IWorker worker) {
+        try {
+            worker.destroy();
+        } catch (RuntimeException ex) {
+            LOG.error("Error destroying worker instance: " + ex.getMessage(), ex);
+        }
+    }
+
+    public Collection<Integer> getCachedWorkerIds() {
         return cache.keySet();
     }
 
@@ -13,10 +13,18 @@
 package org.signserver.ejb.worker.impl;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
 import javax.ejb.ConcurrencyManagement;
 import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
 import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
 import org.apache.log4j.Logger;
 import org.signserver.common.NoSuchWorkerException;
@@ -45,6 +53,12 @@ public class WorkerManagerSingletonBean {
     
     /** Logger for this class. */
     private static final Logger LOG = Logger.getLogger(WorkerManagerSingletonBean.class);
+
+    /** Time in milliseconds after which unused key usage reservations are given back. */
+    private static final long KEYUSAGE_RESERVATION_MAXIDLE = 60000L;
+
+    @Resource
+    private SessionContext sessionContext;
     
     private EntityManager em;
     
@@ -55,6 +69,8 @@ public class WorkerManagerSingletonBean {
     
     private SignServerContext workerContext;
 
+    private KeyUsageReservations keyUsageReservations;
+
     @PostConstruct
     public void create() {
         if (em == null) {
@@ -72,11 +88,32 @@ public class WorkerManagerSingletonBean {
         }
         workerContext = new SignServerContext(em, keyUsageCounterDataService);
         workerFactory = new WorkerFactory(workerConfigService, workerContext);
+        keyUsageReservations = new KeyUsageReservations(new KeyUsageReservations.Counter() {
+            // Call through the container so that each update of the counter
+            // is performed and committed in its own transaction
+            @Override
+            public long reserve(String keyHash, long limit, long count) {
+                return sessionContext.getBusinessObject(WorkerManagerSingletonBean.class).reserveKeyUsages(keyHash, limit, count);
+            }
+
+            @Override
+            public void release(String keyHash, long count) {
+                sessionContext.getBusinessObject(WorkerManagerSingletonBean.class).releaseKeyUsages(keyHash, count);
+            }
+        });
         if (LOG.isTraceEnabled()) {
             LOG.trace("Created WorkerFactory instance: " + workerFactory);
         }
     }
 
+    @PreDestroy
+    public void destroy() {
+        keyUsageReservations.releaseAll();
+
+        // Let the worker instances stop their background tasks
+        workerFactory.flush();
+    }
+
     /**
      * Get a worker instance given the workerId.
      *
@@ -92,6 +129,22 @@ public class WorkerManagerSingletonBean {
         return workerFactory.getWorkerWithComponents(wi, workerContext);
     }
 
+    /**
+     * Loads and initializes the given workers and their components in
+     * parallel instead of on their first requests.
+     *
+     * @param workerIds IDs of the workers to load
+     * @param executor to load the workers on
+     * @param threads maximum number of workers to load in parallel
+     * @return An error message for each worker that could not be loaded
+     * @throws InterruptedException in case the thread was interrupted while
+     * waiting
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Map<Integer, String> preloadWorkers(final List<Integer> workerIds, final ExecutorService executor, final int threads) throws InterruptedException {
+        return workerFactory.preload(workerIds, executor, threads, workerContext);
+    }
+
     /**
      * Force a reload of the given worker.
      *
@@ -139,5 +192,42 @@ public class WorkerManagerSingletonBean {
     public void upgradeWorkerNames() {
         workerConfigService.populateNameColumn();
     }
-    
+
+    /**
+     * Uses one usage of the key from the usages reserved by this node,
+     * reserving a new block of usages in the key usage counter when needed.
+     *
+     * @param keyHash Hash of the key
+     * @param limit The maximum number of operations or a negative value for
+     * no limit
+     * @param reservationSize number of usages to reserve at a time
+     * @return True if the usage was within the limit or false if the limit
+     * was reached or the counter not initialized
+     * @see KeyUsageReservations
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public boolean incrementKeyUsageCounter(final String keyHash, final long limit, final int reservationSize) {
+        return keyUsageReservations.incrementIfWithinLimit(keyHash, limit, reservationSize);
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public long reserveKeyUsages(final String keyHash, final long limit, final long count) {
+        return keyUsageCounterDataService.reserveWithinLimit(keyHash, limit, count);
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void releaseKeyUsages(final String keyHash, final long count) {
+        keyUsageCounterDataService.releaseReserved(keyHash, count);
+    }
+
+    /**
+     * Periodically gives back key usages reserved but not used lately so
+     * that the key usage counter does not stay ahead of the actual usage.
+     */
+    @Schedule(minute = "*", hour = "*", persistent = false)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void releaseIdleKeyUsageReservations() {
+        keyUsageReservations.releaseIdle(KEYUSAGE_RESERVATION_MAXIDLE);
+    }
+
 }
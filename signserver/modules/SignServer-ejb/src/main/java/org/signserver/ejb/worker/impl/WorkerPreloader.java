@@ -0,0 +1,118 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.ejb.worker.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs a task for each of a number of workers using a bounded number of
+ * threads from an executor, for instance to load and initialize all workers
+ * at startup instead of on their first request.
+ *
+ * The executor is typically the container's managed executor and is not
+ * shut down by this class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class WorkerPreloader {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(WorkerPreloader.class);
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    /**
+     * Task to perform for a worker.
+     */
+    public interface Task {
+
+        /**
+         * @param workerId ID of the worker
+         * @throws Exception in case the task failed for the worker
+         */
+        void run(int workerId) throws Exception;
+    }
+
+    /**
+     * @param executor to run the tasks on
+     * @param threads maximum number of workers to run the task for in
+     * parallel
+     */
+    public WorkerPreloader(final ExecutorService executor, final int threads) {
+        this.executor = executor;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Runs the task for all the workers and waits for them to complete.
+     *
+     * @param workerIds IDs of the workers
+     * @param task to run for each worker
+     * @return An error message for each worker the task failed for
+     * @throws InterruptedException in case the thread was interrupted while
+     * waiting
+     */
+    public Map<Integer, String> forEach(final Collection<Integer> workerIds, final Task task) throws InterruptedException {
+        if (workerIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Queue<Integer> remaining = new ConcurrentLinkedQueue<>(workerIds);
+        final Map<Integer, String> failures = Collections.synchronizedMap(new TreeMap<>());
+
+        // Each runner takes the next worker until there are none left
+        final List<Future<?>> runners = new ArrayList<>();
+        try {
+            for (int i = 0; i < Math.min(threads, workerIds.size()); i++) {
+                runners.add(executor.submit(() -> {
+                    Integer workerId;
+                    while (!Thread.currentThread().isInterrupted() && (workerId = remaining.poll()) != null) {
+                        try {
+                            task.run(workerId);
+                        } catch (Exception ex) {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Task failed for worker " + workerId, ex);
+                            }
+                            failures.put(workerId, ex.getMessage() == null ? ex.getClass().getName() : ex.getMessage());
+                        }
+                    }
+                }));
+            }
+
+            for (Future<?> runner : runners) {
+                try {
+                    runner.get();
+                } catch (ExecutionException ex) {
+                    LOG.error("Running task for workers failed: " + ex.getCause().getMessage(), ex.getCause());
+                }
+            }
+            return failures;
+        } finally {
+            for (Future<?> runner : runners) {
+                runner.cancel(true);
+            }
+        }
+    }
+}
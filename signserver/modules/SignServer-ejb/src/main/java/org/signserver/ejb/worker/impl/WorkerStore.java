@@ -12,12 +12,11 @@
  *************************************************************************/
 package org.signserver.ejb.worker.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.log4j.Logger;
 import org.signserver.common.util.PropertiesConstants;
 import org.signserver.common.WorkerIdentifier;
@@ -27,6 +26,11 @@ import org.signserver.server.IWorker;
  * Holder for loaded workers and workers+components as well as the mapping from
  * worker name to worker ID.
  *
+ * All maps are concurrent so that lookups can be performed without any
+ * locking. Modifications for a given worker ID are expected to be serialized
+ * by the caller (see WorkerFactory) but can be done concurrently with lookups
+ * and modifications of other workers.
+ *
  * @author Markus Kilås
  * @version $Id$
  */
@@ -35,9 +39,9 @@ public class WorkerStore {
     /** Logger for this class. */
     private final Logger LOG = Logger.getLogger(WorkerStore.class);
     
-    private final Map<Integer, WorkerWithComponents> workersWithComponents = new HashMap<>();
-    private final Map<Integer, IWorker> workersOnly = new HashMap<>();
-    private final Map<String, Integer> nameToIdMap = new HashMap<>();
+    private final Map<Integer, WorkerWithComponents> workersWithComponents = new ConcurrentHashMap<>();
+    private final Map<Integer, IWorker> workersOnly = new ConcurrentHashMap<>();
+    private final Map<String, Integer> nameToIdMap = new ConcurrentHashMap<>();
     
     protected WorkerStore() {
         
@@ -95,16 +99,6 @@ public class WorkerStore {
         }
     }
     
-    private String getName(int workerId) {
-        String result = null;
-        WorkerWithComponents w = workersWithComponents.get(workerId);
-        if (w != null) {
-            IWorker worker = w.getWorker();
-            result = getName(worker);
-        }
-        return result;
-    }
-    
     private String getName(IWorker worker) {
         String result = null;
         if (worker.getConfig() != null) {
@@ -115,28 +109,46 @@ public class WorkerStore {
         return result;
     }
 
-    public void clearAll() {
+    /**
+     * Removes all workers.
+     *
+     * @return the removed worker instances
+     */
+    public Collection<IWorker> clearAll() {
+        final Collection<IWorker> result = new ArrayList<>(workersOnly.values());
         workersWithComponents.clear();
         workersOnly.clear();
         nameToIdMap.clear();
+        return result;
     }
 
-    public void clear(WorkerIdentifier id) {
+    /**
+     * Removes the worker.
+     *
+     * @param id of the worker
+     * @return the removed worker instance or null if it was not loaded
+     */
+    public IWorker clear(WorkerIdentifier id) {
         Integer workerId;
         if (id.hasId()) {
             workerId = id.getId();
         } else {
             workerId = getWorkerId(id.getName());
         }
+        IWorker result = null;
         if (workerId != null) {
-            workersOnly.remove(workerId);
+            result = workersOnly.remove(workerId);
             workersWithComponents.remove(workerId);
             removeEntriesMappingToId(nameToIdMap, workerId);
         }
+        return result;
     }
 
+    /**
+     * @return a snapshot of the IDs of the currently loaded workers
+     */
     public Collection<Integer> keySet() {
-        return workersOnly.keySet();
+        return new ArrayList<>(workersOnly.keySet());
     }
 
     /**
@@ -145,12 +157,6 @@ public class WorkerStore {
      * @param workerId id to remove mapping for
      */
     private static void removeEntriesMappingToId(Map<String, Integer> nameToIdMap, Integer workerId) {
-        final Iterator<Map.Entry<String, Integer>> iterator = nameToIdMap.entrySet().iterator();
-        while (iterator.hasNext()) {
-            final Entry entry = iterator.next();
-            if (workerId.equals(entry.getValue())) {
-                iterator.remove();
-            }
-        }
+        nameToIdMap.entrySet().removeIf(entry -> workerId.equals(entry.getValue()));
     }
 }
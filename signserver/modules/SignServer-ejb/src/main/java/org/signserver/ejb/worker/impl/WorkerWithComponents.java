@@ -12,10 +12,12 @@
  *************************************************************************/
 package org.signserver.ejb.worker.impl;
 
+import java.security.PublicKey;
 import java.util.List;
 import org.signserver.server.IAccounter;
 import org.signserver.server.IAuthorizer;
 import org.signserver.server.IWorker;
+import org.signserver.server.KeyUsageCounterHash;
 import org.signserver.server.archive.Archiver;
 import org.signserver.server.log.IWorkerLogger;
 
@@ -36,6 +38,8 @@ public class WorkerWithComponents {
     private final IAccounter accounter;
     private final List<Archiver> archivers;
 
+    private volatile KeyHash keyHash;
+
     public WorkerWithComponents(int id, IWorker worker, List<String> createErrors, PreloadedWorkerConfig preloadedConfig, IWorkerLogger workerLogger, IAuthorizer authorizer, IAccounter accounter, List<Archiver> archivers) {
         this.id = id;
         this.worker = worker;
@@ -82,5 +86,31 @@ public class WorkerWithComponents {
     public int getId() {
         return id;
     }
+
+    /**
+     * Get the hash used by the key usage counter for the given key, reusing
+     * the previous hash as long as the worker uses the same key.
+     *
+     * @param key public key of the signer certificate
+     * @return the key hash
+     */
+    public String getKeyUsageCounterHash(final PublicKey key) {
+        KeyHash result = keyHash;
+        if (result == null || (result.key != key && !result.key.equals(key))) {
+            result = new KeyHash(key, KeyUsageCounterHash.create(key));
+            keyHash = result;
+        }
+        return result.hash;
+    }
+
+    private static class KeyHash {
+        private final PublicKey key;
+        private final String hash;
+
+        KeyHash(PublicKey key, String hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+    }
     
 }
@@ -12,6 +12,7 @@
  *************************************************************************/
 package org.signserver.server.archive.olddbarchiver;
 
+import java.io.IOException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Collections;
@@ -33,7 +34,9 @@ import org.signserver.server.archive.ArchiveException;
 import org.signserver.server.archive.Archiver;
 import org.signserver.server.archive.ArchiverInitException;
 import org.signserver.server.archive.BaseArchiver;
+import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataBean;
 import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataService;
+import org.signserver.server.archive.spool.ArchiveSpool;
 import org.signserver.server.log.IWorkerLogger;
 import org.signserver.server.log.LogMap;
 import org.signserver.server.log.Loggable;
@@ -60,6 +63,8 @@ public class OldDatabaseArchiver extends BaseArchiver implements Archiver {
     private boolean useXForwardedFor = false;
     private int maxForwardedAddresses;
     private boolean includeDirectAddress;
+
+    private ArchiveSpool spool;
     
     @Override
     public void init(int listIndex, WorkerConfig config, SignServerContext context) throws ArchiverInitException {
@@ -97,6 +102,13 @@ public class OldDatabaseArchiver extends BaseArchiver implements Archiver {
                 Integer.valueOf(config.getProperty(propertyMaxForwardedAddresses,
                         String.valueOf(DEFAULT_MAX_FORWARDED_ADDRESSES)));
         includeDirectAddress = Boolean.valueOf(config.getProperty(propertyIncludeDirect));
+
+        // Optionally spool the archive data and insert it later in batches
+        final List<String> spoolErrors = new LinkedList<>();
+        spool = ArchiveSpool.fromConfig("ARCHIVER" + listIndex + ".", config, spoolErrors);
+        for (String error : spoolErrors) {
+            addFatalError(error);
+        }
     }
 
     @Override
@@ -124,10 +136,9 @@ public class OldDatabaseArchiver extends BaseArchiver implements Archiver {
             }
          
             final EntityManager em = requestContext.getEntityManager();
-            if (em == null) {
+            if (em == null && spool == null) {
                 throw new ArchiveException("Could not archive as archiver was not successfully initialized");
             }
-            final ArchiveDataService dataService = new ArchiveDataService(em);
             final Integer workerId = (Integer) requestContext.get(RequestContext.WORKER_ID);
             final X509Certificate certificate = (X509Certificate) requestContext.get(RequestContext.CLIENT_CERTIFICATE);
             String remoteIp = (String) requestContext.get(RequestContext.REMOTE_IP);
@@ -153,12 +164,27 @@ public class OldDatabaseArchiver extends BaseArchiver implements Archiver {
             }
 
             final String uniqueId;
-            uniqueId = dataService.create(archiveType,
+            if (spool == null) {
+                uniqueId = new ArchiveDataService(em).create(archiveType,
                         workerId,
                         archivable.getArchiveId(),
                         certificate,
                         remoteIp,
-                            archiveData);
+                        archiveData);
+            } else {
+                final ArchiveDataBean record = ArchiveDataService.newArchiveDataBean(archiveType,
+                        workerId,
+                        archivable.getArchiveId(),
+                        certificate,
+                        remoteIp,
+                        archiveData);
+                try {
+                    spool.append(record);
+                } catch (IOException ex) {
+                    throw new ArchiveException("Could not spool archive data: " + ex.getMessage(), ex);
+                }
+                uniqueId = record.getUniqueId();
+            }
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Archived with uniqueId: " + uniqueId);
             }
@@ -0,0 +1,672 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.archive.spool;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+import org.signserver.common.WorkerConfig;
+import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataBean;
+
+/**
+ * Durable local spool of archive data waiting to be inserted in the
+ * database.
+ *
+ * Records are appended to segment files in a spool directory and the caller
+ * returns as soon as the record is written (and forced to disk unless fsync
+ * is turned off). Concurrent appends share the forcing of the file. When a
+ * segment has reached the segment size a new one is started.
+ *
+ * The spool is drained by inserting the records of the completed segments
+ * in batches and deleting each segment when all of its records have been
+ * inserted. How far into a segment the records have been inserted is only
+ * kept in memory, so after a restart, or after a failed insert, the records
+ * of the segment are inserted skipping the ones already in the database.
+ *
+ * Each record is written with its length and checksum so that a record only
+ * partially written before a crash is detected and ignored. This can only
+ * happen at the end of the last segment written before a restart or of a
+ * segment whose write failed. A record that can not be read anywhere else,
+ * or with a length that is not possible, means that the segment is corrupt.
+ * The records before it are inserted and the segment is then renamed with
+ * the suffix ".corrupt" so that the remaining records can be recovered
+ * manually.
+ *
+ * The size of the spool is limited and records are rejected when the
+ * backlog would exceed it.
+ *
+ * There is one instance per spool directory so that all archivers of all
+ * workers configured with the same directory share it.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class ArchiveSpool {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(ArchiveSpool.class);
+
+    /** Archiver property with the directory to spool to. Spooling is only used if set. */
+    public static final String PROPERTY_SPOOL_DIRECTORY = "SPOOL_DIRECTORY";
+
+    /** Archiver property with the maximum size in bytes of the records waiting to be inserted. */
+    public static final String PROPERTY_SPOOL_MAXSIZE = "SPOOL_MAXSIZE";
+
+    /** Archiver property for if each record should be forced to disk before the request completes. */
+    public static final String PROPERTY_SPOOL_FSYNC = "SPOOL_FSYNC";
+
+    public static final long DEFAULT_SPOOL_MAXSIZE = 1024L * 1024L * 1024L;
+    public static final boolean DEFAULT_SPOOL_FSYNC = true;
+
+    /** Size after which a new segment is started. */
+    static final long SEGMENT_SIZE = 16L * 1024L * 1024L;
+
+    private static final String SEGMENT_PREFIX = "archive-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int RECORD_MAX_SIZE = Integer.MAX_VALUE - RECORD_HEADER_SIZE;
+
+    private static final ConcurrentMap<String, ArchiveSpool> SPOOLS = new ConcurrentHashMap<>();
+
+    /**
+     * Inserts records in the database.
+     */
+    public interface BatchInserter {
+
+        /**
+         * Inserts the records in one transaction.
+         *
+         * @param records to insert
+         * @param skipExisting if records with a uniqueId already in the
+         * database should be skipped
+         * @throws Exception in case the records could not be inserted
+         */
+        void insert(List<ArchiveDataBean> records, boolean skipExisting) throws Exception;
+    }
+
+    private final File directory;
+    private final ReentrantLock forceLock = new ReentrantLock();
+    private final AtomicLong depth = new AtomicLong();
+    private final AtomicLong size = new AtomicLong();
+
+    private volatile long maxSize = DEFAULT_SPOOL_MAXSIZE;
+    private volatile boolean fsync = DEFAULT_SPOOL_FSYNC;
+
+    // Guarded by this
+    private FileChannel channel;
+    private long channelSequence;
+    private long channelSize;
+    private long nextSequence;
+    private long writeCount;
+
+    // Guarded by forceLock
+    private long forcedCount;
+
+    // Only accessed while draining
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final Map<Long, Long> drainedOffsets = new HashMap<>();
+    private final Set<Long> verifySegments = new HashSet<>();
+
+    /** Segments that might end with a partially written record. */
+    private final Set<Long> tornSegments = ConcurrentHashMap.newKeySet();
+
+    ArchiveSpool(final File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spool directory " + directory);
+        }
+
+        // Segments left from before might already be partly inserted and
+        // the last one might have been written to when the server stopped
+        for (long sequence : listSegments()) {
+            final File segment = segmentFile(sequence);
+            final long[] counted = countRecords(segment);
+            depth.addAndGet(counted[0]);
+            size.addAndGet(counted[1]);
+            verifySegments.add(sequence);
+            nextSequence = sequence + 1;
+        }
+        if (nextSequence > 0) {
+            tornSegments.add(nextSequence - 1);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Spool " + directory + " has " + depth.get() + " records waiting");
+        }
+    }
+
+    /**
+     * Get the spool for the given directory.
+     *
+     * @param directory to spool to
+     * @param maxSize maximum size of the backlog in bytes
+     * @param fsync if records should be forced to disk
+     * @return the spool
+     * @throws IOException if the spool directory could not be read
+     */
+    public static ArchiveSpool getInstance(final File directory, final long maxSize, final boolean fsync) throws IOException {
+        final String key = directory.getAbsolutePath();
+        ArchiveSpool result = SPOOLS.get(key);
+        if (result == null) {
+            synchronized (SPOOLS) {
+                result = SPOOLS.get(key);
+                if (result == null) {
+                    result = new ArchiveSpool(new File(key));
+                    SPOOLS.put(key, result);
+                }
+            }
+        }
+        result.maxSize = maxSize;
+        result.fsync = fsync;
+        return result;
+    }
+
+    /**
+     * Get the spool configured by the archiver properties.
+     *
+     * @param prefix of the archiver properties, i.e. "ARCHIVER0."
+     * @param config of the worker
+     * @param fatalErrors to add configuration errors to
+     * @return the spool or null if spooling is not configured or the
+     * configuration has errors
+     */
+    public static ArchiveSpool fromConfig(final String prefix, final WorkerConfig config, final List<String> fatalErrors) {
+        final String directory = config.getProperty(prefix + PROPERTY_SPOOL_DIRECTORY);
+        if (directory == null) {
+            return null;
+        }
+
+        long maxSize = DEFAULT_SPOOL_MAXSIZE;
+        final String maxSizeValue = config.getProperty(prefix + PROPERTY_SPOOL_MAXSIZE);
+        if (maxSizeValue != null) {
+            try {
+                maxSize = Long.parseLong(maxSizeValue.trim());
+                if (maxSize < 1) {
+                    fatalErrors.add("Illegal value for worker property " + prefix + PROPERTY_SPOOL_MAXSIZE + ": must be positive");
+                }
+            } catch (NumberFormatException ex) {
+                fatalErrors.add("Illegal value for worker property " + prefix + PROPERTY_SPOOL_MAXSIZE + ": " + maxSizeValue);
+            }
+        }
+
+        boolean fsync = DEFAULT_SPOOL_FSYNC;
+        final String fsyncValue = config.getProperty(prefix + PROPERTY_SPOOL_FSYNC);
+        if (fsyncValue != null) {
+            if (Boolean.TRUE.toString().equalsIgnoreCase(fsyncValue.trim())) {
+                fsync = true;
+            } else if (Boolean.FALSE.toString().equalsIgnoreCase(fsyncValue.trim())) {
+                fsync = false;
+            } else {
+                fatalErrors.add("Illegal value for worker property " + prefix + PROPERTY_SPOOL_FSYNC + ": " + fsyncValue);
+            }
+        }
+
+        if (!fatalErrors.isEmpty()) {
+            return null;
+        }
+        try {
+            return getInstance(new File(directory.trim()), maxSize, fsync);
+        } catch (IOException ex) {
+            fatalErrors.add("Could not use archive spool directory: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens the spools configured for the archivers of the worker so that
+     * records left from before are inserted even if the worker is not used.
+     *
+     * @param config of the worker
+     * @return the spools configured
+     */
+    public static List<ArchiveSpool> fromWorkerConfig(final WorkerConfig config) {
+        final List<ArchiveSpool> result = new ArrayList<>();
+        for (String property : config.getProperties().stringPropertyNames()) {
+            final String name = property.toUpperCase(Locale.ENGLISH);
+            if (name.startsWith("ARCHIVER") && name.endsWith("." + PROPERTY_SPOOL_DIRECTORY)) {
+                final String prefix = property.substring(0, property.length() - PROPERTY_SPOOL_DIRECTORY.length());
+                final List<String> errors = new ArrayList<>();
+                final ArchiveSpool spool = fromConfig(prefix, config, errors);
+                if (spool == null) {
+                    LOG.warn("Could not open archive spool of " + prefix + ": " + errors);
+                } else {
+                    result.add(spool);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return all spools in use
+     */
+    public static Collection<ArchiveSpool> getAll() {
+        return Collections.unmodifiableCollection(SPOOLS.values());
+    }
+
+    /**
+     * Writes the record to the spool.
+     *
+     * @param record to spool
+     * @throws IOException if the spool is full or the record could not be
+     * written
+     */
+    public void append(final ArchiveDataBean record) throws IOException {
+        final byte[] data = encode(record);
+        final long written;
+        synchronized (this) {
+            if (size.get() + data.length > maxSize) {
+                throw new IOException("Archive spool " + directory + " full with " + depth.get() + " records waiting to be inserted");
+            }
+            if (channel != null && channelSize > 0 && channelSize + data.length > SEGMENT_SIZE) {
+                closeSegment();
+            }
+            if (channel == null) {
+                channelSequence = nextSequence++;
+                channel = FileChannel.open(segmentFile(channelSequence).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                channelSize = 0;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException ex) {
+                // Do not write after a possibly partial record, it is
+                // ignored when the segment is drained
+                size.addAndGet(data.length - buffer.remaining());
+                tornSegments.add(channelSequence);
+                closeSegment();
+                throw ex;
+            }
+            channelSize += data.length;
+            written = ++writeCount;
+            depth.incrementAndGet();
+            size.addAndGet(data.length);
+        }
+
+        if (fsync) {
+            force(written);
+        }
+    }
+
+    /**
+     * Forces the current segment to disk unless another thread already did
+     * after the given write. Segments are forced before they are closed.
+     */
+    private void force(final long written) throws IOException {
+        forceLock.lock();
+        try {
+            if (forcedCount >= written) {
+                return;
+            }
+            final FileChannel current;
+            final long count;
+            synchronized (this) {
+                current = channel;
+                count = writeCount;
+            }
+            if (current != null) {
+                current.force(false);
+            }
+            forcedCount = count;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        assert Thread.holdsLock(this);
+        if (channel != null) {
+            forceLock.lock();
+            try {
+                try {
+                    if (fsync) {
+                        channel.force(false);
+                    }
+                } finally {
+                    channel.close();
+                    channel = null;
+                }
+                forcedCount = writeCount;
+            } finally {
+                forceLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Inserts the spooled records. Only one thread at a time drains the spool
+     * and a call returns immediately if another thread is already draining.
+     *
+     * @param batchSize maximum number of records to insert per transaction
+     * @param inserter to insert the records with
+     * @return number of records drained
+     * @throws Exception if records could not be inserted, the remaining
+     * records are tried again at the next call
+     */
+    public int drain(final int batchSize, final BatchInserter inserter) throws Exception {
+        if (!drainLock.tryLock()) {
+            return 0;
+        }
+        try {
+            // Complete the current segment so that it can be drained
+            synchronized (this) {
+                closeSegment();
+            }
+
+            int result = 0;
+            for (long sequence : listSegments()) {
+                synchronized (this) {
+                    if (channel != null && sequence >= channelSequence) {
+                        break;
+                    }
+                }
+                result += drainSegment(sequence, batchSize, inserter);
+            }
+            return result;
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    private int drainSegment(final long sequence, final int batchSize, final BatchInserter inserter) throws Exception {
+        final File segment = segmentFile(sequence);
+        final long segmentLength = segment.length();
+        final Long drainedOffset = drainedOffsets.get(sequence);
+        long offset = drainedOffset == null ? 0 : drainedOffset;
+        int result = 0;
+        boolean corrupt = false;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            if (in.skip(offset) != offset) {
+                throw new IOException("Could not skip already inserted records in " + segment);
+            }
+            final List<ArchiveDataBean> batch = new ArrayList<>(batchSize);
+            long batchBytes = 0;
+            ArchiveDataBean record;
+            final long[] recordSize = new long[1];
+            do {
+                try {
+                    record = readRecord(in, segmentLength - offset - batchBytes, recordSize);
+                } catch (CorruptRecordException ex) {
+                    record = null;
+                    if (ex.isIncomplete() && tornSegments.contains(sequence)) {
+                        LOG.warn("Ignoring incompletely written end of spool segment " + segment);
+                    } else {
+                        LOG.error("Corrupt record at offset " + (offset + batchBytes) + " in spool segment " + segment + ": " + ex.getMessage());
+                        corrupt = true;
+                    }
+                }
+                if (record != null) {
+                    batch.add(record);
+                    batchBytes += recordSize[0];
+                }
+                if (!batch.isEmpty() && (batch.size() >= batchSize || record == null)) {
+                    try {
+                        inserter.insert(batch, verifySegments.contains(sequence));
+                    } catch (Exception ex) {
+                        // Some records might have been inserted after all
+                        verifySegments.add(sequence);
+                        throw ex;
+                    }
+                    offset += batchBytes;
+                    drainedOffsets.put(sequence, offset);
+                    depth.addAndGet(-batch.size());
+                    size.addAndGet(-batchBytes);
+                    result += batch.size();
+                    batch.clear();
+                    batchBytes = 0;
+                }
+            } while (record != null);
+        }
+
+        // Any bytes after the last complete record belong to a torn write
+        // or are corrupt
+        final long ignored = segmentLength - offset;
+        if (ignored > 0) {
+            size.addAndGet(-ignored);
+        }
+        if (corrupt) {
+            final File target = new File(segment.getPath() + CORRUPT_SUFFIX);
+            if (!segment.renameTo(target)) {
+                throw new IOException("Could not move corrupt spool segment " + segment + " to " + target);
+            }
+            LOG.error("Moved corrupt spool segment to " + target + ", " + ignored + " bytes from offset " + offset + " were not inserted");
+        } else if (!segment.delete()) {
+            throw new IOException("Could not delete drained spool segment " + segment);
+        }
+        drainedOffsets.remove(sequence);
+        verifySegments.remove(sequence);
+        tornSegments.remove(sequence);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Drained " + result + " records from " + segment);
+        }
+        return result;
+    }
+
+    /**
+     * @return number of records waiting to be inserted
+     */
+    public long getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * @return size in bytes of the records waiting to be inserted
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * @return maximum size in bytes of the records waiting to be inserted
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the spool directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    private File segmentFile(final long sequence) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%019d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    private List<Long> listSegments() {
+        final String[] names = directory.list((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        final List<Long> result = new ArrayList<>();
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names) {
+                try {
+                    result.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    LOG.warn("Ignoring unexpected file in spool directory: " + name);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static long[] countRecords(final File segment) throws IOException {
+        final long segmentLength = segment.length();
+        long records = 0;
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            final long[] recordSize = new long[1];
+            while (readRecord(in, segmentLength - position, recordSize) != null) {
+                records++;
+                position += recordSize[0];
+            }
+        } catch (CorruptRecordException ex) { // NOPMD
+            // Reported when the segment is drained
+        }
+        return new long[] {records, segmentLength};
+    }
+
+    static byte[] encode(final ArchiveDataBean record) throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream(512 + (record.getArchiveData() == null ? 0 : record.getArchiveData().length()));
+        bout.write(new byte[RECORD_HEADER_SIZE]);
+        try (DataOutputStream out = new DataOutputStream(bout)) {
+            writeString(out, record.getUniqueId());
+            out.writeInt(record.getType());
+            out.writeInt(record.getSignerid());
+            out.writeLong(record.getTime());
+            writeString(out, record.getArchiveid());
+            writeString(out, record.getRequestIssuerDN());
+            writeString(out, record.getRequestCertSerialnumber());
+            writeString(out, record.getRequestIP());
+            out.writeInt(record.getDataEncoding() == null ? -1 : record.getDataEncoding());
+            writeString(out, record.getArchiveData());
+        }
+        final byte[] result = bout.toByteArray();
+        final int length = result.length - RECORD_HEADER_SIZE;
+        final CRC32 crc = new CRC32();
+        crc.update(result, RECORD_HEADER_SIZE, length);
+        ByteBuffer.wrap(result).putInt(length).putInt((int) crc.getValue());
+        return result;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @param in to read from
+     * @param remaining number of bytes left in the segment
+     * @param recordSize to put the size of the record read in
+     * @return the record or null if there are no more records
+     * @throws CorruptRecordException if the record is incomplete or corrupt
+     * @throws IOException in case of failure reading
+     */
+    private static ArchiveDataBean readRecord(final DataInputStream in, final long remaining, final long[] recordSize) throws IOException {
+        if (remaining <= 0) {
+            return null;
+        }
+        if (remaining < RECORD_HEADER_SIZE) {
+            throw new CorruptRecordException("Incomplete record header", true);
+        }
+        final int length = in.readInt();
+        final int checksum = in.readInt();
+        if (length < 0 || length > RECORD_MAX_SIZE) {
+            throw new CorruptRecordException("Illegal record length " + length, false);
+        }
+        if (length > remaining - RECORD_HEADER_SIZE) {
+            throw new CorruptRecordException("Record length " + length + " exceeds the " + (remaining - RECORD_HEADER_SIZE) + " bytes left", true);
+        }
+        final byte[] data = new byte[length];
+        try {
+            in.readFully(data);
+        } catch (EOFException ex) {
+            throw new CorruptRecordException("Incomplete record", true);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != checksum) {
+            // Only the last record can be partially written
+            throw new CorruptRecordException("Checksum mismatch", length == remaining - RECORD_HEADER_SIZE);
+        }
+        recordSize[0] = RECORD_HEADER_SIZE + length;
+
+        final DataInputStream record = new DataInputStream(new ByteArrayInputStream(data));
+        final ArchiveDataBean result = new ArchiveDataBean();
+        result.setUniqueId(readString(record));
+        result.setType(record.readInt());
+        result.setSignerid(record.readInt());
+        result.setTime(record.readLong());
+        result.setArchiveid(readString(record));
+        result.setRequestIssuerDN(readString(record));
+        result.setRequestCertSerialnumber(readString(record));
+        result.setRequestIP(readString(record));
+        final int dataEncoding = record.readInt();
+        if (dataEncoding >= 0) {
+            result.setDataEncoding(dataEncoding);
+        }
+        result.setArchiveData(readString(record));
+        return result;
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new CorruptRecordException("Illegal string length " + length, false);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A record could not be read.
+     */
+    private static class CorruptRecordException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean incomplete;
+
+        CorruptRecordException(final String message, final boolean incomplete) {
+            super(message);
+            this.incomplete = incomplete;
+        }
+
+        /**
+         * @return true if the record might just not have been completely
+         * written
+         */
+        boolean isIncomplete() {
+            return incomplete;
+        }
+    }
+}
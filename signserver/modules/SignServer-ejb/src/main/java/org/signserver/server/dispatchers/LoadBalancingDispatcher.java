@@ -0,0 +1,450 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.dispatchers;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.EntityManager;
+import org.apache.log4j.Logger;
+import org.signserver.common.CryptoTokenOfflineException;
+import org.signserver.common.IllegalRequestException;
+import org.signserver.common.InvalidWorkerIdException;
+import org.signserver.common.RequestContext;
+import org.signserver.common.ServiceLocator;
+import org.signserver.common.SignServerException;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerIdentifier;
+import org.signserver.common.WorkerStatus;
+import org.signserver.common.data.Request;
+import org.signserver.common.data.Response;
+import org.signserver.ejb.interfaces.DispatcherProcessSessionLocal;
+import org.signserver.ejb.interfaces.WorkerSessionLocal;
+import org.signserver.server.IServices;
+import org.signserver.server.WorkerContext;
+import org.signserver.server.log.AdminInfo;
+
+/**
+ * Dispatching requests across workers based on their load and health.
+ *
+ * Each request is dispatched to one of the workers currently considered
+ * active, either the one with the least outstanding requests relative to its
+ * weight or the next one in weighted round-robin order. If the worker is
+ * offline, the request is dispatched to the next selected worker.
+ *
+ * A worker that fails with CryptoTokenOfflineException FAILURE_THRESHOLD
+ * times in a row is not dispatched to until a check of its status in the
+ * background finds it active again. The checks run on the container's
+ * managed scheduled executor and stop when the worker no longer exists or
+ * the dispatcher is reloaded.
+ *
+ * Properties:<br/>
+ * WORKERS = Comma separated list of worker names, each optionally followed by
+ * a weight (i.e. worker1:2, worker2:1)<br/>
+ * LOAD_BALANCING = LEAST_OUTSTANDING (default) or ROUND_ROBIN<br/>
+ * FAILURE_THRESHOLD = Number of failures in a row before a worker is not
+ * dispatched to (default 3)<br/>
+ * PROBE_INTERVAL = Seconds between status checks of a worker not dispatched
+ * to (default 10)
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class LoadBalancingDispatcher extends BaseDispatcher {
+
+    /** Log4j instance for this class. */
+    private static final Logger LOG = Logger.getLogger(
+            LoadBalancingDispatcher.class);
+
+    private static final String PROPERTY_WORKERS = "WORKERS";
+    private static final String PROPERTY_LOAD_BALANCING = "LOAD_BALANCING";
+    private static final String PROPERTY_FAILURE_THRESHOLD = "FAILURE_THRESHOLD";
+    private static final String PROPERTY_PROBE_INTERVAL = "PROBE_INTERVAL";
+
+    private static final String LOAD_BALANCING_LEAST_OUTSTANDING = "LEAST_OUTSTANDING";
+    private static final String LOAD_BALANCING_ROUND_ROBIN = "ROUND_ROBIN";
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    private static final long DEFAULT_PROBE_INTERVAL = 10;
+
+    private static final String MANAGED_SCHEDULED_EXECUTOR = "java:comp/DefaultManagedScheduledExecutorService";
+
+    /** Executor used when no managed one is available, shared by all instances. */
+    private static ScheduledExecutorService fallbackProber;
+
+    /** Executor running the status checks. */
+    private volatile ScheduledExecutorService prober;
+
+    /** Set when the instance is no longer used. */
+    private volatile boolean destroyed;
+
+    /** Workers to dispatch to. */
+    private List<Target> targets = new ArrayList<>();
+
+    private boolean roundRobin;
+    private int failureThreshold;
+    private long probeIntervalMillis;
+
+    /** Configuration errors. */
+    private LinkedList<String> configErrors;
+
+    /** Start index for breaking ties between equally loaded workers. */
+    private final AtomicInteger nextStart = new AtomicInteger();
+
+    @Override
+    public void init(final int workerId, final WorkerConfig config,
+            final WorkerContext workerContext, final EntityManager workerEM) {
+        super.init(workerId, config, workerContext, workerEM);
+        configErrors = new LinkedList<>();
+
+        final String name = config.getProperty("NAME");
+
+        targets = new ArrayList<>();
+        final String workersValue = config.getProperty(PROPERTY_WORKERS);
+        if (workersValue == null) {
+            configErrors.add("Property " + PROPERTY_WORKERS + " missing!");
+        } else {
+            for (String item : workersValue.split(",")) {
+                final String[] parts = item.split(":");
+                final String workerName = parts[0].trim();
+                int weight = 1;
+                if (parts.length > 2 || workerName.isEmpty()) {
+                    configErrors.add("Syntax error in property " + PROPERTY_WORKERS + ": " + item.trim());
+                    continue;
+                } else if (parts.length == 2) {
+                    try {
+                        weight = Integer.parseInt(parts[1].trim());
+                    } catch (NumberFormatException ex) {
+                        weight = 0;
+                    }
+                    if (weight < 1) {
+                        configErrors.add("Illegal weight in property " + PROPERTY_WORKERS + ": " + item.trim());
+                        continue;
+                    }
+                }
+                if (workerName.equals(name)) {
+                    configErrors.add("Dispatcher configured to dispatch to itself");
+                } else {
+                    targets.add(new Target(workerName, weight));
+                }
+            }
+        }
+
+        final String loadBalancing = config.getProperty(PROPERTY_LOAD_BALANCING, LOAD_BALANCING_LEAST_OUTSTANDING);
+        if (LOAD_BALANCING_ROUND_ROBIN.equalsIgnoreCase(loadBalancing)) {
+            roundRobin = true;
+        } else if (LOAD_BALANCING_LEAST_OUTSTANDING.equalsIgnoreCase(loadBalancing)) {
+            roundRobin = false;
+        } else {
+            configErrors.add("Illegal value for " + PROPERTY_LOAD_BALANCING + ": " + loadBalancing);
+        }
+
+        final String failureThresholdValue = config.getProperty(PROPERTY_FAILURE_THRESHOLD, String.valueOf(DEFAULT_FAILURE_THRESHOLD));
+        try {
+            failureThreshold = Integer.parseInt(failureThresholdValue);
+            if (failureThreshold < 1) {
+                configErrors.add("Illegal value for " + PROPERTY_FAILURE_THRESHOLD + ": " + failureThresholdValue);
+            }
+        } catch (NumberFormatException ex) {
+            configErrors.add("Illegal value for " + PROPERTY_FAILURE_THRESHOLD + ": " + failureThresholdValue);
+        }
+
+        final String probeIntervalValue = config.getProperty(PROPERTY_PROBE_INTERVAL, String.valueOf(DEFAULT_PROBE_INTERVAL));
+        try {
+            probeIntervalMillis = Long.parseLong(probeIntervalValue) * 1000;
+            if (probeIntervalMillis < 1) {
+                configErrors.add("Illegal value for " + PROPERTY_PROBE_INTERVAL + ": " + probeIntervalValue);
+            }
+        } catch (NumberFormatException ex) {
+            configErrors.add("Illegal value for " + PROPERTY_PROBE_INTERVAL + ": " + probeIntervalValue);
+        }
+    }
+
+    protected DispatcherProcessSessionLocal getProcessSession(final RequestContext requestContext) {
+        return requestContext.getServices().get(DispatcherProcessSessionLocal.class);
+    }
+
+    @Override
+    public Response processData(final Request signRequest,
+            final RequestContext requestContext) throws IllegalRequestException,
+            CryptoTokenOfflineException, SignServerException {
+        if (!configErrors.isEmpty()) {
+            throw new SignServerException("Worker is misconfigured");
+        }
+
+        final RequestContext nextContext = requestContext.copyWithNewLogMap();
+
+        // Mark request comming from a dispatcher so the DispatchedAuthorizer can be used
+        nextContext.put(RequestContext.DISPATCHER_AUTHORIZED_CLIENT, true);
+
+        final List<Target> tried = new ArrayList<>(targets.size());
+        Target target;
+        while ((target = selectTarget(tried)) != null) {
+            tried.add(target);
+            target.outstanding.incrementAndGet();
+            try {
+                final Response response = getProcessSession(requestContext).process(new AdminInfo("Client user", null, null),
+                        new WorkerIdentifier(target.name), signRequest,
+                        nextContext);
+                target.failures.set(0);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Dispatched to worker: " + target.name);
+                }
+                return response;
+            } catch (CryptoTokenOfflineException ex) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Skipping offline worker: " + target.name + " ("
+                            + ex.getMessage() + ")");
+                }
+                if (target.failures.incrementAndGet() >= failureThreshold) {
+                    open(target);
+                }
+            } finally {
+                target.outstanding.decrementAndGet();
+            }
+        }
+        throw new CryptoTokenOfflineException("No active worker found");
+    }
+
+    /**
+     * Selects the worker to dispatch to among the active workers not already
+     * tried for this request.
+     *
+     * @param tried workers already tried
+     * @return the selected worker or null if there is none left
+     */
+    private Target selectTarget(final List<Target> tried) {
+        final int size = targets.size();
+        if (roundRobin) {
+            // Smooth weighted round-robin
+            synchronized (this) {
+                Target result = null;
+                int total = 0;
+                for (Target target : targets) {
+                    if (!target.open.get() && !tried.contains(target)) {
+                        target.currentWeight += target.weight;
+                        total += target.weight;
+                        if (result == null || target.currentWeight > result.currentWeight) {
+                            result = target;
+                        }
+                    }
+                }
+                if (result != null) {
+                    result.currentWeight -= total;
+                }
+                return result;
+            }
+        } else {
+            // Least outstanding requests relative to the weight, starting
+            // at a different worker each time to spread equally loaded ones
+            final int start = size == 0 ? 0 : Math.floorMod(nextStart.getAndIncrement(), size);
+            Target result = null;
+            long resultOutstanding = 0;
+            for (int i = 0; i < size; i++) {
+                final Target target = targets.get((start + i) % size);
+                if (!target.open.get() && !tried.contains(target)) {
+                    final long outstanding = target.outstanding.get();
+                    if (result == null || outstanding * result.weight < resultOutstanding * target.weight) {
+                        result = target;
+                        resultOutstanding = outstanding;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Stops dispatching to the worker and schedules a status check.
+     *
+     * @param target worker to stop dispatching to
+     */
+    private void open(final Target target) {
+        if (target.open.compareAndSet(false, true)) {
+            LOG.warn("Not dispatching to worker " + target.name + " after "
+                    + target.failures.get() + " failures");
+            scheduleProbe(target);
+        }
+    }
+
+    private void scheduleProbe(final Target target) {
+        synchronized (target) {
+            target.probe = null;
+            if (!destroyed) {
+                try {
+                    target.probe = getProber().schedule(() -> probe(target), probeIntervalMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) {
+                    LOG.warn("Could not schedule status check of worker " + target.name + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the status of the worker and starts dispatching to it again if
+     * it is active, otherwise schedules a new check unless the worker no
+     * longer exists.
+     *
+     * @param target worker to check
+     */
+    private void probe(final Target target) {
+        boolean active = false;
+        try {
+            active = isActive(target.name);
+        } catch (InvalidWorkerIdException ex) {
+            LOG.warn("Worker " + target.name + " no longer exists. Not dispatching to it until the dispatcher is reloaded");
+            synchronized (target) {
+                target.probe = null;
+            }
+            return;
+        } catch (RuntimeException ex) {
+            LOG.warn("Checking status of worker " + target.name + " failed: " + ex.getMessage());
+        }
+        if (active) {
+            target.failures.set(0);
+            target.open.set(false);
+            LOG.info("Dispatching to worker " + target.name + " again");
+        } else {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Worker " + target.name + " still not active");
+            }
+            scheduleProbe(target);
+        }
+    }
+
+    /**
+     * @param workerName of the worker to check
+     * @return true if the worker is enabled and has no fatal errors
+     * @throws InvalidWorkerIdException in case the worker does not exist
+     */
+    protected boolean isActive(final String workerName) throws InvalidWorkerIdException {
+        final WorkerSessionLocal workerSession;
+        try {
+            workerSession = ServiceLocator.getInstance().lookupLocal(WorkerSessionLocal.class);
+        } catch (NamingException ex) {
+            LOG.warn("Lookup of worker session failed: " + ex.getMessage());
+            return false;
+        }
+        final WorkerStatus status = workerSession.getStatus(new WorkerIdentifier(workerName));
+        return !status.isDisabled() && status.getFatalErrors().isEmpty();
+    }
+
+    /**
+     * Looks up the managed scheduled executor the first time, which is done
+     * while processing a request so that the component's naming context is
+     * available. Without one a thread of our own is used.
+     *
+     * @return executor to run the status checks
+     */
+    private ScheduledExecutorService getProber() {
+        ScheduledExecutorService result = prober;
+        if (result == null) {
+            try {
+                result = InitialContext.doLookup(MANAGED_SCHEDULED_EXECUTOR);
+            } catch (NamingException ex) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("No managed scheduled executor available: " + ex.getMessage());
+                }
+                result = getFallbackProber();
+            }
+            prober = result;
+        }
+        return result;
+    }
+
+    private static synchronized ScheduledExecutorService getFallbackProber() {
+        if (fallbackProber == null) {
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                final Thread thread = new Thread(r, "LoadBalancingDispatcher-prober");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            executor.setRemoveOnCancelPolicy(true);
+            fallbackProber = executor;
+        }
+        return fallbackProber;
+    }
+
+    /**
+     * Stops the thread used for the status checks when no managed executor
+     * is available. Called when the application is undeployed.
+     */
+    public static synchronized void shutdown() {
+        if (fallbackProber != null) {
+            fallbackProber.shutdownNow();
+            fallbackProber = null;
+        }
+    }
+
+    /**
+     * Cancels the scheduled status checks.
+     */
+    @Override
+    public void destroy() {
+        destroyed = true;
+        for (Target target : targets) {
+            synchronized (target) {
+                if (target.probe != null) {
+                    target.probe.cancel(false);
+                    target.probe = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected List<String> getFatalErrors(IServices services) {
+        final LinkedList<String> errors = new LinkedList<>(super.getFatalErrors(services));
+        errors.addAll(configErrors);
+        return errors;
+    }
+
+    /**
+     * Worker to dispatch to and its state.
+     */
+    private static class Target {
+        private final String name;
+        private final int weight;
+
+        /** Number of requests currently dispatched to the worker. */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        /** Number of failures in a row. */
+        private final AtomicInteger failures = new AtomicInteger();
+
+        /** If the worker is currently not dispatched to. */
+        private final AtomicBoolean open = new AtomicBoolean();
+
+        /** Current weight for round-robin, guarded by the dispatcher. */
+        private int currentWeight;
+
+        /** Scheduled status check, guarded by the target. */
+        private ScheduledFuture<?> probe;
+
+        Target(final String name, final int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+}
@@ -12,6 +12,7 @@
  *************************************************************************/
 package org.signserver.server.integrityprotected;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -116,4 +117,32 @@ public class SequencialIntegrityProtectedLoggerSessionBean implements Sequencial
             }
         }
     }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    // Always persist audit log
+    public void logWithSequenceNumbers(final List<SequencialAuditRecord> records) throws AuditRecordStorageException {
+        if (log.isTraceEnabled()) {
+            log.trace(">logWithSequenceNumbers: " + records.size());
+        }
+        try {
+            final long startSequenceNumber = SequencialNodeSequenceHolder.INSTANCE.getStartSequence(sequenceHolderInitialization);
+            final String nodeId = SequencialNodeSequenceHolder.INSTANCE.getNodeId();
+            for (SequencialAuditRecord record : records) {
+                final AuditRecordData auditRecordData = new AuditRecordData(nodeId, startSequenceNumber + record.getSequenceNumber(), record.getTimeStamp(),
+                        record.getEventType(), record.getEventStatus(), record.getAuthToken(), record.getService(), record.getModule(),
+                        record.getCustomId(), record.getSearchDetail1(), record.getSearchDetail2(), record.getAdditionalDetails());
+                entityManager.persist(auditRecordData);
+            }
+            // Send all inserts before the commit
+            entityManager.flush();
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            throw new AuditRecordStorageException(e.getMessage(), e);
+        } finally {
+            if (log.isTraceEnabled()) {
+                log.trace("<logWithSequenceNumbers");
+            }
+        }
+    }
 }
@@ -0,0 +1,433 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * Appends log records to a file kept open between the records.
+ *
+ * There is one instance per file so that all worker loggers writing to the
+ * same file, including the ones of reloaded workers, share the same channel.
+ * Request threads put their records in a lock-free queue and the records
+ * are written in batches by one thread at a time.
+ *
+ * Without a flush interval the calling thread writes all queued records,
+ * including its own, before returning. With a flush interval the queued
+ * records are written when they exceed the flush size or at the latest
+ * after the flush interval, by a shared background thread. Write failures
+ * are then reported to the next caller.
+ *
+ * The file can be rotated when it would exceed a maximum size or has been
+ * written to for longer than the rotation interval. The rotated file gets
+ * the time of rotation appended to its name.
+ *
+ * All workers writing to the same file must use the same settings. The
+ * writers are flushed and closed, and the background thread stopped, by
+ * shutdown() when the application is undeployed.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class FileLogWriter {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(FileLogWriter.class);
+
+    private static final ConcurrentMap<String, FileLogWriter> WRITERS = new ConcurrentHashMap<>();
+
+    /** Maximum time in milliseconds to wait for a running flush at shutdown. */
+    private static final long SHUTDOWN_TIMEOUT = 5000L;
+
+    private static volatile ScheduledExecutorService flusher;
+
+    private final File file;
+    private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private volatile Settings settings = new Settings(0, 0, 0, 0, false);
+    private volatile IOException failure;
+    private volatile boolean closed;
+    private ScheduledFuture<?> scheduledFlush;
+
+    /** Settings of each worker using this file. */
+    private final Map<Integer, Settings> workerSettings = new HashMap<>();
+
+    // Guarded by writeLock
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private FileChannel channel;
+    private long fileSize;
+    private long openedAt;
+
+    private FileLogWriter(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the writer for the given file.
+     *
+     * @param path to the log file
+     * @param workerId of the worker logging to the file
+     * @param settings to use for the file
+     * @return the writer
+     * @throws IllegalArgumentException if an other worker uses the same file
+     * with different settings
+     */
+    public static FileLogWriter getInstance(final String path, final int workerId, final Settings settings) {
+        final String absolutePath = new File(path).getAbsolutePath();
+        synchronized (FileLogWriter.class) {
+            // The worker might previously have logged to an other file
+            for (FileLogWriter writer : WRITERS.values()) {
+                if (!writer.file.getPath().equals(absolutePath)) {
+                    writer.removeWorker(workerId);
+                }
+            }
+            final FileLogWriter result = WRITERS.computeIfAbsent(absolutePath, p -> new FileLogWriter(new File(p)));
+            result.configure(workerId, settings);
+            return result;
+        }
+    }
+
+    /**
+     * Writes all queued records and closes all files. Called when the
+     * application is undeployed.
+     */
+    public static void shutdown() {
+        synchronized (FileLogWriter.class) {
+            final ScheduledExecutorService executor = flusher;
+            flusher = null;
+            if (executor != null) {
+                // Let a running flush complete, the periodic ones are cancelled
+                executor.shutdown();
+                try {
+                    if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        executor.shutdownNow();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    executor.shutdownNow();
+                }
+            }
+            for (FileLogWriter writer : WRITERS.values()) {
+                writer.closeWriter();
+            }
+            WRITERS.clear();
+        }
+    }
+
+    private synchronized void removeWorker(final int workerId) {
+        workerSettings.remove(workerId);
+    }
+
+    private synchronized void configure(final int workerId, final Settings newSettings) {
+        for (Map.Entry<Integer, Settings> entry : workerSettings.entrySet()) {
+            if (entry.getKey() != workerId && !entry.getValue().equals(newSettings)) {
+                throw new IllegalArgumentException("Log file " + file + " is already used by worker " + entry.getKey() + " with different settings");
+            }
+        }
+        workerSettings.put(workerId, newSettings);
+
+        final Settings old = settings;
+        settings = newSettings;
+        if (old.getFlushInterval() != newSettings.getFlushInterval() || scheduledFlush == null) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (newSettings.getFlushInterval() > 0) {
+                scheduledFlush = getFlusher().scheduleWithFixedDelay(this::scheduledFlush, newSettings.getFlushInterval(), newSettings.getFlushInterval(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static ScheduledExecutorService getFlusher() {
+        ScheduledExecutorService result = flusher;
+        if (result == null) {
+            synchronized (FileLogWriter.class) {
+                result = flusher;
+                if (result == null) {
+                    final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                        final Thread thread = new Thread(r, "FileWorkerLogger-flusher");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor.setRemoveOnCancelPolicy(true);
+                    flusher = result = executor;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds a record to the file.
+     *
+     * @param record to write
+     * @throws IOException if the record or an earlier record could not be
+     * written
+     */
+    public void append(final byte[] record) throws IOException {
+        if (closed) {
+            // Logging while undeploying, write the record directly
+            writeLock.lock();
+            try {
+                queue.offer(record);
+                queuedBytes.addAndGet(record.length);
+                writeQueued();
+            } finally {
+                close();
+                writeLock.unlock();
+            }
+            return;
+        }
+
+        final IOException previousFailure = failure;
+        if (previousFailure != null) {
+            // Try again, the problem might be fixed
+            flush();
+        }
+
+        queue.offer(record);
+        final long queued = queuedBytes.addAndGet(record.length);
+
+        final Settings current = settings;
+        if (current.getFlushInterval() <= 0) {
+            flush();
+        } else if (queued >= current.getFlushSize() && writeLock.tryLock()) {
+            try {
+                writeQueued();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes all queued records to the file.
+     *
+     * @throws IOException in case of failure writing
+     */
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            writeQueued();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the queued records, closes the file and stops the scheduled
+     * flushes.
+     */
+    private synchronized void closeWriter() {
+        closed = true;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        writeLock.lock();
+        try {
+            writeQueued();
+        } catch (IOException ex) {
+            LOG.error("Could not write to log file " + file + ": " + ex.getMessage());
+        } finally {
+            close();
+            writeLock.unlock();
+        }
+    }
+
+    private void scheduledFlush() {
+        try {
+            flush();
+        } catch (IOException ex) {
+            LOG.error("Could not write to log file " + file + ": " + ex.getMessage());
+        }
+    }
+
+    private void writeQueued() throws IOException {
+        assert writeLock.isHeldByCurrentThread();
+
+        // Records left in the batch from a failed write are written first
+        byte[] record;
+        while ((record = queue.poll()) != null) {
+            batch.write(record, 0, record.length);
+            queuedBytes.addAndGet(-record.length);
+        }
+        if (batch.size() == 0) {
+            return;
+        }
+
+        final Settings current = settings;
+        try {
+            rotateIfNeeded(current, batch.size());
+            if (channel == null) {
+                open();
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+            while (buffer.hasRemaining()) {
+                fileSize += channel.write(buffer);
+            }
+            if (current.isFsync()) {
+                channel.force(false);
+            }
+            batch.reset();
+            failure = null;
+        } catch (IOException ex) {
+            failure = ex;
+            close();
+            throw ex;
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {} // NOPMD
+            channel = null;
+        }
+    }
+
+    private void rotateIfNeeded(final Settings current, final int incoming) throws IOException {
+        if (channel == null) {
+            if (!file.exists()) {
+                return;
+            }
+            open();
+        }
+        final boolean sizeExceeded = current.getRotateSize() > 0 && fileSize > 0
+                && fileSize + incoming > current.getRotateSize();
+        final boolean intervalPassed = current.getRotateInterval() > 0
+                && System.currentTimeMillis() - openedAt >= current.getRotateInterval();
+        if (sizeExceeded || intervalPassed) {
+            close();
+            final String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+            File target = new File(file.getPath() + "." + suffix);
+            for (int i = 1; target.exists(); i++) {
+                target = new File(file.getPath() + "." + suffix + "-" + i);
+            }
+            if (!file.renameTo(target)) {
+                throw new IOException("Could not rotate log file to " + target);
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Rotated log file to " + target);
+            }
+        }
+    }
+
+    /**
+     * Settings for writing to the file.
+     */
+    public static class Settings {
+        private final long flushInterval;
+        private final long flushSize;
+        private final long rotateSize;
+        private final long rotateInterval;
+        private final boolean fsync;
+
+        /**
+         * @param flushInterval maximum time in milliseconds a record is
+         * queued or 0 to write it before returning
+         * @param flushSize number of queued bytes after which they are
+         * written without waiting for the flush interval
+         * @param rotateSize maximum file size in bytes or 0 for no limit
+         * @param rotateInterval maximum time in milliseconds to write to the
+         * same file or 0 for no limit
+         * @param fsync if the file should be forced to disk after each write
+         */
+        public Settings(long flushInterval, long flushSize, long rotateSize, long rotateInterval, boolean fsync) {
+            this.flushInterval = flushInterval;
+            this.flushSize = flushSize;
+            this.rotateSize = rotateSize;
+            this.rotateInterval = rotateInterval;
+            this.fsync = fsync;
+        }
+
+        public long getFlushInterval() {
+            return flushInterval;
+        }
+
+        public long getFlushSize() {
+            return flushSize;
+        }
+
+        public long getRotateSize() {
+            return rotateSize;
+        }
+
+        public long getRotateInterval() {
+            return rotateInterval;
+        }
+
+        public boolean isFsync() {
+            return fsync;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            final Settings other = (Settings) o;
+            return flushInterval == other.flushInterval
+                    && flushSize == other.flushSize
+                    && rotateSize == other.rotateSize
+                    && rotateInterval == other.rotateInterval
+                    && fsync == other.fsync;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(flushInterval, flushSize, rotateSize, rotateInterval, fsync);
+        }
+
+        @Override
+        public String toString() {
+            return "Settings{flushInterval=" + flushInterval + ", flushSize=" + flushSize
+                    + ", rotateSize=" + rotateSize + ", rotateInterval=" + rotateInterval
+                    + ", fsync=" + fsync + "}";
+        }
+    }
+}
@@ -12,8 +12,8 @@
  *************************************************************************/
 package org.signserver.server.log;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -24,36 +24,90 @@ import org.signserver.server.SignServerContext;
 /**
  * An IWorkerLogger that appends log lines to a separate file.
  *
+ * The file is kept open and written to by a FileLogWriter shared by all
+ * loggers using the same file. By default each line is written before the
+ * request returns. With LOG_FILE_FLUSH_INTERVAL set, lines are instead
+ * written in batches when LOG_FILE_FLUSH_SIZE bytes are queued or at the
+ * latest after the interval. All workers logging to the same file must use
+ * the same settings.
+ *
  * @author Marcus Lundblad
  * @version $Id$
  */
 public class FileWorkerLogger extends BaseWorkerLogger implements IWorkerLogger {
 
     private static final String FILE_PATH_PROPERTY_NAME = "LOG_FILE_PATH";
-    
+
+    /** Maximum time in milliseconds before a line is written, 0 (default) for writing it directly. */
+    private static final String FLUSH_INTERVAL_PROPERTY_NAME = "LOG_FILE_FLUSH_INTERVAL";
+
+    /** Number of queued bytes after which they are written without waiting for the flush interval. */
+    private static final String FLUSH_SIZE_PROPERTY_NAME = "LOG_FILE_FLUSH_SIZE";
+
+    /** Size in bytes after which the file is rotated, 0 (default) for no size limit. */
+    private static final String ROTATE_SIZE_PROPERTY_NAME = "LOG_FILE_ROTATE_SIZE";
+
+    /** Time in milliseconds after which the file is rotated, 0 (default) for no time limit. */
+    private static final String ROTATE_INTERVAL_PROPERTY_NAME = "LOG_FILE_ROTATE_INTERVAL";
+
+    /** If the file should be forced to disk after each write (default false). */
+    private static final String FSYNC_PROPERTY_NAME = "LOG_FILE_FSYNC";
+
+    private static final long DEFAULT_FLUSH_SIZE = 65536;
+
     /** Logger for this class. */
     private static final Logger LOG =
             Logger.getLogger(FileWorkerLogger.class);
 
-    private String logFilePath;
+    private FileLogWriter writer;
 
     @Override
     public void init(final int workerId, final WorkerConfig config, final SignServerContext context) {
-        logFilePath = config.getProperty(FILE_PATH_PROPERTY_NAME);
+        final String logFilePath = config.getProperty(FILE_PATH_PROPERTY_NAME);
 
         if (logFilePath == null) {
             addFatalError("Log file path not specified");
         }
+
+        final long flushInterval = getLongProperty(config, FLUSH_INTERVAL_PROPERTY_NAME, 0);
+        final long flushSize = getLongProperty(config, FLUSH_SIZE_PROPERTY_NAME, DEFAULT_FLUSH_SIZE);
+        final long rotateSize = getLongProperty(config, ROTATE_SIZE_PROPERTY_NAME, 0);
+        final long rotateInterval = getLongProperty(config, ROTATE_INTERVAL_PROPERTY_NAME, 0);
+        final String fsyncValue = config.getProperty(FSYNC_PROPERTY_NAME, Boolean.FALSE.toString()).trim();
+        if (!Boolean.TRUE.toString().equalsIgnoreCase(fsyncValue) && !Boolean.FALSE.toString().equalsIgnoreCase(fsyncValue)) {
+            addFatalError("Incorrect value for " + FSYNC_PROPERTY_NAME + ": " + fsyncValue);
+        }
+
+        if (!hasErrors()) {
+            try {
+                writer = FileLogWriter.getInstance(logFilePath, workerId, new FileLogWriter.Settings(flushInterval, flushSize, rotateSize, rotateInterval, Boolean.parseBoolean(fsyncValue)));
+            } catch (IllegalArgumentException ex) {
+                addFatalError(ex.getMessage());
+            }
+        }
+    }
+
+    private long getLongProperty(final WorkerConfig config, final String property, final long defaultValue) {
+        final String value = config.getProperty(property);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            final long result = Long.parseLong(value.trim());
+            if (result < 0) {
+                addFatalError("Incorrect value for " + property + ": must not be negative");
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            addFatalError("Incorrect value for " + property + ": " + e.getMessage());
+            return defaultValue;
+        }
     }
 
     @Override
     public void log(final AdminInfo adminInfo, final Map<String, Object> fields, final RequestContext context) throws WorkerLoggerException {
-        FileOutputStream fos = null;
-
-        try {
-            fos = new FileOutputStream(logFilePath);
-        } catch (IOException e) {
-            throw new WorkerLoggerException("Could not open log file", e);
+        if (writer == null) {
+            throw new WorkerLoggerException("Log file not configured");
         }
 
         final StringBuilder str = new StringBuilder();
@@ -69,16 +123,13 @@ public class FileWorkerLogger extends BaseWorkerLogger implements IWorkerLogger
         str.append(IWorkerLogger.LOG_REPLY_TIME);
         str.append(":");
         str.append(String.valueOf(System.currentTimeMillis()));
+        str.append("\n");
 
         try {
-            fos.write(str.toString().getBytes());
+            writer.append(str.toString().getBytes(StandardCharsets.UTF_8));
         } catch (IOException e) {
-            LOG.error("Could not write to log file");
-            throw new WorkerLoggerException("Could not write to log file");
-        } finally {
-            try {
-                fos.close();
-            } catch (IOException dummy) {} //NOPMD
+            LOG.error("Could not write to log file: " + e.getMessage());
+            throw new WorkerLoggerException("Could not write to log file", e);
         }
     }
 }
@@ -0,0 +1,128 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.ejb.worker.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Unit tests for the KeyUsageReservations class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class KeyUsageReservationsUnitTest {
+
+    private static final String KEY = "key1";
+
+    /**
+     * Tests that usages are counted locally within a reservation and that
+     * the limit is not exceeded when the last block is smaller.
+     */
+    @Test
+    public void testLimitEnforcedByReservation() {
+        final InMemoryCounter counter = new InMemoryCounter();
+        final KeyUsageReservations instance = new KeyUsageReservations(counter);
+
+        for (int i = 0; i < 25; i++) {
+            assertTrue("within limit " + i, instance.incrementIfWithinLimit(KEY, 25, 10));
+        }
+        assertFalse("limit reached", instance.incrementIfWithinLimit(KEY, 25, 10));
+        assertEquals("counter", 25, counter.value);
+        assertEquals("reservations", 4, counter.reservations.get());
+    }
+
+    /**
+     * Tests that unused usages are given back.
+     */
+    @Test
+    public void testReleaseAll() {
+        final InMemoryCounter counter = new InMemoryCounter();
+        final KeyUsageReservations instance = new KeyUsageReservations(counter);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue("within limit", instance.incrementIfWithinLimit(KEY, -1, 100));
+        }
+        assertEquals("counter with reservation", 100, counter.value);
+        instance.releaseIdle(60000);
+        assertEquals("recently used not given back", 100, counter.value);
+
+        instance.releaseAll();
+        assertEquals("counter after release", 3, counter.value);
+
+        assertTrue("reserves again", instance.incrementIfWithinLimit(KEY, -1, 100));
+        assertEquals("counter with new reservation", 103, counter.value);
+    }
+
+    /**
+     * Tests that concurrent usages never exceed the limit.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentUsage() throws Exception {
+        final InMemoryCounter counter = new InMemoryCounter();
+        final KeyUsageReservations instance = new KeyUsageReservations(counter);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Callable<Integer>> tasks = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                tasks.add(() -> {
+                    int successes = 0;
+                    for (int i = 0; i < 1000; i++) {
+                        if (instance.incrementIfWithinLimit(KEY, 5000, 64)) {
+                            successes++;
+                        }
+                    }
+                    return successes;
+                });
+            }
+            int total = 0;
+            for (Future<Integer> result : executor.invokeAll(tasks)) {
+                total += result.get();
+            }
+            assertEquals("successful usages", 5000, total);
+            assertEquals("counter", 5000, counter.value);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Counter for a single key kept in memory. */
+    private static class InMemoryCounter implements KeyUsageReservations.Counter {
+        private long value;
+        private final AtomicInteger reservations = new AtomicInteger();
+
+        @Override
+        public synchronized long reserve(String keyHash, long limit, long count) {
+            reservations.incrementAndGet();
+            final long result = limit < 0 ? count : Math.max(0, Math.min(count, limit - value));
+            value += result;
+            return result;
+        }
+
+        @Override
+        public synchronized void release(String keyHash, long count) {
+            value -= count;
+        }
+    }
+}
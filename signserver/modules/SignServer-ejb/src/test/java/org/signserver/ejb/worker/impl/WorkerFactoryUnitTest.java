@@ -0,0 +1,292 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.ejb.worker.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.signserver.common.NoSuchWorkerException;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerIdentifier;
+import org.signserver.common.WorkerType;
+import org.signserver.common.util.PropertiesConstants;
+import org.signserver.server.BaseWorker;
+import org.signserver.server.IWorker;
+import org.signserver.server.SignServerContext;
+import org.signserver.server.WorkerContext;
+import org.signserver.server.config.entities.IWorkerConfigDataService;
+
+/**
+ * Unit tests for the WorkerFactory concurrency.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class WorkerFactoryUnitTest {
+
+    private static final AtomicInteger INIT_COUNT = new AtomicInteger();
+    private static final AtomicInteger DESTROY_COUNT = new AtomicInteger();
+    private static volatile CountDownLatch initStarted;
+    private static volatile CountDownLatch releaseInit;
+
+    private InMemoryWorkerConfigService configService;
+    private WorkerFactory instance;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        INIT_COUNT.set(0);
+        DESTROY_COUNT.set(0);
+        initStarted = null;
+        releaseInit = null;
+        configService = new InMemoryWorkerConfigService();
+        configService.addWorker(1, "Worker1", CountingWorker.class);
+        configService.addWorker(2, "Worker2", BlockingWorker.class);
+        instance = new WorkerFactory(configService, new SignServerContext(null, null));
+        executor = Executors.newFixedThreadPool(16);
+    }
+
+    @After
+    public void tearDown() {
+        if (releaseInit != null) {
+            releaseInit.countDown();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Tests that the same cached instance is returned when looked up by ID
+     * and by name.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testGetWorkerByIdAndName() throws Exception {
+        final IWorker byId = instance.getWorker(new WorkerIdentifier(1));
+        final IWorker byName = instance.getWorker(new WorkerIdentifier("worker1"));
+        assertSame("same instance", byId, byName);
+        assertSame("same instance with components", byId, instance.getWorkerWithComponents(new WorkerIdentifier("Worker1"), new SignServerContext(null, null)).getWorker());
+    }
+
+    /**
+     * Tests that concurrent first requests to a worker only initializes it
+     * once.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentLoadInitializesOnce() throws Exception {
+        final List<Callable<IWorker>> tasks = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            tasks.add(() -> instance.getWorkerWithComponents(new WorkerIdentifier(1), new SignServerContext(null, null)).getWorker());
+        }
+        final List<Future<IWorker>> results = executor.invokeAll(tasks);
+        final IWorker first = results.get(0).get();
+        for (Future<IWorker> result : results) {
+            assertSame("same instance", first, result.get());
+        }
+        assertEquals("initialized once", 1, INIT_COUNT.get());
+    }
+
+    /**
+     * Tests that a slow reload of one worker does not block lookups of an
+     * other worker.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testReloadDoesNotBlockOtherWorkers() throws Exception {
+        final IWorker worker1 = instance.getWorker(new WorkerIdentifier(1));
+
+        initStarted = new CountDownLatch(1);
+        releaseInit = new CountDownLatch(1);
+        final Future<?> reload = executor.submit(() -> instance.reloadWorker(new WorkerIdentifier(2)));
+        assertTrue("reload started", initStarted.await(10, TimeUnit.SECONDS));
+
+        // Worker 2 is now being initialized, worker 1 should still be available
+        final Future<IWorker> lookup = executor.submit(() -> instance.getWorker(new WorkerIdentifier(1)));
+        assertSame("same instance", worker1, lookup.get(10, TimeUnit.SECONDS));
+
+        releaseInit.countDown();
+        reload.get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Tests that a flush makes subsequent lookups create new instances.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testFlush() throws Exception {
+        final IWorker before = instance.getWorker(new WorkerIdentifier(1));
+        instance.flush();
+        assertTrue("no cached workers", instance.getCachedWorkerIds().isEmpty());
+        final IWorker after = instance.getWorker(new WorkerIdentifier(1));
+        assertNotSame("new instance", before, after);
+        assertEquals("initialized twice", 2, INIT_COUNT.get());
+    }
+
+    /**
+     * Tests that the instances removed by a reload or flush are destroyed.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDestroy() throws Exception {
+        instance.getWorker(new WorkerIdentifier(1));
+        instance.reloadWorker(new WorkerIdentifier(1));
+        assertEquals("destroyed on reload", 1, DESTROY_COUNT.get());
+
+        instance.flush();
+        assertEquals("destroyed on flush", 2, DESTROY_COUNT.get());
+
+        instance.flush();
+        assertEquals("nothing more to destroy", 2, DESTROY_COUNT.get());
+    }
+
+    /**
+     * Tests that preloading initializes the workers and their components
+     * once and reports the workers that could not be loaded.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testPreload() throws Exception {
+        configService.addWorker(3, "Worker3", CountingWorker.class);
+
+        final Map<Integer, String> errors = instance.preload(Arrays.asList(1, 2, 3, 4), executor, 3, new SignServerContext(null, null));
+
+        assertEquals("errors: " + errors, Collections.singleton(4), errors.keySet());
+        assertTrue("cached workers", instance.getCachedWorkerIds().containsAll(Arrays.asList(1, 2, 3)));
+        assertEquals("initialized once each", 2, INIT_COUNT.get());
+
+        instance.getWorkerWithComponents(new WorkerIdentifier(1), new SignServerContext(null, null));
+        assertEquals("not initialized again", 2, INIT_COUNT.get());
+    }
+
+    /** Worker counting its initializations. */
+    public static class CountingWorker extends BaseWorker {
+        @Override
+        public void init(int workerId, WorkerConfig config, WorkerContext workerContext, EntityManager workerEM) {
+            super.init(workerId, config, workerContext, workerEM);
+            INIT_COUNT.incrementAndGet();
+        }
+
+        @Override
+        public void destroy() {
+            DESTROY_COUNT.incrementAndGet();
+        }
+    }
+
+    /** Worker blocking in its initialization when told to. */
+    public static class BlockingWorker extends BaseWorker {
+        @Override
+        public void init(int workerId, WorkerConfig config, WorkerContext workerContext, EntityManager workerEM) {
+            super.init(workerId, config, workerContext, workerEM);
+            final CountDownLatch started = initStarted;
+            final CountDownLatch release = releaseInit;
+            if (started != null && release != null) {
+                started.countDown();
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /** Simple worker configuration service backed by a map. */
+    private static class InMemoryWorkerConfigService implements IWorkerConfigDataService {
+
+        private final Map<Integer, WorkerConfig> configs = new HashMap<>();
+
+        public void addWorker(int workerId, String name, Class<? extends IWorker> implClass) {
+            final WorkerConfig config = new WorkerConfig();
+            config.setProperty(PropertiesConstants.NAME, name);
+            config.setProperty(WorkerConfig.IMPLEMENTATION_CLASS, implClass.getName());
+            configs.put(workerId, config);
+        }
+
+        @Override
+        public WorkerConfig getWorkerProperties(int workerId, boolean create) {
+            return configs.get(workerId);
+        }
+
+        @Override
+        public boolean removeWorkerConfig(int workerId) {
+            return configs.remove(workerId) != null;
+        }
+
+        @Override
+        public void setWorkerConfig(int workerId, WorkerConfig config) {
+            configs.put(workerId, config);
+        }
+
+        @Override
+        public void create(int workerId, String implClassName) {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public List<Integer> findAllIds() {
+            return new ArrayList<>(configs.keySet());
+        }
+
+        @Override
+        public List<String> findAllNames() {
+            final List<String> result = new ArrayList<>();
+            for (WorkerConfig config : configs.values()) {
+                result.add(config.getProperty(PropertiesConstants.NAME));
+            }
+            return result;
+        }
+
+        @Override
+        public void populateNameColumn() {
+        }
+
+        @Override
+        public int findId(String workerName) throws NoSuchWorkerException {
+            for (Map.Entry<Integer, WorkerConfig> entry : configs.entrySet()) {
+                if (workerName.equalsIgnoreCase(entry.getValue().getProperty(PropertiesConstants.NAME))) {
+                    return entry.getKey();
+                }
+            }
+            throw new NoSuchWorkerException(workerName);
+        }
+
+        @Override
+        public List<Integer> findAllIds(WorkerType workerType) {
+            return findAllIds();
+        }
+    }
+}
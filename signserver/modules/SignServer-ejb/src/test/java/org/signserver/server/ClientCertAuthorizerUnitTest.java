@@ -24,7 +24,10 @@ import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
 import org.signserver.common.AuthorizedClient;
+import org.signserver.common.CertificateMatchingRule;
 import org.signserver.common.IllegalRequestException;
+import org.signserver.common.MatchIssuerWithType;
+import org.signserver.common.MatchSubjectWithType;
 import org.signserver.common.RequestContext;
 import org.signserver.common.WorkerConfig;
 import org.signserver.common.data.Request;
@@ -308,4 +311,32 @@ public class ClientCertAuthorizerUnitTest {
         // Check that the DN in the error message is represented as expected.
         assertTrue("message: " + message, message.contains(TEST_ISSUER2));
     }
+
+    /**
+     * Tests matching on the subject CN and that remembered decisions are
+     * forgotten when the configuration is reloaded.
+     * @throws Exception
+     */
+    @Test
+    public void testDecisionAfterReload() throws Exception {
+        final X509Certificate cert = ClientCertAuthorizerTestHelper.createCert(TEST_SERIALNUMBER, TEST_ISSUER);
+        final ClientCertAuthorizer instance = new ClientCertAuthorizer();
+        final RequestContext context = new RequestContext();
+        context.put(RequestContext.CLIENT_CERTIFICATE, cert);
+
+        final WorkerConfig config = new WorkerConfig();
+        config.addAuthorizedClientGen2(new CertificateMatchingRule(MatchSubjectWithType.SUBJECT_RDN_CN, MatchIssuerWithType.ISSUER_DN_BCSTYLE, "Other", TEST_ISSUER, null));
+        config.addAuthorizedClientGen2(new CertificateMatchingRule(MatchSubjectWithType.SUBJECT_RDN_CN, MatchIssuerWithType.ISSUER_DN_BCSTYLE, "Anyone", TEST_ISSUER, null));
+        instance.init(DUMMY_WORKER_ID, config, null);
+        instance.isAuthorized(null, context);
+        instance.isAuthorized(null, context);
+
+        instance.init(DUMMY_WORKER_ID, new WorkerConfig(), null);
+        try {
+            instance.isAuthorized(null, context);
+            fail("Should not be authorized after reload");
+        } catch (IllegalRequestException expected) { // NOPMD
+            // OK
+        }
+    }
 }
@@ -0,0 +1,222 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.archive.spool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.signserver.common.WorkerConfig;
+import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataBean;
+import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataService;
+
+/**
+ * Unit tests for the ArchiveSpool class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class ArchiveSpoolUnitTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ArchiveDataBean record(final int i) {
+        return ArchiveDataService.newArchiveDataBean(1, 42, "archive-" + i, null, "127.0.0.1", "ZGF0YQ==");
+    }
+
+    /**
+     * Tests that spooled records are inserted in batches with all fields
+     * and that the drained segments are removed.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testAppendAndDrain() throws Exception {
+        final ArchiveSpool instance = new ArchiveSpool(folder.getRoot());
+        for (int i = 0; i < 25; i++) {
+            instance.append(record(i));
+        }
+        assertEquals("depth", 25, instance.getDepth());
+        assertTrue("size", instance.getSize() > 0);
+
+        final List<Integer> batches = new ArrayList<>();
+        final List<ArchiveDataBean> inserted = new ArrayList<>();
+        final int drained = instance.drain(10, (records, skipExisting) -> {
+            assertFalse("no need to skip", skipExisting);
+            batches.add(records.size());
+            inserted.addAll(records);
+        });
+
+        assertEquals("drained", 25, drained);
+        assertEquals("batches", "[10, 10, 5]", batches.toString());
+        assertEquals("uniqueId", "1;42;archive-0", inserted.get(0).getUniqueId());
+        assertEquals("archiveId", "archive-24", inserted.get(24).getArchiveid());
+        assertEquals("requestIP", "127.0.0.1", inserted.get(0).getRequestIP());
+        assertNull("issuer", inserted.get(0).getRequestIssuerDN());
+        assertEquals("data", "ZGF0YQ==", inserted.get(0).getArchiveData());
+        assertEquals("encoding", ArchiveDataBean.DATA_ENCODING_BASE64, inserted.get(0).getDataEncoding().intValue());
+        assertEquals("depth after", 0, instance.getDepth());
+        assertEquals("size after", 0, instance.getSize());
+        assertEquals("segments removed", 0, folder.getRoot().list().length);
+    }
+
+    /**
+     * Tests that after a failed insert the remaining records are inserted at
+     * the next drain, skipping the ones that might have been inserted.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDrainFailure() throws Exception {
+        final ArchiveSpool instance = new ArchiveSpool(folder.getRoot());
+        for (int i = 0; i < 5; i++) {
+            instance.append(record(i));
+        }
+        final List<Integer> calls = new ArrayList<>();
+        try {
+            instance.drain(2, (records, skipExisting) -> {
+                calls.add(records.size());
+                if (calls.size() == 2) {
+                    throw new IOException("Database unavailable");
+                }
+            });
+            fail("Should have failed");
+        } catch (IOException expected) {
+            assertEquals("message", "Database unavailable", expected.getMessage());
+        }
+        assertEquals("depth", 3, instance.getDepth());
+
+        final List<Boolean> skipped = new ArrayList<>();
+        assertEquals("drained", 3, instance.drain(2, (records, skipExisting) -> skipped.add(skipExisting)));
+        assertEquals("skip existing", "[true, true]", skipped.toString());
+        assertEquals("depth after", 0, instance.getDepth());
+    }
+
+    /**
+     * Tests that records left from before are found, ignoring an
+     * incompletely written last record.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRecover() throws Exception {
+        final ArchiveSpool first = new ArchiveSpool(folder.getRoot());
+        for (int i = 0; i < 3; i++) {
+            first.append(record(i));
+        }
+        final File[] segments = folder.getRoot().listFiles();
+        assertEquals("segments", 1, segments.length);
+        try (FileOutputStream out = new FileOutputStream(segments[0], true)) {
+            out.write(ArchiveSpool.encode(record(3)), 0, 20);
+        }
+
+        final ArchiveSpool instance = new ArchiveSpool(folder.getRoot());
+        assertEquals("depth", 3, instance.getDepth());
+        final List<Boolean> skipped = new ArrayList<>();
+        assertEquals("drained", 3, instance.drain(10, (records, skipExisting) -> skipped.add(skipExisting)));
+        assertEquals("skip existing", "[true]", skipped.toString());
+        assertEquals("size after", 0, instance.getSize());
+    }
+
+    /**
+     * Tests that a segment with a record length larger than the rest of the
+     * segment is moved aside as corrupt, without trying to read the record,
+     * and that the following segments are still drained.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCorruptSegment() throws Exception {
+        final byte[] corrupt = ArchiveSpool.encode(record(1));
+        ByteBuffer.wrap(corrupt).putInt(Integer.MAX_VALUE - 100);
+        try (FileOutputStream out = new FileOutputStream(new File(folder.getRoot(), "archive-0000000000000000000.spool"))) {
+            out.write(ArchiveSpool.encode(record(0)));
+            out.write(corrupt);
+            out.write(ArchiveSpool.encode(record(2)));
+        }
+        try (FileOutputStream out = new FileOutputStream(new File(folder.getRoot(), "archive-0000000000000000001.spool"))) {
+            out.write(ArchiveSpool.encode(record(3)));
+        }
+
+        final ArchiveSpool instance = new ArchiveSpool(folder.getRoot());
+        final List<String> inserted = new ArrayList<>();
+        assertEquals("drained", 2, instance.drain(10, (records, skipExisting) -> {
+            for (ArchiveDataBean record : records) {
+                inserted.add(record.getArchiveid());
+            }
+        }));
+        assertEquals("inserted", "[archive-0, archive-3]", inserted.toString());
+        assertTrue("quarantined", new File(folder.getRoot(), "archive-0000000000000000000.spool.corrupt").exists());
+        assertEquals("size after", 0, instance.getSize());
+        assertEquals("depth after", 0, instance.getDepth());
+    }
+
+    /**
+     * Tests that records are rejected when the spool is full.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testMaxSize() throws Exception {
+        final ArchiveSpool instance = ArchiveSpool.getInstance(folder.getRoot(), 300, false);
+        assertSame("same instance", instance, ArchiveSpool.getInstance(new File(folder.getRoot().getPath()), 300, false));
+        instance.append(record(0));
+        try {
+            for (int i = 1; i < 10; i++) {
+                instance.append(record(i));
+            }
+            fail("Should have been rejected");
+        } catch (IOException expected) { // NOPMD
+            // OK
+        }
+        assertTrue("size " + instance.getSize(), instance.getSize() <= 300);
+        instance.drain(10, (records, skipExisting) -> { });
+        instance.append(record(10));
+    }
+
+    /**
+     * Tests the archiver properties.
+     */
+    @Test
+    public void testFromConfig() {
+        final WorkerConfig config = new WorkerConfig();
+        final List<String> errors = new LinkedList<>();
+        assertNull("not enabled by default", ArchiveSpool.fromConfig("ARCHIVER0.", config, errors));
+
+        config.setProperty("ARCHIVER0.SPOOL_DIRECTORY", new File(folder.getRoot(), "spool").getAbsolutePath());
+        config.setProperty("ARCHIVER0.SPOOL_MAXSIZE", "-1");
+        config.setProperty("ARCHIVER0.SPOOL_FSYNC", "maybe");
+        assertNull("errors", ArchiveSpool.fromConfig("ARCHIVER0.", config, errors));
+        assertEquals("errors: " + errors, 2, errors.size());
+
+        errors.clear();
+        config.setProperty("ARCHIVER0.SPOOL_MAXSIZE", "1000");
+        config.setProperty("ARCHIVER0.SPOOL_FSYNC", "false");
+        final ArchiveSpool spool = ArchiveSpool.fromConfig("ARCHIVER0.", config, errors);
+        assertTrue("errors: " + errors, errors.isEmpty());
+        assertEquals("max size", 1000, spool.getMaxSize());
+    }
+}
@@ -0,0 +1,254 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.dispatchers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.signserver.common.CryptoTokenOfflineException;
+import org.signserver.common.InvalidWorkerIdException;
+import org.signserver.common.RequestContext;
+import org.signserver.common.SignServerException;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerType;
+import org.signserver.common.data.Response;
+import org.signserver.ejb.interfaces.DispatcherProcessSessionLocal;
+import org.signserver.server.IServices;
+import org.signserver.server.SignServerContext;
+
+/**
+ * Unit tests for the LoadBalancingDispatcher class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class LoadBalancingDispatcherUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(LoadBalancingDispatcherUnitTest.class);
+
+    private static final IServices NO_SERVICES = null;
+
+    private MockedLoadBalancingDispatcher createInstance(final String... properties) {
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty(WorkerConfig.TYPE, WorkerType.PROCESSABLE.name());
+        config.setProperty("NAME", "Dispatcher");
+        for (int i = 0; i < properties.length; i += 2) {
+            config.setProperty(properties[i], properties[i + 1]);
+        }
+        final MockedLoadBalancingDispatcher instance = new MockedLoadBalancingDispatcher();
+        instance.init(1, config, new SignServerContext(null, null), null);
+        return instance;
+    }
+
+    private static int count(final List<String> dispatched, final String workerName) {
+        return Collections.frequency(dispatched, workerName);
+    }
+
+    /**
+     * Tests the configuration errors.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConfigErrors() throws Exception {
+        LOG.info("testConfigErrors");
+
+        assertTrue("missing", createInstance().getFatalErrors(NO_SERVICES).toString().contains("WORKERS"));
+        assertTrue("no errors", createInstance("WORKERS", "worker1, worker2:3").getFatalErrors(NO_SERVICES).isEmpty());
+        assertTrue("weight", createInstance("WORKERS", "worker1:x").getFatalErrors(NO_SERVICES).toString().contains("weight"));
+        assertTrue("zero weight", createInstance("WORKERS", "worker1:0").getFatalErrors(NO_SERVICES).toString().contains("weight"));
+        assertTrue("syntax", createInstance("WORKERS", "worker1::1").getFatalErrors(NO_SERVICES).toString().contains("Syntax"));
+        assertTrue("itself", createInstance("WORKERS", "worker1, Dispatcher").getFatalErrors(NO_SERVICES).toString().contains("itself"));
+        assertTrue("load balancing", createInstance("WORKERS", "worker1", "LOAD_BALANCING", "RANDOM").getFatalErrors(NO_SERVICES).toString().contains("LOAD_BALANCING"));
+        assertTrue("threshold", createInstance("WORKERS", "worker1", "FAILURE_THRESHOLD", "0").getFatalErrors(NO_SERVICES).toString().contains("FAILURE_THRESHOLD"));
+        assertTrue("interval", createInstance("WORKERS", "worker1", "PROBE_INTERVAL", "x").getFatalErrors(NO_SERVICES).toString().contains("PROBE_INTERVAL"));
+
+        try {
+            createInstance().processData(null, new RequestContext());
+            fail("Should have failed");
+        } catch (SignServerException expected) { // NOPMD
+            // OK
+        }
+    }
+
+    /**
+     * Tests that round-robin dispatches according to the weights.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testWeightedRoundRobin() throws Exception {
+        LOG.info("testWeightedRoundRobin");
+        final MockedLoadBalancingDispatcher instance = createInstance("WORKERS", "worker1:3, worker2, worker3:2", "LOAD_BALANCING", "ROUND_ROBIN");
+
+        for (int i = 0; i < 60; i++) {
+            instance.processData(null, new RequestContext());
+        }
+        assertEquals("worker1", 30, count(instance.dispatched, "worker1"));
+        assertEquals("worker2", 10, count(instance.dispatched, "worker2"));
+        assertEquals("worker3", 20, count(instance.dispatched, "worker3"));
+        assertNotEquals("interleaved", instance.dispatched.get(0), instance.dispatched.get(1));
+    }
+
+    /**
+     * Tests that equally loaded workers all get requests when dispatching to
+     * the least outstanding.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testLeastOutstanding() throws Exception {
+        LOG.info("testLeastOutstanding");
+        final MockedLoadBalancingDispatcher instance = createInstance("WORKERS", "worker1, worker2, worker3");
+
+        for (int i = 0; i < 30; i++) {
+            instance.processData(null, new RequestContext());
+        }
+        assertEquals("worker1", 10, count(instance.dispatched, "worker1"));
+        assertEquals("worker2", 10, count(instance.dispatched, "worker2"));
+        assertEquals("worker3", 10, count(instance.dispatched, "worker3"));
+    }
+
+    /**
+     * Tests that offline workers are skipped, that a worker is not
+     * dispatched to after the threshold and that it is dispatched to again
+     * once the status check finds it active.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        LOG.info("testCircuitBreaker");
+        final MockedLoadBalancingDispatcher instance = createInstance("WORKERS", "worker1, worker2", "LOAD_BALANCING", "ROUND_ROBIN",
+                "FAILURE_THRESHOLD", "2", "PROBE_INTERVAL", "1");
+        instance.offline.add("worker1");
+
+        // Requests still succeed using the other worker
+        for (int i = 0; i < 6; i++) {
+            instance.processData(null, new RequestContext());
+        }
+        assertEquals("tried worker1 until threshold", 2, count(instance.dispatched, "worker1"));
+        assertEquals("worker2", 6, count(instance.dispatched, "worker2"));
+
+        // No worker left
+        instance.offline.add("worker2");
+        for (int i = 0; i < 3; i++) {
+            try {
+                instance.processData(null, new RequestContext());
+                fail("Should have failed");
+            } catch (CryptoTokenOfflineException expected) {
+                assertEquals("No active worker found", expected.getMessage());
+            }
+        }
+        assertEquals("tried worker2 until threshold", 8, count(instance.dispatched, "worker2"));
+
+        // Recovers after the status check
+        instance.offline.clear();
+        instance.active.add("worker1");
+        final long deadline = System.currentTimeMillis() + 10000;
+        boolean recovered = false;
+        while (!recovered && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            instance.dispatched.clear();
+            try {
+                instance.processData(null, new RequestContext());
+                recovered = true;
+            } catch (CryptoTokenOfflineException ex) { // NOPMD
+                // Not yet checked
+            }
+        }
+        assertTrue("recovered", recovered);
+        assertEquals("dispatched to recovered worker", List.of("worker1"), instance.dispatched);
+        assertTrue("probed", instance.probed.contains("worker1"));
+        instance.destroy();
+    }
+
+    /**
+     * Tests that the status checks stop when the worker no longer exists
+     * and when the dispatcher instance is destroyed.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testProbingStops() throws Exception {
+        LOG.info("testProbingStops");
+        final MockedLoadBalancingDispatcher instance = createInstance("WORKERS", "worker1, worker2", "LOAD_BALANCING", "ROUND_ROBIN",
+                "FAILURE_THRESHOLD", "1", "PROBE_INTERVAL", "1");
+        instance.offline.add("worker1");
+        instance.offline.add("worker2");
+        instance.removed.add("worker1");
+        try {
+            instance.processData(null, new RequestContext());
+            fail("Should have failed");
+        } catch (CryptoTokenOfflineException expected) { // NOPMD
+            // OK
+        }
+
+        // Removed worker is checked once
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (instance.count("worker1") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(2500);
+        assertEquals("removed worker checked once", 1, instance.count("worker1"));
+        assertTrue("other worker still checked", instance.count("worker2") > 1);
+
+        // No more checks after destroy
+        instance.destroy();
+        final int checks = instance.count("worker2");
+        Thread.sleep(2500);
+        assertEquals("not checked after destroy", checks, instance.count("worker2"));
+    }
+
+    /** Mocked LoadBalancingDispatcher not doing any JNDI lookups. */
+    private static class MockedLoadBalancingDispatcher extends LoadBalancingDispatcher {
+
+        private final List<String> dispatched = Collections.synchronizedList(new ArrayList<>());
+        private final Set<String> offline = ConcurrentHashMap.newKeySet();
+        private final Set<String> active = ConcurrentHashMap.newKeySet();
+        private final Set<String> removed = ConcurrentHashMap.newKeySet();
+        private final List<String> probed = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        protected DispatcherProcessSessionLocal getProcessSession(final RequestContext requestContext) {
+            return (adminInfo, wi, request, context) -> {
+                dispatched.add(wi.getName());
+                if (offline.contains(wi.getName())) {
+                    throw new CryptoTokenOfflineException("Offline");
+                }
+                return (Response) null;
+            };
+        }
+
+        @Override
+        protected boolean isActive(final String workerName) throws InvalidWorkerIdException {
+            probed.add(workerName);
+            if (removed.contains(workerName)) {
+                throw new InvalidWorkerIdException("No such worker: " + workerName);
+            }
+            return active.contains(workerName);
+        }
+
+        private int count(final String workerName) {
+            synchronized (probed) {
+                return Collections.frequency(probed, workerName);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.log;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.signserver.common.WorkerConfig;
+
+/**
+ * Unit tests for the FileWorkerLogger class.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class FileWorkerLoggerUnitTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileWorkerLogger createLogger(final File logFile, final String... properties) {
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("LOG_FILE_PATH", logFile.getAbsolutePath());
+        for (int i = 0; i < properties.length; i += 2) {
+            config.setProperty(properties[i], properties[i + 1]);
+        }
+        final FileWorkerLogger instance = new FileWorkerLogger();
+        instance.init(1, config, null);
+        assertTrue("errors: " + instance.getFatalErrors(null), instance.getFatalErrors(null).isEmpty());
+        return instance;
+    }
+
+    private static Map<String, Object> fields(final String value) {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("FILENAME", value);
+        return result;
+    }
+
+    /**
+     * Tests that lines are appended to the file and written before
+     * returning by default.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testAppend() throws Exception {
+        final File logFile = new File(folder.getRoot(), "append.log");
+        final FileWorkerLogger instance = createLogger(logFile);
+        instance.log(null, fields("first.pdf"), null);
+        instance.log(null, fields("second.pdf"), null);
+
+        final List<String> lines = Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals("lines: " + lines, 2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).startsWith("FILENAME: first.pdf; REPLY_TIME:"));
+        assertTrue(lines.get(1), lines.get(1).startsWith("FILENAME: second.pdf; REPLY_TIME:"));
+    }
+
+    /**
+     * Tests that with a flush interval lines are written after the interval.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testFlushInterval() throws Exception {
+        final File logFile = new File(folder.getRoot(), "interval.log");
+        final FileWorkerLogger instance = createLogger(logFile, "LOG_FILE_FLUSH_INTERVAL", "50");
+        instance.log(null, fields("first.pdf"), null);
+        assertFalse("not written yet", logFile.exists());
+
+        for (int i = 0; i < 100 && !logFile.exists(); i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("lines", 1, Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    /**
+     * Tests that the file is rotated when it would exceed the maximum size.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRotateSize() throws Exception {
+        final File logFile = new File(folder.getRoot(), "rotate.log");
+        final FileWorkerLogger instance = createLogger(logFile, "LOG_FILE_ROTATE_SIZE", "100");
+        for (int i = 0; i < 6; i++) {
+            instance.log(null, fields("document-" + i + ".pdf"), null);
+        }
+
+        final File[] files = folder.getRoot().listFiles((dir, name) -> name.startsWith("rotate.log"));
+        assertTrue("rotated files: " + files.length, files.length > 1);
+        int lines = 0;
+        for (File file : files) {
+            assertTrue("size of " + file, file.length() <= 100);
+            lines += Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size();
+        }
+        assertEquals("all lines", 6, lines);
+    }
+
+    /**
+     * Tests that queued lines are written when shutting down.
+     *
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testShutdownWritesQueued() throws Exception {
+        final File logFile = new File(folder.getRoot(), "shutdown.log");
+        final FileWorkerLogger instance = createLogger(logFile, "LOG_FILE_FLUSH_INTERVAL", "600000");
+        instance.log(null, fields("first.pdf"), null);
+        assertFalse("not written yet", logFile.exists());
+
+        FileLogWriter.shutdown();
+        assertEquals("lines", 1, Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8).size());
+
+        // Lines logged after shutdown are written directly
+        instance.log(null, fields("second.pdf"), null);
+        assertEquals("lines", 2, Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    /**
+     * Tests that two workers can not use the same file with different
+     * settings but that a worker can change its own settings.
+     */
+    @Test
+    public void testConflictingSettings() {
+        final File logFile = new File(folder.getRoot(), "shared.log");
+        createLogger(logFile, "LOG_FILE_FLUSH_INTERVAL", "100");
+        createLogger(logFile, "LOG_FILE_FLUSH_INTERVAL", "200");
+
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("LOG_FILE_PATH", logFile.getAbsolutePath());
+        config.setProperty("LOG_FILE_FLUSH_INTERVAL", "300");
+        final FileWorkerLogger other = new FileWorkerLogger();
+        other.init(2, config, null);
+        assertEquals("errors: " + other.getFatalErrors(null), 1, other.getFatalErrors(null).size());
+
+        config.setProperty("LOG_FILE_FLUSH_INTERVAL", "200");
+        final FileWorkerLogger same = new FileWorkerLogger();
+        same.init(2, config, null);
+        assertTrue("errors: " + same.getFatalErrors(null), same.getFatalErrors(null).isEmpty());
+    }
+
+    /**
+     * Tests that incorrect values gives fatal errors.
+     */
+    @Test
+    public void testIncorrectProperties() {
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("LOG_FILE_PATH", new File(folder.getRoot(), "errors.log").getAbsolutePath());
+        config.setProperty("LOG_FILE_FLUSH_INTERVAL", "-1");
+        config.setProperty("LOG_FILE_FSYNC", "maybe");
+        final FileWorkerLogger instance = new FileWorkerLogger();
+        instance.init(1, config, null);
+        assertEquals("errors: " + instance.getFatalErrors(null), 2, instance.getFatalErrors(null).size());
+    }
+}
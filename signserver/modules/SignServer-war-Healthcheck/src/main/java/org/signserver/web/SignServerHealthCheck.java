@@ -18,11 +18,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Properties;
 
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.persistence.EntityManager;
 import javax.servlet.ServletConfig;
@@ -49,6 +54,10 @@ import org.signserver.web.pub.cluster.IHealthCheck;
  * Database connection can be established.
  * All SignerTokens are active if not set as offline.
  * 
+ * The status of the workers is by default evaluated in the background and
+ * the latest result is used (configurable through web.xml with param
+ * "WorkerStatusMaxAge" in seconds, 0 to check all workers on each request).
+ * 
  * If a maintenance file has been configured during build, it can be used to enable maintenance mode.
  * When enabled, none of the above system checks are performed, instead a down-for-maintenance message is returned.
  * 
@@ -61,23 +70,53 @@ public class SignServerHealthCheck implements IHealthCheck {
     private static final Logger LOG = Logger.getLogger(
             SignServerHealthCheck.class);
     
-    private WorkerSessionLocal signserversession;
+    private static final int DEFAULT_WORKER_STATUS_THREADS = 4;
+
+    private volatile WorkerSessionLocal signserversession;
     
     private int minfreememory;
     private String checkDBString;
     private String maintenanceFile;
     private String maintenancePropertyName;
     private EntityManager em;
+    private WorkerHealthEvaluator evaluator;
+    private ScheduledExecutorService fallbackExecutor;
+    private long workerStatusMaxAge;
 
     private WorkerSessionLocal getWorkerSession() {
-        if (signserversession == null) {
-            try {
-                signserversession = ServiceLocator.getInstance().lookupLocal(WorkerSessionLocal.class);
-            } catch (NamingException e) {
-                LOG.error(e);
+        WorkerSessionLocal result = signserversession;
+        if (result == null) {
+            synchronized (this) {
+                result = signserversession;
+                if (result == null) {
+                    try {
+                        result = ServiceLocator.getInstance().lookupLocal(WorkerSessionLocal.class);
+                        signserversession = result;
+                    } catch (NamingException e) {
+                        LOG.error(e);
+                    }
+                }
             }
         }
-        return signserversession;
+        return result;
+    }
+
+    /**
+     * @return the container's managed scheduled executor or if not
+     * available a local executor that is shut down in destroy
+     */
+    private ScheduledExecutorService getExecutor(final int threads) {
+        try {
+            return InitialContext.doLookup("java:comp/DefaultManagedScheduledExecutorService");
+        } catch (NamingException ex) {
+            LOG.warn("Managed scheduled executor not available, using local threads: " + ex.getMessage());
+            fallbackExecutor = Executors.newScheduledThreadPool(threads + 1, runnable -> {
+                final Thread thread = new Thread(runnable, "HealthCheck-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+            return fallbackExecutor;
+        }
     }
 
     @Override
@@ -87,18 +126,67 @@ public class SignServerHealthCheck implements IHealthCheck {
         maintenanceFile = config.getInitParameter("MaintenanceFile");
         maintenancePropertyName = config.getInitParameter("MaintenancePropertyName");
         this.em = em;
+        workerStatusMaxAge = parseSeconds(config.getInitParameter("WorkerStatusMaxAge"));
+        getWorkerSession();
+        if (workerStatusMaxAge > 0) {
+            final int threads = parseThreads(config.getInitParameter("WorkerStatusThreads"));
+            evaluator = new WorkerHealthEvaluator(this::getWorkerSession, workerStatusMaxAge,
+                    threads, getExecutor(threads));
+            evaluator.start();
+        }
         if (LOG.isDebugEnabled()) {
             final StringBuilder buff = new StringBuilder();
             buff.append("Health check configured with:\n")
                     .append("minfreeememory: ").append(minfreememory).append("\n")
                     .append("checkDBString: ").append(checkDBString).append("\n")
                     .append("maintenancePropertyName: ").append(maintenancePropertyName).append("\n")
+                    .append("workerStatusMaxAge: ").append(workerStatusMaxAge).append("\n")
                     .append("entityManager: ").append(em);
             LOG.debug(buff.append(buff));
         }
         initMaintenanceFile();
     }
 
+    @Override
+    public void destroy() {
+        if (evaluator != null) {
+            evaluator.stop();
+        }
+        if (fallbackExecutor != null) {
+            fallbackExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public long getStatusAge() {
+        final WorkerHealthEvaluator.Snapshot snapshot = evaluator == null ? null : evaluator.getSnapshot();
+        return snapshot == null ? -1 : snapshot.getAge(System.currentTimeMillis());
+    }
+
+    private static long parseSeconds(final String value) {
+        if (StringUtils.isBlank(value)) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException ex) {
+            LOG.error("Incorrect value for WorkerStatusMaxAge: " + value);
+            return 0;
+        }
+    }
+
+    private static int parseThreads(final String value) {
+        if (StringUtils.isBlank(value)) {
+            return DEFAULT_WORKER_STATUS_THREADS;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            LOG.error("Incorrect value for WorkerStatusThreads: " + value);
+            return DEFAULT_WORKER_STATUS_THREADS;
+        }
+    }
+
     @Override
     public String checkHealth(HttpServletRequest request) {
         final LinkedList<String> errors = new LinkedList<>();
@@ -145,6 +233,9 @@ public class SignServerHealthCheck implements IHealthCheck {
     }
 
     private List<String> checkSigners() {
+        if (evaluator != null) {
+            return checkSignersSnapshot();
+        }
         final LinkedList<String> result = new LinkedList<>();
         Iterator<Integer> iter = getWorkerSession().getWorkers(WorkerType.PROCESSABLE).iterator();
         while (iter.hasNext()) {
@@ -172,6 +263,21 @@ public class SignServerHealthCheck implements IHealthCheck {
         return result;
     }
     
+    private List<String> checkSignersSnapshot() {
+        final WorkerHealthEvaluator.Snapshot snapshot = evaluator.getSnapshot();
+        if (snapshot == null) {
+            return Collections.singletonList("Worker status not yet evaluated");
+        }
+        final long age = snapshot.getAge(System.currentTimeMillis());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Using worker status from " + age + " ms ago");
+        }
+        if (age > 3 * workerStatusMaxAge) {
+            return Collections.singletonList("Worker status is stale: evaluated " + TimeUnit.MILLISECONDS.toSeconds(age) + " s ago");
+        }
+        return snapshot.getErrors();
+    }
+
 	private List<String> checkMaintenance() {
         final LinkedList<String> result = new LinkedList<>();
 		if (StringUtils.isEmpty(maintenanceFile)) {
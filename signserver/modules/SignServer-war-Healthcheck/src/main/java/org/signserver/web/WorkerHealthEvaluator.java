@@ -0,0 +1,268 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.web;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import org.apache.log4j.Logger;
+import org.signserver.common.InvalidWorkerIdException;
+import org.signserver.common.WorkerIdentifier;
+import org.signserver.common.WorkerStatus;
+import org.signserver.common.WorkerType;
+import org.signserver.ejb.interfaces.WorkerSessionLocal;
+
+/**
+ * Evaluates the status of all processable workers in the background and
+ * keeps the result as an immutable snapshot.
+ *
+ * The status of a worker is evaluated again when it is older than the
+ * maximum age, using a bounded number of tasks on the given executor, so
+ * that health check requests do not cause any status checks (and test
+ * signatures) of their own. The executor is normally the container's
+ * managed scheduled executor and is not shut down by the evaluator.
+ *
+ * @author Nima Saboonchi
+ * @version $Id$
+ */
+public class WorkerHealthEvaluator {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(WorkerHealthEvaluator.class);
+
+    /** Shortest time between two evaluation rounds. */
+    private static final long MIN_INTERVAL = 250;
+
+    private final Supplier<WorkerSessionLocal> workerSession;
+    private final long maxAge;
+    private final int threads;
+    private final ScheduledExecutorService executor;
+
+    /** Latest result for each worker. */
+    private final Map<Integer, WorkerResult> results = new ConcurrentHashMap<>();
+
+    /** Workers currently being checked. */
+    private final Set<Integer> inProgress = ConcurrentHashMap.newKeySet();
+
+    private volatile Snapshot snapshot;
+
+    private volatile ScheduledFuture<?> refresher;
+    private volatile boolean stopped;
+
+    /**
+     * Creates an evaluator.
+     *
+     * @param workerSession to get the workers and their status from
+     * @param maxAge maximum age in milliseconds of the status of a worker
+     * @param threads maximum number of workers to check in parallel
+     * @param executor to run the evaluation and the status checks on
+     */
+    public WorkerHealthEvaluator(final Supplier<WorkerSessionLocal> workerSession, final long maxAge, final int threads, final ScheduledExecutorService executor) {
+        this.workerSession = workerSession;
+        this.maxAge = maxAge;
+        this.threads = Math.max(1, threads);
+        this.executor = executor;
+    }
+
+    /**
+     * Starts evaluating the workers in the background.
+     */
+    public void start() {
+        refresher = executor.scheduleWithFixedDelay(this::refresh, 0, Math.max(MIN_INTERVAL, maxAge / 2), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background evaluation. Checks already started are allowed
+     * to complete.
+     */
+    public void stop() {
+        stopped = true;
+        final ScheduledFuture<?> future = refresher;
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * @return The latest snapshot or null if the workers have not been
+     * evaluated yet
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Checks the workers with a status older than the maximum age and
+     * publishes a new snapshot.
+     */
+    void refresh() {
+        try {
+            final long start = System.currentTimeMillis();
+            final List<Integer> workers = workerSession.get().getWorkers(WorkerType.PROCESSABLE);
+            results.keySet().retainAll(workers);
+
+            final Map<Integer, CompletableFuture<Void>> checks = new LinkedHashMap<>();
+            for (final Integer workerId : workers) {
+                final WorkerResult result = results.get(workerId);
+                if ((result == null || start - result.time >= maxAge) && inProgress.add(workerId)) {
+                    checks.put(workerId, new CompletableFuture<>());
+                }
+            }
+
+            // Check the workers using at most the configured number of tasks
+            final Queue<Map.Entry<Integer, CompletableFuture<Void>>> queue = new ConcurrentLinkedQueue<>(checks.entrySet());
+            for (int i = 0; i < Math.min(threads, checks.size()); i++) {
+                try {
+                    executor.execute(() -> runChecks(queue));
+                } catch (RejectedExecutionException ex) {
+                    LOG.warn("Could not start status checks: " + ex.getMessage());
+                    runChecks(queue);
+                }
+            }
+
+            // Wait at most the maximum age for the checks started this round
+            final long deadline = start + maxAge;
+            for (final Map.Entry<Integer, CompletableFuture<Void>> entry : checks.entrySet()) {
+                try {
+                    entry.getValue().get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ex) {
+                    LOG.warn("Status check of worker " + entry.getKey() + " did not complete within " + maxAge + " ms");
+                } catch (ExecutionException ex) {
+                    LOG.error("Status check of worker " + entry.getKey() + " failed", ex.getCause());
+                }
+            }
+
+            final List<String> errors = new ArrayList<>();
+            final long now = System.currentTimeMillis();
+            for (final Integer workerId : workers) {
+                final WorkerResult result = results.get(workerId);
+                if (result != null) {
+                    errors.addAll(result.errors);
+                }
+                if (inProgress.contains(workerId) && (result == null || now - result.time > 2 * maxAge)) {
+                    errors.add("Worker " + workerId + ": Status check did not complete in time");
+                }
+            }
+            snapshot = new Snapshot(now, errors);
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Evaluated " + checks.size() + " of " + workers.size() + " workers in " + (now - start) + " ms");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) { // NOPMD: Keep the scheduled task running
+            LOG.error("Evaluating worker status failed", t);
+        }
+    }
+
+    private void runChecks(final Queue<Map.Entry<Integer, CompletableFuture<Void>>> queue) {
+        Map.Entry<Integer, CompletableFuture<Void>> entry;
+        while ((entry = queue.poll()) != null) {
+            try {
+                if (stopped) {
+                    inProgress.remove(entry.getKey());
+                } else {
+                    check(entry.getKey());
+                }
+            } finally {
+                entry.getValue().complete(null);
+            }
+        }
+    }
+
+    private void check(final int workerId) {
+        try {
+            final List<String> errors = new ArrayList<>();
+            final WorkerStatus workerStatus = workerSession.get().getStatus(new WorkerIdentifier(workerId));
+            if (workerStatus.isDisabled()) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Not checking worker " + workerId + " as it is disabled");
+                }
+            } else {
+                for (String error : workerStatus.getFatalErrors()) {
+                    errors.add("Worker " + workerStatus.getWorkerId() + ": " + error);
+                }
+            }
+            results.put(workerId, new WorkerResult(System.currentTimeMillis(), errors));
+        } catch (InvalidWorkerIdException e) {
+            LOG.error(e.getMessage(), e);
+            results.remove(workerId);
+        } catch (RuntimeException e) {
+            LOG.error("Status check of worker " + workerId + " failed", e);
+            results.put(workerId, new WorkerResult(System.currentTimeMillis(),
+                    Collections.singletonList("Worker " + workerId + ": Status check failed: " + e.getMessage())));
+        } finally {
+            inProgress.remove(workerId);
+        }
+    }
+
+    /** Status of one worker. */
+    private static final class WorkerResult {
+        private final long time;
+        private final List<String> errors;
+
+        WorkerResult(final long time, final List<String> errors) {
+            this.time = time;
+            this.errors = Collections.unmodifiableList(errors);
+        }
+    }
+
+    /**
+     * Immutable result of an evaluation of all workers.
+     */
+    public static final class Snapshot {
+        private final long time;
+        private final List<String> errors;
+
+        Snapshot(final long time, final List<String> errors) {
+            this.time = time;
+            this.errors = Collections.unmodifiableList(errors);
+        }
+
+        /**
+         * @return Time in milliseconds when the snapshot was created
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @param now current time in milliseconds
+         * @return Age of the snapshot in milliseconds
+         */
+        public long getAge(final long now) {
+            return now - time;
+        }
+
+        /**
+         * @return Fatal errors of all workers
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+    }
+}
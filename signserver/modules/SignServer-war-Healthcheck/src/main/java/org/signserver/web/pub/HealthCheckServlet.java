@@ -17,6 +17,7 @@ package org.signserver.web.pub;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import javax.persistence.EntityManager;
 
 import javax.servlet.ServletConfig;
@@ -60,6 +61,9 @@ public class HealthCheckServlet extends HttpServlet {
     private String[] authIPs = null;
     private boolean allIPsAuth;
     
+    /** Response header with the age in seconds of the worker status used. */
+    private static final String STATUS_AGE_HEADER = "X-SignServer-Status-Age";
+
     private static final SameRequestRateLimiter<String> rateLimiter = new SameRequestRateLimiter<>();
     
     /** EntityManager is conditionally injected from web.xml. */
@@ -101,6 +105,14 @@ public class HealthCheckServlet extends HttpServlet {
         }
     }
 
+    @Override
+    public void destroy() {
+        if (healthcheck != null) {
+            healthcheck.destroy();
+        }
+        super.destroy();
+    }
+
     /**
      * Handles HTTP POST
      *
@@ -162,6 +174,10 @@ public class HealthCheckServlet extends HttpServlet {
     	    } else if (log.isDebugEnabled()) {
     	        log.debug("Re-using health check answer from first concurrent request for this request to conserve server load.");
     	    }
+    	    final long statusAge = healthcheck.getStatusAge();
+    	    if (statusAge >= 0) {
+    	        response.setHeader(STATUS_AGE_HEADER, String.valueOf(TimeUnit.MILLISECONDS.toSeconds(statusAge)));
+    	    }
     	    healthresponse.respond(result.getValue(), response);
     	} else {
     	    if ((remoteIP == null) || (remoteIP.length() > 100) ) {
@@ -45,4 +45,18 @@ public interface IHealthCheck {
      */
     public String checkHealth(HttpServletRequest request);
 
+    /**
+     * Method called when the health checker is taken out of service.
+     */
+    default void destroy() {
+    }
+
+    /**
+     * @return Age in milliseconds of the status the last check was based on
+     * or -1 if the status is evaluated for each request
+     */
+    default long getStatusAge() {
+        return -1;
+    }
+
 }
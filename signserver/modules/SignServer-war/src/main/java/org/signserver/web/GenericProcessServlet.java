@@ -555,7 +555,7 @@ public class GenericProcessServlet extends AbstractProcessServlet {
 
         final int requestId = ThreadLocalRandom.current().nextInt();
 
-        try (CloseableWritableData responseData = dataFactory.createWritableData(data, uploadConfig.getRepository())) {
+        try (CloseableWritableData responseData = dataFactory.createWritableData(data, uploadConfig)) {
             String responseText;
 
             switch (processType) {